@@ -3,6 +3,9 @@ package net.fortytwo.linkeddata;
 import net.fortytwo.ripple.RippleException;
 import org.restlet.data.MediaType;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -20,6 +23,7 @@ public class CacheEntry {
         ClientError,        // 4xx HTTP error
         DereferencerError,  // TODO: break this down into more specific conditions
         Failure,            // all other error conditions
+        HostUnavailable,    // not dereferenced, as the host has failed repeatedly and is not yet due for a retry
         Ignored,            // don't bother dereferencing these URIs
         InvalidUri,         // bad URI
         ParseError,         // a document was received, but failed to parse
@@ -34,6 +38,9 @@ public class CacheEntry {
     // memo entry keys
     private static final String
             DEREFERENCER = "dereferencer",
+            ETAG = "etag",
+            EXPIRES = "expires",
+            LAST_MODIFIED = "lastModified",
             MEDIATYPE = "mediaType",
             RDFIZER = "rdfizer",
             STATUS = "status",
@@ -41,8 +48,13 @@ public class CacheEntry {
 
     // Use XMLSchema-style time stamps, without time zone info, accurate to
     // the nearest second.
-    private static final SimpleDateFormat TIMESTAMP_FORMAT
-            = new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss");
+    // note: SimpleDateFormat is not thread-safe, and entries are read and written by concurrent retrievals
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss");
+        }
+    };
 
     private Status status;
     private Date timestamp;
@@ -50,6 +62,14 @@ public class CacheEntry {
     private String dereferencer;
     private String rdfizer;
 
+    // validators and freshness information provided by the server, if any
+    private String etag;
+    private Date lastModified;
+    private Date expires;
+
+    // whether the entry has been looked up since the storage budget last considered its graph (not persisted)
+    private volatile boolean used = false;
+
     public CacheEntry(final Status status) {
         this.status = status;
         this.timestamp = new Date();
@@ -93,6 +113,34 @@ public class CacheEntry {
         return mediaType;
     }
 
+    /**
+     * @return the entity tag of the cached document, as sent by the server (including quotes), or null
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the last modification date of the cached document, as reported by the server, or null
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the time at which the server considers the cached document to become stale, or null
+     */
+    public Date getExpires() {
+        return expires;
+    }
+
+    /**
+     * @return whether this entry has any validators with which a conditional request can be made
+     */
+    public boolean hasValidators() {
+        return null != etag || null != lastModified;
+    }
+
     public Map<String, String> getKeyValues() {
         Map<String, String> map = new HashMap<String, String>();
 
@@ -103,7 +151,7 @@ public class CacheEntry {
 
         if (null != this.timestamp) {
             map.put(TIMESTAMP,
-                    TIMESTAMP_FORMAT.format(this.timestamp));
+                    formatDate(this.timestamp));
         }
 
         if (null != this.mediaType) {
@@ -121,6 +169,26 @@ public class CacheEntry {
                     this.rdfizer);
         }
 
+        if (null != this.etag) {
+            // entity tags may contain any character, including the separators of the memo format
+            try {
+                map.put(ETAG,
+                        URLEncoder.encode(this.etag, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        if (null != this.lastModified) {
+            map.put(LAST_MODIFIED,
+                    formatDate(this.lastModified));
+        }
+
+        if (null != this.expires) {
+            map.put(EXPIRES,
+                    formatDate(this.expires));
+        }
+
         return map;
     }
 
@@ -152,6 +220,10 @@ public class CacheEntry {
         this.status = status;
     }
 
+    public void setTimestamp(final Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
     public void setMediaType(final MediaType mt) {
         this.mediaType = mt;
     }
@@ -164,18 +236,62 @@ public class CacheEntry {
         this.rdfizer = rfiz;
     }
 
+    public void setETag(final String etag) {
+        this.etag = etag;
+    }
+
+    public void setLastModified(final Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public void setExpires(final Date expires) {
+        this.expires = expires;
+    }
+
+    // Note: the flag is only written if it is not already set, so that frequent lookups do not contend for it
+    void markUsed() {
+        if (!used) {
+            used = true;
+        }
+    }
+
+    // clears the flag, returning its previous value
+    boolean clearUsed() {
+        boolean u = used;
+        used = false;
+        return u;
+    }
+
     private void addEntry(final String key,
                           final String value) throws ParseException {
         if (key.equals(STATUS)) {
             this.status = Status.valueOf(value);
         } else if (key.equals(TIMESTAMP)) {
-            this.timestamp = TIMESTAMP_FORMAT.parse(value);
+            this.timestamp = parseDate(value);
         } else if (key.equals(MEDIATYPE)) {
             this.mediaType = new MediaType(value);
         } else if (key.equals(DEREFERENCER)) {
             this.dereferencer = value;
         } else if (key.equals(RDFIZER)) {
             this.rdfizer = value;
+        } else if (key.equals(ETAG)) {
+            try {
+                this.etag = URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        } else if (key.equals(LAST_MODIFIED)) {
+            this.lastModified = parseDate(value);
+        } else if (key.equals(EXPIRES)) {
+            this.expires = parseDate(value);
         }
     }
+
+    private static String formatDate(final Date date) {
+        return TIMESTAMP_FORMAT.get().format(date);
+    }
+
+    private static Date parseDate(final String value) throws ParseException {
+        return TIMESTAMP_FORMAT.get().parse(value);
+    }
 }
@@ -9,39 +9,178 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A collection of caching metadata for aggregated Linked Data.
- * A complete set of metadata is maintained in the underlying triple store,
+ * A complete set of metadata is maintained either in the underlying triple store or in a dedicated memo store,
  * while a subset of the data is kept in a fast in-memory cache.
+ * Metadata may also be written as part of a connection's transaction (see <code>writeMemo</code>),
+ * in which case the in-memory cache and the memo store, neither of which is transactional,
+ * are only updated once the connection has been committed.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class CachingMetadata {
     private final InMemoryCache memos;
 
+    private final int capacity;
     private final ValueFactory valueFactory;
+    private final MemoStore store;
+
+    // Memos written or removed in transactions which have not yet been committed, by connection and graph URI.
+    // A removed memo is mapped to null
+    private final Map<SailConnection, Map<String, CacheEntry>> uncommitted
+            = new WeakHashMap<SailConnection, Map<String, CacheEntry>>();
 
     public CachingMetadata(final int capacity,
                            final ValueFactory valueFactory) throws RippleException {
+        this(capacity, valueFactory, null);
+    }
+
+    /**
+     * @param capacity     the number of memos kept in memory
+     * @param valueFactory a value factory for the underlying triple store
+     * @param store        a store for the complete set of metadata,
+     *                     or null if the metadata is to be kept in the triple store
+     * @throws RippleException
+     */
+    public CachingMetadata(final int capacity,
+                           final ValueFactory valueFactory,
+                           final MemoStore store) throws RippleException {
         memos = new InMemoryCache(capacity);
 
+        this.capacity = capacity;
         this.valueFactory = valueFactory;
+        this.store = store;
     }
 
-    public void clear() {
-        memos.clear();
+    /**
+     * Clears the in-memory cache and the memo store, if any.
+     * Metadata in the triple store is cleared along with the triple store itself.
+     *
+     * @throws RippleException if the memo store is closed
+     */
+    public void clear() throws RippleException {
+        synchronized (uncommitted) {
+            uncommitted.clear();
+        }
+        synchronized (memos) {
+            memos.clear();
+        }
+
+        if (null != store) {
+            store.clear();
+        }
     }
 
+    /**
+     * Closes the memo store, if any
+     *
+     * @throws RippleException if an I/O error occurs
+     */
+    public void close() throws RippleException {
+        if (null != store) {
+            store.close();
+        }
+    }
+
+    /**
+     * Moves any metadata in the triple store into the memo store, for example when a memo store is first used.
+     * The caller is responsible for committing the change.
+     *
+     * @param sc a connection to the Sail
+     * @return the number of memos moved
+     * @throws RippleException if there is no memo store, or if the metadata cannot be read or removed
+     */
+    public int migrateMemos(final SailConnection sc) throws RippleException {
+        if (null == store) {
+            throw new RippleException("no memo store to which to migrate caching metadata");
+        }
+
+        int count = 0;
+        try {
+            CloseableIteration<? extends Statement, SailException> iter = sc.getStatements(
+                    null, LinkedDataCache.CACHE_MEMO, null, false, LinkedDataCache.CACHE_GRAPH);
+            try {
+                while (iter.hasNext()) {
+                    Statement st = iter.next();
+                    if (st.getSubject() instanceof URI && st.getObject() instanceof Literal) {
+                        store.put(st.getSubject().stringValue(), new CacheEntry(st.getObject().stringValue()));
+                        count++;
+                    }
+                }
+            } finally {
+                iter.close();
+            }
+
+            if (count > 0) {
+                sc.removeStatements(null, LinkedDataCache.CACHE_MEMO, null, LinkedDataCache.CACHE_GRAPH);
+            }
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+
+        return count;
+    }
+
+    /**
+     * Loads the most recently written memos from the memo store, if any, into the in-memory cache,
+     * so that a newly started cache does not begin cold
+     *
+     * @return the number of memos loaded
+     * @throws RippleException if the memo store is closed
+     */
+    public int warmUp() throws RippleException {
+        if (null == store) {
+            return 0;
+        }
+
+        Map<String, CacheEntry> recent = store.getRecent(capacity);
+        synchronized (memos) {
+            // the most recently written memos are added last, so that they are the last to be evicted
+            for (Map.Entry<String, CacheEntry> e : recent.entrySet()) {
+                memos.put(e.getKey(), e.getValue());
+            }
+        }
+
+        return recent.size();
+    }
+
+    /**
+     * Reads metadata, including metadata which has been written in the given connection's transaction
+     * but not yet committed
+     *
+     * @param graphUri the graph URI of a data source
+     * @param sc       a connection to the Sail
+     * @return the memo of the data source, or null if there is none
+     * @throws RippleException if the metadata cannot be read
+     */
     public CacheEntry getMemo(final String graphUri,
                               final SailConnection sc) throws RippleException {
-        CacheEntry memo = memos.get(graphUri);
+        synchronized (uncommitted) {
+            Map<String, CacheEntry> written = uncommitted.get(sc);
+            if (null != written && written.containsKey(graphUri)) {
+                return written.get(graphUri);
+            }
+        }
+
+        CacheEntry memo;
+        // note: lookups reorder the in-memory cache, so they are synchronized as well
+        synchronized (memos) {
+            memo = memos.get(graphUri);
+        }
 
         // If the memo is not cached
         if (null == memo) {
             // Attempt to retrieve the memo from the persistent store.
+            if (null != store) {
+                return store.get(graphUri);
+            }
+
             try {
                 return retrieveMemo(graphUri, sc);
             } catch (SailException e) {
@@ -53,8 +192,10 @@ public class CachingMetadata {
     }
 
     /**
-     * Writes metadata to the in-memory cache and, optionally, to the Sail.
-     * Note: for now, this metadata resides in the null context.
+     * Writes metadata to the in-memory cache and, optionally, to the memo store or the Sail.
+     * The in-memory cache and the memo store are written immediately, even if the connection is later rolled back;
+     * see <code>writeMemo</code> for metadata which is to take effect only once it is committed.
+     * Note: for now, metadata in the Sail resides in the null context.
      *
      * @param graphUri the graph URI of the cached data source
      * @param memo     the memo object representing the state of the data source
@@ -64,15 +205,186 @@ public class CachingMetadata {
     public void setMemo(final String graphUri,
                         final CacheEntry memo,
                         final SailConnection sc) throws RippleException {
-        memos.put(graphUri, memo);
+        synchronized (memos) {
+            memos.put(graphUri, memo);
+        }
+
+        if (null != sc && null != store) {
+            store.put(graphUri, memo);
+            return;
+        }
+
+        if (null != sc) {
+            writeToSail(graphUri, memo, sc);
+        }
+    }
 
+    /**
+     * Writes metadata as part of a connection's transaction.
+     * Metadata in the Sail is written through the connection, while the in-memory cache and the memo store
+     * are only updated once the connection has been committed (see <code>committed</code>);
+     * until then, the metadata is visible only to <code>getMemo</code> with the same connection.
+     *
+     * @param graphUri the graph URI of the cached data source
+     * @param memo     the memo object representing the state of the data source
+     * @param sc       a connection to the Sail
+     * @throws RippleException if the metadata cannot be written to the Sail
+     */
+    public void writeMemo(final String graphUri,
+                          final CacheEntry memo,
+                          final SailConnection sc) throws RippleException {
+        synchronized (uncommitted) {
+            uncommittedFor(sc).put(graphUri, memo);
+        }
+
+        if (null == store) {
+            writeToSail(graphUri, memo, sc);
+        }
+    }
+
+    /**
+     * Removes metadata from the in-memory cache and from the memo store or the Sail,
+     * for example when a cached graph is evicted
+     *
+     * @param graphUri the graph URI of the formerly cached data source
+     * @param sc       a connection to the Sail
+     * @return the number of statements removed from the Sail, which is zero if metadata is kept in the memo store
+     * @throws RippleException if the metadata cannot be removed
+     */
+    public long removeMemo(final String graphUri,
+                           final SailConnection sc) throws RippleException {
+        synchronized (memos) {
+            memos.remove(graphUri);
+        }
+
+        if (null != store) {
+            store.remove(graphUri);
+            return 0;
+        }
+
+        return removeFromSail(graphUri, sc);
+    }
+
+    /**
+     * Removes metadata as part of a connection's transaction, in the same way as <code>writeMemo</code> writes it
+     *
+     * @param graphUri the graph URI of the formerly cached data source
+     * @param sc       a connection to the Sail
+     * @return the number of statements removed from the Sail, which is zero if metadata is kept in the memo store
+     * @throws RippleException if the metadata cannot be removed from the Sail
+     */
+    public long deleteMemo(final String graphUri,
+                           final SailConnection sc) throws RippleException {
+        synchronized (uncommitted) {
+            uncommittedFor(sc).put(graphUri, null);
+        }
+
+        return null == store ? removeFromSail(graphUri, sc) : 0;
+    }
+
+    /**
+     * Applies the metadata written with <code>writeMemo</code> and <code>deleteMemo</code> to the in-memory cache
+     * and the memo store, once the transaction in which it was written has been committed
+     *
+     * @param sc a connection which has just been committed
+     * @throws RippleException if the memo store cannot be written
+     */
+    public void committed(final SailConnection sc) throws RippleException {
+        // the metadata is applied while it is still visible through the connection, so that it is never missed
+        synchronized (uncommitted) {
+            Map<String, CacheEntry> written = uncommitted.get(sc);
+            if (null == written) {
+                return;
+            }
+
+            for (Map.Entry<String, CacheEntry> e : written.entrySet()) {
+                synchronized (memos) {
+                    if (null == e.getValue()) {
+                        memos.remove(e.getKey());
+                    } else {
+                        memos.put(e.getKey(), e.getValue());
+                    }
+                }
+
+                if (null != store) {
+                    if (null == e.getValue()) {
+                        store.remove(e.getKey());
+                    } else {
+                        store.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+
+            uncommitted.remove(sc);
+        }
+    }
+
+    /**
+     * Discards the metadata written with <code>writeMemo</code> and <code>deleteMemo</code>
+     * once the transaction in which it was written has been rolled back.
+     * Metadata in the Sail has already been discarded by the rollback.
+     *
+     * @param sc a connection which has just been rolled back
+     */
+    public void rolledBack(final SailConnection sc) {
+        synchronized (uncommitted) {
+            uncommitted.remove(sc);
+        }
+    }
+
+    /**
+     * Removes metadata from the in-memory cache only, so that it is next read from the memo store or the Sail.
+     * This undoes a change made by <code>setMemo</code> without a connection.
+     *
+     * @param graphUri the graph URI of a data source
+     */
+    public void forgetMemo(final String graphUri) {
+        synchronized (memos) {
+            memos.remove(graphUri);
+        }
+    }
+
+    // Note: call only while synchronized on the uncommitted metadata
+    private Map<String, CacheEntry> uncommittedFor(final SailConnection sc) {
+        Map<String, CacheEntry> written = uncommitted.get(sc);
+        if (null == written) {
+            written = new HashMap<String, CacheEntry>();
+            uncommitted.put(sc, written);
+        }
+        return written;
+    }
+
+    private void writeToSail(final String graphUri,
+                             final CacheEntry memo,
+                             final SailConnection sc) throws RippleException {
         try {
-            if (null != sc) {
-                URI s = valueFactory.createURI(graphUri);
-                Literal memoLit = valueFactory.createLiteral(memo.toString());
-                sc.removeStatements(s, LinkedDataCache.CACHE_MEMO, null, LinkedDataCache.CACHE_GRAPH);
-                sc.addStatement(s, LinkedDataCache.CACHE_MEMO, memoLit, LinkedDataCache.CACHE_GRAPH);
+            URI s = valueFactory.createURI(graphUri);
+            Literal memoLit = valueFactory.createLiteral(memo.toString());
+            sc.removeStatements(s, LinkedDataCache.CACHE_MEMO, null, LinkedDataCache.CACHE_GRAPH);
+            sc.addStatement(s, LinkedDataCache.CACHE_MEMO, memoLit, LinkedDataCache.CACHE_GRAPH);
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    private long removeFromSail(final String graphUri,
+                                final SailConnection sc) throws RippleException {
+        try {
+            URI s = valueFactory.createURI(graphUri);
+            long removed = 0;
+            CloseableIteration<? extends Statement, SailException> iter = sc.getStatements(
+                    s, LinkedDataCache.CACHE_MEMO, null, false, LinkedDataCache.CACHE_GRAPH);
+            try {
+                while (iter.hasNext()) {
+                    iter.next();
+                    removed++;
+                }
+            } finally {
+                iter.close();
             }
+
+            sc.removeStatements(s, LinkedDataCache.CACHE_MEMO, null, LinkedDataCache.CACHE_GRAPH);
+            return removed;
         } catch (SailException e) {
             throw new RippleException(e);
         }
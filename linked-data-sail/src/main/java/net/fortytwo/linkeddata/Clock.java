@@ -0,0 +1,19 @@
+package net.fortytwo.linkeddata;
+
+/**
+ * A source of the current time, so that time-dependent behavior can be tested with a clock which is advanced by hand
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return the current time, in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+}
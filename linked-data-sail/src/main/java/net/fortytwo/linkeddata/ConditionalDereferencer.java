@@ -0,0 +1,23 @@
+package net.fortytwo.linkeddata;
+
+import net.fortytwo.ripple.RippleException;
+import org.restlet.representation.Representation;
+
+/**
+ * A dereferencer which can revalidate a cached document, fetching it again only if it has changed.
+ * Validators and freshness information of a retrieved document are reported through the tag, modification date
+ * and expiration date of the representation.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface ConditionalDereferencer extends Dereferencer {
+    /**
+     * @param uri    a URI from which to fetch a document
+     * @param cached the cache entry of the last retrieval of the document, whose validators are sent with the request
+     * @return the retrieved representation, or null if dereferencing the URI is found not to be necessary.
+     * If the document has not changed since it was cached, the representation is not available
+     * (see <code>Representation.isAvailable</code>) and has no content.
+     * @throws RippleException if dereferencing the URI fails for any reason
+     */
+    Representation dereference(String uri, CacheEntry cached) throws RippleException;
+}
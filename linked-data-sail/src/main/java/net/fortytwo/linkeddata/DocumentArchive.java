@@ -0,0 +1,423 @@
+package net.fortytwo.linkeddata;
+
+import net.fortytwo.ripple.RippleException;
+import org.apache.log4j.Logger;
+import org.restlet.data.MediaType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An on-disk archive of the raw documents retrieved by a cache, so that documents can be rdfized again
+ * without going back to the Web, for example after the triple store has been cleared or the rdfizers reconfigured,
+ * or so that a crawl can be replayed offline.
+ * Document bodies are stored in compressed form under the SHA-1 hash of their content,
+ * so that identical documents are stored only once, and an index maps each URI to its latest document,
+ * along with the media type and validators with which it was served.
+ * The index is an append-only text file which is read into memory when the archive is opened.
+ * Note: document bodies are never deleted, even if no URI refers to them any longer.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DocumentArchive {
+    private static final Logger logger = Logger.getLogger(DocumentArchive.class);
+
+    private static final String
+            INDEX = "index.txt",
+            OBJECTS = "objects",
+            TMP = "tmp";
+
+    private static final String NONE = "-";
+    private static final int FIELDS = 7, HASH_LENGTH = 40;
+
+    private final File objectDirectory;
+    private final File tmpDirectory;
+    private final File indexFile;
+
+    private final Map<String, Document> index = new HashMap<String, Document>();
+
+    /**
+     * Opens an archive, creating it if the directory does not exist
+     *
+     * @param directory the directory in which documents are archived
+     * @throws RippleException if the archive cannot be opened
+     */
+    public DocumentArchive(final File directory) throws RippleException {
+        objectDirectory = new File(directory, OBJECTS);
+        tmpDirectory = new File(directory, TMP);
+        indexFile = new File(directory, INDEX);
+
+        for (File d : new File[]{directory, objectDirectory, tmpDirectory}) {
+            if (!d.isDirectory() && !d.mkdirs()) {
+                throw new RippleException("could not create directory for document archive: " + d);
+            }
+        }
+
+        // remove documents whose archiving was interrupted
+        File[] leftovers = tmpDirectory.listFiles();
+        if (null != leftovers) {
+            for (File f : leftovers) {
+                if (!f.delete()) {
+                    logger.warn("could not delete temporary file " + f);
+                }
+            }
+        }
+
+        try {
+            int lines = loadIndex();
+            // rewrite the index if it is mostly superseded entries
+            if (lines > 2 * index.size() + 1000) {
+                rewriteIndex();
+            }
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    /**
+     * @param uri the URI of a document
+     * @return the latest archived document retrieved from the URI, or null if there is none
+     */
+    public synchronized Document get(final String uri) {
+        return index.get(uri);
+    }
+
+    /**
+     * @return the URIs of all archived documents
+     */
+    public synchronized Collection<String> getUris() {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    /**
+     * @return the number of URIs with an archived document
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @param doc an archived document
+     * @return a stream containing the body of the document
+     * @throws RippleException if the body cannot be read
+     */
+    public InputStream openStream(final Document doc) throws RippleException {
+        try {
+            return new GZIPInputStream(new FileInputStream(objectFile(doc.getHash())));
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    /**
+     * Begins to archive a document.  Its body is to be written to the returned recorder,
+     * which is then committed or aborted.
+     *
+     * @param uri          the URI from which the document was retrieved
+     * @param mediaType    the media type of the document
+     * @param etag         the entity tag of the document (including quotes), or null
+     * @param lastModified the last modification date of the document, or null
+     * @param expires      the expiration date of the document, or null
+     * @return a recorder for the body of the document
+     * @throws RippleException if the document cannot be archived
+     */
+    public Recorder record(final String uri,
+                           final MediaType mediaType,
+                           final String etag,
+                           final Date lastModified,
+                           final Date expires) throws RippleException {
+        try {
+            return new Recorder(new Document(uri, null, mediaType, etag, lastModified, expires, new Date()));
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    private File objectFile(final String hash) {
+        return new File(new File(objectDirectory, hash.substring(0, 2)), hash.substring(2) + ".gz");
+    }
+
+    private synchronized void addToIndex(final Document doc) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+        try {
+            w.write(doc.toIndexLine());
+        } finally {
+            w.close();
+        }
+
+        index.put(doc.getUri(), doc);
+    }
+
+    private int loadIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+
+        int lines = 0;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = r.readLine())) {
+                lines++;
+                Document doc = Document.fromIndexLine(line);
+                if (null == doc) {
+                    logger.warn("skipping bad line " + lines + " of document archive index " + indexFile);
+                } else {
+                    index.put(doc.getUri(), doc);
+                }
+            }
+        } finally {
+            r.close();
+        }
+
+        return lines;
+    }
+
+    private void rewriteIndex() throws IOException {
+        File tmp = new File(tmpDirectory, INDEX);
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (Document doc : index.values()) {
+                w.write(doc.toIndexLine());
+            }
+        } finally {
+            w.close();
+        }
+
+        if (!indexFile.delete() || !tmp.renameTo(indexFile)) {
+            throw new IOException("could not replace document archive index " + indexFile);
+        }
+    }
+
+    /**
+     * Receives the body of a document as it is read, and adds the document to the archive once it is complete
+     */
+    public class Recorder extends OutputStream {
+        private final Document doc;
+        private final File tmpFile;
+        private final MessageDigest digest;
+        private final OutputStream out;
+        private boolean closed = false;
+
+        private Recorder(final Document doc) throws IOException {
+            this.doc = doc;
+
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            tmpFile = File.createTempFile("document", ".gz", tmpDirectory);
+            out = new GZIPOutputStream(new FileOutputStream(tmpFile));
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            digest.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            digest.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        /**
+         * Adds the document to the archive, replacing any previous document from the same URI
+         *
+         * @throws IOException if the document cannot be archived
+         */
+        public void commit() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            out.close();
+            String hash = toHex(digest.digest());
+
+            File target = objectFile(hash);
+            synchronized (DocumentArchive.this) {
+                if (target.exists()) {
+                    // an identical document is already archived
+                    if (!tmpFile.delete()) {
+                        logger.warn("could not delete temporary file " + tmpFile);
+                    }
+                } else {
+                    File parent = target.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs() || !tmpFile.renameTo(target)) {
+                        throw new IOException("could not archive document in " + target);
+                    }
+                }
+
+                addToIndex(new Document(doc.getUri(), hash, doc.getMediaType(), doc.getETag(),
+                        doc.getLastModified(), doc.getExpires(), doc.getTimestamp()));
+            }
+        }
+
+        /**
+         * Discards the document, for example if it could not be read in its entirety
+         */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("failed to close temporary file " + tmpFile);
+            }
+            if (!tmpFile.delete()) {
+                logger.warn("could not delete temporary file " + tmpFile);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            commit();
+        }
+    }
+
+    /**
+     * An archived document, with the metadata with which it was served
+     */
+    public static class Document {
+        private final String uri;
+        private final String hash;
+        private final MediaType mediaType;
+        private final String etag;
+        private final Date lastModified;
+        private final Date expires;
+        private final Date timestamp;
+
+        private Document(final String uri,
+                         final String hash,
+                         final MediaType mediaType,
+                         final String etag,
+                         final Date lastModified,
+                         final Date expires,
+                         final Date timestamp) {
+            this.uri = uri;
+            this.hash = hash;
+            this.mediaType = mediaType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.timestamp = timestamp;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * @return the SHA-1 hash of the body of the document, in hexadecimal
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        /**
+         * @return the entity tag of the document, as sent by the server (including quotes), or null
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        public Date getLastModified() {
+            return lastModified;
+        }
+
+        public Date getExpires() {
+            return expires;
+        }
+
+        /**
+         * @return the time at which the document was archived
+         */
+        public Date getTimestamp() {
+            return timestamp;
+        }
+
+        private String toIndexLine() {
+            return encode(uri) + "\t" + hash + "\t" + encode(null == mediaType ? null : mediaType.toString())
+                    + "\t" + encode(etag) + "\t" + encode(lastModified) + "\t" + encode(expires)
+                    + "\t" + encode(timestamp) + "\n";
+        }
+
+        private static Document fromIndexLine(final String line) {
+            String[] fields = line.split("\t", -1);
+            if (FIELDS != fields.length || HASH_LENGTH != fields[1].length()) {
+                return null;
+            }
+
+            try {
+                String mediaType = decode(fields[2]);
+                return new Document(decode(fields[0]), fields[1], null == mediaType ? null : new MediaType(mediaType),
+                        decode(fields[3]), decodeDate(fields[4]), decodeDate(fields[5]), decodeDate(fields[6]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private static String encode(final String s) {
+        try {
+            return null == s ? NONE : URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(final Date d) {
+        return null == d ? NONE : "" + d.getTime();
+    }
+
+    private static String decode(final String s) {
+        try {
+            return NONE.equals(s) ? null : URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Date decodeDate(final String s) {
+        return NONE.equals(s) ? null : new Date(Long.valueOf(s));
+    }
+
+    private static String toHex(final byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
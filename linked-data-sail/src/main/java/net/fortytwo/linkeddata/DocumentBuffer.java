@@ -0,0 +1,100 @@
+package net.fortytwo.linkeddata;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * A local copy of a downloaded document, which is handed from the thread which fetched the document
+ * to the thread which rdfizes it.
+ * The head of the document is kept in memory, and the remainder, if any, in a temporary file,
+ * so that a buffered document of any size occupies a bounded amount of memory.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class DocumentBuffer {
+    private static final Logger logger = Logger.getLogger(DocumentBuffer.class);
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final int memoryLimit;
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private File tail = null;
+    private long length = 0;
+
+    /**
+     * @param memoryLimit the number of bytes of the document which are kept in memory
+     */
+    public DocumentBuffer(final int memoryLimit) {
+        if (memoryLimit < 1) {
+            throw new IllegalArgumentException("memory limit must be positive");
+        }
+
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Reads a document to its end.  The stream is not closed.
+     *
+     * @param is a stream representation of the document
+     * @throws IOException if the document cannot be read, or the temporary file cannot be written
+     */
+    public void readFrom(final InputStream is) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        OutputStream out = head;
+        try {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                if (null == tail && head.size() + n > memoryLimit) {
+                    tail = File.createTempFile("ripple-document", ".tmp");
+                    out = new BufferedOutputStream(new FileOutputStream(tail));
+                }
+
+                out.write(buffer, 0, n);
+                length += n;
+            }
+        } finally {
+            if (out != head) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @return the length of the document, in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return a stream representation of the buffered document
+     * @throws IOException if the temporary file cannot be read
+     */
+    public InputStream getInputStream() throws IOException {
+        InputStream is = new ByteArrayInputStream(head.toByteArray());
+        return null == tail
+                ? is
+                : new SequenceInputStream(is, new BufferedInputStream(new FileInputStream(tail)));
+    }
+
+    /**
+     * Deletes the temporary file, if any.  The buffer may not be read afterwards.
+     */
+    public void dispose() {
+        if (null != tail && !tail.delete()) {
+            logger.warn("could not delete temporary file " + tail);
+        }
+        tail = null;
+    }
+}
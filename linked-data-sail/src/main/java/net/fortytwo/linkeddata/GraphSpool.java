@@ -0,0 +1,207 @@
+package net.fortytwo.linkeddata;
+
+import net.fortytwo.flow.Sink;
+import net.fortytwo.flow.rdf.RDFCollector;
+import net.fortytwo.flow.rdf.RDFSink;
+import net.fortytwo.ripple.RippleException;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Statement;
+
+import java.util.LinkedList;
+
+/**
+ * Passes a retrieved graph, in batches of bounded size, from the thread which parses a document
+ * to the thread which writes the graph to the triple store.
+ * Batches completed before a writer is attached are held in memory.
+ * Once a writer is attached, a parsing thread waits whenever a fixed number of batches are pending,
+ * and a writer which is itself the parsing thread receives each batch as soon as it is complete,
+ * so that a document of any size is written in constant memory.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class GraphSpool implements RDFSink {
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private final int batchSize;
+
+    private final LinkedList<RDFCollector> pending = new LinkedList<RDFCollector>();
+    private RDFCollector current = new RDFCollector();
+
+    private Sink<RDFCollector> writer = null;
+    private Thread writerThread = null;
+    private boolean finished = false;
+    private boolean abandoned = false;
+    private RippleException writeError = null;
+
+    private final Sink<Statement> statementSink;
+    private final Sink<Namespace> namespaceSink;
+    private final Sink<String> commentSink;
+
+    /**
+     * @param batchSize the maximum number of statements in a batch
+     */
+    public GraphSpool(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        this.batchSize = batchSize;
+
+        statementSink = new Sink<Statement>() {
+            public void put(final Statement st) throws RippleException {
+                synchronized (GraphSpool.this) {
+                    if (abandoned) {
+                        return;
+                    }
+
+                    current.statementSink().put(st);
+                    if (current.countStatements() >= GraphSpool.this.batchSize) {
+                        RDFCollector full = current;
+                        current = new RDFCollector();
+                        handOff(full);
+                    }
+                }
+            }
+        };
+
+        namespaceSink = new Sink<Namespace>() {
+            public void put(final Namespace ns) throws RippleException {
+                synchronized (GraphSpool.this) {
+                    if (!abandoned) {
+                        current.namespaceSink().put(ns);
+                    }
+                }
+            }
+        };
+
+        commentSink = new Sink<String>() {
+            public void put(final String comment) throws RippleException {
+                synchronized (GraphSpool.this) {
+                    if (!abandoned) {
+                        current.commentSink().put(comment);
+                    }
+                }
+            }
+        };
+    }
+
+    public Sink<Statement> statementSink() {
+        return statementSink;
+    }
+
+    public Sink<Namespace> namespaceSink() {
+        return namespaceSink;
+    }
+
+    public Sink<String> commentSink() {
+        return commentSink;
+    }
+
+    /**
+     * Attaches the writer of the graph.  Batches must subsequently be written by calling <code>drain</code>
+     * on the same thread.
+     *
+     * @param writer a sink for completed batches
+     */
+    public synchronized void attach(final Sink<RDFCollector> writer) {
+        this.writer = writer;
+        this.writerThread = Thread.currentThread();
+    }
+
+    /**
+     * Indicates that the graph is complete.  To be called by the parsing thread, whether or not parsing succeeded.
+     */
+    public synchronized void finish() throws RippleException {
+        if (finished) {
+            return;
+        }
+
+        try {
+            if (current.countStatements() > 0 || current.countNamespaces() > 0) {
+                handOff(current);
+            }
+        } finally {
+            current = null;
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes pending batches as they become available, until the graph is complete.
+     * To be called by the thread which attached the writer.
+     */
+    public void drain() throws RippleException {
+        try {
+            while (true) {
+                RDFCollector batch;
+                synchronized (this) {
+                    while (pending.isEmpty() && !finished) {
+                        wait();
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    batch = pending.removeFirst();
+                    notifyAll();
+                }
+
+                writer.put(batch);
+            }
+        } catch (InterruptedException e) {
+            abandon();
+            throw new RippleException(e);
+        } catch (RippleException e) {
+            abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards any pending and subsequent batches, releasing a parsing thread which is waiting for the writer
+     */
+    public synchronized void abandon() {
+        abandoned = true;
+        pending.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return an error which occurred while the parsing thread was writing batches itself, if any
+     */
+    public synchronized RippleException getWriteError() {
+        return writeError;
+    }
+
+    // Note: call only while synchronized on the spool
+    private void handOff(final RDFCollector batch) throws RippleException {
+        if (null != writer && Thread.currentThread() == writerThread) {
+            // the writer is parsing the document itself; it writes each batch immediately
+            try {
+                while (!pending.isEmpty()) {
+                    writer.put(pending.removeFirst());
+                }
+                writer.put(batch);
+            } catch (RippleException e) {
+                // the error would otherwise be reported only as a failure of the rdfizer
+                writeError = e;
+                abandon();
+                throw e;
+            }
+            return;
+        }
+
+        while (null != writer && pending.size() >= MAX_PENDING_BATCHES && !abandoned) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RippleException(e);
+            }
+        }
+
+        if (!abandoned) {
+            pending.addLast(batch);
+            notifyAll();
+        }
+    }
+}
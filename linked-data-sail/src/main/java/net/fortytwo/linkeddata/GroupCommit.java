@@ -0,0 +1,458 @@
+package net.fortytwo.linkeddata;
+
+import org.apache.log4j.Logger;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the writes of many retrievals into a single transaction, so that a triple store which syncs to disk
+ * on each commit is not synced once per dereferenced URI.
+ * Each completed unit of work (such as the storing of a retrieved graph together with its caching metadata)
+ * is reported to the group commit, which commits the connection once a number of units have been written,
+ * a number of statements have been written, or a maximum delay has passed since the first uncommitted unit.
+ * Units are only ever committed as a whole, so that a graph and its caching metadata remain atomic:
+ * the writer of a unit announces it with <code>starting</code> before writing it, and reports it with
+ * <code>written</code> (or <code>aborted</code>) afterwards, and no connection is committed while one of its units
+ * is being written.
+ * The delay is enforced by a timer, which commits a connection on which units have been pending for the
+ * maximum delay, unless a unit is being written, in which case the commit follows that unit.
+ * A connection may therefore be committed by the timer's thread, so it must be safe for use by more than one thread
+ * (as Sesame's own connections are).
+ * A connection which also holds changes made outside of the group commit (see <code>changedElsewhere</code>)
+ * is never committed by the group commit, as that would commit those changes as well;
+ * its units are committed or discarded along with them (see <code>commit</code> and <code>rollback</code>).
+ * Pending units are discarded if the connection is rolled back.
+ * Every commit or rollback of a connection to which units are written should go through the group commit,
+ * so that it cannot interleave with a commit made by the timer, and so that the listener, if any,
+ * learns of it (see <code>Listener</code>).
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class GroupCommit {
+    private static final Logger logger = Logger.getLogger(GroupCommit.class);
+
+    private final int maxUnits;
+    private final long maxStatements;
+    private final long maxDelay;
+    private final Listener listener;
+    private final Clock clock;
+
+    private final Map<SailConnection, Batch> batches = new WeakHashMap<SailConnection, Batch>();
+
+    // commits batches whose delay has expired.  Created when first needed.
+    private ScheduledExecutorService timer = null;
+
+    // metrics
+    private long commits = 0;
+    private long committedUnits = 0;
+    private long committedStatements = 0;
+    private long totalCommitTime = 0;
+    private long maxCommitTime = 0;
+
+    /**
+     * @param maxUnits      the maximum number of units of work committed together
+     * @param maxStatements the number of written statements after which a connection is committed
+     * @param maxDelay      the maximum time, in milliseconds, for which a unit of work remains uncommitted,
+     *                      unless another unit is still being written at that time
+     */
+    public GroupCommit(final int maxUnits,
+                       final long maxStatements,
+                       final long maxDelay) {
+        this(maxUnits, maxStatements, maxDelay, null);
+    }
+
+    /**
+     * @param maxUnits      the maximum number of units of work committed together
+     * @param maxStatements the number of written statements after which a connection is committed
+     * @param maxDelay      the maximum time, in milliseconds, for which a unit of work remains uncommitted,
+     *                      unless another unit is still being written at that time
+     * @param listener      a listener to be told of each commit and rollback, or null
+     */
+    public GroupCommit(final int maxUnits,
+                       final long maxStatements,
+                       final long maxDelay,
+                       final Listener listener) {
+        this(maxUnits, maxStatements, maxDelay, listener, Clock.SYSTEM);
+    }
+
+    GroupCommit(final int maxUnits,
+                final long maxStatements,
+                final long maxDelay,
+                final Listener listener,
+                final Clock clock) {
+        if (maxUnits < 1 || maxStatements < 1 || maxDelay < 0) {
+            throw new IllegalArgumentException("bad group commit thresholds: "
+                    + maxUnits + ", " + maxStatements + ", " + maxDelay);
+        }
+
+        this.maxUnits = maxUnits;
+        this.maxStatements = maxStatements;
+        this.maxDelay = maxDelay;
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    /**
+     * Announces a unit of work which is about to be written.
+     * Until the unit is reported as written or aborted, the connection is not committed by the timer.
+     *
+     * @param sc the connection to which the unit will be written
+     */
+    public void starting(final SailConnection sc) {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            b.inProgress++;
+        }
+    }
+
+    /**
+     * Records a completed unit of work, committing the connection if any threshold has been reached.
+     * The connection must be in a transaction, and is left in a new transaction.
+     *
+     * @param sc         the connection to which the unit was written
+     * @param statements the number of statements added or removed by the unit
+     * @param graphUri   the graph URI of the data source whose graph the unit wrote, or null if the unit
+     *                   did not write a graph
+     * @throws SailException if the connection cannot be committed
+     */
+    public void written(final SailConnection sc,
+                        final long statements,
+                        final String graphUri) throws SailException {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            finishUnit(b);
+
+            if (0 == b.units) {
+                b.firstWrite = clock.currentTimeMillis();
+            }
+            b.units++;
+            b.statements += statements;
+            if (null != graphUri) {
+                b.graphUris.add(graphUri);
+            }
+
+            if (b.changedElsewhere) {
+                // the units are committed or discarded along with the other changes
+                return;
+            }
+
+            if (b.units >= maxUnits
+                    || b.statements >= maxStatements
+                    || clock.currentTimeMillis() - b.firstWrite >= maxDelay) {
+                commitBatch(sc, b);
+            } else if (1 == b.units) {
+                scheduleCommit(sc, b);
+            }
+        }
+    }
+
+    /**
+     * Records that an announced unit of work will not be written after all.
+     * Anything which it did write is committed along with the connection's other units.
+     *
+     * @param sc the connection to which the unit was to be written
+     */
+    public void aborted(final SailConnection sc) {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            finishUnit(b);
+        }
+    }
+
+    /**
+     * Commits any uncommitted units of work, for example before the connection is closed.
+     * A connection with changes made elsewhere is not committed.
+     *
+     * @param sc a connection which is in a transaction, and is left in a new transaction
+     * @throws SailException if the connection cannot be committed
+     */
+    public void flush(final SailConnection sc) throws SailException {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            if (b.units > 0 && !b.changedElsewhere) {
+                commitBatch(sc, b);
+            }
+        }
+    }
+
+    /**
+     * Commits each connection whose first pending unit has waited for the maximum delay, as the timer does,
+     * but according to the clock of the group commit
+     *
+     * @throws SailException if a connection cannot be committed
+     */
+    void commitExpired() throws SailException {
+        Map<SailConnection, Batch> current;
+        synchronized (this) {
+            current = new HashMap<SailConnection, Batch>(batches);
+        }
+
+        for (Map.Entry<SailConnection, Batch> e : current.entrySet()) {
+            Batch b = e.getValue();
+            synchronized (b) {
+                if (b.units > 0 && 0 == b.inProgress && !b.changedElsewhere
+                        && clock.currentTimeMillis() - b.firstWrite >= maxDelay) {
+                    commitBatch(e.getKey(), b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indicates that changes are about to be made to a connection other than through units of work,
+     * so that the group commit no longer commits the connection until it has been committed or rolled back
+     * independently
+     *
+     * @param sc a connection
+     */
+    public void changedElsewhere(final SailConnection sc) {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            b.changedElsewhere = true;
+        }
+    }
+
+    /**
+     * Commits a connection on behalf of its user, together with any changes made to it elsewhere
+     * and all of its pending units of work.
+     * Unlike a commit made by the group commit itself, this does not begin a new transaction.
+     *
+     * @param sc a connection which is in a transaction
+     * @throws SailException if the connection cannot be committed
+     */
+    public void commit(final SailConnection sc) throws SailException {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            sc.commit();
+            b.reset();
+            if (null != listener) {
+                listener.committed(sc);
+            }
+        }
+    }
+
+    /**
+     * Rolls back a connection on behalf of its user, discarding any changes made to it elsewhere
+     * together with its pending units of work.
+     * No new transaction is begun.
+     *
+     * @param sc a connection which is in a transaction
+     * @return the graph URIs of the data sources whose graphs were written by the discarded units
+     * @throws SailException if the connection cannot be rolled back
+     */
+    public List<String> rollback(final SailConnection sc) throws SailException {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            sc.rollback();
+            List<String> discarded = new LinkedList<String>(b.graphUris);
+            b.reset();
+            if (null != listener) {
+                listener.rolledBack(sc);
+            }
+            return discarded;
+        }
+    }
+
+    /**
+     * @param sc a connection
+     * @return whether any units of work written to the connection have not yet been committed
+     */
+    public boolean hasPendingUnits(final SailConnection sc) {
+        Batch b = batchFor(sc);
+        synchronized (b) {
+            return b.units > 0;
+        }
+    }
+
+    /**
+     * Stops the timer.  Pending units are no longer committed after a delay, but may still be flushed.
+     */
+    public synchronized void close() {
+        if (null != timer) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * @return the number of commits made by the group commit
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return the mean number of units of work committed together
+     */
+    public synchronized double getMeanBatchSize() {
+        return 0 == commits ? 0 : committedUnits / (double) commits;
+    }
+
+    /**
+     * @return the mean number of statements committed together
+     */
+    public synchronized double getMeanBatchStatements() {
+        return 0 == commits ? 0 : committedStatements / (double) commits;
+    }
+
+    /**
+     * @return the mean time, in milliseconds, taken to commit a batch
+     */
+    public synchronized double getMeanCommitLatency() {
+        return 0 == commits ? 0 : totalCommitTime / (double) commits;
+    }
+
+    /**
+     * @return the longest time, in milliseconds, taken to commit a batch
+     */
+    public synchronized long getMaxCommitLatency() {
+        return maxCommitTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return commits + " commits, mean batch size " + getMeanBatchSize()
+                + " (" + getMeanBatchStatements() + " statements), mean commit latency "
+                + getMeanCommitLatency() + "ms (max " + maxCommitTime + "ms)";
+    }
+
+    private synchronized Batch batchFor(final SailConnection sc) {
+        Batch b = batches.get(sc);
+        if (null == b) {
+            b = new Batch();
+            batches.put(sc, b);
+        }
+        return b;
+    }
+
+    // Note: call only while synchronized on the batch
+    private void finishUnit(final Batch b) {
+        if (b.inProgress < 1) {
+            throw new IllegalStateException("no unit of work has been started");
+        }
+        b.inProgress--;
+    }
+
+    // Commits the batch after the maximum delay, unless it has been committed (or discarded) in the meantime.
+    // Note: call only while synchronized on the batch
+    private void scheduleCommit(final SailConnection sc,
+                                final Batch b) {
+        final long generation = b.generation;
+
+        ScheduledExecutorService t;
+        synchronized (this) {
+            if (null == timer) {
+                timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "group-commit-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            t = timer;
+        }
+
+        try {
+            t.schedule(new Runnable() {
+                public void run() {
+                    synchronized (b) {
+                        // a unit which is being written commits the batch itself, once it is complete
+                        if (generation != b.generation || 0 == b.units || b.inProgress > 0
+                                || b.changedElsewhere) {
+                            return;
+                        }
+
+                        try {
+                            commitBatch(sc, b);
+                        } catch (SailException e) {
+                            logger.error("failed to commit " + b.units + " units of work after a delay", e);
+                        }
+                    }
+                }
+            }, maxDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the group commit has been closed; the batch is committed by the next unit or flush
+            logger.debug("could not schedule a delayed commit");
+        }
+    }
+
+    // Note: call only while synchronized on the batch
+    private void commitBatch(final SailConnection sc,
+                             final Batch b) throws SailException {
+        long before = System.currentTimeMillis();
+        sc.commit();
+        sc.begin();
+        long latency = System.currentTimeMillis() - before;
+
+        logger.debug("committed " + b.units + " units of work (" + b.statements + " statements) in "
+                + latency + "ms");
+
+        synchronized (this) {
+            commits++;
+            committedUnits += b.units;
+            committedStatements += b.statements;
+            totalCommitTime += latency;
+            maxCommitTime = Math.max(maxCommitTime, latency);
+        }
+
+        b.reset();
+        if (null != listener) {
+            listener.committed(sc);
+        }
+    }
+
+    /**
+     * An object which is told when the units of work written to a connection (as well as any changes made to it
+     * elsewhere) have been committed or discarded.
+     * It is called while the connection is locked against other commits and rollbacks through the group commit,
+     * so it must not itself commit or roll back the connection.
+     */
+    public interface Listener {
+        /**
+         * @param sc a connection which has just been committed
+         * @throws SailException if the listener fails to act on the commit
+         */
+        void committed(SailConnection sc) throws SailException;
+
+        /**
+         * @param sc a connection which has just been rolled back
+         * @throws SailException if the listener fails to act on the rollback
+         */
+        void rolledBack(SailConnection sc) throws SailException;
+    }
+
+    // the uncommitted units of work of a connection
+    private static class Batch {
+        private int units = 0;
+        private long statements = 0;
+        private long firstWrite;
+        // the units which have been started, but not yet written or aborted
+        private int inProgress = 0;
+        // the graphs written by the uncommitted units
+        private final List<String> graphUris = new LinkedList<String>();
+        // distinguishes each batch of units from the next, so that a delayed commit does not outlive its batch
+        private long generation = 0;
+        // whether the connection holds uncommitted changes which were not made by units of work
+        private boolean changedElsewhere = false;
+
+        private void reset() {
+            units = 0;
+            statements = 0;
+            graphUris.clear();
+            generation++;
+            changedElsewhere = false;
+        }
+    }
+}
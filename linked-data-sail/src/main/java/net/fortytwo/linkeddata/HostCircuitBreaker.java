@@ -0,0 +1,264 @@
+package net.fortytwo.linkeddata;
+
+import org.apache.log4j.Logger;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the health of the hosts from which documents are retrieved, so that URIs on a host which has
+ * repeatedly failed (for example, by timing out) can be rejected immediately, rather than each costing a timeout.
+ * After a number of consecutive failures, the circuit of a host is opened and requests are refused
+ * until a retry interval has passed.  A single request is then let through; if it succeeds, the circuit is closed,
+ * and if it fails, the circuit is opened again with twice the retry interval, up to a maximum.
+ * Hosts are forgotten in least-recently-used order once a maximum number of hosts is tracked,
+ * preferring hosts whose circuits are closed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HostCircuitBreaker {
+    private static final Logger logger = Logger.getLogger(HostCircuitBreaker.class);
+
+    public static enum State {
+        Closed,     // requests are allowed
+        Open,       // requests are refused until the retry time
+        HalfOpen,   // a single trial request is in progress
+    }
+
+    private final int failureThreshold;
+    private final long retryInterval;
+    private final long maxRetryInterval;
+    private final int maxHosts;
+    private final Clock clock;
+
+    private final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true);
+
+    /**
+     * @param failureThreshold the number of consecutive failures after which a host's circuit is opened
+     * @param retryInterval    the time, in milliseconds, after which a trial request is allowed to a host
+     *                         whose circuit has just been opened
+     * @param maxRetryInterval the maximum time, in milliseconds, between trial requests
+     * @param maxHosts         the number of hosts whose state is kept
+     */
+    public HostCircuitBreaker(final int failureThreshold,
+                              final long retryInterval,
+                              final long maxRetryInterval,
+                              final int maxHosts) {
+        this(failureThreshold, retryInterval, maxRetryInterval, maxHosts, Clock.SYSTEM);
+    }
+
+    HostCircuitBreaker(final int failureThreshold,
+                       final long retryInterval,
+                       final long maxRetryInterval,
+                       final int maxHosts,
+                       final Clock clock) {
+        if (failureThreshold < 1 || maxHosts < 1) {
+            throw new IllegalArgumentException("failure threshold and maximum number of hosts must be positive");
+        }
+        if (retryInterval < 0 || maxRetryInterval < retryInterval) {
+            throw new IllegalArgumentException("bad retry intervals: " + retryInterval + ", " + maxRetryInterval);
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.retryInterval = retryInterval;
+        this.maxRetryInterval = maxRetryInterval;
+        this.maxHosts = maxHosts;
+        this.clock = clock;
+    }
+
+    /**
+     * Determines whether a request may be made of a host.
+     * If the host's retry time has passed, this allows a single trial request, whose outcome must be recorded.
+     *
+     * @param host a host name
+     * @return whether the request may be made
+     */
+    public synchronized boolean allowRequest(final String host) {
+        Host h = hosts.get(host);
+        if (null == h) {
+            return true;
+        }
+
+        switch (h.state) {
+            case Closed:
+                return true;
+            case Open:
+                if (clock.currentTimeMillis() >= h.retryTime) {
+                    h.state = State.HalfOpen;
+                    return true;
+                } else {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines, without side-effects, whether a request would currently be allowed (or a trial request is due)
+     *
+     * @param host a host name
+     * @return whether the host's circuit is closed, or its retry time has passed
+     */
+    public synchronized boolean isAvailable(final String host) {
+        Host h = hosts.get(host);
+        return null == h
+                || State.Closed == h.state
+                || (State.Open == h.state && clock.currentTimeMillis() >= h.retryTime);
+    }
+
+    public synchronized void recordSuccess(final String host) {
+        Host h = hosts.get(host);
+        if (null != h) {
+            if (State.Closed != h.state) {
+                logger.info("host " + host + " is available again; closing circuit");
+            }
+            h.state = State.Closed;
+            h.consecutiveFailures = 0;
+            h.backoff = 0;
+        }
+    }
+
+    public synchronized void recordFailure(final String host) {
+        Host h = hosts.get(host);
+        if (null == h) {
+            evictHosts();
+            h = new Host();
+            hosts.put(host, h);
+        }
+
+        h.consecutiveFailures++;
+        h.totalFailures++;
+
+        if (State.HalfOpen == h.state
+                || (State.Closed == h.state && h.consecutiveFailures >= failureThreshold)) {
+            h.backoff = 0 == h.backoff ? retryInterval : Math.min(maxRetryInterval, h.backoff * 2);
+            h.retryTime = clock.currentTimeMillis() + h.backoff;
+            h.state = State.Open;
+            logger.warn("host " + host + " failed " + h.consecutiveFailures
+                    + " consecutive times; opening circuit for " + h.backoff + "ms");
+        }
+    }
+
+    /**
+     * Indicates that an allowed request was not made, or that its outcome says nothing about the health of the host.
+     * If it was a trial request, another trial request is allowed.
+     *
+     * @param host a host name
+     */
+    public synchronized void cancelRequest(final String host) {
+        Host h = hosts.get(host);
+        if (null != h && State.HalfOpen == h.state) {
+            h.state = State.Open;
+            h.retryTime = clock.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param host a host name
+     * @return the current state of the host's circuit
+     */
+    public synchronized State getState(final String host) {
+        Host h = hosts.get(host);
+        return null == h ? State.Closed : h.state;
+    }
+
+    /**
+     * @return the state of all tracked hosts, for reporting
+     */
+    public synchronized List<HostStatus> getHostStatus() {
+        List<HostStatus> result = new LinkedList<HostStatus>();
+        for (Map.Entry<String, Host> e : hosts.entrySet()) {
+            Host h = e.getValue();
+            result.add(new HostStatus(e.getKey(), h.state, h.consecutiveFailures, h.totalFailures,
+                    State.Closed == h.state ? null : new Date(h.retryTime)));
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        hosts.clear();
+    }
+
+    // Makes room for a new host.  Note: call only while synchronized on the circuit breaker
+    private void evictHosts() {
+        // first forget healthy hosts, then, if necessary, the least recently failed hosts
+        Iterator<Map.Entry<String, Host>> iter = hosts.entrySet().iterator();
+        while (hosts.size() >= maxHosts && iter.hasNext()) {
+            if (State.Closed == iter.next().getValue().state) {
+                iter.remove();
+            }
+        }
+
+        iter = hosts.entrySet().iterator();
+        while (hosts.size() >= maxHosts && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * The state of a host, as reported to operators
+     */
+    public static class HostStatus {
+        private final String host;
+        private final State state;
+        private final int consecutiveFailures;
+        private final long totalFailures;
+        private final Date retryTime;
+
+        public HostStatus(final String host,
+                          final State state,
+                          final int consecutiveFailures,
+                          final long totalFailures,
+                          final Date retryTime) {
+            this.host = host;
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.totalFailures = totalFailures;
+            this.retryTime = retryTime;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getTotalFailures() {
+            return totalFailures;
+        }
+
+        /**
+         * @return the time at which a trial request is next allowed, or null if the host's circuit is closed
+         */
+        public Date getRetryTime() {
+            return retryTime;
+        }
+
+        @Override
+        public String toString() {
+            return host + ": " + state + " (" + consecutiveFailures + " consecutive failures, "
+                    + totalFailures + " in total"
+                    + (null == retryTime ? "" : ", retry at " + retryTime) + ")";
+        }
+    }
+
+    private static class Host {
+        private State state = State.Closed;
+        private int consecutiveFailures = 0;
+        private long totalFailures = 0;
+        private long backoff = 0;
+        private long retryTime = 0;
+    }
+}
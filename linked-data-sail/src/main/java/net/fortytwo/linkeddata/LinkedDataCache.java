@@ -1,12 +1,18 @@
 package net.fortytwo.linkeddata;
 
-import net.fortytwo.flow.rdf.RDFBuffer;
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.flow.rdf.HTTPUtils;
+import net.fortytwo.flow.rdf.HostRateLimiter;
+import net.fortytwo.flow.rdf.RDFCollector;
 import net.fortytwo.flow.rdf.RDFSink;
 import net.fortytwo.flow.rdf.SailInserter;
 import net.fortytwo.flow.rdf.SesameInputAdapter;
 import net.fortytwo.flow.rdf.SesameOutputAdapter;
 import net.fortytwo.flow.rdf.SingleContextPipe;
+import net.fortytwo.linkeddata.dereferencers.ArchivingDereferencer;
 import net.fortytwo.linkeddata.dereferencers.FileURIDereferencer;
+import net.fortytwo.linkeddata.dereferencers.HTTPRepresentation;
 import net.fortytwo.linkeddata.dereferencers.HTTPURIDereferencer;
 import net.fortytwo.linkeddata.dereferencers.JarURIDereferencer;
 import net.fortytwo.linkeddata.rdfizers.ImageRdfizer;
@@ -18,6 +24,7 @@ import net.fortytwo.ripple.StringUtils;
 import net.fortytwo.ripple.URIMap;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.openrdf.model.Resource;
 import org.openrdf.model.URI;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.URIImpl;
@@ -30,16 +37,41 @@ import org.openrdf.sail.SailException;
 import org.restlet.data.MediaType;
 import org.restlet.representation.Representation;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A manager for a dynamic set of RDF graphs collected from the Web.
@@ -74,6 +106,12 @@ public class LinkedDataCache {
 
     private final int MINIMUM_CAPACITY = 100;
 
+    // the number of bytes of a downloaded document which are kept in memory until it is rdfized
+    private static final int DOCUMENT_BUFFER_MEMORY = 1024 * 1024;
+
+    // the number of documents per rdfizer thread which may wait to be rdfized
+    private static final int RDFIZER_QUEUE_FACTOR = 4;
+
     private final CachingMetadata metadata;
     private final ValueFactory valueFactory;
     private final boolean useBlankNodes;
@@ -102,6 +140,51 @@ public class LinkedDataCache {
     // single connection shared among all accessing threads
     private final SailConnection sailConnection;
 
+    // dereferencing operations in progress, by graph URI
+    private final Map<String, Retrieval> retrievals = new HashMap<String, Retrieval>();
+
+    // threads which dereference prefetched URIs
+    private final ThreadPoolExecutor fetchPool;
+
+    // threads which rdfize documents for CPU-intensive rdfizers, once the fetch threads have downloaded them
+    private volatile ExecutorService rdfizerPool;
+
+    // the number of statements of a retrieved graph which are written to the triple store at a time
+    private final int writeBatchSize;
+
+    // the health of the hosts from which documents are retrieved
+    private final HostCircuitBreaker hostCircuitBreaker;
+
+    // coalesces the commits of many retrievals when autocommit is on
+    private final GroupCommit groupCommit;
+
+    // the redirects which have been followed, which are written along with retrievals
+    private final RedirectManager redirectManager;
+
+    // The memos of URIs which have been found in the cache, by URI (rather than by graph URI).
+    // A URI whose memo has not expired is looked up here without hashing or locking.
+    // Once the index is full, URIs are evicted in the order in which they were added, except that a URI which has
+    // been looked up since it was added (or last spared) is given a second chance, and moved to the back of the queue.
+    // This approximates least-recently-used eviction without making lookups write to a shared structure.
+    private final ConcurrentHashMap<String, KnownUri> knownUris = new ConcurrentHashMap<String, KnownUri>();
+    private final ConcurrentLinkedQueue<String> knownUriQueue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger knownUriCount = new AtomicInteger(0);
+    private final int knownUriCapacity;
+    // the known URIs which map to each graph, so that the URIs of an evicted graph can be forgotten.
+    // This is written only when a URI is added to or evicted from the index, never by a lookup
+    private final Map<String, Set<String>> knownUrisByGraph = new HashMap<String, Set<String>>();
+
+    // The graphs which units of work have written to (or evicted from) each connection, but which have not yet been
+    // committed.  Their URIs are added to the index of known URIs only once the connection has been committed,
+    // and if the connection is rolled back, only their own effects are undone.
+    private final Map<SailConnection, Uncommitted> uncommitted = new WeakHashMap<SailConnection, Uncommitted>();
+
+    // the number of bytes of retrieved documents which have been read
+    private final AtomicLong bytesRetrieved = new AtomicLong(0);
+
+    // the bound, if any, on the number of statements of cached graphs in the triple store
+    private final StorageBudget storageBudget;
+
     /**
      * Constructs a cache with the default settings, dereferencers, and rdfizers.
      *
@@ -112,14 +195,31 @@ public class LinkedDataCache {
     public static LinkedDataCache createDefault(final Sail sail) throws RippleException {
         LinkedDataCache cache = new LinkedDataCache(sail);
 
-        RedirectManager redirectManager = new RedirectManager(cache.getSailConnection());
-
         // Add URI dereferencers.
-        HTTPURIDereferencer hdref = new HTTPURIDereferencer(cache, redirectManager);
+        HTTPURIDereferencer hdref = new HTTPURIDereferencer(cache, cache.getRedirectManager());
         for (String x : NON_RDF_EXTENSIONS) {
             hdref.blackListExtension(x);
         }
-        cache.addDereferencer("http", hdref);
+        String archiveDirectory = Ripple.getConfiguration().getString(LinkedDataSail.DOCUMENT_ARCHIVE, "").trim();
+        if (0 == archiveDirectory.length()) {
+            cache.addDereferencer("http", hdref);
+        } else {
+            String m = Ripple.getConfiguration().getString(LinkedDataSail.DOCUMENT_ARCHIVE_MODE, "replay");
+            ArchivingDereferencer.Mode mode
+                    = m.equals("record")
+                    ? ArchivingDereferencer.Mode.Record
+                    : m.equals("replay")
+                    ? ArchivingDereferencer.Mode.Replay
+                    : m.equals("offline")
+                    ? ArchivingDereferencer.Mode.Offline
+                    : null;
+            if (null == mode) {
+                throw new RippleException("no such document archive mode: " + m);
+            }
+
+            cache.addDereferencer("http", new ArchivingDereferencer(
+                    hdref, new DocumentArchive(new File(archiveDirectory)), mode));
+        }
 
         cache.addDereferencer("file", new FileURIDereferencer());
         cache.addDereferencer("jar", new JarURIDereferencer());
@@ -179,13 +279,116 @@ public class LinkedDataCache {
                     + MINIMUM_CAPACITY);
         }
 
-        this.metadata = new CachingMetadata(capacity, sail.getValueFactory());
+        String memoStoreFile = Ripple.getConfiguration().getString(LinkedDataSail.MEMO_STORE_FILE, "").trim();
+        if (0 == memoStoreFile.length()) {
+            this.metadata = new CachingMetadata(capacity, sail.getValueFactory());
+        } else {
+            this.metadata = new CachingMetadata(capacity, sail.getValueFactory(),
+                    new MemoStore(new File(memoStoreFile)));
+
+            // metadata previously kept in the triple store is moved to the memo store
+            int migrated = metadata.migrateMemos(sailConnection);
+            if (migrated > 0) {
+                try {
+                    sailConnection.commit();
+                    sailConnection.begin();
+                } catch (SailException e) {
+                    throw new RippleException(e);
+                }
+                logger.info("moved " + migrated + " memos from the triple store to " + memoStoreFile);
+            }
+
+            int loaded = metadata.warmUp();
+            logger.info("loaded " + loaded + " memos from " + memoStoreFile);
+        }
+        knownUriCapacity = Math.max(capacity, MINIMUM_CAPACITY);
 
         this.valueFactory = sail.getValueFactory();
         useBlankNodes = Ripple.getConfiguration().getBoolean(Ripple.USE_BLANK_NODES);
 
         this.expirationPolicy = new DefaultCacheExpirationPolicy();
 
+        int maxConcurrentRetrievals = Ripple.getConfiguration().getInt(
+                LinkedDataSail.MAX_CONCURRENT_RETRIEVALS, 8);
+        if (maxConcurrentRetrievals < 1) {
+            throw new RippleException("bad value for " + LinkedDataSail.MAX_CONCURRENT_RETRIEVALS
+                    + ": " + maxConcurrentRetrievals);
+        }
+        fetchPool = new ThreadPoolExecutor(maxConcurrentRetrievals, maxConcurrentRetrievals,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new FetchThreadFactory());
+        fetchPool.allowCoreThreadTimeOut(true);
+
+        int rdfizerThreads = Ripple.getConfiguration().getInt(LinkedDataSail.RDFIZER_THREADS, 0);
+        if (rdfizerThreads < 0) {
+            throw new RippleException("bad value for " + LinkedDataSail.RDFIZER_THREADS + ": " + rdfizerThreads);
+        } else if (0 == rdfizerThreads) {
+            rdfizerThreads = Runtime.getRuntime().availableProcessors();
+        }
+        ThreadPoolExecutor defaultRdfizerPool = new ThreadPoolExecutor(rdfizerThreads, rdfizerThreads,
+                60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(RDFIZER_QUEUE_FACTOR * rdfizerThreads),
+                new RdfizerThreadFactory());
+        defaultRdfizerPool.allowCoreThreadTimeOut(true);
+        rdfizerPool = defaultRdfizerPool;
+
+        writeBatchSize = Ripple.getConfiguration().getInt(LinkedDataSail.WRITE_BATCH_SIZE, 1000);
+        if (writeBatchSize < 1) {
+            throw new RippleException("bad value for " + LinkedDataSail.WRITE_BATCH_SIZE + ": " + writeBatchSize);
+        }
+
+        int commitBatchSize = Ripple.getConfiguration().getInt(LinkedDataSail.COMMIT_BATCH_SIZE, 1);
+        long commitBatchStatements = Ripple.getConfiguration().getLong(
+                LinkedDataSail.COMMIT_BATCH_STATEMENTS, 100000);
+        long maxCommitDelay = Ripple.getConfiguration().getLong(LinkedDataSail.MAX_COMMIT_DELAY, 1000);
+        try {
+            groupCommit = new GroupCommit(commitBatchSize, commitBatchStatements, maxCommitDelay,
+                    new GroupCommit.Listener() {
+                        public void committed(final SailConnection sc) throws SailException {
+                            try {
+                                LinkedDataCache.this.committed(sc);
+                            } catch (RippleException e) {
+                                throw new SailException(e);
+                            }
+                        }
+
+                        public void rolledBack(final SailConnection sc) throws SailException {
+                            try {
+                                LinkedDataCache.this.rolledBack(sc);
+                            } catch (RippleException e) {
+                                throw new SailException(e);
+                            }
+                        }
+                    });
+        } catch (IllegalArgumentException e) {
+            throw new RippleException(e);
+        }
+
+        int failureThreshold = Ripple.getConfiguration().getInt(LinkedDataSail.HOST_FAILURE_THRESHOLD, 3);
+        long retryInterval = Ripple.getConfiguration().getLong(LinkedDataSail.HOST_RETRY_INTERVAL, 30) * 1000;
+        long maxRetryInterval = Ripple.getConfiguration().getLong(LinkedDataSail.MAX_HOST_RETRY_INTERVAL, 3600) * 1000;
+        try {
+            hostCircuitBreaker = new HostCircuitBreaker(failureThreshold, retryInterval, maxRetryInterval,
+                    Ripple.getConfiguration().getInt(Ripple.HTTPCONNECTION_MAX_HOSTS, 10000));
+        } catch (IllegalArgumentException e) {
+            throw new RippleException(e);
+        }
+
+        long maxCachedStatements = Ripple.getConfiguration().getLong(LinkedDataSail.MAX_CACHED_STATEMENTS, 0);
+        if (maxCachedStatements < 0) {
+            throw new RippleException("bad value for " + LinkedDataSail.MAX_CACHED_STATEMENTS
+                    + ": " + maxCachedStatements);
+        }
+        long expectedRedirects = Ripple.getConfiguration().getLong(LinkedDataSail.EXPECTED_REDIRECTS, 1000000);
+        if (expectedRedirects < 1) {
+            throw new RippleException("bad value for " + LinkedDataSail.EXPECTED_REDIRECTS + ": " + expectedRedirects);
+        }
+        redirectManager = new RedirectManager(sailConnection, expectedRedirects, knownUriCapacity);
+
+        storageBudget = new StorageBudget(maxCachedStatements, knownUriCapacity);
+        if (storageBudget.isBounded()) {
+            loadStorage();
+            logger.info("cached graphs in the triple store: " + storageBudget);
+        }
+
         dataStore = new DataStore() {
             public RDFSink createInputSink(final SailConnection sc) {
                 return new SesameOutputAdapter(new SailInserter(sc));
@@ -195,26 +398,111 @@ public class LinkedDataCache {
 
     public synchronized void clear() throws RippleException {
         metadata.clear();
+        forgetKnownUris();
+        synchronized (uncommitted) {
+            uncommitted.clear();
+        }
+        storageBudget.clear();
+        redirectManager.clear();
+        // retrievals already in progress are completed, but may no longer be shared
+        retrievals.clear();
 
         SailConnection sc = getSailConnection();
         try {
             sc.clear();
-            sc.commit();
+            groupCommit.commit(sc);
             sc.begin();
         } catch (SailException e) {
             throw new RippleException(e);
         }
     }
 
+    // Publishes the graphs which units of work wrote to a connection, once the connection has been committed:
+    // their memos are written to the in-memory cache and the memo store, and the URIs which were looked up
+    // in them are added to the index of known URIs.
+    // Note: this is called by the group commit, while the connection is locked
+    private void committed(final SailConnection sc) throws RippleException {
+        metadata.committed(sc);
+
+        Uncommitted u;
+        synchronized (uncommitted) {
+            u = uncommitted.remove(sc);
+        }
+        if (null != u) {
+            for (Map.Entry<String, KnownUri> e : u.uris.entrySet()) {
+                remember(e.getKey(), e.getValue().graphUri, e.getValue().memo);
+            }
+        }
+    }
+
+    // Undoes the effects of the units of work which were written to a connection, once the connection has been
+    // rolled back, so that the URIs of any discarded graphs are dereferenced again when they are next needed.
+    // Graphs which the units evicted are back in the triple store, so the storage budget tracks them again.
+    // Note: this is called by the group commit, while the connection is locked
+    private void rolledBack(final SailConnection sc) throws RippleException {
+        metadata.rolledBack(sc);
+
+        Uncommitted u;
+        synchronized (uncommitted) {
+            u = uncommitted.remove(sc);
+        }
+        if (null == u) {
+            return;
+        }
+
+        if (storageBudget.isBounded()) {
+            Set<String> graphUris = new HashSet<String>(u.stored);
+            graphUris.addAll(u.evicted);
+            try {
+                for (String graphUri : graphUris) {
+                    CacheEntry memo = metadata.getMemo(graphUri, sc);
+                    long size = sc.size(valueFactory.createURI(graphUri));
+                    if (null != memo && size > 0) {
+                        storageBudget.stored(graphUri, memo, size);
+                    } else {
+                        storageBudget.removed(graphUri);
+                    }
+                }
+            } catch (SailException e) {
+                throw new RippleException(e);
+            }
+        }
+        redirectManager.forget(u.redirects);
+
+        if (!u.stored.isEmpty()) {
+            logger.info("forgot " + u.stored.size() + " retrievals which were rolled back");
+        }
+    }
+
     // note: only closes in one thread
     public synchronized void close() throws RippleException {
+        fetchPool.shutdownNow();
+        // documents which have already been downloaded are still rdfized, as a retrieval may be waiting for them
+        rdfizerPool.shutdown();
+
         try {
             SailConnection sc = getSailConnection();
             if (null != sc) {
+                // commit any redirects which are still pending
+                groupCommit.starting(sc);
+                long written = 0;
+                try {
+                    written = redirectManager.flush(sc);
+                } finally {
+                    if (written > 0) {
+                        groupCommit.written(sc, written, null);
+                    } else {
+                        groupCommit.aborted(sc);
+                    }
+                }
+                groupCommit.flush(sc);
                 sc.close();
             }
         } catch (SailException e) {
             throw new RippleException(e);
+        } finally {
+            groupCommit.close();
+            metadata.close();
         }
     }
 
@@ -222,6 +510,19 @@ public class LinkedDataCache {
         return sailConnection;
     }
 
+    /**
+     * Replaces the pool of threads which rdfize documents for CPU-intensive rdfizers
+     * (see <code>SchedulableRdfizer</code>).
+     * The previous pool is shut down, and the new pool is shut down when the cache is closed.
+     * If the pool rejects a document, the document is rdfized by the thread which downloaded it.
+     *
+     * @param pool a pool of threads for CPU-bound work
+     */
+    public synchronized void setRdfizerPool(final ExecutorService pool) {
+        rdfizerPool.shutdown();
+        rdfizerPool = pool;
+    }
+
     public void setDataStore(final DataStore dataStore) {
         this.dataStore = dataStore;
     }
@@ -350,59 +651,374 @@ public class LinkedDataCache {
         return peekOrRetrieve(uri, sc, true);
     }
 
-    // Look up and create the memo for a URI in one atomic operation, avoiding races between threads
-    // The status of a URI in the cache is Undetermined until the retrieval operation is completed.
-    private synchronized CacheEntry getSetMemo(final URI uri,
-                                              final String graphUri,
-                                              final SailConnection sc,
-                                              final boolean doRetrieve) throws RippleException {
-        CacheEntry memo = metadata.getMemo(graphUri, sc);
+    /**
+     * Begins dereferencing a URI in the background, if it is not already cached or being dereferenced.
+     * The retrieved graph is written to the triple store when the URI is next passed to <code>retrieve</code>;
+     * until then, it is held in memory (or, if retrieval begins while the document is being parsed,
+     * the remainder of the graph is written as it is parsed).
+     * Until it is retrieved, the URI's status is <code>Undetermined</code>, so a caller which no longer needs
+     * the URI must pass it to <code>cancelPrefetch</code> instead.
+     *
+     * @param uri the URI to dereference
+     * @param sc  a connection to a Sail, used only to look up caching metadata
+     */
+    public void prefetch(final URI uri,
+                         final SailConnection sc) throws RippleException {
+        if (isKnownAndFresh(uri.toString())) {
+            return;
+        }
+
+        String graphUri = RDFUtils.findGraphUri(uri.toString());
+
+        Retrieval r;
+        synchronized (this) {
+            if (null != retrievals.get(graphUri)) {
+                return;
+            }
+
+            CacheEntry memo = metadata.getMemo(graphUri, sc);
+            if (null != memo && !expirationPolicy.isExpired(uri.toString(), memo)) {
+                return;
+            }
 
-        // If there is already a (non-expired) entry for this URI, just return its status.
-        if (null != memo && !expirationPolicy.isExpired(uri.toString(), memo)) {
-            return memo;
+            r = startRetrieval(uri, graphUri, memo);
+            r.prefetched = true;
         }
 
-        if (!doRetrieve) {
-            return null;
+        // Queue the fetch with the host's rate limiter, so that no pooled thread is tied up waiting for the host.
+        // A fetch from a host which is known to be unavailable fails immediately, and an archived document
+        // does not involve the host at all, so neither need wait its turn.
+        try {
+            String retrievalUri = findRetrievalUri(uri);
+            String host = HostRateLimiter.hostOf(retrievalUri);
+            if (null != host && !hostCircuitBreaker.isAvailable(host) || isServedFromArchive(retrievalUri)) {
+                fetchPool.execute(r.fetch);
+            } else {
+                HTTPUtils.getRateLimiter().submit(retrievalUri, r.fetch, fetchPool);
+            }
+        } catch (RejectedExecutionException e) {
+            // the retrieving thread will fetch the document itself
+            logger.warn("could not schedule retrieval of <" + StringUtils.escapeURIString(uri.toString()) + ">");
         }
+    }
 
-        memo = new CacheEntry(CacheEntry.Status.Undetermined);
-        metadata.setMemo(graphUri, memo, null);
-        memo.setStatus(CacheEntry.Status.CacheLookup);
-        return memo;
+    /**
+     * Abandons the prefetch of a URI which is no longer needed, for example because the query which prefetched it
+     * has been closed.
+     * A fetch which has not yet begun is cancelled, while one which is in progress runs to completion,
+     * but its graph is discarded rather than held in memory.
+     * The URI's previous status, if any, is restored, so the URI will be dereferenced again when it is next retrieved.
+     * Nothing is done if the URI is not being prefetched, or if its retrieval has already begun.
+     *
+     * @param uri a URI which has been passed to <code>prefetch</code>
+     * @throws RippleException if the URI's previous status cannot be restored
+     */
+    public void cancelPrefetch(final URI uri) throws RippleException {
+        String graphUri = RDFUtils.findGraphUri(uri.toString());
+
+        Retrieval r;
+        synchronized (this) {
+            r = retrievals.get(graphUri);
+            if (null == r || !r.prefetched || r.claimed) {
+                return;
+            }
+
+            retrievals.remove(graphUri);
+            restoreExpiredMemo(r);
+        }
+
+        r.fetch.cancel(false);
+        r.graph.abandon();
+        logger.debug("cancelled prefetch of <" + StringUtils.escapeURIString(uri.toString()) + ">");
+    }
+
+    /**
+     * Retrieves caching metadata for a collection of URIs, dereferencing any uncached URIs concurrently.
+     *
+     * @param uris the URIs to look up and possibly dereference
+     * @param sc   a connection to a Sail
+     * @return the result of each dereferencing operation, in the order of the given URIs
+     */
+    public List<CacheEntry.Status> retrieveAll(final Collection<URI> uris,
+                                               final SailConnection sc) throws RippleException {
+        List<CacheEntry.Status> results = new LinkedList<CacheEntry.Status>();
+        try {
+            for (URI uri : uris) {
+                prefetch(uri, sc);
+            }
+
+            for (URI uri : uris) {
+                results.add(retrieve(uri, sc));
+            }
+        } finally {
+            // if any retrieval failed, the URIs after it are no longer needed
+            if (results.size() < uris.size()) {
+                for (URI uri : uris) {
+                    cancelPrefetch(uri);
+                }
+            }
+        }
+
+        return results;
     }
 
     private CacheEntry.Status peekOrRetrieve(final URI uri,
                                              final SailConnection sc,
                                              final boolean doRetrieve) throws RippleException {
+        String uriStr = uri.toString();
+
+        // This is the common case, for a warm cache.
+        KnownUri known = knownUris.get(uriStr);
+        if (null != known && !expirationPolicy.isExpired(uriStr, known.memo)) {
+            known.markUsed();
+            if (storageBudget.isBounded()) {
+                known.memo.markUsed();
+            }
+            return known.memo.getStatus();
+        }
+
         // Find the named graph which stores all information associated with this URI
-        String graphUri = RDFUtils.findGraphUri(uri.toString());
+        String graphUri = RDFUtils.findGraphUri(uriStr);
+
+        // Look up and create the memo for a URI in one atomic operation, avoiding races between threads.
+        // The status of a URI in the cache is Undetermined until the retrieval operation is completed.
+        Retrieval r;
+        synchronized (this) {
+            r = retrievals.get(graphUri);
+
+            if (null == r) {
+                CacheEntry memo = metadata.getMemo(graphUri, sc);
+
+                // If there is already a (non-expired) entry for this URI, just return its status.
+                if (null != memo && !expirationPolicy.isExpired(uriStr, memo)) {
+                    if (storageBudget.isBounded()) {
+                        storageBudget.used(graphUri, memo);
+                    }
+                    remember(uriStr, graphUri, memo);
+                    return memo.getStatus();
+                }
+
+                if (!doRetrieve) {
+                    return null;
+                }
+
+                r = startRetrieval(uri, graphUri, memo);
+            } else if (!doRetrieve) {
+                return CacheEntry.Status.Undetermined;
+            }
+
+            // a prefetch can no longer be cancelled once its graph is to be stored
+            r.claimed = true;
+        }
+
+        CacheEntry.Status status = r.store(sc);
+        remember(uriStr, graphUri, r.memo);
+        return status;
+    }
+
+    boolean isKnownAndFresh(final String uri) {
+        KnownUri known = knownUris.get(uri);
+        return null != known && !expirationPolicy.isExpired(uri, known.memo);
+    }
+
+    // Note: the memo of a completed retrieval is not modified afterwards, so it may be shared without locking.
+    // An expired memo is simply replaced when the URI is next looked up.
+    private void remember(final String uri,
+                          final String graphUri,
+                          final CacheEntry memo) {
+        if (CacheEntry.Status.Undetermined == memo.getStatus()) {
+            return;
+        }
+
+        // A graph which has been written but not yet committed is not visible to other connections,
+        // so its URIs are remembered only once the graph has been committed.
+        // Nor is a graph remembered which is about to be evicted.
+        synchronized (uncommitted) {
+            for (Uncommitted u : uncommitted.values()) {
+                if (u.evicted.contains(graphUri)) {
+                    return;
+                } else if (u.stored.contains(graphUri)) {
+                    u.uris.put(uri, new KnownUri(graphUri, memo));
+                    return;
+                }
+            }
+        }
+
+        // the URI is added to the index, the queue and its graph's URIs at once,
+        // so that it cannot escape the eviction of its graph
+        boolean added;
+        synchronized (knownUrisByGraph) {
+            added = null == knownUris.put(uri, new KnownUri(graphUri, memo));
+            if (added) {
+                Set<String> uris = knownUrisByGraph.get(graphUri);
+                if (null == uris) {
+                    uris = new HashSet<String>();
+                    knownUrisByGraph.put(graphUri, uris);
+                }
+                uris.add(uri);
+                knownUriQueue.add(uri);
+            }
+        }
+
+        if (added) {
+            if (knownUriCount.incrementAndGet() > knownUriCapacity) {
+                evictKnownUris();
+            }
+        }
+    }
+
+    // Evicts URIs from the front of the queue until the index is within its capacity.
+    // A URI is spared at most once per call, so that eviction ends even if every URI is in use.
+    private void evictKnownUris() {
+        int spared = 0;
+        while (knownUriCount.get() > knownUriCapacity) {
+            String uri = knownUriQueue.poll();
+            if (null == uri) {
+                return;
+            }
+
+            KnownUri known = knownUris.get(uri);
+            if (null == known) {
+                // already evicted by another thread
+                continue;
+            }
 
-        CacheEntry memo = getSetMemo(uri, graphUri, sc, doRetrieve);
-        CacheEntry.Status status = null == memo ? null : memo.getStatus();
-        if (null == status || status != CacheEntry.Status.CacheLookup) {
-            return status;
+            if (known.used && spared < knownUriCapacity) {
+                known.used = false;
+                knownUriQueue.add(uri);
+                spared++;
+            } else if (!evict(uri, known)) {
+                // the URI's memo has been replaced in the meantime
+                knownUriQueue.add(uri);
+            }
+        }
+    }
+
+    private boolean evict(final String uri,
+                          final KnownUri known) {
+        synchronized (knownUrisByGraph) {
+            if (!knownUris.remove(uri, known)) {
+                return false;
+            }
+
+            Set<String> uris = knownUrisByGraph.get(known.graphUri);
+            if (null != uris) {
+                uris.remove(uri);
+                if (uris.isEmpty()) {
+                    knownUrisByGraph.remove(known.graphUri);
+                }
+            }
+        }
+
+        knownUriCount.decrementAndGet();
+        return true;
+    }
+
+    private void forgetKnownUris() {
+        synchronized (knownUrisByGraph) {
+            knownUris.clear();
+            knownUrisByGraph.clear();
+            knownUriQueue.clear();
+            knownUriCount.set(0);
         }
-        memo.setStatus(CacheEntry.Status.Undetermined);
+    }
+
+    // Forgets only the URIs which map to the given graphs.
+    // Note: the URIs are also removed from the queue, which takes time in proportion to its length,
+    // as a URI which is remembered again would otherwise be queued twice
+    private void forgetKnownUris(final Collection<String> graphUris) {
+        synchronized (knownUrisByGraph) {
+            for (String graphUri : graphUris) {
+                Set<String> uris = knownUrisByGraph.remove(graphUri);
+                if (null != uris) {
+                    for (String uri : uris) {
+                        if (null != knownUris.remove(uri)) {
+                            knownUriCount.decrementAndGet();
+                        }
+                        knownUriQueue.remove(uri);
+                    }
+                }
+            }
+        }
+    }
 
-        // This URI should be treated as a "black box" once created;
-        // it need not resemble the URI it was created from.
-        String retrievalUri;
+    // Note: call only while synchronized on the cache
+    private Retrieval startRetrieval(final URI uri,
+                                     final String graphUri,
+                                     final CacheEntry expired) throws RippleException {
+        CacheEntry memo = new CacheEntry(CacheEntry.Status.Undetermined);
+        metadata.setMemo(graphUri, memo, null);
+        if (null == expired && storageBudget.isBounded()) {
+            storageBudget.retrieving(graphUri);
+        }
+
+        Retrieval r = new Retrieval(uri, graphUri, memo, expired);
+        retrievals.put(graphUri, r);
+        return r;
+    }
 
+    // Undoes the placeholder memo of a retrieval, so that the memo (if any) which the retrieval was to replace
+    // is read again
+    private void restoreExpiredMemo(final Retrieval r) throws RippleException {
+        if (null == r.expired) {
+            metadata.forgetMemo(r.graphUri);
+        } else {
+            metadata.setMemo(r.graphUri, r.expired, null);
+        }
+    }
+
+    // Note: call only while synchronized on the uncommitted units of work
+    private Uncommitted uncommittedFor(final SailConnection sc) {
+        Uncommitted u = uncommitted.get(sc);
+        if (null == u) {
+            u = new Uncommitted();
+            uncommitted.put(sc, u);
+        }
+        return u;
+    }
+
+    private synchronized void finishRetrieval(final Retrieval r) {
+        if (retrievals.get(r.graphUri) == r) {
+            retrievals.remove(r.graphUri);
+        }
+    }
+
+    // Note: the resulting URI should be treated as a "black box";
+    // it need not resemble the URI it was created from.
+    private String findRetrievalUri(final URI uri) throws RippleException {
         String mapped = null == uriMap ? uri.toString() : uriMap.get(uri.toString());
-        retrievalUri = RDFUtils.removeFragmentIdentifier(mapped);
+        return RDFUtils.removeFragmentIdentifier(mapped);
+    }
+
+    // Dereferences and rdfizes a document, passing the resulting graph to the retrieval's spool.
+    // Note: this does not touch the triple store unless it is done by the thread which stores the retrieval,
+    // so it may be done on any thread.
+    private boolean fetch(final Retrieval r) throws RippleException {
+        URI uri = r.uri;
+        CacheEntry memo = r.memo;
+
+        String retrievalUri = findRetrievalUri(uri);
 
         Dereferencer dref;
 
         try {
             dref = chooseDereferencer(retrievalUri);
         } catch (URISyntaxException e) {
-            return CacheEntry.Status.InvalidUri;
+            memo.setStatus(CacheEntry.Status.InvalidUri);
+            return false;
         }
 
         if (null == dref) {
-            return CacheEntry.Status.BadUriScheme;
+            memo.setStatus(CacheEntry.Status.BadUriScheme);
+            return false;
+        }
+
+        // Fail fast if the host has failed repeatedly and is not yet due for a retry.
+        String host = HostRateLimiter.hostOf(retrievalUri);
+        if (null != host && !hostCircuitBreaker.allowRequest(host)) {
+            memo.setDereferencer(dref.getClass().getName());
+            memo.setStatus(CacheEntry.Status.HostUnavailable);
+            return true;
         }
 
         logger.info("dereferencing <"
@@ -412,84 +1028,241 @@ public class LinkedDataCache {
 
         // Note: from this point on, we are committed to actually dereferencing the URI,
         // and failures are explicitly stored as caching metadata.
-        try {
-            Representation rep;
+        Representation rep;
 
-            memo.setStatus(CacheEntry.Status.DereferencerError);
-            rep = dref.dereference(retrievalUri);
+        memo.setStatus(CacheEntry.Status.DereferencerError);
 
-            // a null representation indicates that dereferencing the URI would be redundant; exit early
-            if (null == rep) {
-                memo.setStatus(CacheEntry.Status.RedirectsToCached);
-                return memo.getStatus();
+        // If a successfully retrieved document has expired, ask the server whether it has changed.
+        CacheEntry expired = r.expired;
+        boolean revalidate = dref instanceof ConditionalDereferencer
+                && null != expired
+                && CacheEntry.Status.Success == expired.getStatus()
+                && expired.hasValidators();
+        try {
+            rep = revalidate
+                    ? ((ConditionalDereferencer) dref).dereference(retrievalUri, expired)
+                    : dref.dereference(retrievalUri);
+        } catch (RippleException e) {
+            CacheEntry.Status failure = classifyFailure(e);
+            if (null != host) {
+                if (null == failure || e instanceof ArchivingDereferencer.NotArchivedException) {
+                    hostCircuitBreaker.cancelRequest(host);
+                } else if (CacheEntry.Status.ClientError == failure) {
+                    // the host is responsive, even if the resource is not available
+                    hostCircuitBreaker.recordSuccess(host);
+                } else {
+                    hostCircuitBreaker.recordFailure(host);
+                }
             }
 
-            // We have the representation, now try to rdfize it.
+            if (null == failure) {
+                throw e;
+            }
 
-            memo.setMediaType(rep.getMediaType());
+            memo.setStatus(failure);
+            return true;
+        }
+
+        if (null != host) {
+            hostCircuitBreaker.recordSuccess(host);
+        }
+
+        // a null representation indicates that dereferencing the URI would be redundant; exit early
+        if (null == rep) {
+            memo.setStatus(CacheEntry.Status.RedirectsToCached);
+            return true;
+        }
 
-            Rdfizer rfiz = chooseRdfizer(memo.getMediaType());
-            if (null == rfiz) {
-                memo.setStatus(CacheEntry.Status.BadMediaType);
-                return logStatus(uri, memo);
+        if (revalidate && !rep.isAvailable()) {
+            // The cached graph is still valid; only its caching metadata is refreshed.
+            r.notModified = true;
+            memo.setMediaType(expired.getMediaType());
+            memo.setRdfizer(expired.getRdfizer());
+            memo.setETag(null == rep.getTag() ? expired.getETag() : rep.getTag().format());
+            memo.setLastModified(expired.getLastModified());
+            if (null != rep.getExpirationDate()) {
+                memo.setExpires(rep.getExpirationDate());
+            } else if (null != expired.getExpires() && null != expired.getTimestamp()) {
+                // keep the freshness lifetime which the server gave the document originally
+                long lifetime = expired.getExpires().getTime() - expired.getTimestamp().getTime();
+                memo.setExpires(new Date(memo.getTimestamp().getTime() + lifetime));
             }
+            memo.setStatus(CacheEntry.Status.Success);
+            logger.info("cached document is unchanged: <" + StringUtils.escapeURIString(uri.toString()) + ">");
+            return true;
+        }
+
+        // We have the representation, now try to rdfize it.
+
+        memo.setMediaType(rep.getMediaType());
+        memo.setETag(null == rep.getTag() ? null : rep.getTag().format());
+        memo.setLastModified(rep.getModificationDate());
+        memo.setExpires(rep.getExpirationDate());
 
-            memo.setRdfizer(rfiz.getClass().getName());
+        Rdfizer rfiz = chooseRdfizer(memo.getMediaType());
+        if (null == rfiz) {
+            memo.setStatus(CacheEntry.Status.BadMediaType);
+            return true;
+        }
+
+        memo.setRdfizer(rfiz.getClass().getName());
 
-            RDFSink adder = dataStore.createInputSink(sc);
-            RDFBuffer buffer = new RDFBuffer(adder);
+        // Note: any context information in the source document is discarded.
+        RDFSink pipe = new SingleContextPipe(r.graph, valueFactory.createURI(r.graphUri), valueFactory);
 
-            // Note: any context information in the source document is discarded.
-            RDFSink pipe = new SingleContextPipe(buffer, valueFactory.createURI(graphUri), valueFactory);
+        RDFHandler handler = new SesameInputAdapter(useBlankNodes
+                ? pipe
+                : new BNodeToURIFilter(pipe, valueFactory));
 
-            RDFHandler handler = new SesameInputAdapter(useBlankNodes
-                    ? pipe
-                    : new BNodeToURIFilter(pipe, valueFactory));
+        InputStream is;
+        try {
+            is = new CountingInputStream(rep.getStream());
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
 
-            InputStream is;
+        // Use the namespace portion of the original URI as the base URI for the retrieved RDF document.
+        String baseUri = uri.getNamespace();
+
+        // A fetch thread hands a document for a CPU-intensive rdfizer off to the rdfizer pool, once downloaded,
+        // rather than holding up further downloads.  Streaming rdfizers otherwise read the document as it arrives.
+        boolean handOff = rfiz instanceof SchedulableRdfizer
+                && ((SchedulableRdfizer) rfiz).isCpuIntensive()
+                && Thread.currentThread() instanceof FetchThread;
+        boolean streaming = !(rfiz instanceof SchedulableRdfizer) || ((SchedulableRdfizer) rfiz).isStreaming();
+        if (handOff || !streaming) {
+            DocumentBuffer buffer = new DocumentBuffer(DOCUMENT_BUFFER_MEMORY);
             try {
-                is = rep.getStream();
+                buffer.readFrom(is);
             } catch (IOException e) {
-                throw new RippleException(e);
+                buffer.dispose();
+                memo.setStatus(CacheEntry.Status.Failure);
+                logger.warn("failed to read document <" + StringUtils.escapeURIString(uri.toString()) + ">: " + e);
+                return true;
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    logger.warn("failed to close stream of <"
+                            + StringUtils.escapeURIString(uri.toString()) + ">: " + e);
+                }
             }
 
-            // Use the namespace portion of the original URI as the base URI for the retrieved RDF document.
-            String baseUri = uri.getNamespace();
+            rdfizeBuffered(r, rfiz, buffer, handler, baseUri, handOff);
+            return true;
+        }
 
+        try {
             memo.setStatus(rfiz.rdfize(is, handler, baseUri));
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                logger.warn("failed to close stream of <" + StringUtils.escapeURIString(uri.toString()) + ">: " + e);
+            }
+        }
 
-            // Only update the graph in the triple store if the operation was successful.
-            if (CacheEntry.Status.Success == memo.getStatus()) {
+        return true;
+    }
+
+    // Rdfizes a downloaded document, either on this thread or in the rdfizer pool.
+    // A document which the pool rejects (because it is busy or shut down) is rdfized on this thread.
+    // The rdfizing thread, rather than the fetching thread, finishes the retrieval's graph.
+    private void rdfizeBuffered(final Retrieval r,
+                                final Rdfizer rfiz,
+                                final DocumentBuffer buffer,
+                                final RDFHandler handler,
+                                final String baseUri,
+                                final boolean handOff) {
+        final CacheEntry memo = r.memo;
+        r.rdfization = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws RippleException {
                 try {
-                    sc.removeStatements(null, null, null, valueFactory.createURI(graphUri));
-                } catch (SailException e) {
+                    InputStream is = buffer.getInputStream();
+                    try {
+                        memo.setStatus(rfiz.rdfize(is, handler, baseUri));
+                    } finally {
+                        is.close();
+                    }
+                } catch (IOException e) {
                     throw new RippleException(e);
+                } finally {
+                    buffer.dispose();
+                    r.graph.finish();
                 }
 
-                buffer.flush();
+                return true;
             }
-        } finally {
-            metadata.setMemo(graphUri, memo, sc);
+        });
 
-            // an autocommit happens independently of a call to LinkedDataSail#commit
-            if (autoCommit) {
-                try {
-                    sc.commit();
-                    sc.begin();
-                } catch (SailException e) {
-                    throw new RippleException(e);
-                }
+        memo.setStatus(CacheEntry.Status.RdfizerError);
+        if (handOff) {
+            try {
+                rdfizerPool.execute(r.rdfization);
+                return;
+            } catch (RejectedExecutionException e) {
+                logger.debug("rdfizer pool is busy; rdfizing on the fetch thread");
             }
+        }
+
+        r.rdfization.run();
+    }
+
+    /**
+     * @return the total number of bytes of retrieved documents which have been read by the rdfizers,
+     * for example for reporting the throughput of a crawl
+     */
+    public long getBytesRetrieved() {
+        return bytesRetrieved.get();
+    }
 
-            logStatus(uri, memo);
+    /**
+     * @param uri a URI
+     * @return whether the cache has a dereferencer for the scheme of the URI
+     */
+    public boolean isDereferenceable(final String uri) {
+        try {
+            return null != chooseDereferencer(uri);
+        } catch (URISyntaxException e) {
+            return false;
         }
+    }
+
+    /**
+     * @return the health of the hosts from which documents are retrieved, which determines whether
+     * URIs on a failing host are dereferenced.  Its host status may be reported to operators.
+     */
+    public HostCircuitBreaker getHostCircuitBreaker() {
+        return hostCircuitBreaker;
+    }
 
-        return memo.getStatus();
+    /**
+     * @return the bound on the number of statements of cached graphs in the triple store,
+     * which reports evictions and the re-fetches they cause
+     */
+    public StorageBudget getStorageBudget() {
+        return storageBudget;
+    }
+
+    /**
+     * @return the index of the redirects which have been followed, for use by dereferencers
+     */
+    public RedirectManager getRedirectManager() {
+        return redirectManager;
+    }
+
+    /**
+     * @return the group commit through which retrievals are committed when autocommit is on,
+     * and which reports commit latency and batch sizes
+     */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
     }
 
     /**
      * @return whether the cache commits to the triple store after each Web request
-     * (true by default)
+     * (true by default).  Depending on the group commit settings, the writes of several requests
+     * may be committed together.
      */
     public boolean isAutoCommit() {
         return autoCommit;
@@ -562,6 +1335,140 @@ public class LinkedDataCache {
         return status;
     }
 
+    // Finds the status of a failed HTTP request, or null if the failure was not in communicating with the host
+    private CacheEntry.Status classifyFailure(final RippleException e) {
+        if (e instanceof HTTPRepresentation.ErrorResponseException) {
+            int code = ((HTTPRepresentation.ErrorResponseException) e).getStatusCode();
+            return code >= 500 ? CacheEntry.Status.ServerError : CacheEntry.Status.ClientError;
+        } else if (e instanceof ArchivingDereferencer.NotArchivedException) {
+            // the host was not contacted, so this says nothing about its health
+            return CacheEntry.Status.DereferencerError;
+        }
+
+        for (Throwable t = e.getCause(); null != t; t = t.getCause()) {
+            // this includes both connection and socket timeouts
+            if (t instanceof InterruptedIOException) {
+                return CacheEntry.Status.Timeout;
+            } else if (t instanceof UnknownHostException
+                    || t instanceof ConnectException
+                    || t instanceof NoRouteToHostException) {
+                return CacheEntry.Status.DereferencerError;
+            }
+        }
+
+        return null;
+    }
+
+    // Tracks the cached graphs which are already in the triple store, so that the cache remains bounded across sessions.
+    // Their order of use is not known, so they are considered less recently used than any graph used from now on.
+    private void loadStorage() throws RippleException {
+        try {
+            List<String> graphUris = new LinkedList<String>();
+            CloseableIteration<? extends Resource, SailException> iter = sailConnection.getContextIDs();
+            try {
+                while (iter.hasNext()) {
+                    Resource context = iter.next();
+                    if (context instanceof URI && context.stringValue().startsWith(Ripple.RANDOM_URN_PREFIX)) {
+                        graphUris.add(context.stringValue());
+                    }
+                }
+            } finally {
+                iter.close();
+            }
+
+            // graphs without a memo were not added by the cache
+            for (String graphUri : graphUris) {
+                CacheEntry memo = metadata.getMemo(graphUri, sailConnection);
+                if (null != memo) {
+                    storageBudget.stored(graphUri, memo, sailConnection.size(valueFactory.createURI(graphUri)));
+                }
+            }
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    // Evicts graphs, if necessary, until the cache is within its storage budget.
+    // The graphs are removed through the given connection, in the same transaction as the retrieval which
+    // caused them to be evicted, together with their memos and any redirects to their documents.
+    // If the retrieval is a unit of work, the removal of the memos takes effect only once it is committed,
+    // and if it is rolled back instead, the evicted graphs are tracked by the storage budget again.
+    // Returns the number of statements removed.
+    private long evictGraphs(final SailConnection sc,
+                             final boolean unit) throws RippleException {
+        long removed = 0;
+        List<String> evicted;
+
+        synchronized (this) {
+            evicted = storageBudget.chooseEvictions(retrievals.keySet());
+            if (evicted.isEmpty()) {
+                return 0;
+            }
+
+            // the evicted graphs, and the graphs of any other URIs whose memos were removed along with them
+            Set<String> affected = new HashSet<String>(evicted);
+            try {
+                for (String graphUri : evicted) {
+                    removed += evictGraph(graphUri, affected, sc, unit);
+                }
+            } catch (SailException e) {
+                throw new RippleException(e);
+            }
+
+            if (unit) {
+                synchronized (uncommitted) {
+                    Uncommitted u = uncommittedFor(sc);
+                    u.stored.removeAll(affected);
+                    u.evicted.addAll(affected);
+                    for (Iterator<KnownUri> i = u.uris.values().iterator(); i.hasNext(); ) {
+                        if (affected.contains(i.next().graphUri)) {
+                            i.remove();
+                        }
+                    }
+                }
+            }
+
+            // the memos of evicted graphs may be held for any of the URIs which map to them
+            forgetKnownUris(affected);
+        }
+
+        logger.info("evicted " + evicted.size() + " graphs (" + removed + " statements) from the cache");
+        return removed;
+    }
+
+    private long evictGraph(final String graphUri,
+                            final Collection<String> affected,
+                            final SailConnection sc,
+                            final boolean unit) throws SailException, RippleException {
+        URI graph = valueFactory.createURI(graphUri);
+        long removed = sc.size(graph);
+        sc.removeStatements(null, null, null, graph);
+        removed += unit ? metadata.deleteMemo(graphUri, sc) : metadata.removeMemo(graphUri, sc);
+
+        // The graph may hold a document to which the graph's URI, and possibly other URIs, redirect.
+        // The memos of the other URIs (RedirectsToCached) depend on this graph, so they are removed as well.
+        Set<String> others = new HashSet<String>();
+        removed += redirectManager.removeRedirectsVia(graphUri, others, sc);
+        for (String other : others) {
+            removed += unit ? metadata.deleteMemo(other, sc) : metadata.removeMemo(other, sc);
+        }
+        affected.addAll(others);
+
+        return removed;
+    }
+
+    private boolean isServedFromArchive(final String retrievalUri) {
+        Dereferencer dref;
+        try {
+            dref = chooseDereferencer(retrievalUri);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+
+        return dref instanceof ArchivingDereferencer
+                && ((ArchivingDereferencer) dref).isServedFromArchive(retrievalUri);
+    }
+
     private Dereferencer chooseDereferencer(final String uri) throws URISyntaxException {
         String scheme = new java.net.URI(uri).getScheme();
 
@@ -576,16 +1483,40 @@ public class LinkedDataCache {
 
     private class DefaultCacheExpirationPolicy implements CacheExpirationPolicy {
         private long cacheLifetime;
+        private long failureCacheLifetime;
+        private boolean useServerFreshness;
 
         public DefaultCacheExpirationPolicy() throws RippleException {
             cacheLifetime = Ripple.getConfiguration().getLong(LinkedDataSail.CACHE_LIFETIME) * 1000;
+            failureCacheLifetime = Ripple.getConfiguration().getLong(
+                    LinkedDataSail.FAILURE_CACHE_LIFETIME, 3600) * 1000;
+            useServerFreshness = Ripple.getConfiguration().getBoolean(LinkedDataSail.USE_SERVER_FRESHNESS, false);
         }
 
         public boolean isExpired(final String uri,
                                  final CacheEntry entry) {
+            long lifetime;
+            switch (entry.getStatus()) {
+                case HostUnavailable:
+                    // try again as soon as the host is due for a retry
+                    String host = HostRateLimiter.hostOf(uri);
+                    return null == host || hostCircuitBreaker.isAvailable(host);
+                case DereferencerError:
+                case ServerError:
+                case Timeout:
+                    // failures which are likely to be temporary
+                    lifetime = Math.min(cacheLifetime, failureCacheLifetime);
+                    break;
+                default:
+                    if (useServerFreshness && null != entry.getExpires()) {
+                        return System.currentTimeMillis() >= entry.getExpires().getTime();
+                    }
+                    lifetime = cacheLifetime;
+            }
+
             Date last = entry.getTimestamp();
             return null != last
-                    && System.currentTimeMillis() - last.getTime() >= cacheLifetime;
+                    && System.currentTimeMillis() - last.getTime() >= lifetime;
         }
     }
 
@@ -595,7 +1526,326 @@ public class LinkedDataCache {
         public Rdfizer rdfizer;
     }
 
+    // an entry in the index of known URIs
+    // the effects of the units of work which have been written to a connection, but not yet committed
+    private static class Uncommitted {
+        // the graphs which the units have written
+        private final Set<String> stored = new HashSet<String>();
+        // the graphs which the units have evicted, or whose memos they have removed along with evicted graphs
+        private final Set<String> evicted = new HashSet<String>();
+        // URIs which have been looked up in the written graphs, to be added to the index of known URIs
+        private final Map<String, KnownUri> uris = new HashMap<String, KnownUri>();
+        // the hashed URIs of the documents to which the units wrote redirects
+        private final List<URI> redirects = new LinkedList<URI>();
+    }
+
+    private static class KnownUri {
+        private final String graphUri;
+        private final CacheEntry memo;
+        // whether the URI has been looked up since it was added to the index, or last spared from eviction
+        private volatile boolean used = false;
+
+        public KnownUri(final String graphUri,
+                        final CacheEntry memo) {
+            this.graphUri = graphUri;
+            this.memo = memo;
+        }
+
+        // Note: the flag is only written if it is not already set, so that frequent lookups of the same URI
+        // from many threads do not contend for the entry.
+        public void markUsed() {
+            if (!used) {
+                used = true;
+            }
+        }
+    }
+
     public interface DataStore {
         RDFSink createInputSink(SailConnection sc);
     }
+
+    // A single dereferencing operation, shared by all threads which request the same graph.
+    // The document is fetched once, by whichever thread gets to it first (a requesting thread or a pool thread),
+    // and the graph is written to the triple store, in batches as it is parsed, by the first requesting thread.
+    private class Retrieval implements Callable<Boolean> {
+        private final URI uri;
+        private final String graphUri;
+        private final CacheEntry memo;
+        // the expired entry which this retrieval replaces, if any
+        private final CacheEntry expired;
+        private final FutureTask<Boolean> fetch;
+        // the rdfization of the document, if it has been downloaded before being rdfized.
+        // Only the fetching thread sets this, before the fetch completes.
+        private FutureTask<Boolean> rdfization = null;
+
+        private final GraphSpool graph = new GraphSpool(writeBatchSize);
+        // whether the retrieval was begun by a prefetch, and whether it has since been passed to a thread
+        // which will store it.  Both are accessed only while synchronized on the cache.
+        private boolean prefetched = false, claimed = false;
+        // whether the server has confirmed that the previously cached graph is still valid
+        private boolean notModified = false;
+        private boolean stored = false;
+        // whether the retrieval has been reported to the group commit as a completed unit of work
+        private boolean reported = false;
+        // whether the previously cached graph has been removed from the triple store, and any new statements added
+        private boolean replaced = false, written = false;
+        private long statementsWritten = 0;
+
+        public Retrieval(final URI uri,
+                         final String graphUri,
+                         final CacheEntry memo,
+                         final CacheEntry expired) {
+            this.uri = uri;
+            this.graphUri = graphUri;
+            this.memo = memo;
+            this.expired = expired;
+            this.fetch = new FutureTask<Boolean>(this);
+        }
+
+        public Boolean call() throws RippleException {
+            try {
+                return fetch(this);
+            } finally {
+                // a downloaded document is finished by the thread which rdfizes it
+                if (null == rdfization) {
+                    graph.finish();
+                }
+            }
+        }
+
+        public synchronized CacheEntry.Status store(final SailConnection sc) throws RippleException {
+            if (stored) {
+                return memo.getStatus();
+            }
+
+            // when the cache commits automatically, the graph and its metadata are written as a unit of work
+            boolean unit = autoCommit;
+            if (unit) {
+                groupCommit.starting(sc);
+            }
+            try {
+                return write(sc, unit);
+            } finally {
+                if (unit && !reported) {
+                    groupCommit.aborted(sc);
+                }
+            }
+        }
+
+        private CacheEntry.Status write(final SailConnection sc,
+                                        final boolean unit) throws RippleException {
+            final RDFSink sink = dataStore.createInputSink(sc);
+            graph.attach(new Sink<RDFCollector>() {
+                public void put(final RDFCollector batch) throws RippleException {
+                    replaceGraph(sc);
+                    batch.writeTo(sink);
+                    written = true;
+                    statementsWritten += batch.countStatements();
+                }
+            });
+
+            // Fetch the document on this thread, unless it is already being fetched
+            // (in which case, write its graph as it arrives).
+            RippleException error = null;
+            try {
+                fetch.run();
+                graph.drain();
+            } catch (RippleException e) {
+                // the graph could not be written to the triple store
+                error = e;
+            }
+
+            boolean dereferenced;
+            try {
+                dereferenced = fetch.get();
+                if (null != rdfization) {
+                    rdfization.get();
+                }
+            } catch (InterruptedException e) {
+                graph.abandon();
+                finishRetrieval(this);
+                throw new RippleException(e);
+            } catch (ExecutionException e) {
+                // dereferencing failed after the point of no return
+                dereferenced = true;
+                if (null == error) {
+                    error = e.getCause() instanceof RippleException
+                            ? (RippleException) e.getCause()
+                            : new RippleException(e.getCause());
+                }
+            }
+
+            if (null == error) {
+                error = graph.getWriteError();
+            }
+            if (null != error && CacheEntry.Status.Success == memo.getStatus()) {
+                memo.setStatus(CacheEntry.Status.Failure);
+            }
+
+            stored = true;
+            try {
+                if (dereferenced) {
+                    try {
+                        // Only replace the graph in the triple store if the operation was successful,
+                        // and the graph has actually changed (the new graph may also be empty).
+                        // A partially written graph is removed, although the graph it replaced is already gone.
+                        if (CacheEntry.Status.Success == memo.getStatus()) {
+                            if (!notModified) {
+                                replaceGraph(sc);
+                            }
+                        } else if (written) {
+                            removeGraph(sc);
+                        }
+                    } finally {
+                        // The memo of a unit of work is published only once the unit is committed.
+                        // Until then, other connections see the memo, if any, which it replaces
+                        List<URI> redirected = null;
+                        if (unit) {
+                            metadata.writeMemo(graphUri, memo, sc);
+                            restoreExpiredMemo(this);
+                            synchronized (uncommitted) {
+                                Uncommitted u = uncommittedFor(sc);
+                                u.evicted.remove(graphUri);
+                                u.stored.add(graphUri);
+                            }
+                            redirected = new LinkedList<URI>();
+                        } else {
+                            metadata.setMemo(graphUri, memo, sc);
+                        }
+                        long evicted = updateStorage(sc, unit);
+                        long redirects;
+                        try {
+                            redirects = redirectManager.flush(sc, redirected);
+                        } catch (SailException e) {
+                            throw new RippleException(e);
+                        }
+                        if (unit) {
+                            synchronized (uncommitted) {
+                                uncommittedFor(sc).redirects.addAll(redirected);
+                            }
+                        }
+
+                        // an autocommit happens independently of a call to LinkedDataSail#commit.
+                        // The graph and its memo are committed together, possibly along with other retrievals,
+                        // any redirects followed since the last retrieval, and any graphs evicted to make room.
+                        if (unit) {
+                            reported = true;
+                            try {
+                                groupCommit.written(sc, statementsWritten + 1 + evicted + redirects, graphUri);
+                            } catch (SailException e) {
+                                throw new RippleException(e);
+                            }
+                        }
+
+                        logStatus(uri, memo);
+                    }
+                }
+            } finally {
+                finishRetrieval(this);
+            }
+
+            if (null != error) {
+                throw error;
+            }
+
+            return memo.getStatus();
+        }
+
+        // Records the size of the stored graph in the storage budget, evicting other graphs if necessary.
+        // Returns the number of statements evicted.
+        private long updateStorage(final SailConnection sc,
+                                   final boolean unit) throws RippleException {
+            if (!storageBudget.isBounded()) {
+                return 0;
+            }
+
+            if (CacheEntry.Status.Success == memo.getStatus()) {
+                if (notModified) {
+                    storageBudget.used(graphUri, memo);
+                } else {
+                    storageBudget.stored(graphUri, memo, statementsWritten);
+                }
+            } else if (written) {
+                storageBudget.removed(graphUri);
+            }
+
+            return evictGraphs(sc, unit);
+        }
+
+        private void replaceGraph(final SailConnection sc) throws RippleException {
+            if (!replaced) {
+                removeGraph(sc);
+                replaced = true;
+            }
+        }
+
+        private void removeGraph(final SailConnection sc) throws RippleException {
+            try {
+                sc.removeStatements(null, null, null, valueFactory.createURI(graphUri));
+            } catch (SailException e) {
+                throw new RippleException(e);
+            }
+        }
+    }
+
+    // counts the bytes of a retrieved document as they are read
+    private class CountingInputStream extends FilterInputStream {
+        public CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRetrieved.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRetrieved.addAndGet(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                bytesRetrieved.addAndGet(skipped);
+            }
+            return skipped;
+        }
+    }
+
+    // a thread which downloads documents, and which hands CPU-intensive rdfization off to the rdfizer pool
+    private static class FetchThread extends Thread {
+        public FetchThread(final Runnable r, final String name) {
+            super(r, name);
+        }
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public Thread newThread(final Runnable r) {
+            Thread t = new FetchThread(r, "linked-data-fetch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private static class RdfizerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "linked-data-rdfize-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -0,0 +1,776 @@
+package net.fortytwo.linkeddata;
+
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import org.apache.log4j.Logger;
+import org.restlet.data.MediaType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A compact, persistent store for caching metadata, which keeps memos in a memory-mapped file
+ * rather than as literal-valued statements in the triple store.
+ * Each memo is a binary record keyed by the 128-bit UUID of its graph URI.
+ * Records are only ever appended, a changed memo being written again in full,
+ * and an in-memory index maps each key to the offset of its latest record,
+ * so that a lookup is a single hash probe followed by a read from the mapped file.
+ * Strings which recur from memo to memo, such as media types and class names, are written only once.
+ * A removed memo is marked by a short removal record.
+ * Superseded and removed records are reclaimed by compaction, when the store is opened
+ * or when the file would otherwise need to grow.
+ * The remaining records are written to a new file, which then replaces the old one by an atomic rename,
+ * so that a crash during compaction leaves the old file intact.
+ * <p/>
+ * Note: the store is not transactional; a memo written during a transaction which is later rolled back
+ * remains in the store.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MemoStore {
+    private static final Logger logger = Logger.getLogger(MemoStore.class);
+
+    private static final int MAGIC = 0x52504d53, VERSION = 1;
+
+    // the header holds a magic number, a version number, and the offset of the end of the last complete record
+    private static final int HEADER_SIZE = 16, END_POSITION = 8;
+
+    private static final byte STRING_RECORD = 1, MEMO_RECORD = 2, REMOVAL_RECORD = 3;
+
+    // type, id, length of the UTF-8 encoded string
+    private static final int STRING_HEADER_SIZE = 1 + 4 + 2;
+
+    // type, flags, key, status, timestamp, last modified, expires, media type, dereferencer, rdfizer,
+    // length of the entity tag
+    private static final int MEMO_HEADER_SIZE = 1 + 1 + 16 + 4 + 8 + 8 + 8 + 4 + 4 + 4 + 2;
+
+    // type, flags, key
+    private static final int REMOVAL_RECORD_SIZE = 1 + 1 + 16;
+
+    // set if the key of a memo is a hash of its graph URI, rather than the UUID contained in the URI
+    private static final byte HASHED_KEY = 1;
+
+    private static final int NO_STRING = -1;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private static final int INITIAL_SIZE = 1 << 16, MIN_COMPACTION_SIZE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private int end;
+    private int liveBytes;
+
+    private final KeyIndex index = new KeyIndex();
+    private final List<String> strings = new ArrayList<String>();
+    private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+    /**
+     * Opens a memo store, creating it if the file does not exist
+     *
+     * @param file the file in which memos are stored
+     * @throws RippleException if the file cannot be opened, or is not a memo store
+     */
+    public MemoStore(final File file) throws RippleException {
+        this.file = file;
+
+        // a compaction was interrupted before it could replace the file
+        File compactionFile = compactionFileOf(file);
+        if (compactionFile.exists() && !compactionFile.delete()) {
+            logger.warn("could not delete incomplete compaction of memo store: " + compactionFile);
+        }
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new RippleException("memo store is too large: " + file);
+            }
+            map(Math.max((int) length, INITIAL_SIZE));
+
+            if (length < HEADER_SIZE) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                setEnd(HEADER_SIZE);
+            } else if (MAGIC != buffer.getInt(0) || VERSION != buffer.getInt(4)) {
+                throw new RippleException("not a memo store (or an unsupported version): " + file);
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+
+        if (isMostlyGarbage()) {
+            compact();
+        }
+    }
+
+    /**
+     * @param graphUri the graph URI of a cached data source
+     * @return the stored memo for the data source, or null if there is none
+     * @throws RippleException if the store is closed
+     */
+    public synchronized CacheEntry get(final String graphUri) throws RippleException {
+        checkOpen();
+
+        UUID key = keyOf(graphUri);
+        int offset = index.get(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        return 0 == offset ? null : readMemo(offset);
+    }
+
+    /**
+     * Adds or replaces the memo for a data source
+     *
+     * @param graphUri the graph URI of the cached data source
+     * @param memo     the memo object representing the state of the data source
+     * @throws RippleException if the store is closed, or full
+     */
+    public synchronized void put(final String graphUri,
+                                 final CacheEntry memo) throws RippleException {
+        checkOpen();
+
+        UUID key = keyOf(graphUri);
+        byte flags = null == uuidOf(graphUri) ? HASHED_KEY : 0;
+
+        int status = idOf(null == memo.getStatus() ? null : memo.getStatus().name());
+        int mediaType = idOf(null == memo.getMediaType() ? null : memo.getMediaType().toString());
+        int dereferencer = idOf(memo.getDereferencer());
+        int rdfizer = idOf(memo.getRdfizer());
+
+        byte[] etag = null == memo.getETag() ? null : memo.getETag().getBytes(UTF8);
+        if (null != etag && etag.length > Short.MAX_VALUE) {
+            logger.warn("entity tag is too long to store: " + memo.getETag());
+            etag = null;
+        }
+
+        int size = MEMO_HEADER_SIZE + (null == etag ? 0 : etag.length);
+        int offset = allocate(size);
+
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.put(MEMO_RECORD)
+                .put(flags)
+                .putLong(key.getMostSignificantBits())
+                .putLong(key.getLeastSignificantBits())
+                .putInt(status)
+                .putLong(timeOf(memo.getTimestamp()))
+                .putLong(timeOf(memo.getLastModified()))
+                .putLong(timeOf(memo.getExpires()))
+                .putInt(mediaType)
+                .putInt(dereferencer)
+                .putInt(rdfizer)
+                .putShort(null == etag ? -1 : (short) etag.length);
+        if (null != etag) {
+            b.put(etag);
+        }
+        setEnd(offset + size);
+
+        int previous = index.put(key.getMostSignificantBits(), key.getLeastSignificantBits(), offset);
+        if (0 != previous) {
+            liveBytes -= recordSize(previous, end);
+        }
+        liveBytes += size;
+    }
+
+    /**
+     * Removes the memo for a data source, if there is one
+     *
+     * @param graphUri the graph URI of the formerly cached data source
+     * @throws RippleException if the store is closed, or full
+     */
+    public synchronized void remove(final String graphUri) throws RippleException {
+        checkOpen();
+
+        UUID key = keyOf(graphUri);
+        if (0 == index.get(key.getMostSignificantBits(), key.getLeastSignificantBits())) {
+            return;
+        }
+
+        int offset = allocate(REMOVAL_RECORD_SIZE);
+
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.put(REMOVAL_RECORD)
+                .put(null == uuidOf(graphUri) ? HASHED_KEY : 0)
+                .putLong(key.getMostSignificantBits())
+                .putLong(key.getLeastSignificantBits());
+        setEnd(offset + REMOVAL_RECORD_SIZE);
+
+        // note: the memo may have been moved by a compaction
+        int previous = index.remove(key.getMostSignificantBits(), key.getLeastSignificantBits());
+        liveBytes -= recordSize(previous, end);
+    }
+
+    /**
+     * Finds the most recently written memos, for example in order to warm up an in-memory cache
+     *
+     * @param limit the maximum number of memos to find
+     * @return a map of graph URIs to memos, in order from least to most recently written
+     * @throws RippleException if the store is closed
+     */
+    public synchronized LinkedHashMap<String, CacheEntry> getRecent(final int limit) throws RippleException {
+        checkOpen();
+
+        int[] offsets = index.getOffsets();
+        // records are appended, so the order of offsets is the order in which memos were written
+        Arrays.sort(offsets);
+
+        LinkedHashMap<String, CacheEntry> recent = new LinkedHashMap<String, CacheEntry>();
+        for (int i = Math.max(0, offsets.length - limit); i < offsets.length; i++) {
+            int offset = offsets[i];
+            // memos with hashed keys cannot be mapped back to their graph URIs
+            if (0 == (buffer.get(offset + 1) & HASHED_KEY)) {
+                CacheEntry memo = readMemo(offset);
+                if (null != memo) {
+                    UUID key = new UUID(buffer.getLong(offset + 2), buffer.getLong(offset + 10));
+                    recent.put(Ripple.RANDOM_URN_PREFIX + key, memo);
+                }
+            }
+        }
+
+        return recent;
+    }
+
+    /**
+     * @return the number of memos in the store
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Removes all memos from the store
+     *
+     * @throws RippleException if the store is closed
+     */
+    public synchronized void clear() throws RippleException {
+        checkOpen();
+
+        index.clear();
+        strings.clear();
+        stringIds.clear();
+        liveBytes = 0;
+        setEnd(HEADER_SIZE);
+    }
+
+    /**
+     * Reclaims the space occupied by superseded memos.
+     * The remaining records are written to a new file, which atomically replaces the current one.
+     * If the file cannot be replaced, the store is left as it was.
+     *
+     * @throws RippleException if the store is closed, or if an I/O error occurs
+     */
+    public synchronized void compact() throws RippleException {
+        checkOpen();
+
+        int before = end;
+        File compactionFile = compactionFileOf(file);
+
+        // the new offsets of the latest memos, which are applied to the index once the file has been replaced
+        int[] moved = new int[index.size()];
+        long[] movedKeys = new long[2 * index.size()];
+        int movedCount = 0;
+
+        int dest = HEADER_SIZE, newLiveBytes = 0;
+        try {
+            RandomAccessFile out = new RandomAccessFile(compactionFile, "rw");
+            try {
+                out.setLength(0);
+                FileChannel outChannel = out.getChannel();
+
+                int src = HEADER_SIZE;
+                while (src < before) {
+                    int size = recordSize(src, before);
+                    byte type = buffer.get(src);
+                    boolean isMemo = MEMO_RECORD == type;
+                    long msb = 0, lsb = 0;
+                    if (isMemo) {
+                        msb = buffer.getLong(src + 2);
+                        lsb = buffer.getLong(src + 10);
+                    }
+
+                    // all strings are kept, as are the latest memos,
+                    // while removal records are no longer needed once the memos they remove are gone
+                    if (STRING_RECORD == type || isMemo && index.get(msb, lsb) == src) {
+                        ByteBuffer record = buffer.duplicate();
+                        record.position(src);
+                        record.limit(src + size);
+                        while (record.hasRemaining()) {
+                            outChannel.write(record, dest + record.position() - src);
+                        }
+
+                        if (isMemo) {
+                            movedKeys[2 * movedCount] = msb;
+                            movedKeys[2 * movedCount + 1] = lsb;
+                            moved[movedCount++] = dest;
+                        }
+
+                        dest += size;
+                        newLiveBytes += size;
+                    }
+
+                    src += size;
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(dest);
+                header.flip();
+                while (header.hasRemaining()) {
+                    outChannel.write(header, header.position());
+                }
+
+                // leave some room to grow before the file must be compacted or grown again
+                out.setLength(Math.min(buffer.capacity(), Math.max(INITIAL_SIZE, 2L * dest)));
+                outChannel.force(true);
+            } finally {
+                out.close();
+            }
+
+            buffer.force();
+            if (!compactionFile.renameTo(file)) {
+                logger.warn("could not replace memo store " + file + " with its compacted form");
+                if (!compactionFile.delete()) {
+                    compactionFile.deleteOnExit();
+                }
+                return;
+            }
+
+            // the old file, now unlinked, remains mapped until its buffer is garbage-collected
+            channel.close();
+            randomAccessFile.close();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            map((int) randomAccessFile.length());
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+
+        for (int i = 0; i < movedCount; i++) {
+            index.put(movedKeys[2 * i], movedKeys[2 * i + 1], moved[i]);
+        }
+        liveBytes = newLiveBytes;
+        setEnd(dest);
+
+        logger.info("compacted memo store " + file + " from " + before + " to " + end + " bytes");
+    }
+
+    /**
+     * Flushes the store to disk and closes it
+     *
+     * @throws RippleException if an I/O error occurs
+     */
+    public synchronized void close() throws RippleException {
+        if (null == buffer) {
+            return;
+        }
+
+        buffer.force();
+        buffer = null;
+
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    // Rebuilds the index by reading all records, discarding any incomplete or corrupt records at the end of the file
+    private void load() {
+        long e = buffer.getLong(END_POSITION);
+        if (e < HEADER_SIZE || e > buffer.capacity()) {
+            logger.warn("memo store " + file + " has an invalid header. Discarding its contents");
+            setEnd(HEADER_SIZE);
+            return;
+        }
+
+        int offset = HEADER_SIZE;
+        while (offset < e) {
+            int size = recordSize(offset, (int) e);
+            if (size < 0 || !isValidRecord(offset)) {
+                logger.warn("corrupt record at offset " + offset + " of memo store " + file
+                        + ". Discarding the remainder of the store");
+                break;
+            }
+
+            if (STRING_RECORD == buffer.get(offset)) {
+                String s = readString(offset + STRING_HEADER_SIZE, buffer.getShort(offset + 5) & 0xffff);
+                stringIds.put(s, strings.size());
+                strings.add(s);
+                liveBytes += size;
+            } else if (MEMO_RECORD == buffer.get(offset)) {
+                int previous = index.put(buffer.getLong(offset + 2), buffer.getLong(offset + 10), offset);
+                if (0 != previous) {
+                    liveBytes -= recordSize(previous, offset);
+                }
+                liveBytes += size;
+            } else {
+                int previous = index.remove(buffer.getLong(offset + 2), buffer.getLong(offset + 10));
+                if (0 != previous) {
+                    liveBytes -= recordSize(previous, offset);
+                }
+            }
+
+            offset += size;
+        }
+
+        setEnd(offset);
+    }
+
+    // Note: strings are numbered in the order in which they are written
+    private boolean isValidRecord(final int offset) {
+        if (STRING_RECORD == buffer.get(offset)) {
+            return buffer.getInt(offset + 1) == strings.size();
+        } else if (REMOVAL_RECORD == buffer.get(offset)) {
+            return true;
+        } else {
+            int status = buffer.getInt(offset + 18);
+            return isValidStringId(status)
+                    && isValidStringId(buffer.getInt(offset + 46))
+                    && isValidStringId(buffer.getInt(offset + 50))
+                    && isValidStringId(buffer.getInt(offset + 54));
+        }
+    }
+
+    private boolean isValidStringId(final int id) {
+        return NO_STRING == id || (id >= 0 && id < strings.size());
+    }
+
+    // Finds the size of the record at the given offset, or -1 if it does not fit before the limit
+    private int recordSize(final int offset,
+                           final int limit) {
+        int size;
+        switch (buffer.get(offset)) {
+            case STRING_RECORD:
+                if (offset + STRING_HEADER_SIZE > limit) {
+                    return -1;
+                }
+                size = STRING_HEADER_SIZE + (buffer.getShort(offset + 5) & 0xffff);
+                break;
+            case MEMO_RECORD:
+                if (offset + MEMO_HEADER_SIZE > limit) {
+                    return -1;
+                }
+                short etagLength = buffer.getShort(offset + MEMO_HEADER_SIZE - 2);
+                size = MEMO_HEADER_SIZE + Math.max(0, etagLength);
+                break;
+            case REMOVAL_RECORD:
+                size = REMOVAL_RECORD_SIZE;
+                break;
+            default:
+                return -1;
+        }
+
+        return offset + size > limit ? -1 : size;
+    }
+
+    private CacheEntry readMemo(final int offset) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + 18);
+
+        int status = b.getInt();
+        long timestamp = b.getLong();
+        long lastModified = b.getLong();
+        long expires = b.getLong();
+        int mediaType = b.getInt();
+        int dereferencer = b.getInt();
+        int rdfizer = b.getInt();
+        short etagLength = b.getShort();
+
+        CacheEntry memo;
+        try {
+            memo = new CacheEntry(NO_STRING == status ? null : CacheEntry.Status.valueOf(strings.get(status)));
+        } catch (IllegalArgumentException e) {
+            // the status is no longer defined; treat the data source as if it had never been cached
+            return null;
+        }
+
+        memo.setTimestamp(dateOf(timestamp));
+        memo.setLastModified(dateOf(lastModified));
+        memo.setExpires(dateOf(expires));
+        memo.setMediaType(NO_STRING == mediaType ? null : new MediaType(strings.get(mediaType)));
+        memo.setDereferencer(NO_STRING == dereferencer ? null : strings.get(dereferencer));
+        memo.setRdfizer(NO_STRING == rdfizer ? null : strings.get(rdfizer));
+        if (etagLength >= 0) {
+            memo.setETag(readString(offset + MEMO_HEADER_SIZE, etagLength));
+        }
+
+        return memo;
+    }
+
+    private String readString(final int offset,
+                              final int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // Finds the id of a string, adding the string to the store if necessary
+    private int idOf(final String s) throws RippleException {
+        if (null == s) {
+            return NO_STRING;
+        }
+
+        Integer id = stringIds.get(s);
+        if (null != id) {
+            return id;
+        }
+
+        byte[] bytes = s.getBytes(UTF8);
+        if (bytes.length > 0xffff) {
+            throw new RippleException("string is too long for memo store: " + s);
+        }
+
+        int size = STRING_HEADER_SIZE + bytes.length;
+        int offset = allocate(size);
+
+        id = strings.size();
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        b.put(STRING_RECORD)
+                .putInt(id)
+                .putShort((short) bytes.length)
+                .put(bytes);
+        setEnd(offset + size);
+
+        strings.add(s);
+        stringIds.put(s, id);
+        liveBytes += size;
+
+        return id;
+    }
+
+    // Makes room for a record at the end of the file, compacting or growing the file if necessary
+    private int allocate(final int size) throws RippleException {
+        if ((long) end + size > buffer.capacity()) {
+            if (isMostlyGarbage()) {
+                compact();
+            }
+
+            if ((long) end + size > buffer.capacity()) {
+                long newSize = Math.min(Integer.MAX_VALUE,
+                        Math.max(2L * buffer.capacity(), (long) end + size));
+                if ((long) end + size > newSize) {
+                    throw new RippleException("memo store is full: " + file);
+                }
+
+                try {
+                    map((int) newSize);
+                } catch (IOException e) {
+                    throw new RippleException(e);
+                }
+            }
+        }
+
+        return end;
+    }
+
+    private boolean isMostlyGarbage() {
+        return end >= MIN_COMPACTION_SIZE && liveBytes < (end - HEADER_SIZE) / 2;
+    }
+
+    private void map(final int size) throws IOException {
+        if (randomAccessFile.length() < size) {
+            randomAccessFile.setLength(size);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    // Note: the end is written after each record, so that a partially written record is ignored
+    private void setEnd(final int end) {
+        this.end = end;
+        buffer.putLong(END_POSITION, end);
+    }
+
+    // Compaction writes to this file before it replaces the store
+    static File compactionFileOf(final File file) {
+        return new File(file.getPath() + ".compacting");
+    }
+
+    private void checkOpen() throws RippleException {
+        if (null == buffer) {
+            throw new RippleException("memo store is closed: " + file);
+        }
+    }
+
+    // Graph URIs are normally of the form urn:uuid:..., as produced by RDFUtils#findGraphUri
+    private static UUID uuidOf(final String graphUri) {
+        if (graphUri.startsWith(Ripple.RANDOM_URN_PREFIX)) {
+            String s = graphUri.substring(Ripple.RANDOM_URN_PREFIX.length());
+            try {
+                UUID uuid = UUID.fromString(s);
+                // only a canonical UUID maps back to the same graph URI
+                if (uuid.toString().equals(s)) {
+                    return uuid;
+                }
+            } catch (IllegalArgumentException e) {
+                // fall through
+            }
+        }
+
+        return null;
+    }
+
+    private static UUID keyOf(final String graphUri) {
+        UUID uuid = uuidOf(graphUri);
+        return null == uuid ? UUID.nameUUIDFromBytes(graphUri.getBytes(UTF8)) : uuid;
+    }
+
+    private static long timeOf(final Date date) {
+        return null == date ? NO_DATE : date.getTime();
+    }
+
+    private static Date dateOf(final long time) {
+        return NO_DATE == time ? null : new Date(time);
+    }
+
+    // An open-addressing hash table from 128-bit keys to record offsets, with no objects per entry
+    private static class KeyIndex {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        // the two halves of the key in each slot, and the offset of the record, or 0 for an empty slot
+        private long[] keys;
+        private int[] offsets;
+        private int size;
+
+        public KeyIndex() {
+            clear();
+        }
+
+        public void clear() {
+            keys = new long[2 * INITIAL_CAPACITY];
+            offsets = new int[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(final long msb,
+                       final long lsb) {
+            int mask = offsets.length - 1;
+            for (int i = slotOf(msb, lsb, mask); ; i = (i + 1) & mask) {
+                if (0 == offsets[i]) {
+                    return 0;
+                } else if (msb == keys[2 * i] && lsb == keys[2 * i + 1]) {
+                    return offsets[i];
+                }
+            }
+        }
+
+        // Returns the previous offset for the key, or 0 if there was none
+        public int put(final long msb,
+                       final long lsb,
+                       final int offset) {
+            int mask = offsets.length - 1;
+            int i = slotOf(msb, lsb, mask);
+            while (0 != offsets[i]) {
+                if (msb == keys[2 * i] && lsb == keys[2 * i + 1]) {
+                    int previous = offsets[i];
+                    offsets[i] = offset;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+
+            keys[2 * i] = msb;
+            keys[2 * i + 1] = lsb;
+            offsets[i] = offset;
+
+            // keep the table at most three quarters full
+            if (++size * 4 > offsets.length * 3) {
+                resize();
+            }
+            return 0;
+        }
+
+        // Returns the offset for the key, or 0 if there was none
+        public int remove(final long msb,
+                          final long lsb) {
+            int mask = offsets.length - 1;
+            int i = slotOf(msb, lsb, mask);
+            while (0 != offsets[i]) {
+                if (msb == keys[2 * i] && lsb == keys[2 * i + 1]) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            int removed = offsets[i];
+            if (0 == removed) {
+                return 0;
+            }
+
+            // Shift back any later entries in the same run of slots which would otherwise become unreachable,
+            // i.e. those whose home slot does not lie cyclically between the emptied slot and their own slot.
+            for (int j = (i + 1) & mask; 0 != offsets[j]; j = (j + 1) & mask) {
+                int home = slotOf(keys[2 * j], keys[2 * j + 1], mask);
+                boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!reachable) {
+                    keys[2 * i] = keys[2 * j];
+                    keys[2 * i + 1] = keys[2 * j + 1];
+                    offsets[i] = offsets[j];
+                    i = j;
+                }
+            }
+
+            offsets[i] = 0;
+            size--;
+            return removed;
+        }
+
+        public int[] getOffsets() {
+            int[] result = new int[size];
+            int j = 0;
+            for (int offset : offsets) {
+                if (0 != offset) {
+                    result[j++] = offset;
+                }
+            }
+            return result;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldOffsets = offsets;
+            keys = new long[2 * oldKeys.length];
+            offsets = new int[2 * oldOffsets.length];
+            size = 0;
+
+            for (int i = 0; i < oldOffsets.length; i++) {
+                if (0 != oldOffsets[i]) {
+                    put(oldKeys[2 * i], oldKeys[2 * i + 1], oldOffsets[i]);
+                }
+            }
+        }
+
+        private static int slotOf(final long msb,
+                                  final long lsb,
+                                  final int mask) {
+            long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -1,25 +1,99 @@
 package net.fortytwo.linkeddata;
 
 import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.ripple.BloomFilter;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import org.apache.log4j.Logger;
+import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
 /**
  * An object which keeps track of the 3xx redirects which have been followed in the course of dereferencing
  * Linked Data URIs.
  * Persisting and looking up these redirects saves time, space, and bandwidth when multiple redirects
  * to the same document are encountered.
+ * Redirects are indexed in memory, so that a lookup does not normally touch the triple store:
+ * a Bloom filter holds every document to which a redirect is known, and answers most lookups of other documents
+ * on its own, while a bounded map holds recently confirmed documents.
+ * Only when the filter matches a document which is not in the map is the triple store consulted.
+ * New redirects are not written immediately; they are written by the next retrieval to be stored
+ * (see <code>flush</code>), in the same transaction as its graph and caching metadata.
+ * Access to the manager is synchronized.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class RedirectManager {
+    private static final Logger logger = Logger.getLogger(RedirectManager.class);
+
+    private static final long DEFAULT_EXPECTED_REDIRECTS = 1000000;
+    private static final int DEFAULT_CAPACITY = 10000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
     private final SailConnection connection;
+    private final long expectedRedirects;
+
+    // all documents to which a redirect is known, by key
+    private BloomFilter documents;
+
+    // recently confirmed documents, in least-recently-used order
+    private final LinkedHashMap<UUID, Boolean> confirmed;
+
+    // redirects which have not yet been written, by hashed thing URI
+    private final LinkedHashMap<URI, URI> pending = new LinkedHashMap<URI, URI>();
+
+    // metrics
+    private long lookups = 0;
+    private long storeLookups = 0;
+
+    public RedirectManager(final SailConnection connection) throws RippleException {
+        this(connection, DEFAULT_EXPECTED_REDIRECTS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a redirect manager, loading the redirects which are already in the triple store
+     *
+     * @param connection        the connection through which redirects are loaded and, when the index is not
+     *                          conclusive, looked up
+     * @param expectedRedirects the number of distinct documents for which the Bloom filter is sized.
+     *                          The filter is made larger if the triple store already holds more redirects
+     * @param capacity          the number of confirmed documents kept in memory
+     * @throws RippleException if the redirects cannot be loaded
+     */
+    public RedirectManager(final SailConnection connection,
+                           final long expectedRedirects,
+                           final int capacity) throws RippleException {
+        if (expectedRedirects < 1 || capacity < 1) {
+            throw new IllegalArgumentException("bad redirect index size: " + expectedRedirects + ", " + capacity);
+        }
 
-    public RedirectManager(SailConnection connection) {
         this.connection = connection;
+        this.expectedRedirects = expectedRedirects;
+        confirmed = new LinkedHashMap<UUID, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        try {
+            load();
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
     }
 
     /**
@@ -27,32 +101,267 @@ public class RedirectManager {
      * @param documentUri the URI of a possible Linked Data document
      * @return whether any URI has already been dereferenced which redirects to the given document URI
      */
-    public boolean existsRedirectTo(final String documentUri) throws SailException {
-        URI hashedDocumentUri = new URIImpl(RDFUtils.hashedUri(documentUri));
+    public synchronized boolean existsRedirectTo(final String documentUri) throws SailException {
+        lookups++;
+
+        UUID key = keyOf(documentUri);
+        if (!documents.mightContain(hashOf(key))) {
+            return false;
+        } else if (null != confirmed.get(key)) {
+            return true;
+        }
+
+        // either a false positive, or a document which has dropped out of the map
+        storeLookups++;
+        URI hashedDocumentUri = hashedUri(key);
+        if (pending.containsValue(hashedDocumentUri)) {
+            confirmed.put(key, true);
+            return true;
+        }
 
         CloseableIteration<? extends Statement, SailException> iter
                 = connection.getStatements(null, LinkedDataCache.CACHE_REDIRECTSTO, hashedDocumentUri, false);
         try {
-            return iter.hasNext();
+            if (iter.hasNext()) {
+                confirmed.put(key, true);
+                return true;
+            } else {
+                return false;
+            }
         } finally {
             iter.close();
         }
     }
 
     /**
-     * Persistently stores the fact that the given thing URI has been found to redirect to the given document URI
+     * Records the fact that the given thing URI has been found to redirect to the given document URI.
+     * The redirect is indexed immediately, and persisted when the manager is next flushed.
      * @param thingUri the URI of a non-information resource
      * @param documentUri the URI to which the original URI has been redirected
      */
-    public void persistRedirect(final String thingUri, final String documentUri) throws SailException {
-        URI hashedThingUri = new URIImpl(RDFUtils.hashedUri(thingUri));
-        URI hashedDocumentUri = new URIImpl(RDFUtils.hashedUri(documentUri));
+    public synchronized void persistRedirect(final String thingUri, final String documentUri) {
+        UUID key = keyOf(documentUri);
+        documents.add(hashOf(key));
+        confirmed.put(key, true);
+
+        URI hashedThingUri = hashedUri(keyOf(thingUri));
+        // the latest redirect of a thing replaces any earlier one
+        pending.remove(hashedThingUri);
+        pending.put(hashedThingUri, hashedUri(key));
+    }
+
+    /**
+     * Writes any redirects which have not yet been persisted.
+     * The caller is responsible for committing the change, normally along with a retrieval.
+     *
+     * @param sc a connection to the triple store
+     * @return the number of statements written
+     * @throws SailException if the redirects cannot be written
+     */
+    public synchronized long flush(final SailConnection sc) throws SailException {
+        return flush(sc, null);
+    }
+
+    /**
+     * Writes any redirects which have not yet been persisted, recording the documents to which they redirect,
+     * so that the redirects can be forgotten if the transaction is rolled back (see <code>forget</code>)
+     *
+     * @param sc        a connection to the triple store
+     * @param documents a collection to which the hashed URIs of the redirected-to documents are added, or null
+     * @return the number of statements written
+     * @throws SailException if the redirects cannot be written
+     */
+    public synchronized long flush(final SailConnection sc,
+                                   final Collection<URI> documents) throws SailException {
+        long count = 0;
+        for (Map.Entry<URI, URI> e : pending.entrySet()) {
+            sc.removeStatements(e.getKey(), LinkedDataCache.CACHE_REDIRECTSTO, null);
+            sc.addStatement(e.getKey(), LinkedDataCache.CACHE_REDIRECTSTO, e.getValue());
+            count += 2;
+            if (null != documents) {
+                documents.add(e.getValue());
+            }
+        }
+        pending.clear();
+
+        return count;
+    }
 
-        connection.removeStatements(hashedThingUri, LinkedDataCache.CACHE_REDIRECTSTO, null);
-        connection.addStatement(hashedThingUri, LinkedDataCache.CACHE_REDIRECTSTO, hashedDocumentUri);
+    /**
+     * Forgets that redirects to the given documents are known, for example after the transaction which wrote them
+     * has been rolled back.
+     * Any of the redirects which are still in the triple store (for example, redirects written earlier by another
+     * transaction) are found there when they are next looked up.
+     *
+     * @param documents the hashed URIs of redirected-to documents, as recorded by <code>flush</code>
+     */
+    public synchronized void forget(final Collection<URI> documents) {
+        // the filter cannot forget the documents, but the triple store now decides
+        for (URI doc : documents) {
+            UUID key = uuidOf(doc.stringValue());
+            if (null != key) {
+                confirmed.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes the redirects from the given thing URI, as well as all other redirects to the same documents,
+     * for example when the graph holding the documents is evicted from the cache.
+     * The caller is responsible for committing the change.
+     *
+     * @param hashedThingUri the hashed URI of a thing (which is also its graph URI)
+     * @param others         a collection to which the hashed URIs of any other things which redirect to the same
+     *                       documents are added
+     * @param sc             a connection to the triple store
+     * @return the number of redirect statements removed from the triple store
+     * @throws SailException if the redirects cannot be removed
+     */
+    public synchronized long removeRedirectsVia(final String hashedThingUri,
+                                                final Collection<String> others,
+                                                final SailConnection sc) throws SailException {
+        URI thing = new URIImpl(hashedThingUri);
+        long removed = 0;
+
+        Set<Value> docs = new HashSet<Value>();
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(thing, LinkedDataCache.CACHE_REDIRECTSTO, null, false);
+        try {
+            while (iter.hasNext()) {
+                docs.add(iter.next().getObject());
+                removed++;
+            }
+        } finally {
+            iter.close();
+        }
+        URI pendingDoc = pending.remove(thing);
+        if (null != pendingDoc) {
+            docs.add(pendingDoc);
+        }
+
+        for (Value doc : docs) {
+            iter = sc.getStatements(null, LinkedDataCache.CACHE_REDIRECTSTO, doc, false);
+            try {
+                while (iter.hasNext()) {
+                    Resource subject = iter.next().getSubject();
+                    // redirects from the thing itself have already been counted
+                    if (!subject.equals(thing)) {
+                        others.add(subject.stringValue());
+                        removed++;
+                    }
+                }
+            } finally {
+                iter.close();
+            }
+            sc.removeStatements(null, LinkedDataCache.CACHE_REDIRECTSTO, doc);
+
+            for (Iterator<Map.Entry<URI, URI>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<URI, URI> e = i.next();
+                if (e.getValue().equals(doc)) {
+                    others.add(e.getKey().stringValue());
+                    i.remove();
+                }
+            }
+
+            // the filter cannot forget the document, but the triple store now decides
+            UUID key = uuidOf(doc.stringValue());
+            if (null != key) {
+                confirmed.remove(key);
+            }
+        }
+        sc.removeStatements(thing, LinkedDataCache.CACHE_REDIRECTSTO, null);
+
+        return removed;
+    }
+
+    /**
+     * Forgets the redirects which are not in the triple store, for example after a connection to which redirects
+     * were written has been rolled back.
+     * The index is reloaded from the store, and redirects which have not yet been written are dropped.
+     *
+     * @throws RippleException if the redirects cannot be loaded
+     */
+    public synchronized void reload() throws RippleException {
+        confirmed.clear();
+        pending.clear();
+
+        try {
+            load();
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    /**
+     * Forgets all redirects, for example when the triple store is cleared
+     */
+    public synchronized void clear() {
+        documents = new BloomFilter(expectedRedirects, FALSE_POSITIVE_RATE);
+        confirmed.clear();
+        pending.clear();
+    }
+
+    /**
+     * @return the number of lookups of documents
+     */
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return the number of lookups which the in-memory index could not answer on its own
+     */
+    public synchronized long getStoreLookups() {
+        return storeLookups;
+    }
+
+    // Reads all redirects from the triple store into the Bloom filter
+    private void load() throws SailException {
+        Set<UUID> keys = new HashSet<UUID>();
+        CloseableIteration<? extends Statement, SailException> iter
+                = connection.getStatements(null, LinkedDataCache.CACHE_REDIRECTSTO, null, false);
+        try {
+            while (iter.hasNext()) {
+                UUID key = uuidOf(iter.next().getObject().stringValue());
+                if (null != key) {
+                    keys.add(key);
+                }
+            }
+        } finally {
+            iter.close();
+        }
+
+        documents = new BloomFilter(Math.max(expectedRedirects, 2L * keys.size()), FALSE_POSITIVE_RATE);
+        for (UUID key : keys) {
+            documents.add(hashOf(key));
+        }
+
+        logger.info("loaded " + keys.size() + " redirected-to documents into the redirect index");
+    }
+
+    // Note: this must agree with RDFUtils#hashedUri
+    private static UUID keyOf(final String uri) {
+        return UUID.nameUUIDFromBytes(uri.getBytes());
+    }
+
+    private static URI hashedUri(final UUID key) {
+        return new URIImpl(Ripple.RANDOM_URN_PREFIX + key);
+    }
+
+    private static UUID uuidOf(final String hashedUri) {
+        if (!hashedUri.startsWith(Ripple.RANDOM_URN_PREFIX)) {
+            return null;
+        }
+
+        try {
+            return UUID.fromString(hashedUri.substring(Ripple.RANDOM_URN_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
-        // note: a LinkedDataSail cache miss is currently not an atomic operation w.r.t. the underlying triple store
-        connection.commit();
-        connection.begin();
+    // name-based UUIDs are MD5 digests, so their bits are already well distributed
+    private static long hashOf(final UUID key) {
+        return key.getMostSignificantBits() ^ key.getLeastSignificantBits();
     }
 }
@@ -0,0 +1,24 @@
+package net.fortytwo.linkeddata;
+
+/**
+ * An rdfizer which describes how it consumes a document, so that the cache can decide where to run it.
+ * An rdfizer which is CPU-intensive is run on a dedicated pool of worker threads, once its document
+ * has been downloaded, so that the threads which fetch documents are free to fetch the next ones.
+ * Rdfizers which do not implement this interface are treated as streaming, and are not considered CPU-intensive.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface SchedulableRdfizer extends Rdfizer {
+    /**
+     * @return whether the rdfizer consumes a document as it is read, in bounded memory.
+     * A streaming rdfizer may also stop before the end of the document, in which case the remainder
+     * is not downloaded.  An rdfizer which is not streaming is given a complete, local copy of the document
+     */
+    boolean isStreaming();
+
+    /**
+     * @return whether rdfizing a document takes enough computation, relative to the time taken to download it,
+     * that it should not be done on the thread which fetched the document
+     */
+    boolean isCpuIntensive();
+}
@@ -0,0 +1,233 @@
+package net.fortytwo.linkeddata;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds the number of statements which a cache keeps in its triple store.
+ * Each cached graph is tracked together with its size, in order of recent use,
+ * and once the total size exceeds the budget, the least recently used graphs are chosen for eviction.
+ * Lookups of a graph through the cache's index of known URIs do not pass through the budget;
+ * instead, they mark the graph's memo as used, and a graph whose memo has been used since it was last considered
+ * is given a second chance, being moved to the most recently used end rather than evicted.
+ * The graph URIs of recently evicted graphs are remembered, so that retrievals caused by eviction can be counted.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StorageBudget {
+    private final long maxStatements;
+    private final int maxEvicted;
+
+    // cached graphs in least-recently-used order
+    private final LinkedHashMap<String, Graph> graphs = new LinkedHashMap<String, Graph>(16, 0.75f, true);
+    private long totalStatements = 0;
+
+    private final LinkedHashMap<String, Boolean> recentlyEvicted = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > maxEvicted;
+        }
+    };
+
+    // metrics
+    private long evictions = 0;
+    private long evictedStatements = 0;
+    private long refetches = 0;
+
+    /**
+     * @param maxStatements the number of statements which cached graphs may occupy in the triple store,
+     *                      or 0 if the cache is not bounded
+     * @param maxEvicted    the number of evicted graphs which are remembered for the purpose of counting re-fetches
+     */
+    public StorageBudget(final long maxStatements,
+                         final int maxEvicted) {
+        if (maxStatements < 0 || maxEvicted < 0) {
+            throw new IllegalArgumentException("bad storage budget: " + maxStatements + ", " + maxEvicted);
+        }
+
+        this.maxStatements = maxStatements;
+        this.maxEvicted = maxEvicted;
+    }
+
+    /**
+     * @return whether the cache is bounded, i.e. whether graphs are ever evicted
+     */
+    public boolean isBounded() {
+        return maxStatements > 0;
+    }
+
+    /**
+     * Records that a graph has been written to the triple store, replacing any previous version of the graph
+     *
+     * @param graphUri   the graph URI of a cached data source
+     * @param memo       the memo of the data source
+     * @param statements the number of statements in the graph
+     */
+    public synchronized void stored(final String graphUri,
+                                    final CacheEntry memo,
+                                    final long statements) {
+        Graph g = graphs.get(graphUri);
+        if (null == g) {
+            g = new Graph();
+            graphs.put(graphUri, g);
+        } else {
+            totalStatements -= g.statements;
+        }
+
+        g.memo = memo;
+        g.statements = statements;
+        totalStatements += statements;
+    }
+
+    /**
+     * Records that a cached graph has been looked up, making it the most recently used graph
+     *
+     * @param graphUri the graph URI of a cached data source
+     * @param memo     the current memo of the data source
+     */
+    public synchronized void used(final String graphUri,
+                                  final CacheEntry memo) {
+        Graph g = graphs.get(graphUri);
+        if (null != g) {
+            g.memo = memo;
+        }
+    }
+
+    /**
+     * Records that a graph has been removed from the triple store other than by eviction
+     *
+     * @param graphUri the graph URI of a formerly cached data source
+     */
+    public synchronized void removed(final String graphUri) {
+        Graph g = graphs.remove(graphUri);
+        if (null != g) {
+            totalStatements -= g.statements;
+        }
+    }
+
+    /**
+     * Records that a data source is about to be retrieved, counting a re-fetch if its graph was recently evicted
+     *
+     * @param graphUri the graph URI of the data source
+     */
+    public synchronized void retrieving(final String graphUri) {
+        if (null != recentlyEvicted.remove(graphUri)) {
+            refetches++;
+        }
+    }
+
+    /**
+     * Chooses graphs to evict until the cache is within its budget.
+     * The chosen graphs are no longer tracked, and are expected to be removed from the triple store
+     * together with their caching metadata.
+     *
+     * @param excluded the graph URIs of any graphs which must not be evicted, such as those being retrieved
+     * @return the graph URIs of the graphs to evict, in least-recently-used order
+     */
+    public synchronized List<String> chooseEvictions(final Collection<String> excluded) {
+        List<String> chosen = new LinkedList<String>();
+        if (!isBounded() || totalStatements <= maxStatements) {
+            return chosen;
+        }
+
+        List<String> spared = new LinkedList<String>();
+        Iterator<Map.Entry<String, Graph>> iter = graphs.entrySet().iterator();
+        while (totalStatements > maxStatements && iter.hasNext()) {
+            Map.Entry<String, Graph> e = iter.next();
+            String graphUri = e.getKey();
+            Graph g = e.getValue();
+
+            if (excluded.contains(graphUri)) {
+                continue;
+            }
+
+            if (null != g.memo && g.memo.clearUsed()) {
+                spared.add(graphUri);
+                continue;
+            }
+
+            iter.remove();
+            totalStatements -= g.statements;
+            evictions++;
+            evictedStatements += g.statements;
+            if (maxEvicted > 0) {
+                recentlyEvicted.put(graphUri, true);
+            }
+            chosen.add(graphUri);
+        }
+
+        // graphs which have been used since they were last considered become the most recently used
+        for (String graphUri : spared) {
+            graphs.get(graphUri);
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Forgets all cached graphs, for example when the cache is cleared.  Metrics are kept.
+     */
+    public synchronized void clear() {
+        graphs.clear();
+        recentlyEvicted.clear();
+        totalStatements = 0;
+    }
+
+    /**
+     * @return the maximum number of statements which cached graphs may occupy, or 0 if the cache is not bounded
+     */
+    public long getMaxStatements() {
+        return maxStatements;
+    }
+
+    /**
+     * @return the number of statements which cached graphs currently occupy
+     */
+    public synchronized long getTotalStatements() {
+        return totalStatements;
+    }
+
+    /**
+     * @return the number of cached graphs which are tracked
+     */
+    public synchronized int getGraphs() {
+        return graphs.size();
+    }
+
+    /**
+     * @return the number of graphs which have been evicted
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of statements which have been evicted
+     */
+    public synchronized long getEvictedStatements() {
+        return evictedStatements;
+    }
+
+    /**
+     * @return the number of retrievals of data sources whose graphs had recently been evicted
+     */
+    public synchronized long getRefetches() {
+        return refetches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return graphs.size() + " graphs, " + totalStatements + " of "
+                + (isBounded() ? "" + maxStatements : "unbounded") + " statements, "
+                + evictions + " evictions (" + evictedStatements + " statements), " + refetches + " re-fetches";
+    }
+
+    private static class Graph {
+        private CacheEntry memo;
+        private long statements;
+    }
+}
@@ -0,0 +1,124 @@
+package net.fortytwo.linkeddata.crawler;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only record of the URIs which a crawl has enqueued and completed, from which the crawl may be resumed.
+ * Each line is either <code>+ depth uri</code> (enqueued) or <code>- uri</code> (completed), separated by tabs.
+ * Completions are recorded only once the retrieved documents have been committed,
+ * so that a resumed crawl does not skip documents which were lost along with an uncommitted transaction.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class CrawlCheckpoint {
+    private static final Logger logger = Logger.getLogger(CrawlCheckpoint.class);
+
+    private static final String ENQUEUED = "+", COMPLETED = "-";
+
+    private final File file;
+    private Writer writer;
+
+    public CrawlCheckpoint(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads a previous crawl's progress, if any
+     *
+     * @param seen receives all URIs which have been enqueued, whether or not they have been completed
+     * @return the depth of each URI which has been enqueued but not completed, in the order enqueued
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public Map<String, Integer> load(final Set<String> seen) throws IOException {
+        Map<String, Integer> pending = new LinkedHashMap<String, Integer>();
+        if (!file.exists()) {
+            return pending;
+        }
+
+        int lines = 0;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = r.readLine())) {
+                lines++;
+                if (0 == line.length()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                try {
+                    if (3 == fields.length && ENQUEUED.equals(fields[0])) {
+                        seen.add(fields[2]);
+                        pending.put(fields[2], Integer.valueOf(fields[1]));
+                        continue;
+                    } else if (2 == fields.length && COMPLETED.equals(fields[0])) {
+                        pending.remove(fields[1]);
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through
+                }
+
+                // a crawl which was killed may leave a partial line at the end of the file
+                logger.warn("skipping bad line " + lines + " of crawl checkpoint " + file);
+            }
+        } finally {
+            r.close();
+        }
+
+        return pending;
+    }
+
+    public void enqueued(final String uri,
+                         final int depth) throws IOException {
+        getWriter().write(ENQUEUED + "\t" + depth + "\t" + uri + "\n");
+    }
+
+    /**
+     * Records completed URIs, along with any URIs enqueued since the last call, and forces them to the file
+     *
+     * @param uris URIs whose documents have been committed
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void completed(final Collection<String> uris) throws IOException {
+        Writer w = getWriter();
+        for (String uri : uris) {
+            w.write(COMPLETED + "\t" + uri + "\n");
+        }
+        w.flush();
+    }
+
+    public void close() throws IOException {
+        if (null != writer) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private Writer getWriter() throws IOException {
+        if (null == writer) {
+            // begin on a new line, in case the last line of a killed crawl is incomplete
+            boolean append = file.exists() && file.length() > 0;
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            if (append) {
+                writer.write("\n");
+            }
+        }
+
+        return writer;
+    }
+}
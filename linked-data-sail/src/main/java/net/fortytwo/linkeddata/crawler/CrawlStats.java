@@ -0,0 +1,99 @@
+package net.fortytwo.linkeddata.crawler;
+
+import net.fortytwo.linkeddata.CacheEntry;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The progress of a crawl: the number of documents retrieved, by outcome, and the throughput of the crawl
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CrawlStats {
+    private final long startTime = System.currentTimeMillis();
+    private long endTime = -1;
+
+    private final Map<CacheEntry.Status, Long> statusCounts
+            = new EnumMap<CacheEntry.Status, Long>(CacheEntry.Status.class);
+    private long documents = 0;
+    private long bytes = 0;
+    private int pending = 0;
+
+    /**
+     * @return the number of URIs which have been dereferenced (or found in the cache) during the crawl
+     */
+    public synchronized long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the number of bytes of documents which have been read during the crawl
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of URIs which remain to be crawled
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return the number of URIs crawled with each outcome
+     */
+    public synchronized Map<CacheEntry.Status, Long> getStatusCounts() {
+        return new EnumMap<CacheEntry.Status, Long>(statusCounts);
+    }
+
+    /**
+     * @return the time, in milliseconds, which the crawl has taken so far
+     */
+    public synchronized long getElapsedTime() {
+        return (endTime < 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public synchronized double getDocumentsPerSecond() {
+        long elapsed = getElapsedTime();
+        return 0 == elapsed ? 0 : documents * 1000.0 / elapsed;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        long elapsed = getElapsedTime();
+        return 0 == elapsed ? 0 : bytes * 1000.0 / elapsed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(documents).append(" documents (").append(bytes).append(" bytes) in ")
+                .append(getElapsedTime()).append("ms: ")
+                .append(String.format("%.2f", getDocumentsPerSecond())).append(" documents/s, ")
+                .append(String.format("%.0f", getBytesPerSecond())).append(" bytes/s, ")
+                .append(pending).append(" pending");
+        for (Map.Entry<CacheEntry.Status, Long> e : statusCounts.entrySet()) {
+            sb.append("\n    ").append(e.getKey()).append(": ").append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    synchronized void add(final CacheEntry.Status status) {
+        documents++;
+        Long count = statusCounts.get(status);
+        statusCounts.put(status, null == count ? 1 : count + 1);
+    }
+
+    synchronized void setBytes(final long bytes) {
+        this.bytes = bytes;
+    }
+
+    synchronized void setPending(final int pending) {
+        this.pending = pending;
+    }
+
+    synchronized void finish() {
+        endTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,466 @@
+package net.fortytwo.linkeddata.crawler;
+
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.rdf.HostRateLimiter;
+import net.fortytwo.linkeddata.CacheEntry;
+import net.fortytwo.linkeddata.LinkedDataCache;
+import net.fortytwo.linkeddata.RDFUtils;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.StringUtils;
+import org.apache.log4j.Logger;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.nativerdf.NativeStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A bulk crawler which pre-populates a Linked Data cache, for example before the cache is put into service.
+ * Starting from a list of seed URIs, documents are retrieved breadth-first, following the URIs in the subjects
+ * and/or objects of each retrieved graph up to a maximum depth.
+ * Documents are fetched concurrently through the cache, so that the cache's per-host rate limits
+ * and circuit breaker apply, and are written to the cache's triple store as on any other retrieval.
+ * Progress may be checkpointed to a file, so that an interrupted crawl can be resumed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Crawler {
+    private static final Logger logger = Logger.getLogger(Crawler.class);
+
+    public static enum Links {
+        Subjects, Objects, Both
+    }
+
+    private final LinkedDataCache cache;
+
+    private int maxDepth = 1;
+    private Links links = Links.Objects;
+    private boolean sameHostOnly = false;
+    private int windowSize = 100;
+    private int checkpointInterval = 100;
+    private long reportInterval = 10000;
+    private File checkpointFile = null;
+
+    /**
+     * @param cache the cache to be populated
+     */
+    public Crawler(final LinkedDataCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param maxDepth the number of links to follow from a seed URI.  At depth 0, only the seeds are retrieved.
+     */
+    public void setMaxDepth(final int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("negative crawl depth: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param links the positions in retrieved statements of the URIs to be followed (objects by default)
+     */
+    public void setLinks(final Links links) {
+        this.links = links;
+    }
+
+    /**
+     * @param sameHostOnly whether to follow only URIs on the same hosts as the seeds (false by default)
+     */
+    public void setSameHostOnly(final boolean sameHostOnly) {
+        this.sameHostOnly = sameHostOnly;
+    }
+
+    /**
+     * @param windowSize the number of URIs which are dereferenced concurrently, within the limits of the cache
+     */
+    public void setWindowSize(final int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("bad crawl window size: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param checkpointFile a file in which to record the progress of the crawl, and from which a previous crawl
+     *                       is resumed if the file exists.  If null (the default), progress is not recorded.
+     */
+    public void setCheckpointFile(final File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @param checkpointInterval the number of documents after which the crawl is committed and checkpointed
+     */
+    public void setCheckpointInterval(final int checkpointInterval) {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("bad checkpoint interval: " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * @param reportInterval the time, in milliseconds, between progress reports in the log
+     */
+    public void setReportInterval(final long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Crawls from the given seeds, along with any URIs left pending by a previous crawl with the same checkpoint file.
+     * Seeds which have already been crawled, according to the checkpoint, are not crawled again.
+     *
+     * @param seeds the URIs from which to begin crawling
+     * @return the statistics of the crawl
+     * @throws RippleException if the crawl fails
+     */
+    public CrawlStats crawl(final Collection<String> seeds) throws RippleException {
+        CrawlStats stats = new CrawlStats();
+        long startBytes = cache.getBytesRetrieved();
+
+        CrawlCheckpoint checkpoint = null == checkpointFile ? null : new CrawlCheckpoint(checkpointFile);
+        Frontier frontier = new Frontier(checkpoint);
+
+        try {
+            if (null != checkpoint) {
+                Map<String, Integer> pending = checkpoint.load(frontier.seen);
+                for (Map.Entry<String, Integer> e : pending.entrySet()) {
+                    frontier.items.add(new Item(e.getKey(), e.getValue()));
+                }
+                if (pending.size() > 0) {
+                    logger.info("resuming crawl with " + pending.size() + " pending URIs from " + checkpointFile);
+                }
+            }
+
+            // note: URIs without a host (such as file URIs) are followed only if a seed has no host
+            for (String seed : seeds) {
+                frontier.hosts.add(HostRateLimiter.hostOf(seed));
+            }
+            for (Item item : frontier.items) {
+                frontier.hosts.add(HostRateLimiter.hostOf(item.uri));
+            }
+            for (String seed : seeds) {
+                frontier.add(seed, 0);
+            }
+
+            SailConnection sc = cache.getSailConnection();
+            List<String> completed = new LinkedList<String>();
+            long lastReport = System.currentTimeMillis();
+
+            while (!frontier.items.isEmpty()) {
+                LinkedList<Item> window = new LinkedList<Item>();
+                while (window.size() < windowSize && !frontier.items.isEmpty()) {
+                    window.add(frontier.items.removeFirst());
+                }
+
+                for (Item item : window) {
+                    cache.prefetch(new URIImpl(item.uri), sc);
+                }
+
+                try {
+                    while (!window.isEmpty()) {
+                        Item item = window.removeFirst();
+                        CacheEntry.Status status = cache.retrieve(new URIImpl(item.uri), sc);
+                        stats.add(status);
+
+                        if (CacheEntry.Status.Success == status && item.depth < maxDepth) {
+                            expand(item, frontier, sc);
+                        }
+
+                        completed.add(item.uri);
+                        if (completed.size() >= checkpointInterval) {
+                            checkpoint(completed, checkpoint, sc);
+                        }
+
+                        if (System.currentTimeMillis() - lastReport >= reportInterval) {
+                            stats.setBytes(cache.getBytesRetrieved() - startBytes);
+                            stats.setPending(frontier.items.size());
+                            logger.info("crawled " + stats);
+                            lastReport = System.currentTimeMillis();
+                        }
+                    }
+                } finally {
+                    // if the crawl fails, the rest of the window is no longer needed
+                    for (Item item : window) {
+                        cache.cancelPrefetch(new URIImpl(item.uri));
+                    }
+                }
+            }
+
+            checkpoint(completed, checkpoint, sc);
+        } catch (IOException e) {
+            throw new RippleException(e);
+        } finally {
+            stats.setBytes(cache.getBytesRetrieved() - startBytes);
+            stats.setPending(frontier.items.size());
+            stats.finish();
+
+            if (null != checkpoint) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    logger.warn("failed to close crawl checkpoint " + checkpointFile + ": " + e);
+                }
+            }
+        }
+
+        logger.info("finished crawl: " + stats);
+        return stats;
+    }
+
+    // enqueues the links of a retrieved graph
+    private void expand(final Item item,
+                        final Frontier frontier,
+                        final SailConnection sc) throws RippleException, IOException {
+        URI graph = new URIImpl(RDFUtils.findGraphUri(item.uri));
+
+        try {
+            CloseableIteration<? extends Statement, SailException> iter
+                    = sc.getStatements(null, null, null, false, graph);
+            try {
+                while (iter.hasNext()) {
+                    Statement st = iter.next();
+                    if (Links.Objects != links) {
+                        follow(st.getSubject(), item.depth + 1, frontier);
+                    }
+                    if (Links.Subjects != links) {
+                        follow(st.getObject(), item.depth + 1, frontier);
+                    }
+                }
+            } finally {
+                iter.close();
+            }
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    private void follow(final Value v,
+                        final int depth,
+                        final Frontier frontier) throws IOException {
+        if (v instanceof URI) {
+            String uri = v.stringValue();
+            if (cache.isDereferenceable(uri)
+                    && (!sameHostOnly || frontier.hosts.contains(HostRateLimiter.hostOf(uri)))) {
+                frontier.add(uri, depth);
+            }
+        }
+    }
+
+    // Note: the connection is shared with the cache, so it is committed in the same way as the cache commits it
+    private void checkpoint(final List<String> completed,
+                            final CrawlCheckpoint checkpoint,
+                            final SailConnection sc) throws RippleException, IOException {
+        try {
+            if (cache.isAutoCommit()) {
+                cache.getGroupCommit().flush(sc);
+            } else {
+                cache.getGroupCommit().commit(sc);
+                sc.begin();
+            }
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+
+        if (null != checkpoint) {
+            checkpoint.completed(completed);
+        }
+        completed.clear();
+    }
+
+    // a URI to be crawled, with the number of links followed to reach it
+    private static class Item {
+        private final String uri;
+        private final int depth;
+
+        public Item(final String uri, final int depth) {
+            this.uri = uri;
+            this.depth = depth;
+        }
+    }
+
+    private static class Frontier {
+        private final LinkedList<Item> items = new LinkedList<Item>();
+        private final Set<String> seen = new HashSet<String>();
+        private final Set<String> hosts = new HashSet<String>();
+        private final CrawlCheckpoint checkpoint;
+
+        public Frontier(final CrawlCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        public void add(final String uri,
+                        final int depth) throws IOException {
+            // documents are crawled, rather than the resources they describe
+            String doc = RDFUtils.removeFragmentIdentifier(uri.trim());
+
+            // tabs and line breaks are not valid in URIs, and would corrupt the checkpoint
+            if (doc.indexOf(':') < 0 || doc.contains("\t") || doc.contains("\n") || doc.contains("\r")) {
+                logger.warn("not crawling bad URI: " + StringUtils.escapeString(doc));
+                return;
+            }
+
+            if (seen.add(doc)) {
+                items.add(new Item(doc, depth));
+                if (null != checkpoint) {
+                    checkpoint.enqueued(doc, depth);
+                }
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage:  crawler [options] store_directory seed...");
+        System.out.println("Seeds are URIs, or files containing one URI per line.");
+        System.out.println("Options:\n"
+                + "  -c file      Checkpoint progress to the given file, and resume from it if it exists\n"
+                + "  -d depth     Follow links up to the given depth (default: 1)\n"
+                + "  -h           Print this help and exit\n"
+                + "  -l links     Follow links in 'subjects', 'objects' (default), or 'both'\n"
+                + "  -p file      Load Ripple configuration from the given properties file\n"
+                + "  -s           Follow only links to the same hosts as the seeds");
+    }
+
+    public static void main(final String[] args) {
+        File checkpointFile = null, configFile = null;
+        int depth = 1;
+        Links links = Links.Objects;
+        boolean sameHostOnly = false;
+
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                String option = args[i];
+                if (option.equals("-h")) {
+                    printUsage();
+                    System.exit(0);
+                } else if (option.equals("-s")) {
+                    sameHostOnly = true;
+                } else if (i + 1 < args.length
+                        && (option.equals("-c") || option.equals("-d") || option.equals("-l") || option.equals("-p"))) {
+                    String value = args[++i];
+                    if (option.equals("-c")) {
+                        checkpointFile = new File(value);
+                    } else if (option.equals("-d")) {
+                        depth = Integer.valueOf(value);
+                    } else if (option.equals("-l")) {
+                        links = null;
+                        for (Links l : Links.values()) {
+                            if (l.name().equalsIgnoreCase(value)) {
+                                links = l;
+                            }
+                        }
+                        if (null == links) {
+                            throw new IllegalArgumentException();
+                        }
+                    } else {
+                        configFile = new File(value);
+                    }
+                } else {
+                    printUsage();
+                    System.exit(1);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // includes bad numbers
+            System.err.println("bad value for option " + args[i - 1] + ": " + args[i]);
+            System.exit(1);
+        }
+
+        if (args.length - i < 2) {
+            printUsage();
+            System.exit(1);
+        }
+
+        File storeDirectory = new File(args[i]);
+
+        try {
+            if (null == configFile) {
+                Ripple.initialize();
+            } else {
+                Properties p = new Properties();
+
+                try {
+                    p.load(new FileInputStream(configFile));
+                } catch (IOException e) {
+                    throw new RippleException(e);
+                }
+
+                Ripple.initialize(p);
+            }
+
+            List<String> seeds = new LinkedList<String>();
+            for (int j = i + 1; j < args.length; j++) {
+                readSeeds(args[j], seeds);
+            }
+
+            Sail sail = new NativeStore(storeDirectory);
+            sail.initialize();
+            try {
+                LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+                try {
+                    Crawler crawler = new Crawler(cache);
+                    crawler.setMaxDepth(depth);
+                    crawler.setLinks(links);
+                    crawler.setSameHostOnly(sameHostOnly);
+                    crawler.setCheckpointFile(checkpointFile);
+
+                    CrawlStats stats = crawler.crawl(seeds);
+                    System.out.println("crawled " + stats);
+                    System.out.println("commits: " + cache.getGroupCommit());
+                } finally {
+                    cache.close();
+                }
+            } finally {
+                sail.shutDown();
+            }
+        } catch (Exception e) {
+            System.err.println("crawl failed: " + e);
+            logger.error("crawl failed", e);
+            System.exit(1);
+        }
+
+        // Exit despite any remaining active threads.
+        System.exit(0);
+    }
+
+    // a seed is either a URI, or a file of URIs
+    private static void readSeeds(final String arg,
+                                  final List<String> seeds) throws IOException {
+        if (arg.contains(":") && !new File(arg).exists()) {
+            seeds.add(arg);
+            return;
+        }
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(arg), "UTF-8"));
+        try {
+            String line;
+            while (null != (line = r.readLine())) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    seeds.add(line);
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package net.fortytwo.linkeddata.dereferencers;
+
+import net.fortytwo.linkeddata.CacheEntry;
+import net.fortytwo.linkeddata.ConditionalDereferencer;
+import net.fortytwo.linkeddata.Dereferencer;
+import net.fortytwo.linkeddata.DocumentArchive;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.StringUtils;
+import org.apache.log4j.Logger;
+import org.restlet.data.Tag;
+import org.restlet.representation.EmptyRepresentation;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A dereferencer which archives the documents retrieved by another dereferencer and, depending on its mode,
+ * serves archived documents in place of retrieving them again.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ArchivingDereferencer implements ConditionalDereferencer {
+    private static final Logger logger = Logger.getLogger(ArchivingDereferencer.class);
+
+    public static enum Mode {
+        Record,     // documents are always retrieved, and archived
+        Replay,     // archived documents are used where available; other documents are retrieved and archived
+        Offline,    // only archived documents are used; nothing is retrieved
+    }
+
+    private final Dereferencer base;
+    private final DocumentArchive archive;
+    private final Mode mode;
+
+    /**
+     * @param base    the dereferencer which retrieves documents
+     * @param archive the archive of retrieved documents
+     * @param mode    whether documents are served from the archive, and whether they may be retrieved
+     */
+    public ArchivingDereferencer(final Dereferencer base,
+                                 final DocumentArchive archive,
+                                 final Mode mode) {
+        this.base = base;
+        this.archive = archive;
+        this.mode = mode;
+    }
+
+    public Representation dereference(final String uri) throws RippleException {
+        return dereference(uri, null);
+    }
+
+    public Representation dereference(final String uri, final CacheEntry cached) throws RippleException {
+        if (Mode.Record != mode) {
+            DocumentArchive.Document doc = archive.get(uri);
+            if (null != doc) {
+                return replay(doc, cached);
+            } else if (Mode.Offline == mode) {
+                throw new NotArchivedException(uri);
+            }
+        }
+
+        Representation rep = null != cached && base instanceof ConditionalDereferencer
+                ? ((ConditionalDereferencer) base).dereference(uri, cached)
+                : base.dereference(uri);
+
+        // there is nothing to archive for a redirect to a cached document, or an unchanged document
+        return null == rep || !rep.isAvailable() ? rep : record(uri, rep);
+    }
+
+    /**
+     * @param uri a URI from which to fetch a document
+     * @return whether dereferencing the URI is answered from the archive, without contacting the URI's host
+     */
+    public boolean isServedFromArchive(final String uri) {
+        return Mode.Offline == mode || (Mode.Replay == mode && null != archive.get(uri));
+    }
+
+    public DocumentArchive getArchive() {
+        return archive;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    private Representation replay(final DocumentArchive.Document doc,
+                                  final CacheEntry cached) throws RippleException {
+        Representation rep;
+
+        // a cached document with the same validators as the archived one is unchanged
+        boolean unchanged = null != cached && (null != doc.getETag()
+                ? doc.getETag().equals(cached.getETag())
+                : null != doc.getLastModified() && doc.getLastModified().equals(cached.getLastModified()));
+        if (unchanged) {
+            rep = new EmptyRepresentation();
+            rep.setAvailable(false);
+        } else {
+            logger.debug("replaying archived document <" + StringUtils.escapeURIString(doc.getUri()) + ">");
+            rep = new InputRepresentation(archive.openStream(doc), doc.getMediaType());
+        }
+
+        rep.setMediaType(doc.getMediaType());
+        rep.setTag(null == doc.getETag() ? null : Tag.parse(doc.getETag()));
+        rep.setModificationDate(doc.getLastModified());
+        rep.setExpirationDate(doc.getExpires());
+
+        return rep;
+    }
+
+    private Representation record(final String uri,
+                                  final Representation rep) throws RippleException {
+        DocumentArchive.Recorder recorder = archive.record(uri, rep.getMediaType(),
+                null == rep.getTag() ? null : rep.getTag().format(),
+                rep.getModificationDate(), rep.getExpirationDate());
+
+        InputStream is;
+        try {
+            is = rep.getStream();
+        } catch (IOException e) {
+            recorder.abort();
+            throw new RippleException(e);
+        }
+
+        Representation recorded = new InputRepresentation(new RecordingInputStream(is, recorder), rep.getMediaType());
+        recorded.setTag(rep.getTag());
+        recorded.setModificationDate(rep.getModificationDate());
+        recorded.setExpirationDate(rep.getExpirationDate());
+
+        return recorded;
+    }
+
+    @Override
+    public String toString() {
+        return "archiving " + base + " (" + mode + ")";
+    }
+
+    /**
+     * Indicates that a document was not retrieved, as it is not archived and the archive is offline
+     */
+    public static class NotArchivedException extends RippleException {
+        public NotArchivedException(final String uri) {
+            super("document is not archived: " + StringUtils.escapeURIString(uri));
+        }
+    }
+
+    // Passes the body of a document to a recorder as it is read.
+    // The document is archived once it has been read to the end, or when the stream is closed,
+    // so that a document which fails to parse is archived nonetheless.
+    private static class RecordingInputStream extends FilterInputStream {
+        private final DocumentArchive.Recorder recorder;
+        private boolean done = false;
+
+        public RecordingInputStream(final InputStream in,
+                                    final DocumentArchive.Recorder recorder) {
+            super(in);
+            this.recorder = recorder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+
+            if (b < 0) {
+                commit();
+            } else {
+                record(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+
+            if (n < 0) {
+                commit();
+            } else {
+                record(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+
+            // skipped bytes are read, so that they are recorded
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!done) {
+                    byte[] buffer = new byte[8192];
+                    while (read(buffer, 0, buffer.length) >= 0) {
+                        // read the rest of the document
+                    }
+                }
+            } finally {
+                abort();
+                super.close();
+            }
+        }
+
+        // Note: a failure to archive the document does not affect the reading of it
+        private void record(final int b) {
+            if (!done) {
+                try {
+                    recorder.write(b);
+                } catch (IOException e) {
+                    logger.warn("failed to archive document: " + e);
+                    abort();
+                }
+            }
+        }
+
+        private void record(final byte[] b, final int off, final int len) {
+            if (!done) {
+                try {
+                    recorder.write(b, off, len);
+                } catch (IOException e) {
+                    logger.warn("failed to archive document: " + e);
+                    abort();
+                }
+            }
+        }
+
+        private void commit() {
+            if (!done) {
+                done = true;
+                try {
+                    recorder.commit();
+                } catch (IOException e) {
+                    logger.warn("failed to archive document: " + e);
+                }
+            }
+        }
+
+        private void abort() {
+            if (!done) {
+                done = true;
+                recorder.abort();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.fortytwo.linkeddata.dereferencers;
 
 import net.fortytwo.flow.rdf.HTTPUtils;
+import net.fortytwo.linkeddata.CacheEntry;
 import net.fortytwo.linkeddata.RDFUtils;
 import net.fortytwo.linkeddata.RedirectManager;
 import net.fortytwo.ripple.RippleException;
@@ -11,17 +12,28 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.openrdf.sail.SailException;
 import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
 import org.restlet.representation.StreamRepresentation;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -29,8 +41,29 @@ import java.util.logging.Logger;
 public class HTTPRepresentation extends StreamRepresentation {
     private static final Logger logger = Logger.getLogger(HTTPRepresentation.class.getName());
 
+    private static final int NOT_MODIFIED = 304;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String
+            ACCEPT_ENCODING = "Accept-Encoding",
+            CACHE_CONTROL = "Cache-Control",
+            CONTENT_ENCODING = "Content-Encoding",
+            ETAG = "ETag",
+            EXPIRES = "Expires",
+            IF_MODIFIED_SINCE = "If-Modified-Since",
+            IF_NONE_MATCH = "If-None-Match",
+            LAST_MODIFIED = "Last-Modified";
+
+    // Note: compression is negotiated here, rather than by HttpClient, so as not to interfere with content negotiation
+    private static final String SUPPORTED_ENCODINGS = "gzip, deflate";
+
+    // the preferred date format of HTTP/1.1 (RFC 1123)
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
     private InputStream inputStream;
     private HttpUriRequest method;
+    private boolean notModified = false;
 
     // from HttpComponents docs: "the HttpClient instance and connection manager should be shared
     // among all threads for maximum efficiency"
@@ -48,6 +81,25 @@ public class HTTPRepresentation extends StreamRepresentation {
     // Note: the URI is immediately dereferenced
     public HTTPRepresentation(final String uri, final RedirectManager redirects, final String acceptHeader)
             throws RippleException {
+        this(uri, redirects, acceptHeader, null);
+    }
+
+    /**
+     * Dereferences a URI, possibly with a conditional request.
+     * If the document has not changed, the resulting representation is not available and has no content.
+     *
+     * @param uri          the URI to dereference
+     * @param redirects    a record of previously followed redirects
+     * @param acceptHeader the HTTP "Accept" header to send
+     * @param cached       the cache entry of the last retrieval of the document, whose validators are sent
+     *                     with the request, or null for an unconditional request
+     * @throws RippleException if dereferencing fails
+     */
+    public HTTPRepresentation(final String uri,
+                              final RedirectManager redirects,
+                              final String acceptHeader,
+                              final CacheEntry cached)
+            throws RippleException {
         super(null);
 
         URL getUrl;
@@ -64,6 +116,10 @@ public class HTTPRepresentation extends StreamRepresentation {
             while (true) {
                 method = HTTPUtils.createGetMethod(getUrl.toString());
                 HTTPUtils.setAcceptHeader(method, acceptHeader);
+                method.setHeader(ACCEPT_ENCODING, SUPPORTED_ENCODINGS);
+                if (null != cached) {
+                    setValidatorHeaders(method, cached);
+                }
 
                 /*
                 the amount of time, in milliseconds, which was spent on a courtesy delay
@@ -83,6 +139,9 @@ public class HTTPRepresentation extends StreamRepresentation {
                 int c = code / 100;
                 if (2 == c) {
                     break;
+                } else if (NOT_MODIFIED == code && null != cached) {
+                    notModified = true;
+                    break;
                 } else if (3 == c) {
                     redirectUrl = response.getFirstHeader("Location").getValue();
 
@@ -103,7 +162,7 @@ public class HTTPRepresentation extends StreamRepresentation {
                         throw new RippleException(e);
                     }
                 } else {
-                    throw new ErrorResponseException("" + code + " response for resource <"
+                    throw new ErrorResponseException(code, "" + code + " response for resource <"
                             + StringUtils.escapeURIString(uri) + ">");
                 }
             }
@@ -113,11 +172,7 @@ public class HTTPRepresentation extends StreamRepresentation {
         } finally {
             // if we followed one or more redirects, record the redirection to save on future work
             if (null != redirectUrl) {
-                try {
-                    redirects.persistRedirect(uri, redirectUrl);
-                } catch (SailException e) {
-                    throw new RippleException(e);
-                }
+                redirects.persistRedirect(uri, redirectUrl);
             }
 
             if (method != null) {
@@ -126,10 +181,22 @@ public class HTTPRepresentation extends StreamRepresentation {
             }
         }
 
+        readFreshnessHeaders(response);
+
+        if (notModified) {
+            // there is no content; the cached document is still valid
+            inputStream = new ByteArrayInputStream(new byte[0]);
+            setMediaType(cached.getMediaType());
+            setAvailable(false);
+            return;
+        }
+
+        readValidatorHeaders(response);
+
         InputStream is;
 
         try {
-            is = response.getEntity().getContent();
+            is = decode(response.getEntity().getContent(), response.getFirstHeader(CONTENT_ENCODING), uri);
         } catch (IOException e) {
             throw new RippleException(e);
         }
@@ -151,8 +218,101 @@ public class HTTPRepresentation extends StreamRepresentation {
         setMediaType(mt);
     }
 
+    /**
+     * @return whether the server responded that the document has not changed since it was cached
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    // Decompresses the entity as it is read, if the server has compressed it
+    private InputStream decode(final InputStream is,
+                               final Header contentEncoding,
+                               final String uri) throws IOException, RippleException {
+        String encoding = null == contentEncoding ? null : contentEncoding.getValue().trim().toLowerCase();
+        if (null == encoding || 0 == encoding.length() || encoding.equals("identity")) {
+            return is;
+        } else if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(is, BUFFER_SIZE);
+        } else if (encoding.equals("deflate")) {
+            return new InflaterInputStream(is, new Inflater(), BUFFER_SIZE);
+        } else {
+            is.close();
+            throw new InvalidResponseException("unsupported content encoding '" + encoding + "' for resource <"
+                    + StringUtils.escapeURIString(uri) + ">");
+        }
+    }
+
+    private static void setValidatorHeaders(final HttpUriRequest method,
+                                            final CacheEntry cached) {
+        if (null != cached.getETag()) {
+            method.setHeader(IF_NONE_MATCH, cached.getETag());
+        }
+
+        if (null != cached.getLastModified()) {
+            method.setHeader(IF_MODIFIED_SINCE, formatHttpDate(cached.getLastModified()));
+        }
+    }
+
+    private void readValidatorHeaders(final HttpResponse response) {
+        Header h = response.getFirstHeader(ETAG);
+        if (null != h) {
+            setTag(Tag.parse(h.getValue()));
+        }
+
+        h = response.getFirstHeader(LAST_MODIFIED);
+        if (null != h) {
+            setModificationDate(parseHttpDate(h.getValue()));
+        }
+    }
+
+    // Finds the time at which the server considers the document to become stale, preferring max-age to Expires
+    private void readFreshnessHeaders(final HttpResponse response) {
+        Header h = response.getFirstHeader(CACHE_CONTROL);
+        if (null != h) {
+            for (String directive : h.getValue().split(",")) {
+                String d = directive.trim().toLowerCase();
+                if (d.equals("no-cache") || d.equals("no-store")) {
+                    setExpirationDate(new Date());
+                    return;
+                } else if (d.startsWith("max-age=")) {
+                    try {
+                        long maxAge = Long.valueOf(d.substring(8).trim());
+                        setExpirationDate(new Date(System.currentTimeMillis() + maxAge * 1000));
+                        return;
+                    } catch (NumberFormatException e) {
+                        logger.warning("bad max-age in Cache-Control header: " + h.getValue());
+                    }
+                }
+            }
+        }
+
+        h = response.getFirstHeader(EXPIRES);
+        if (null != h) {
+            Date expires = parseHttpDate(h.getValue());
+            // an invalid date, such as "0", means that the document is already stale
+            setExpirationDate(null == expires ? new Date() : expires);
+        }
+    }
+
+    private static String formatHttpDate(final Date date) {
+        SimpleDateFormat f = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f.format(date);
+    }
+
+    private static Date parseHttpDate(final String value) {
+        SimpleDateFormat f = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return f.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
     public ReadableByteChannel getChannel() throws IOException {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return Channels.newChannel(inputStream);
     }
 
     public InputStream getStream() throws IOException {
@@ -182,6 +342,16 @@ public class HTTPRepresentation extends StreamRepresentation {
             return innerInputStream.read();
         }
 
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return innerInputStream.read(b, off, len);
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            return innerInputStream.skip(n);
+        }
+
         @Override
         public void close() throws IOException {
             if (null != method) {
@@ -198,8 +368,18 @@ public class HTTPRepresentation extends StreamRepresentation {
     }
 
     public class ErrorResponseException extends RippleException {
-        public ErrorResponseException(final String message) {
+        private final int statusCode;
+
+        public ErrorResponseException(final int statusCode, final String message) {
             super(message);
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * @return the HTTP status code of the response
+         */
+        public int getStatusCode() {
+            return statusCode;
         }
     }
 
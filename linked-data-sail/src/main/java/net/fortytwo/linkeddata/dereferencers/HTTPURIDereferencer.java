@@ -1,6 +1,7 @@
 package net.fortytwo.linkeddata.dereferencers;
 
-import net.fortytwo.linkeddata.Dereferencer;
+import net.fortytwo.linkeddata.CacheEntry;
+import net.fortytwo.linkeddata.ConditionalDereferencer;
 import net.fortytwo.linkeddata.LinkedDataCache;
 import net.fortytwo.linkeddata.RedirectManager;
 import net.fortytwo.ripple.RippleException;
@@ -18,7 +19,7 @@ import java.util.Set;
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class HTTPURIDereferencer implements Dereferencer {
+public class HTTPURIDereferencer implements ConditionalDereferencer {
     private static final Logger logger = Logger.getLogger(HTTPURIDereferencer.class);
 
     // FIXME: temporary
@@ -38,6 +39,10 @@ public class HTTPURIDereferencer implements Dereferencer {
     }
 
     public Representation dereference(final String uri) throws RippleException {
+        return dereference(uri, null);
+    }
+
+    public Representation dereference(final String uri, final CacheEntry cached) throws RippleException {
         // Don't dereference a URI which appears to point to a file which is not
         // an RDF document.
         int l = uri.lastIndexOf('.');
@@ -47,7 +52,7 @@ public class HTTPURIDereferencer implements Dereferencer {
         }
 
         try {
-            return new HTTPRepresentation(uri, redirectManager, linkedDataCache.getAcceptHeader());
+            return new HTTPRepresentation(uri, redirectManager, linkedDataCache.getAcceptHeader(), cached);
         } catch (HTTPRepresentation.RedirectToExistingDocumentException e) {
             return null;
         }
@@ -1,138 +1,229 @@
 package net.fortytwo.linkeddata.rdfizers;
 
 import net.fortytwo.linkeddata.CacheEntry;
-import net.fortytwo.linkeddata.Rdfizer;
-import net.fortytwo.ripple.RippleException;
+import net.fortytwo.linkeddata.SchedulableRdfizer;
 import org.openrdf.rio.RDFHandler;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.stream.ImageInputStream;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-// TODO: follow instructions at http://www.barregren.se/blog/how-query-exif-and-iptc-java-image-i-o-api
+// TODO: map EXIF tags to RDF statements
 // example images: http://www.exif.org/samples/
 // EXIF RDF vocabulary: http://www.w3.org/2003/12/exif/
 
 /**
+ * An rdfizer for the EXIF metadata of JPEG and TIFF images.
+ * Only the metadata at the head of an image is read: a JPEG image is read up to the start of its compressed data,
+ * and a TIFF image up to its first image file directory, so that the rest of the image need not be downloaded.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class ImageRdfizer implements Rdfizer {
+public class ImageRdfizer implements SchedulableRdfizer {
     private static final Logger logger = Logger.getLogger(ImageRdfizer.class.getName());
 
-    private static boolean initialized = false;
+    // the most bytes of a TIFF image which are read in search of its first image file directory
+    private static final int MAX_TIFF_HEADER = 64 * 1024;
 
-    private static void initialize() {
-        ImageIO.setUseCache(false);
-        ImageIO.scanForPlugins();  // probably not necessary...
-        initialized = true;
-    }
+    // JPEG markers
+    private static final int
+            MARKER = 0xFF,
+            SOI = 0xD8,     // start of image
+            EOI = 0xD9,     // end of image
+            SOS = 0xDA,     // start of scan, followed by compressed image data
+            APP1 = 0xE1,    // application segment holding EXIF metadata
+            TEM = 0x01,     // a standalone marker
+            RST0 = 0xD0,    // restart markers, which are also standalone
+            RST7 = 0xD7;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
 
     public CacheEntry.Status rdfize(final InputStream is,
                                     final RDFHandler handler,
                                     final String baseUri) {
-        if (!initialized) {
-            initialize();
-        }
+        // note: no buffering, so that nothing beyond the metadata is read from the stream
+        DataInputStream in = new DataInputStream(is);
 
         try {
-            ImageInputStream iis = ImageIO.createImageInputStream(is);
+            int first = in.read();
+            int second = in.read();
 
-            // get an iterator over all readers that claim to be able to query the image
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (MARKER == first && SOI == second) {
+                return readJpeg(in);
+            } else if (('I' == first && 'I' == second) || ('M' == first && 'M' == second)) {
+                return readTiff(in, (byte) first);
+            } else {
+                logger.log(Level.WARNING, "unrecognized image format");
+                return CacheEntry.Status.RdfizerError;
+            }
+        } catch (EOFException e) {
+            logger.log(Level.WARNING, "image ends before its metadata");
+            return CacheEntry.Status.RdfizerError;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "image rdfization error", e);
+            return CacheEntry.Status.RdfizerError;
+        }
+    }
 
-            // check the iterator for having the ImageReader
-            if (readers.hasNext()) {
-                // get an ImageReader to parse and decode the image to process
-                ImageReader reader = readers.next();
+    public boolean isStreaming() {
+        return true;
+    }
 
-                // set the input of the ImageReader
-                reader.setInput(iis);
+    public boolean isCpuIntensive() {
+        return false;
+    }
 
-                // print the reader of the processed file
-                System.out.println("[Trace] Image Reader : " + reader);
+    // Reads the marker segments of a JPEG image, which precede the compressed image data
+    private CacheEntry.Status readJpeg(final DataInputStream in) throws IOException {
+        boolean foundExif = false;
 
-                // print the format of the processed file
-                System.out.println("[Trace] Image Format Name : " + reader.getFormatName());
+        while (true) {
+            if (MARKER != in.readUnsignedByte()) {
+                logger.log(Level.WARNING, "malformed JPEG image: expected a marker");
+                return CacheEntry.Status.RdfizerError;
+            }
 
-                // print the input of the reader
-                System.out.println("[Trace] Input : " + reader.getInput());
+            // any number of fill bytes may precede a marker
+            int marker;
+            do {
+                marker = in.readUnsignedByte();
+            } while (MARKER == marker);
 
-                /*
-                // get the metadata of the processed file
-                IIOMetadata metadata = reader.getImageMetadata(0);
+            if (SOS == marker || EOI == marker) {
+                break;
+            } else if (TEM == marker || (marker >= RST0 && marker <= RST7)) {
+                continue;
+            }
 
-                // get the metadata format names
-                String[] names = metadata.getMetadataFormatNames();
+            // the length of a segment includes the two bytes of the length itself
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                logger.log(Level.WARNING, "malformed JPEG image: bad segment length");
+                return CacheEntry.Status.RdfizerError;
+            }
 
-                // print the metadata format names
-                System.out.println(names);
-                */
+            if (APP1 == marker && !foundExif && length >= EXIF_HEADER.length) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (startsWith(segment, EXIF_HEADER)) {
+                    foundExif = true;
+                    if (!readTiffHeader(segment, EXIF_HEADER.length, segment.length - EXIF_HEADER.length)) {
+                        logger.log(Level.WARNING, "malformed EXIF metadata in JPEG image");
+                        return CacheEntry.Status.RdfizerError;
+                    }
+                }
+            } else {
+                skipFully(in, length);
+            }
+        }
 
-                // get the metadata of the processed file
-                IIOMetadata metadata = reader.getImageMetadata(0);
+        if (!foundExif) {
+            logger.log(Level.FINE, "JPEG image has no EXIF metadata");
+        }
 
-                // get the metadata format names
-                String[] names = metadata.getMetadataFormatNames();
+        return CacheEntry.Status.Success;
+    }
 
-                // print the metadata format names
-                for (int i = 0; i < names.length; i++) {
-                    System.out.println("[Trace] MetadataFormat Name " + i + " : " + names[i]);
+    // Reads a TIFF image up to its first image file directory.  The first byte of the image has already been read.
+    private CacheEntry.Status readTiff(final DataInputStream in,
+                                       final byte first) throws IOException {
+        byte[] head = new byte[MAX_TIFF_HEADER];
+        head[0] = first;
+        head[1] = first;
+        int length = 2;
+        int n;
+        while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+            length += n;
+
+            // stop as soon as the first directory has been read
+            if (readTiffHeader(head, 0, length)) {
+                return CacheEntry.Status.Success;
+            }
+        }
 
-                    // get an XML DOM Node object that represents the root of a tree of metadata
-                    Node node = metadata.getAsTree(names[i]);
+        logger.log(Level.WARNING, "malformed TIFF image, or first image file directory is too far from the start");
+        return CacheEntry.Status.RdfizerError;
+    }
 
-                    try {
-                        StringBuilder sb = new StringBuilder();
-                        showNode(node, sb, "");
-                        System.out.println(sb);
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                    }
-                }
+    // Reads the header and the first image file directory (IFD0) of TIFF-formatted metadata.
+    // Returns false if the header is malformed, or if the directory lies beyond the given bytes.
+    private boolean readTiffHeader(final byte[] bytes,
+                                   final int offset,
+                                   final int length) {
+        if (length < 8) {
+            return false;
+        }
 
-                return CacheEntry.Status.Success;
-            } else {
-                logger.log(Level.WARNING, "could not find a reader for image");
-                return CacheEntry.Status.RdfizerError;
-            }
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "image rdfization error", e);
-            return CacheEntry.Status.RdfizerError;
+        boolean bigEndian;
+        if ('I' == bytes[offset] && 'I' == bytes[offset + 1]) {
+            bigEndian = false;
+        } else if ('M' == bytes[offset] && 'M' == bytes[offset + 1]) {
+            bigEndian = true;
+        } else {
+            return false;
+        }
+
+        if (42 != readUnsigned(bytes, offset + 2, 2, bigEndian)) {
+            return false;
         }
+
+        long ifdOffset = readUnsigned(bytes, offset + 4, 4, bigEndian);
+        if (ifdOffset < 8 || ifdOffset + 2 > length) {
+            return false;
+        }
+
+        long entries = readUnsigned(bytes, offset + (int) ifdOffset, 2, bigEndian);
+        // each entry is twelve bytes long, and is followed by the offset of the next directory
+        if (ifdOffset + 2 + 12 * entries + 4 > length) {
+            return false;
+        }
+
+        logger.log(Level.FINE, "found EXIF metadata with " + entries + " entries in its first directory");
+        return true;
+    }
+
+    private static long readUnsigned(final byte[] bytes,
+                                     final int offset,
+                                     final int size,
+                                     final boolean bigEndian) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = bytes[offset + (bigEndian ? i : size - 1 - i)] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
     }
 
-    private static void showNode(final Node node, final StringBuilder sb, String indent) {
-        sb.append(indent).append(node.getLocalName());// + ", " + node.getNamespaceURI() + node.getLocalName() );
-        indent += "    ";
+    private static boolean startsWith(final byte[] bytes,
+                                      final byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
 
-        NamedNodeMap map = node.getAttributes();
-        if (0 < map.getLength()) {
-            sb.append(" {");
-            for (int i = 0; i < map.getLength(); i++) {
-                if (0 < i) {
-                    sb.append(", ");
-                }
-                Node n = map.item(i);
-                sb.append(n.getNodeName() + "=" + n.getNodeValue());
-                //sb.append( "\n" ).append( indent ).append( "attr: " ).append(n.getLocalName());
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
             }
-            sb.append("}");
         }
 
-        NodeList list = node.getChildNodes();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node n = list.item(i);
-            sb.append("\n");
-            showNode(n, sb, indent);
+        return true;
+    }
+
+    private static void skipFully(final InputStream in,
+                                  final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (in.read() < 0) {
+                throw new EOFException();
+            } else {
+                remaining--;
+            }
         }
     }
 
@@ -1,13 +1,15 @@
 package net.fortytwo.linkeddata.rdfizers;
 
 import net.fortytwo.linkeddata.CacheEntry;
-import net.fortytwo.linkeddata.Rdfizer;
+import net.fortytwo.linkeddata.SchedulableRdfizer;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
 import org.openrdf.rio.RDFParser;
-import org.openrdf.rio.Rio;
+import org.openrdf.rio.RDFParserFactory;
+import org.openrdf.rio.RDFParserRegistry;
+import org.openrdf.rio.UnsupportedRDFormatException;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,24 +17,36 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * An rdfizer which parses a document in one of the RDF formats known to Sesame.
+ * Formats whose parsers build a tree of the whole document, or which are verbose enough to make parsing
+ * expensive relative to downloading, are declared CPU-intensive.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class VerbatimRdfizer implements Rdfizer {
+public class VerbatimRdfizer implements SchedulableRdfizer {
     private static final Logger logger = Logger.getLogger(VerbatimRdfizer.class.getName());
 
     private final RDFFormat format;
-    private final RDFParser parser;
+    private final RDFParserFactory parserFactory;
+    private final RDFParser.DatatypeHandling datatypeHandling;
 
     public VerbatimRdfizer(final RDFFormat format,
                            final RDFParser.DatatypeHandling datatypeHandling) {
         this.format = format;
-        parser = Rio.createParser(format);
-        parser.setDatatypeHandling(datatypeHandling);
+        this.datatypeHandling = datatypeHandling;
+        parserFactory = RDFParserRegistry.getInstance().get(format);
+        if (null == parserFactory) {
+            throw new UnsupportedRDFormatException("no parser found for RDF format " + format.getName());
+        }
     }
 
     public CacheEntry.Status rdfize(final InputStream is,
                                     final RDFHandler handler,
                                     final String baseUri) {
+        // parsers are not thread-safe, and documents may be parsed concurrently (and slowly, as they arrive)
+        RDFParser parser = parserFactory.getParser();
+        parser.setDatatypeHandling(datatypeHandling);
+
         try {
             parser.setRDFHandler(handler);
             parser.parse(is, baseUri);
@@ -52,6 +66,18 @@ public class VerbatimRdfizer implements Rdfizer {
         return CacheEntry.Status.Success;
     }
 
+    public boolean isStreaming() {
+        // these parsers read the entire document into memory before producing any statements
+        return !(format.equals(RDFFormat.JSONLD) || format.equals(RDFFormat.RDFA));
+    }
+
+    public boolean isCpuIntensive() {
+        return format.equals(RDFFormat.RDFXML)
+                || format.equals(RDFFormat.TRIX)
+                || format.equals(RDFFormat.JSONLD)
+                || format.equals(RDFFormat.RDFA);
+    }
+
     public String toString() {
         return "'" + this.format.getName() + "' verbatim rdfizer";
     }
@@ -0,0 +1,87 @@
+package net.fortytwo.linkeddata.sail;
+
+import net.fortytwo.linkeddata.LinkedDataCache;
+import net.fortytwo.ripple.RippleException;
+import org.openrdf.model.URI;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.sail.SailConnection;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cost model for the join optimizer which accounts for the price of dereferencing URIs.
+ * A triple pattern whose dereferenced positions (see <code>LinkedDataCache.getDereferenceSubjects</code> etc.)
+ * hold URIs which are already in the cache is answered from the local triple store, and is cheap.
+ * A pattern which must first dereference a URI, either because a constant URI is not yet cached
+ * or because a variable in a dereferenced position will be bound to URIs as the join proceeds, is expensive.
+ * The optimizer therefore anchors a query at its cached URIs and follows links from there,
+ * rather than beginning with patterns which scan the store for whatever happens to have been retrieved.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LinkedDataEvaluationStatistics extends EvaluationStatistics {
+    private static final Logger logger = Logger.getLogger(LinkedDataEvaluationStatistics.class.getName());
+
+    // the factor by which a position which may need to be dereferenced multiplies the cost of a pattern
+    private static final double DEREFERENCE_COST = 10;
+
+    private final LinkedDataCache cache;
+    private final SailConnection sailConnection;
+
+    /**
+     * @param cache          the cache through which URIs are dereferenced
+     * @param sailConnection a connection to the cache's triple store
+     */
+    public LinkedDataEvaluationStatistics(final LinkedDataCache cache,
+                                          final SailConnection sailConnection) {
+        this.cache = cache;
+        this.sailConnection = sailConnection;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator() {
+        return new LinkedDataCardinalityCalculator();
+    }
+
+    private class LinkedDataCardinalityCalculator extends CardinalityCalculator {
+        @Override
+        protected double getCardinality(final StatementPattern sp) {
+            double cardinality = super.getCardinality(sp);
+
+            if (cache.getDereferenceSubjects()) {
+                cardinality *= getDereferenceCost(sp.getSubjectVar());
+            }
+            if (cache.getDereferencePredicates()) {
+                cardinality *= getDereferenceCost(sp.getPredicateVar());
+            }
+            if (cache.getDereferenceObjects()) {
+                cardinality *= getDereferenceCost(sp.getObjectVar());
+            }
+            if (cache.getDereferenceContexts()) {
+                cardinality *= getDereferenceCost(sp.getContextVar());
+            }
+
+            return cardinality;
+        }
+
+        private double getDereferenceCost(final Var var) {
+            if (null == var) {
+                return 1;
+            } else if (!var.hasValue()) {
+                return DEREFERENCE_COST;
+            } else if (!(var.getValue() instanceof URI) || !cache.isDereferenceable(var.getValue().stringValue())) {
+                return 1;
+            }
+
+            try {
+                return null == cache.peek((URI) var.getValue(), sailConnection) ? DEREFERENCE_COST : 1;
+            } catch (RippleException e) {
+                logger.log(Level.WARNING, "failed to look up URI in cache", e);
+                return DEREFERENCE_COST;
+            }
+        }
+    }
+}
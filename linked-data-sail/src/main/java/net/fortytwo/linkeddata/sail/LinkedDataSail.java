@@ -23,8 +23,24 @@ import java.io.File;
 public class LinkedDataSail extends SailBase implements StackableSail, NotifyingSail {
     public static final String
             CACHE_LIFETIME = "net.fortytwo.linkeddata.cacheLifetime",
+            COMMIT_BATCH_SIZE = "net.fortytwo.linkeddata.commitBatchSize",
+            COMMIT_BATCH_STATEMENTS = "net.fortytwo.linkeddata.commitBatchStatements",
             DATATYPE_HANDLING_POLICY = "net.fortytwo.linkeddata.datatypeHandlingPolicy",
-            MEMORY_CACHE_CAPACITY = "net.fortytwo.linkeddata.memoryCacheCapacity";
+            DOCUMENT_ARCHIVE = "net.fortytwo.linkeddata.documentArchive",
+            DOCUMENT_ARCHIVE_MODE = "net.fortytwo.linkeddata.documentArchiveMode",
+            EXPECTED_REDIRECTS = "net.fortytwo.linkeddata.expectedRedirects",
+            FAILURE_CACHE_LIFETIME = "net.fortytwo.linkeddata.failureCacheLifetime",
+            HOST_FAILURE_THRESHOLD = "net.fortytwo.linkeddata.hostFailureThreshold",
+            HOST_RETRY_INTERVAL = "net.fortytwo.linkeddata.hostRetryInterval",
+            MAX_COMMIT_DELAY = "net.fortytwo.linkeddata.maxCommitDelay",
+            MAX_CACHED_STATEMENTS = "net.fortytwo.linkeddata.maxCachedStatements",
+            MAX_CONCURRENT_RETRIEVALS = "net.fortytwo.linkeddata.maxConcurrentRetrievals",
+            MAX_HOST_RETRY_INTERVAL = "net.fortytwo.linkeddata.maxHostRetryInterval",
+            MEMORY_CACHE_CAPACITY = "net.fortytwo.linkeddata.memoryCacheCapacity",
+            MEMO_STORE_FILE = "net.fortytwo.linkeddata.memoStoreFile",
+            RDFIZER_THREADS = "net.fortytwo.linkeddata.rdfizerThreads",
+            USE_SERVER_FRESHNESS = "net.fortytwo.linkeddata.useServerFreshness",
+            WRITE_BATCH_SIZE = "net.fortytwo.linkeddata.writeBatchSize";
 
     private final LinkedDataCache cache;
 
@@ -79,8 +95,10 @@ public class LinkedDataSail extends SailBase implements StackableSail, Notifying
         return baseSail.getValueFactory();
     }
 
-    public void initialize() throws SailException {
+    @Override
+    protected void initializeInternal() throws SailException {
         // Do not initialize the base Sail; it is initialized independently.
+        // Note: SailBase only shuts down a Sail (and so closes the cache) if the Sail has been initialized.
     }
 
     public boolean isWritable() throws SailException {
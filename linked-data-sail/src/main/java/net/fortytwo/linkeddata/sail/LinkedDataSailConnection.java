@@ -1,6 +1,7 @@
 package net.fortytwo.linkeddata.sail;
 
 import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.rdf.QueryOptimizerChain;
 import net.fortytwo.linkeddata.LinkedDataCache;
 import net.fortytwo.ripple.RippleException;
 import org.openrdf.model.Namespace;
@@ -14,7 +15,6 @@ import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.evaluation.TripleSource;
-import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
 import org.openrdf.sail.NotifyingSailConnection;
 import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
@@ -40,6 +40,10 @@ public class LinkedDataSailConnection extends NotifyingSailConnectionBase {
 
     private SailConnection baseConnection;
 
+    // whether statements or namespaces have been changed through this connection since its last commit or rollback.
+    // Retrievals are written in the same transaction, but are not counted here.
+    private boolean changed = false;
+
     public synchronized void addConnectionListener(final SailConnectionListener listener) {
         if (baseConnection instanceof NotifyingSailConnection) {
             ((NotifyingSailConnection) baseConnection).addConnectionListener(listener);
@@ -50,24 +54,41 @@ public class LinkedDataSailConnection extends NotifyingSailConnectionBase {
                                         final URI pred,
                                         final Value obj,
                                         final Resource... contexts) throws SailException {
+        setChanged();
         baseConnection.addStatement(subj, pred, obj, contexts);
     }
 
     protected void clearInternal(final Resource... contexts) throws SailException {
+        setChanged();
         baseConnection.clear(contexts);
     }
 
     protected void clearNamespacesInternal() throws SailException {
+        setChanged();
         baseConnection.clearNamespaces();
     }
 
     protected synchronized void closeInternal() throws SailException {
-        baseConnection.rollback();
-        baseConnection.close();
+        try {
+            rollbackInternal();
+        } finally {
+            baseConnection.close();
+        }
+    }
+
+    // Note: the group commit is told before the change is made, so that its timer cannot commit the change
+    private void setChanged() {
+        if (!changed) {
+            changed = true;
+            linkedDataCache.getGroupCommit().changedElsewhere(baseConnection);
+        }
     }
 
+    // Note: the base connection is committed and rolled back through the group commit,
+    // so that neither can interleave with a commit made by the group commit's timer
     protected void commitInternal() throws SailException {
-        baseConnection.commit();
+        linkedDataCache.getGroupCommit().commit(baseConnection);
+        changed = false;
     }
 
     protected CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluateInternal(
@@ -79,9 +100,17 @@ public class LinkedDataSailConnection extends NotifyingSailConnectionBase {
         // Decompose queries into getStatements operations so we can dereference URIs.
         try {
             TripleSource tripleSource = new SailConnectionTripleSource(this, valueFactory, includeInferred);
-            EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
+            PrefetchingEvaluationStrategy strategy
+                    = new PrefetchingEvaluationStrategy(tripleSource, dataset, linkedDataCache, baseConnection);
+
+            // Note: the joins are ordered before any URIs are dereferenced, so that their cost reflects the cache
+            TupleExpr expr = QueryOptimizerChain.optimize(tupleExpr, dataset, bindings, strategy,
+                    new LinkedDataEvaluationStatistics(linkedDataCache, baseConnection));
+
+            // Dereference the URIs of the query concurrently, rather than one at a time as the patterns are matched.
+            strategy.retrieveConstantUris(expr, bindings);
 
-            return strategy.evaluate(tupleExpr, bindings);
+            return strategy.evaluate(expr, bindings);
         } catch (QueryEvaluationException e) {
             throw new SailException(e);
         }
@@ -124,6 +153,7 @@ public class LinkedDataSailConnection extends NotifyingSailConnectionBase {
 
     protected void removeNamespaceInternal(final String prefix)
             throws SailException {
+        setChanged();
         baseConnection.removeNamespace(prefix);
     }
 
@@ -131,16 +161,27 @@ public class LinkedDataSailConnection extends NotifyingSailConnectionBase {
                                             final URI pred,
                                             final Value obj,
                                             final Resource... context) throws SailException {
+        setChanged();
         baseConnection.removeStatements(subj, pred, obj, context);
     }
 
+    // Note: this is also called when the connection is closed
     protected void rollbackInternal() throws SailException {
-        baseConnection.rollback();
+        // Retrievals are committed independently of this connection, but may still be pending.
+        // They are committed here if that would not also commit changes which were never committed through
+        // this connection; otherwise, they are rolled back along with those changes, and the cache forgets them.
+        if (!changed) {
+            linkedDataCache.getGroupCommit().flush(baseConnection);
+        }
+
+        linkedDataCache.getGroupCommit().rollback(baseConnection);
+        changed = false;
         //baseConnection.begin();
     }
 
     protected void setNamespaceInternal(final String prefix, final String name)
             throws SailException {
+        setChanged();
         baseConnection.setNamespace(prefix, name);
     }
 
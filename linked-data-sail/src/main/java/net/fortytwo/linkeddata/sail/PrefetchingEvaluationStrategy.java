@@ -0,0 +1,238 @@
+package net.fortytwo.linkeddata.sail;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+import net.fortytwo.linkeddata.LinkedDataCache;
+import net.fortytwo.ripple.RippleException;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.algebra.helpers.StatementPatternCollector;
+import org.openrdf.sail.SailConnection;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An evaluation strategy which dereferences URIs ahead of the triple patterns which need them.
+ * Before a query is evaluated, all URIs which are constant in its triple patterns are dereferenced concurrently.
+ * Then, as each join whose right-hand side is a basic graph pattern is evaluated,
+ * the intermediate results of its left-hand side are read in batches,
+ * and the URIs which they bind in the triple patterns of the right-hand side are prefetched
+ * before the right-hand side is evaluated for any of them.
+ * Other joins, such as those with a subquery, are evaluated as usual.
+ * A chain of round trips to the Web thus becomes a few concurrent waves of requests.
+ * The prefetches of a batch which are not retrieved by the time the next batch is read, or the join is closed,
+ * are cancelled, so that a query which is closed early does not leave graphs in memory.
+ * Note: URIs are dereferenced only in the positions (subject, predicate, object, context)
+ * in which the cache is configured to dereference them.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PrefetchingEvaluationStrategy extends EvaluationStrategyImpl {
+    private static final Logger logger = Logger.getLogger(PrefetchingEvaluationStrategy.class.getName());
+
+    // the number of intermediate results whose URIs are prefetched together
+    private static final int BATCH_SIZE = 100;
+
+    private final LinkedDataCache cache;
+    private final SailConnection sailConnection;
+
+    /**
+     * @param tripleSource   the source of statements, which dereferences URIs as patterns are matched
+     * @param dataset        the dataset of the query, or null
+     * @param cache          the cache through which URIs are dereferenced
+     * @param sailConnection a connection to the cache's triple store
+     */
+    public PrefetchingEvaluationStrategy(final TripleSource tripleSource,
+                                         final Dataset dataset,
+                                         final LinkedDataCache cache,
+                                         final SailConnection sailConnection) {
+        super(tripleSource, dataset);
+        this.cache = cache;
+        this.sailConnection = sailConnection;
+    }
+
+    /**
+     * Dereferences, concurrently, all URIs which are constant in the triple patterns of a query
+     * (or are bound by the given bindings).  This is to be done once, before the query is evaluated.
+     *
+     * @param expr     the query
+     * @param bindings any initial bindings of the query
+     */
+    public void retrieveConstantUris(final TupleExpr expr,
+                                     final BindingSet bindings) {
+        Set<URI> uris = new LinkedHashSet<URI>();
+        for (StatementPattern p : StatementPatternCollector.process(expr)) {
+            addUris(p, bindings, uris);
+        }
+
+        try {
+            cache.retrieveAll(uris, sailConnection);
+        } catch (RippleException e) {
+            logger.log(Level.SEVERE, "failed to retrieve URIs", e);
+        }
+    }
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(final Join join,
+                                                                             final BindingSet bindings)
+            throws QueryEvaluationException {
+        // Only a basic graph pattern may be evaluated once for each result of the left-hand side.
+        // Others, such as a subquery whose variables are out of the scope of the left-hand side,
+        // or a SERVICE join which is already evaluated in batches, are left to the base strategy
+        if (!isBasicGraphPattern(join.getRightArg())) {
+            return super.evaluate(join, bindings);
+        }
+
+        return new PrefetchingJoinIterator(join, bindings);
+    }
+
+    private static boolean isBasicGraphPattern(final TupleExpr expr) {
+        if (expr instanceof StatementPattern) {
+            return true;
+        } else if (expr instanceof Join) {
+            Join j = (Join) expr;
+            return isBasicGraphPattern(j.getLeftArg()) && isBasicGraphPattern(j.getRightArg());
+        } else {
+            return false;
+        }
+    }
+
+    // finds the URIs which a triple pattern would dereference, given a set of bindings
+    private void addUris(final StatementPattern p,
+                         final BindingSet bindings,
+                         final Collection<URI> uris) {
+        if (cache.getDereferenceSubjects()) {
+            addUri(p.getSubjectVar(), bindings, uris);
+        }
+        if (cache.getDereferencePredicates()) {
+            addUri(p.getPredicateVar(), bindings, uris);
+        }
+        if (cache.getDereferenceObjects()) {
+            addUri(p.getObjectVar(), bindings, uris);
+        }
+        if (cache.getDereferenceContexts()) {
+            addUri(p.getContextVar(), bindings, uris);
+        }
+    }
+
+    private void addUri(final Var var,
+                        final BindingSet bindings,
+                        final Collection<URI> uris) {
+        if (null == var) {
+            return;
+        }
+
+        Value v = var.hasValue() ? var.getValue() : bindings.getValue(var.getName());
+        if (v instanceof URI) {
+            uris.add((URI) v);
+        }
+    }
+
+    // A nested-loop join which reads the results of the left-hand side in batches,
+    // prefetching the URIs bound by each batch before joining it with the right-hand side.
+    private class PrefetchingJoinIterator extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+        private final TupleExpr rightArg;
+        private final List<StatementPattern> rightPatterns;
+        private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
+        private final LinkedList<BindingSet> batch = new LinkedList<BindingSet>();
+        // the URIs prefetched for the current batch
+        private final Set<URI> prefetched = new LinkedHashSet<URI>();
+        private CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+
+        public PrefetchingJoinIterator(final Join join,
+                                       final BindingSet bindings) throws QueryEvaluationException {
+            rightArg = join.getRightArg();
+            rightPatterns = StatementPatternCollector.process(rightArg);
+            leftIter = PrefetchingEvaluationStrategy.this.evaluate(join.getLeftArg(), bindings);
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (true) {
+                if (null != rightIter) {
+                    if (rightIter.hasNext()) {
+                        return rightIter.next();
+                    }
+
+                    rightIter.close();
+                    rightIter = null;
+                }
+
+                if (batch.isEmpty() && !fillBatch()) {
+                    return null;
+                }
+
+                rightIter = PrefetchingEvaluationStrategy.this.evaluate(rightArg, batch.removeFirst());
+            }
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            try {
+                super.handleClose();
+            } finally {
+                try {
+                    leftIter.close();
+                } finally {
+                    try {
+                        if (null != rightIter) {
+                            rightIter.close();
+                        }
+                    } finally {
+                        cancelPrefetches();
+                    }
+                }
+            }
+        }
+
+        private boolean fillBatch() throws QueryEvaluationException {
+            // URIs of the previous batch which were not needed after all
+            cancelPrefetches();
+
+            while (batch.size() < BATCH_SIZE && leftIter.hasNext()) {
+                BindingSet b = leftIter.next();
+                batch.add(b);
+                for (StatementPattern p : rightPatterns) {
+                    addUris(p, b, prefetched);
+                }
+            }
+
+            try {
+                for (URI uri : prefetched) {
+                    cache.prefetch(uri, sailConnection);
+                }
+            } catch (RippleException e) {
+                logger.log(Level.WARNING, "failed to prefetch URIs", e);
+            }
+
+            return !batch.isEmpty();
+        }
+
+        private void cancelPrefetches() {
+            try {
+                for (URI uri : prefetched) {
+                    cache.cancelPrefetch(uri);
+                }
+            } catch (RippleException e) {
+                logger.log(Level.WARNING, "failed to cancel prefetched URIs", e);
+            } finally {
+                prefetched.clear();
+            }
+        }
+    }
+}
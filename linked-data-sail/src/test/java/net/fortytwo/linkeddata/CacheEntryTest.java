@@ -0,0 +1,50 @@
+package net.fortytwo.linkeddata;
+
+import org.junit.Test;
+import org.restlet.data.MediaType;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CacheEntryTest {
+    @Test
+    public void testValidatorsAreParseable() throws Exception {
+        CacheEntry e = new CacheEntry(CacheEntry.Status.Success);
+        assertFalse(e.hasValidators());
+
+        e.setMediaType(MediaType.APPLICATION_RDF_XML);
+        // entity tags may contain the separators of the memo format
+        e.setETag("W/\"a,b=c\"");
+        // memos are accurate to the nearest second
+        Date lastModified = new Date(784887151000L);
+        Date expires = new Date((System.currentTimeMillis() / 1000 + 3600) * 1000);
+        e.setLastModified(lastModified);
+        e.setExpires(expires);
+        assertTrue(e.hasValidators());
+
+        CacheEntry parsed = new CacheEntry(e.toString());
+        assertEquals(CacheEntry.Status.Success, parsed.getStatus());
+        assertEquals(MediaType.APPLICATION_RDF_XML, parsed.getMediaType());
+        assertEquals("W/\"a,b=c\"", parsed.getETag());
+        assertEquals(lastModified, parsed.getLastModified());
+        assertEquals(expires, parsed.getExpires());
+        assertTrue(parsed.hasValidators());
+    }
+
+    @Test
+    public void testEntriesWithoutValidators() throws Exception {
+        CacheEntry parsed = new CacheEntry("status=Success,timestamp=2014-01-01T00:00:00");
+        assertEquals(CacheEntry.Status.Success, parsed.getStatus());
+        assertNull(parsed.getETag());
+        assertNull(parsed.getLastModified());
+        assertNull(parsed.getExpires());
+        assertFalse(parsed.hasValidators());
+    }
+}
@@ -0,0 +1,160 @@
+package net.fortytwo.linkeddata;
+
+import net.fortytwo.linkeddata.dereferencers.ArchivingDereferencer;
+import net.fortytwo.ripple.RippleException;
+import org.junit.Test;
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DocumentArchiveTest {
+    private static final String NS = "http://example.org/documentArchiveTest/";
+    private static final MediaType NTRIPLES = new MediaType("text/plain");
+
+    @Test
+    public void testDocumentsAreRecordedAndReplayed() throws Exception {
+        File dir = createTempDirectory();
+        String body = "<" + NS + "a> <" + NS + "b> <" + NS + "c> .\n";
+        WebDereferencer web = new WebDereferencer();
+        web.documents.put(NS + "doc", body);
+
+        ArchivingDereferencer recording = new ArchivingDereferencer(
+                web, new DocumentArchive(dir), ArchivingDereferencer.Mode.Record);
+        Representation rep = recording.dereference(NS + "doc");
+        assertEquals(NTRIPLES, rep.getMediaType());
+        assertEquals(body, read(rep));
+        assertEquals(1, web.requests);
+        assertEquals(1, recording.getArchive().size());
+
+        // documents are replayed from a reopened archive, without contacting the Web
+        ArchivingDereferencer offline = new ArchivingDereferencer(
+                web, new DocumentArchive(dir), ArchivingDereferencer.Mode.Offline);
+        assertTrue(offline.isServedFromArchive(NS + "doc"));
+        rep = offline.dereference(NS + "doc");
+        assertEquals(NTRIPLES, rep.getMediaType());
+        assertEquals("\"v1\"", rep.getTag().format());
+        assertEquals(new Date(1000000000000L), rep.getModificationDate());
+        assertEquals(body, read(rep));
+        assertEquals(1, web.requests);
+
+        try {
+            offline.dereference(NS + "other");
+            fail();
+        } catch (ArchivingDereferencer.NotArchivedException e) {
+            // expected
+        }
+        assertEquals(1, web.requests);
+
+        // a cached document with the archived validators is unchanged
+        CacheEntry cached = new CacheEntry(CacheEntry.Status.Success);
+        cached.setETag("\"v1\"");
+        assertFalse(offline.dereference(NS + "doc", cached).isAvailable());
+        cached.setETag("\"v0\"");
+        assertEquals(body, read(offline.dereference(NS + "doc", cached)));
+
+        // in replay mode, only documents which are not archived are retrieved
+        web.documents.put(NS + "other", body);
+        ArchivingDereferencer replaying = new ArchivingDereferencer(
+                web, new DocumentArchive(dir), ArchivingDereferencer.Mode.Replay);
+        assertEquals(body, read(replaying.dereference(NS + "doc")));
+        assertEquals(1, web.requests);
+        assertFalse(replaying.isServedFromArchive(NS + "other"));
+        assertEquals(body, read(replaying.dereference(NS + "other")));
+        assertEquals(2, web.requests);
+        assertTrue(replaying.isServedFromArchive(NS + "other"));
+    }
+
+    @Test
+    public void testIdenticalDocumentsAreStoredOnce() throws Exception {
+        File dir = createTempDirectory();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("<" + NS + "s" + i + "> <" + NS + "p> \"" + i + "\" .\n");
+        }
+        String body = sb.toString();
+
+        WebDereferencer web = new WebDereferencer();
+        web.documents.put(NS + "one", body);
+        web.documents.put(NS + "two", body);
+
+        DocumentArchive archive = new DocumentArchive(dir);
+        ArchivingDereferencer recording = new ArchivingDereferencer(
+                web, archive, ArchivingDereferencer.Mode.Record);
+        assertEquals(body, read(recording.dereference(NS + "one")));
+
+        // a document which is read only in part (for example, because it fails to parse) is archived in full
+        InputStream is = recording.dereference(NS + "two").getStream();
+        assertTrue(is.read(new byte[100]) > 0);
+        is.close();
+
+        DocumentArchive.Document one = archive.get(NS + "one");
+        DocumentArchive.Document two = archive.get(NS + "two");
+        assertEquals(one.getHash(), two.getHash());
+        assertEquals(1, new File(dir, "objects").listFiles().length);
+        assertNull(archive.get(NS + "three"));
+
+        archive = new DocumentArchive(dir);
+        assertEquals(2, archive.size());
+        assertEquals(body, read(archive.openStream(archive.get(NS + "two"))));
+        assertEquals(NTRIPLES, archive.get(NS + "two").getMediaType());
+    }
+
+    private File createTempDirectory() throws Exception {
+        File dir = File.createTempFile("archive", "");
+        assertTrue(dir.delete());
+        return dir;
+    }
+
+    private String read(final Representation rep) throws Exception {
+        return read(rep.getStream());
+    }
+
+    private String read(final InputStream is) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                bos.write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return new String(bos.toByteArray(), "UTF-8");
+    }
+
+    private static class WebDereferencer implements Dereferencer {
+        private final Map<String, String> documents = new HashMap<String, String>();
+        private int requests = 0;
+
+        public Representation dereference(final String uri) throws RippleException {
+            requests++;
+            String body = documents.get(uri);
+            if (null == body) {
+                throw new RippleException("no such document: " + uri);
+            }
+
+            Representation rep = new StringRepresentation(body, NTRIPLES);
+            rep.setTag(Tag.parse("\"v1\""));
+            rep.setModificationDate(new Date(1000000000000L));
+            return rep;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.fortytwo.linkeddata;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DocumentBufferTest {
+
+    @Test
+    public void testSmallDocumentsAreKeptInMemory() throws Exception {
+        byte[] document = createDocument(100);
+
+        DocumentBuffer b = new DocumentBuffer(1000);
+        try {
+            b.readFrom(new ByteArrayInputStream(document));
+            assertEquals(100, b.getLength());
+            assertTrue(Arrays.equals(document, readAll(b.getInputStream())));
+        } finally {
+            b.dispose();
+        }
+    }
+
+    @Test
+    public void testLargeDocumentsSpillToDisk() throws Exception {
+        byte[] document = createDocument(100000);
+
+        DocumentBuffer b = new DocumentBuffer(1000);
+        try {
+            b.readFrom(new ByteArrayInputStream(document));
+            assertEquals(100000, b.getLength());
+            assertTrue(Arrays.equals(document, readAll(b.getInputStream())));
+            // a buffer may be read more than once
+            assertTrue(Arrays.equals(document, readAll(b.getInputStream())));
+        } finally {
+            b.dispose();
+        }
+    }
+
+    private byte[] createDocument(final int length) {
+        byte[] document = new byte[length];
+        for (int i = 0; i < length; i++) {
+            document[i] = (byte) (i * 31);
+        }
+        return document;
+    }
+
+    private byte[] readAll(final InputStream is) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package net.fortytwo.linkeddata;
+
+import org.junit.Test;
+import org.openrdf.sail.SailConnection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class GroupCommitTest {
+    // long enough that the timer does not commit anything during a test which advances its own clock
+    private static final long DELAY = 60000;
+
+    @Test
+    public void testCommitsAreCoalesced() throws Exception {
+        GroupCommit g = new GroupCommit(3, 1000, 60000);
+        List<String> calls = new LinkedList<String>();
+        SailConnection sc = createConnection(calls);
+        try {
+            write(g, sc, 10);
+            write(g, sc, 10);
+            assertEquals(0, g.getCommits());
+            assertEquals(0, calls.size());
+            assertTrue(g.hasPendingUnits(sc));
+
+            write(g, sc, 10);
+            assertEquals(1, g.getCommits());
+            assertEquals("[commit, begin]", calls.toString());
+            assertEquals(3.0, g.getMeanBatchSize(), 0);
+            assertEquals(30.0, g.getMeanBatchStatements(), 0);
+            assertFalse(g.hasPendingUnits(sc));
+
+            // a large unit is committed immediately
+            write(g, sc, 1000);
+            assertEquals(2, g.getCommits());
+            assertEquals(2.0, g.getMeanBatchSize(), 0);
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testTimerCommitsPendingUnits() throws Exception {
+        GroupCommit g = new GroupCommit(100, 1000, 50);
+        List<String> calls = new LinkedList<String>();
+        SailConnection sc = createConnection(calls);
+        SailConnection other = createConnection(new LinkedList<String>());
+        try {
+            // the timer commits each connection once its first unit has waited for the maximum delay
+            write(g, sc, 1);
+            write(g, other, 1);
+            write(g, sc, 1);
+            waitForCommits(g, 2);
+            assertEquals(2, g.getCommits());
+            assertEquals(1.5, g.getMeanBatchSize(), 0);
+            assertEquals("[commit, begin]", calls.toString());
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testPendingUnitsAreCommittedAfterDelayOrFlush() throws Exception {
+        ManualClock clock = new ManualClock();
+        GroupCommit g = new GroupCommit(100, 1000, DELAY, null, clock);
+        List<String> calls = new LinkedList<String>();
+        SailConnection sc = createConnection(calls);
+        SailConnection other = createConnection(new LinkedList<String>());
+        try {
+            // each connection is committed once its first unit has waited for the maximum delay
+            write(g, sc, 1);
+            clock.advance(1);
+            write(g, other, 1);
+            write(g, sc, 1);
+            clock.advance(DELAY - 1);
+            g.commitExpired();
+            assertEquals(1, g.getCommits());
+            assertEquals("[commit, begin]", calls.toString());
+            clock.advance(1);
+            g.commitExpired();
+            assertEquals(2, g.getCommits());
+            assertEquals(1.5, g.getMeanBatchSize(), 0);
+
+            // nothing is pending, so a flush does nothing
+            g.flush(sc);
+            assertEquals(2, g.getCommits());
+
+            // a pending unit is committed by a flush, before the timer
+            write(g, sc, 1);
+            g.flush(sc);
+            assertEquals(3, g.getCommits());
+
+            // units committed by the connection's user are no longer pending
+            write(g, sc, 1);
+            g.commit(sc);
+            g.flush(sc);
+            clock.advance(DELAY);
+            g.commitExpired();
+            assertEquals(3, g.getCommits());
+            assertEquals("[commit, begin, commit, begin, commit]", calls.toString());
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testUnitsInProgressAreNotSplit() throws Exception {
+        ManualClock clock = new ManualClock();
+        GroupCommit g = new GroupCommit(100, 1000, DELAY, null, clock);
+        SailConnection sc = createConnection(new LinkedList<String>());
+        try {
+            write(g, sc, 1);
+
+            // the connection is not committed after the delay while another unit is being written...
+            g.starting(sc);
+            clock.advance(DELAY);
+            g.commitExpired();
+            assertEquals(0, g.getCommits());
+
+            // ...but the delay has passed, so the unit commits the batch as soon as it is complete
+            g.written(sc, 1, null);
+            assertEquals(1, g.getCommits());
+            assertEquals(2.0, g.getMeanBatchSize(), 0);
+
+            // an aborted unit is not counted
+            g.starting(sc);
+            g.aborted(sc);
+            assertFalse(g.hasPendingUnits(sc));
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testRolledBackUnitsAreDiscarded() throws Exception {
+        ManualClock clock = new ManualClock();
+        GroupCommit g = new GroupCommit(100, 1000, DELAY, null, clock);
+        SailConnection sc = createConnection(new LinkedList<String>());
+        try {
+            g.starting(sc);
+            g.written(sc, 10, "urn:graph1");
+            g.starting(sc);
+            g.written(sc, 2, null);
+            g.starting(sc);
+            g.written(sc, 10, "urn:graph2");
+
+            assertEquals(Arrays.asList("urn:graph1", "urn:graph2"), g.rollback(sc));
+            assertFalse(g.hasPendingUnits(sc));
+
+            // the discarded batch is not committed after the delay
+            clock.advance(DELAY);
+            g.commitExpired();
+            assertEquals(0, g.getCommits());
+            assertTrue(g.rollback(sc).isEmpty());
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testConnectionsWithOtherChangesAreNotCommitted() throws Exception {
+        ManualClock clock = new ManualClock();
+        GroupCommit g = new GroupCommit(2, 1000, DELAY, null, clock);
+        List<String> calls = new LinkedList<String>();
+        SailConnection sc = createConnection(calls);
+        try {
+            // the user of the connection has made changes of its own
+            g.changedElsewhere(sc);
+            write(g, sc, 1);
+
+            // neither the delay, nor the thresholds, nor a flush commits those changes
+            clock.advance(DELAY);
+            g.commitExpired();
+            write(g, sc, 1);
+            write(g, sc, 1);
+            g.flush(sc);
+            assertEquals(0, g.getCommits());
+            assertEquals(0, calls.size());
+            assertTrue(g.hasPendingUnits(sc));
+
+            // the units are committed along with the other changes...
+            g.commit(sc);
+            assertFalse(g.hasPendingUnits(sc));
+
+            // ...after which the group commit commits the connection again
+            write(g, sc, 1);
+            write(g, sc, 1);
+            assertEquals(1, g.getCommits());
+            assertEquals("[commit, commit, begin]", calls.toString());
+
+            // units are discarded along with other changes which are rolled back
+            g.changedElsewhere(sc);
+            g.starting(sc);
+            g.written(sc, 1, "urn:graph1");
+            assertEquals(Arrays.asList("urn:graph1"), g.rollback(sc));
+            assertEquals(1, g.getCommits());
+        } finally {
+            g.close();
+        }
+    }
+
+    @Test
+    public void testListenerIsToldOfEveryCommitAndRollback() throws Exception {
+        final List<String> events = new LinkedList<String>();
+        GroupCommit g = new GroupCommit(2, 1000, 60000, new GroupCommit.Listener() {
+            public void committed(final SailConnection sc) {
+                events.add("committed");
+            }
+
+            public void rolledBack(final SailConnection sc) {
+                events.add("rolledBack");
+            }
+        });
+        List<String> calls = new LinkedList<String>();
+        SailConnection sc = createConnection(calls);
+        try {
+            // a commit made by the group commit itself
+            write(g, sc, 1);
+            write(g, sc, 1);
+            // a commit and a rollback made on behalf of the connection's user
+            write(g, sc, 1);
+            g.commit(sc);
+            write(g, sc, 1);
+            g.rollback(sc);
+
+            assertEquals("[committed, committed, rolledBack]", events.toString());
+            assertEquals("[commit, begin, commit, rollback]", calls.toString());
+        } finally {
+            g.close();
+        }
+    }
+
+    private void write(final GroupCommit g,
+                       final SailConnection sc,
+                       final long statements) throws Exception {
+        g.starting(sc);
+        g.written(sc, statements, null);
+    }
+
+    private void waitForCommits(final GroupCommit g,
+                                final long commits) throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (g.getCommits() < commits && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+    }
+
+    private SailConnection createConnection(final List<String> calls) {
+        return (SailConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{SailConnection.class}, new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+
+                        synchronized (calls) {
+                            calls.add(method.getName());
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,110 @@
+package net.fortytwo.linkeddata;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HostCircuitBreakerTest {
+    private static final String HOST = "example.org";
+
+    @Test
+    public void testCircuitOpensAfterConsecutiveFailures() throws Exception {
+        HostCircuitBreaker b = new HostCircuitBreaker(3, 10000, 60000, 100);
+
+        b.recordFailure(HOST);
+        b.recordFailure(HOST);
+        // a success resets the count
+        b.recordSuccess(HOST);
+        b.recordFailure(HOST);
+        b.recordFailure(HOST);
+        assertTrue(b.allowRequest(HOST));
+        assertEquals(HostCircuitBreaker.State.Closed, b.getState(HOST));
+
+        b.recordFailure(HOST);
+        assertEquals(HostCircuitBreaker.State.Open, b.getState(HOST));
+        assertFalse(b.isAvailable(HOST));
+        assertFalse(b.allowRequest(HOST));
+
+        // other hosts are unaffected
+        assertTrue(b.allowRequest("example.com"));
+
+        HostCircuitBreaker.HostStatus status = b.getHostStatus().get(0);
+        assertEquals(HOST, status.getHost());
+        assertEquals(3, status.getConsecutiveFailures());
+        assertEquals(5, status.getTotalFailures());
+        assertNotNull(status.getRetryTime());
+    }
+
+    @Test
+    public void testTrialRequestsBackOffExponentially() throws Exception {
+        ManualClock clock = new ManualClock();
+        HostCircuitBreaker b = new HostCircuitBreaker(1, 50, 150, 100, clock);
+
+        b.recordFailure(HOST);
+        assertFalse(b.allowRequest(HOST));
+        clock.advance(49);
+        assertFalse(b.isAvailable(HOST));
+        clock.advance(1);
+
+        // a single trial request is allowed
+        assertTrue(b.isAvailable(HOST));
+        assertTrue(b.allowRequest(HOST));
+        assertEquals(HostCircuitBreaker.State.HalfOpen, b.getState(HOST));
+        assertFalse(b.allowRequest(HOST));
+
+        // the trial fails, so the next one comes after twice the interval
+        b.recordFailure(HOST);
+        clock.advance(99);
+        assertFalse(b.allowRequest(HOST));
+        clock.advance(1);
+        assertTrue(b.allowRequest(HOST));
+
+        // ...and the interval is capped
+        b.recordFailure(HOST);
+        assertEquals(clock.currentTimeMillis() + 150, b.getHostStatus().get(0).getRetryTime().getTime());
+        clock.advance(149);
+        assertFalse(b.allowRequest(HOST));
+        clock.advance(1);
+
+        // a cancelled trial does not count
+        assertTrue(b.allowRequest(HOST));
+        b.cancelRequest(HOST);
+        assertTrue(b.allowRequest(HOST));
+
+        // a successful trial closes the circuit, and resets the interval
+        b.recordSuccess(HOST);
+        assertEquals(HostCircuitBreaker.State.Closed, b.getState(HOST));
+        assertNull(b.getHostStatus().get(0).getRetryTime());
+        b.recordFailure(HOST);
+        clock.advance(50);
+        assertTrue(b.allowRequest(HOST));
+    }
+
+    @Test
+    public void testFailingHostsAreKeptInPreferenceToHealthyOnes() throws Exception {
+        HostCircuitBreaker b = new HostCircuitBreaker(2, 10000, 10000, 3);
+
+        b.recordFailure("a");
+        b.recordFailure("a");
+        b.recordFailure("b");
+        b.recordFailure("c");
+        b.recordFailure("d");
+
+        // the least recently used healthy host was forgotten
+        List<HostCircuitBreaker.HostStatus> status = b.getHostStatus();
+        assertEquals(3, status.size());
+        assertEquals("a", status.get(0).getHost());
+        assertEquals(HostCircuitBreaker.State.Open, status.get(0).getState());
+        assertEquals("c", status.get(1).getHost());
+        assertEquals("d", status.get(2).getHost());
+    }
+}
@@ -0,0 +1,184 @@
+package net.fortytwo.linkeddata;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.fortytwo.flow.rdf.HTTPUtils;
+import net.fortytwo.flow.rdf.HostRateLimiter;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.data.MediaType;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the cost of looking up a URI which is already in the cache,
+ * and compares sequential with concurrent retrieval of documents from a local stub server with a fixed latency.
+ * This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LinkedDataCacheBenchmark {
+    private static final String NS = "http://example.org/linkedDataCacheBenchmark/";
+
+    private static final int LOOKUPS = 1000000, DOCUMENTS = 100, LATENCY = 50;
+
+    public static void main(final String[] args) throws Exception {
+        Ripple.initialize();
+
+        benchmarkWarmLookups();
+        benchmarkRetrieval();
+    }
+
+    private static void benchmarkWarmLookups() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    return new StringRepresentation(document(uri), new MediaType("text/plain"));
+                }
+            });
+
+            URI uri = new URIImpl(NS + "warm");
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                cache.retrieve(uri, sc);
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+
+            long before = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                cache.retrieve(uri, null);
+            }
+            long after = System.nanoTime();
+            System.out.println("looked up a cached URI " + LOOKUPS + " times in " + (after - before) / 1000000
+                    + "ms (" + (after - before) / LOOKUPS + "ns per lookup)");
+
+            cache.close();
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private static void benchmarkRetrieval() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(LATENCY);
+                    byte[] body = document(NS + exchange.getRequestURI().getPath().substring(1)).getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        // all documents are on the same host; drop the crawler's courtesy delay between requests
+        HostRateLimiter limiter = HTTPUtils.getRateLimiter();
+        long courtesyInterval = limiter.getCourtesyInterval();
+        limiter.setCourtesyInterval(0);
+
+        try {
+            String serverUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+
+            long sequential = retrieveDocuments(serverUrl, false);
+            long concurrent = retrieveDocuments(serverUrl, true);
+
+            System.out.println("retrieved " + DOCUMENTS + " documents with " + LATENCY + "ms latency: "
+                    + sequential + "ms sequentially, " + concurrent + "ms concurrently");
+        } finally {
+            limiter.setCourtesyInterval(courtesyInterval);
+            server.stop(0);
+        }
+    }
+
+    private static long retrieveDocuments(final String serverUrl,
+                                          final boolean concurrently) throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            cache.addDereferencer("http", new StubServerDereferencer(serverUrl));
+
+            List<URI> uris = new LinkedList<URI>();
+            for (int i = 0; i < DOCUMENTS; i++) {
+                uris.add(new URIImpl(NS + "doc" + i));
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                long before = System.currentTimeMillis();
+                if (concurrently) {
+                    cache.retrieveAll(uris, sc);
+                } else {
+                    for (URI uri : uris) {
+                        cache.retrieve(uri, sc);
+                    }
+                }
+                long after = System.currentTimeMillis();
+
+                sc.commit();
+                return after - before;
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private static String document(final String uri) {
+        return "<" + uri + "> <" + RDF.TYPE + "> <" + NS + "Document> .\n";
+    }
+
+    private static class StubServerDereferencer implements Dereferencer {
+        private final String serverUrl;
+
+        public StubServerDereferencer(final String serverUrl) {
+            this.serverUrl = serverUrl;
+        }
+
+        public Representation dereference(final String uri) throws RippleException {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(serverUrl
+                        + uri.substring(NS.length())).openConnection();
+                return new InputRepresentation(conn.getInputStream(), new MediaType(conn.getContentType()));
+            } catch (IOException e) {
+                throw new RippleException(e);
+            }
+        }
+    }
+}
@@ -1,15 +1,61 @@
 package net.fortytwo.linkeddata;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.rdf.HTTPUtils;
+import net.fortytwo.flow.rdf.HostRateLimiter;
+import net.fortytwo.linkeddata.rdfizers.VerbatimRdfizer;
+import net.fortytwo.linkeddata.sail.LinkedDataSail;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
 import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFParser;
 import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
 import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.data.MediaType;
+import org.restlet.representation.InputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class LinkedDataCacheTest {
+    private static final String NS = "http://example.org/linkedDataCacheTest/";
+    private static final MediaType NTRIPLES = new MediaType("text/plain");
+
     @Test
     public void testMediaTypes() throws Exception {
         Sail sail = new MemoryStore();
@@ -37,4 +83,1001 @@ public class LinkedDataCacheTest {
         assertTrue(header.contains("image/tiff;q=0.4"));
         assertTrue(header.contains("image/tiff-fx;q=0.4"));
     }
+
+    @Test
+    public void testSingleFlightRetrieval() throws Exception {
+        final Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            final LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            final AtomicInteger dereferenced = new AtomicInteger(0);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    dereferenced.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        throw new RippleException(e);
+                    }
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+
+            final URI uri = new URIImpl(NS + "thing");
+            int threads = 10;
+            final CountDownLatch done = new CountDownLatch(threads);
+            final List<CacheEntry.Status> results = new LinkedList<CacheEntry.Status>();
+            for (int i = 0; i < threads; i++) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            SailConnection sc = sail.getConnection();
+                            try {
+                                sc.begin();
+                                CacheEntry.Status status = cache.retrieve(uri, sc);
+                                synchronized (results) {
+                                    results.add(status);
+                                }
+                                sc.commit();
+                            } finally {
+                                sc.close();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            done.await();
+
+            // concurrent requests for the same graph share a single fetch
+            assertEquals(1, dereferenced.get());
+            assertEquals(threads, results.size());
+            for (CacheEntry.Status status : results) {
+                assertEquals(CacheEntry.Status.Success, status);
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                assertEquals(1, countStatements(sc, uri));
+                assertEquals(CacheEntry.Status.Success, cache.peek(uri, sc));
+                sc.rollback();
+            } finally {
+                sc.close();
+            }
+
+            cache.close();
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testWarmLookupsAvoidTheStore() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            final AtomicInteger dereferenced = new AtomicInteger(0);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    dereferenced.incrementAndGet();
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+
+            URI uri = new URIImpl(NS + "warm");
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+
+            // a fresh URI is found without consulting the triple store, so no connection is needed.
+            // See LinkedDataCacheBenchmark for the cost of such lookups
+            for (int i = 0; i < 100; i++) {
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, null));
+            }
+            assertEquals(CacheEntry.Status.Success, cache.peek(uri, null));
+            assertEquals(1, dereferenced.get());
+
+            // an expired URI is retrieved again
+            cache.setExpirationPolicy(new CacheExpirationPolicy() {
+                public boolean isExpired(final String uri, final CacheEntry entry) {
+                    return true;
+                }
+            });
+            sc = sail.getConnection();
+            try {
+                sc.begin();
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                assertEquals(2, dereferenced.get());
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+
+            cache.close();
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testKnownUrisAreEvictedInRoughlyLeastRecentlyUsedOrder() throws Exception {
+        int oldCapacity = Ripple.getConfiguration().getInt(LinkedDataSail.MEMORY_CACHE_CAPACITY);
+        Ripple.getConfiguration().setInt(LinkedDataSail.MEMORY_CACHE_CAPACITY, 100);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+
+            URI hot = new URIImpl(NS + "hot");
+            URI[] cold = new URI[150];
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(hot, sc));
+                for (int i = 0; i < cold.length; i++) {
+                    cold[i] = new URIImpl(NS + "cold" + i);
+                    assertEquals(CacheEntry.Status.Success, cache.retrieve(cold[i], sc));
+                    // the hot URI is in frequent use
+                    assertEquals(CacheEntry.Status.Success, cache.peek(hot, sc));
+                }
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+
+            // the index is bounded, but is not simply cleared when it is full
+            assertTrue(cache.isKnownAndFresh(hot.toString()));
+            assertFalse(cache.isKnownAndFresh(cold[0].toString()));
+            assertTrue(cache.isKnownAndFresh(cold[cold.length - 1].toString()));
+            int known = 0;
+            for (URI uri : cold) {
+                if (cache.isKnownAndFresh(uri.toString())) {
+                    known++;
+                }
+            }
+            assertEquals(99, known);
+
+            cache.close();
+        } finally {
+            Ripple.getConfiguration().setInt(LinkedDataSail.MEMORY_CACHE_CAPACITY, oldCapacity);
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testConcurrentRetrieval() throws Exception {
+        final int latency = 50;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+
+                try {
+                    Thread.sleep(latency);
+                    byte[] body = document(NS + exchange.getRequestURI().getPath().substring(1)).getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        try {
+            String serverUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+            int n = 100;
+
+            // see LinkedDataCacheBenchmark for the time saved by retrieving documents concurrently
+            retrieveDocuments(serverUrl, n, false);
+            assertEquals(1, maxInFlight.get());
+
+            maxInFlight.set(0);
+            retrieveDocuments(serverUrl, n, true);
+            assertTrue(maxInFlight.get() > 1);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testConditionalRevalidation() throws Exception {
+        final AtomicInteger fullResponses = new AtomicInteger(0);
+        final AtomicInteger notModifiedResponses = new AtomicInteger(0);
+        final String[] version = {"v1"};
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                String etag = "\"" + version[0] + "\"";
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+
+                fullResponses.incrementAndGet();
+                String uri = "http://localhost:" + exchange.getLocalAddress().getPort() + exchange.getRequestURI();
+                String doc = document(uri);
+                if (version[0].equals("v2")) {
+                    doc += "<" + uri + "> <" + RDF.TYPE + "> <" + NS + "ChangedDocument> .\n";
+                }
+                byte[] body = doc.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Last-Modified", "Tue, 15 Nov 1994 08:12:31 GMT");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            URI uri = new URIImpl("http://localhost:" + server.getAddress().getPort() + "/doc");
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                assertEquals(1, fullResponses.get());
+                assertEquals(1, countStatements(sc, uri));
+
+                // from now on, every cache entry is expired
+                cache.setExpirationPolicy(new CacheExpirationPolicy() {
+                    public boolean isExpired(final String uri, final CacheEntry entry) {
+                        return true;
+                    }
+                });
+
+                // an unchanged document is revalidated, but not downloaded again
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                assertEquals(1, fullResponses.get());
+                assertEquals(1, notModifiedResponses.get());
+                assertEquals(1, countStatements(sc, uri));
+
+                // a changed document replaces the cached graph
+                version[0] = "v2";
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                assertEquals(2, fullResponses.get());
+                assertEquals(1, notModifiedResponses.get());
+                assertEquals(2, countStatements(sc, uri));
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCompressedDocumentsAreWrittenInBatches() throws Exception {
+        // several times the default write batch size
+        final int n = 2500;
+        final AtomicInteger compressedResponses = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                String uri = "http://localhost:" + exchange.getLocalAddress().getPort() + exchange.getRequestURI();
+                StringBuilder doc = new StringBuilder();
+                for (int i = 0; i < n; i++) {
+                    doc.append(document(uri + "#item" + i));
+                }
+
+                String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                boolean gzip = null != encoding && encoding.contains("gzip");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                if (gzip) {
+                    compressedResponses.incrementAndGet();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = gzip
+                        ? new GZIPOutputStream(exchange.getResponseBody())
+                        : exchange.getResponseBody();
+                out.write(doc.toString().getBytes("UTF-8"));
+                out.close();
+            }
+        });
+        server.start();
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            String base = "http://localhost:" + server.getAddress().getPort() + "/";
+            List<URI> uris = new LinkedList<URI>();
+            for (int i = 0; i < 3; i++) {
+                uris.add(new URIImpl(base + "doc" + i));
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                // one document is parsed by the retrieving thread, the others by background threads
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uris.get(0), sc));
+                for (CacheEntry.Status status : cache.retrieveAll(uris.subList(1, 3), sc)) {
+                    assertEquals(CacheEntry.Status.Success, status);
+                }
+
+                assertEquals(3, compressedResponses.get());
+                for (URI uri : uris) {
+                    assertEquals(n, countDocumentStatements(sc, uri));
+                }
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailingHostFailsFast() throws Exception {
+        final AtomicInteger requests = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        HostRateLimiter limiter = HTTPUtils.getRateLimiter();
+        long courtesyInterval = limiter.getCourtesyInterval();
+        limiter.setCourtesyInterval(0);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            String base = "http://localhost:" + server.getAddress().getPort() + "/";
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                // the default failure threshold is 3
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(CacheEntry.Status.ServerError, cache.retrieve(new URIImpl(base + "doc" + i), sc));
+                }
+                assertEquals(3, requests.get());
+
+                // the circuit is now open; sibling URIs fail without a request
+                assertEquals(CacheEntry.Status.HostUnavailable, cache.retrieve(new URIImpl(base + "doc3"), sc));
+                assertEquals(CacheEntry.Status.HostUnavailable, cache.retrieve(new URIImpl(base + "doc4"), sc));
+                assertEquals(3, requests.get());
+
+                HostCircuitBreaker.HostStatus status = cache.getHostCircuitBreaker().getHostStatus().get(0);
+                assertEquals("localhost:" + server.getAddress().getPort(), status.getHost());
+                assertEquals(HostCircuitBreaker.State.Open, status.getState());
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            limiter.setCourtesyInterval(courtesyInterval);
+            sail.shutDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedGraphsAreEvicted() throws Exception {
+        Ripple.getConfiguration().setLong(LinkedDataSail.MAX_CACHED_STATEMENTS, 3);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            final AtomicInteger dereferenced = new AtomicInteger(0);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    dereferenced.incrementAndGet();
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+
+            URI[] docs = new URI[4];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = new URIImpl(NS + "evicted" + i);
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[i], sc));
+                }
+                assertEquals(3, cache.getStorageBudget().getTotalStatements());
+
+                // the first document is used again, while a URI elsewhere redirects to the same document as the third
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[0], sc));
+                URI document = new URIImpl(RDFUtils.hashedUri(NS + "document"));
+                URI other = new URIImpl(RDFUtils.hashedUri(NS + "other"));
+                sc.addStatement(new URIImpl(RDFUtils.findGraphUri(docs[2].toString())),
+                        LinkedDataCache.CACHE_REDIRECTSTO, document);
+                sc.addStatement(other, LinkedDataCache.CACHE_REDIRECTSTO, document);
+
+                // the least recently used document makes room for the new one
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[3], sc));
+                assertEquals(4, dereferenced.get());
+                assertEquals(1, cache.getStorageBudget().getEvictions());
+                // only the URIs of the evicted graph are forgotten by the in-memory index
+                assertFalse(cache.isKnownAndFresh(docs[1].toString()));
+                assertTrue(cache.isKnownAndFresh(docs[0].toString()));
+                assertTrue(cache.isKnownAndFresh(docs[2].toString()));
+                assertTrue(cache.isKnownAndFresh(docs[3].toString()));
+                assertEquals(0, countDocumentStatements(sc, docs[1]));
+                assertNull(cache.peek(docs[1], sc));
+                assertEquals(1, countDocumentStatements(sc, docs[0]));
+                assertEquals(CacheEntry.Status.Success, cache.peek(docs[0], sc));
+
+                // an evicted document is retrieved again when it is needed, evicting the next one along with
+                // the redirects to it
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[1], sc));
+                assertEquals(5, dereferenced.get());
+                assertEquals(1, countDocumentStatements(sc, docs[1]));
+                assertEquals(0, countDocumentStatements(sc, docs[2]));
+                assertFalse(cache.isKnownAndFresh(docs[2].toString()));
+                assertTrue(cache.isKnownAndFresh(docs[3].toString()));
+                assertNull(cache.peek(docs[2], sc));
+                assertEquals(0, countStatements(sc, LinkedDataCache.CACHE_REDIRECTSTO, document));
+
+                assertEquals(2, cache.getStorageBudget().getEvictions());
+                assertEquals(1, cache.getStorageBudget().getRefetches());
+                assertEquals(3, cache.getStorageBudget().getTotalStatements());
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            Ripple.getConfiguration().setLong(LinkedDataSail.MAX_CACHED_STATEMENTS, 0);
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testEvictionsAreUndoneByRollback() throws Exception {
+        Ripple.getConfiguration().setLong(LinkedDataSail.MAX_CACHED_STATEMENTS, 2);
+        File memoFile = File.createTempFile("memos", ".bin");
+        memoFile.deleteOnExit();
+        assertTrue(memoFile.delete());
+        Ripple.getConfiguration().setString(LinkedDataSail.MEMO_STORE_FILE, memoFile.getPath());
+
+        Sail baseSail = new MemoryStore();
+        baseSail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(baseSail);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+            LinkedDataSail sail = new LinkedDataSail(baseSail, cache);
+            sail.initialize();
+            try {
+                URI[] docs = new URI[3];
+                for (int i = 0; i < docs.length; i++) {
+                    docs[i] = new URIImpl(NS + "undone" + i);
+                }
+
+                SailConnection base = baseSail.getConnection();
+                try {
+                    base.begin();
+                    assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[0], base));
+                    assertEquals(CacheEntry.Status.Success, cache.retrieve(docs[1], base));
+                    base.commit();
+
+                    // a retrieval in a connection with changes of its own evicts the least recently used graph...
+                    SailConnection sc = sail.getConnection();
+                    try {
+                        sc.begin();
+                        sc.addStatement(docs[2], RDF.TYPE, RDF.PROPERTY);
+                        assertEquals(2, countStatements(sc, docs[2]));
+                        assertEquals(1, cache.getStorageBudget().getEvictions());
+                        assertEquals(0, countDocumentStatements(sc, docs[0]));
+                    } finally {
+                        sc.close();
+                    }
+
+                    // ...but the eviction is rolled back along with the retrieval:
+                    // the evicted graph is back, with its memo, and counts against the budget again
+                    assertEquals(1, countDocumentStatements(base, docs[0]));
+                    assertEquals(CacheEntry.Status.Success, cache.peek(docs[0], base));
+                    assertNull(cache.peek(docs[2], base));
+                    assertEquals(2, cache.getStorageBudget().getGraphs());
+                    assertEquals(2, cache.getStorageBudget().getTotalStatements());
+                } finally {
+                    base.close();
+                }
+            } finally {
+                sail.shutDown();
+            }
+        } finally {
+            Ripple.getConfiguration().setString(LinkedDataSail.MEMO_STORE_FILE, "");
+            Ripple.getConfiguration().setLong(LinkedDataSail.MAX_CACHED_STATEMENTS, 0);
+            baseSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testCancelledPrefetchesAreDiscarded() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            final AtomicInteger dereferenced = new AtomicInteger(0);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    // the first request is held up until the test releases it
+                    if (1 == dereferenced.incrementAndGet()) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RippleException(e);
+                        }
+                    }
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+
+            URI uri = new URIImpl(NS + "cancelled");
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                cache.prefetch(uri, sc);
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                assertEquals(CacheEntry.Status.Undetermined, cache.peek(uri, sc));
+
+                // the prefetch is cancelled while in progress; the URI is no longer in the cache
+                cache.cancelPrefetch(uri);
+                assertNull(cache.peek(uri, sc));
+                release.countDown();
+
+                // the URI is dereferenced again when it is needed, and the discarded graph is not written
+                assertEquals(CacheEntry.Status.Success, cache.retrieve(uri, sc));
+                assertEquals(2, dereferenced.get());
+                assertEquals(1, countDocumentStatements(sc, uri));
+
+                // a completed retrieval is not affected
+                cache.cancelPrefetch(uri);
+                assertEquals(CacheEntry.Status.Success, cache.peek(uri, sc));
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testClosingAConnectionDoesNotCommitChanges() throws Exception {
+        Ripple.getConfiguration().setInt(LinkedDataSail.COMMIT_BATCH_SIZE, 100);
+        Ripple.getConfiguration().setLong(LinkedDataSail.MAX_COMMIT_DELAY, 60000);
+
+        Sail baseSail = new MemoryStore();
+        baseSail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(baseSail);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+            LinkedDataSail sail = new LinkedDataSail(baseSail, cache);
+            sail.initialize();
+            try {
+                URI changed = new URIImpl(NS + "changed"), unchanged = new URIImpl(NS + "unchanged");
+
+                // a retrieval in a connection with uncommitted changes is rolled back along with them
+                SailConnection sc = sail.getConnection();
+                try {
+                    sc.begin();
+                    sc.addStatement(changed, RDF.TYPE, RDF.PROPERTY);
+                    // the user's statement and the retrieved one
+                    assertEquals(2, countStatements(sc, changed));
+
+                    // until it is committed, the retrieval is not visible to other connections
+                    SailConnection other = baseSail.getConnection();
+                    try {
+                        assertNull(cache.peek(changed, other));
+                        assertFalse(cache.isKnownAndFresh(changed.toString()));
+                    } finally {
+                        other.close();
+                    }
+                } finally {
+                    sc.close();
+                }
+
+                // a retrieval in a connection without changes of its own is committed when the connection is closed
+                sc = sail.getConnection();
+                try {
+                    sc.begin();
+                    assertEquals(1, countStatements(sc, unchanged));
+                } finally {
+                    sc.close();
+                }
+
+                SailConnection base = baseSail.getConnection();
+                try {
+                    base.begin();
+                    assertEquals(0, countStatements(base, RDF.TYPE, RDF.PROPERTY));
+                    assertEquals(0, countDocumentStatements(base, changed));
+                    assertNull(cache.peek(changed, base));
+                    assertEquals(1, countDocumentStatements(base, unchanged));
+                    assertEquals(CacheEntry.Status.Success, cache.peek(unchanged, base));
+                    base.commit();
+                } finally {
+                    base.close();
+                }
+
+                // the forgotten URI is retrieved again
+                sc = sail.getConnection();
+                try {
+                    sc.begin();
+                    assertEquals(1, countStatements(sc, changed));
+                    sc.commit();
+                } finally {
+                    sc.close();
+                }
+            } finally {
+                sail.shutDown();
+            }
+        } finally {
+            Ripple.getConfiguration().setInt(LinkedDataSail.COMMIT_BATCH_SIZE, 1);
+            Ripple.getConfiguration().setLong(LinkedDataSail.MAX_COMMIT_DELAY, 1000);
+            baseSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testMemosAreStoredOnlyOnceCommitted() throws Exception {
+        Ripple.getConfiguration().setInt(LinkedDataSail.COMMIT_BATCH_SIZE, 100);
+        Ripple.getConfiguration().setLong(LinkedDataSail.MAX_COMMIT_DELAY, 60000);
+        File memoFile = File.createTempFile("memos", ".bin");
+        memoFile.deleteOnExit();
+        // the store creates the file itself
+        assertTrue(memoFile.delete());
+        Ripple.getConfiguration().setString(LinkedDataSail.MEMO_STORE_FILE, memoFile.getPath());
+
+        Sail baseSail = new MemoryStore();
+        baseSail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(baseSail);
+            cache.addDereferencer("http", new Dereferencer() {
+                public Representation dereference(final String uri) throws RippleException {
+                    return new StringRepresentation(document(uri), NTRIPLES);
+                }
+            });
+            LinkedDataSail sail = new LinkedDataSail(baseSail, cache);
+            sail.initialize();
+            try {
+                URI rolledBack = new URIImpl(NS + "rolledBack"), committed = new URIImpl(NS + "committed");
+
+                SailConnection sc = sail.getConnection();
+                SailConnection other = baseSail.getConnection();
+                try {
+                    sc.begin();
+                    sc.addStatement(rolledBack, RDF.TYPE, RDF.PROPERTY);
+                    assertEquals(2, countStatements(sc, rolledBack));
+                    // the memo is neither in the memo store nor in memory until the retrieval is committed
+                    assertNull(cache.peek(rolledBack, other));
+                    sc.rollback();
+                    assertNull(cache.peek(rolledBack, other));
+
+                    sc.begin();
+                    sc.addStatement(committed, RDF.TYPE, RDF.PROPERTY);
+                    assertEquals(2, countStatements(sc, committed));
+                    assertNull(cache.peek(committed, other));
+                    sc.commit();
+                    assertEquals(CacheEntry.Status.Success, cache.peek(committed, other));
+                    assertTrue(cache.isKnownAndFresh(committed.toString()));
+                } finally {
+                    other.close();
+                    sc.close();
+                }
+            } finally {
+                sail.shutDown();
+            }
+
+            // only the committed memo has been written to the memo store
+            MemoStore store = new MemoStore(memoFile);
+            try {
+                assertNull(store.get(RDFUtils.findGraphUri(NS + "rolledBack")));
+                assertEquals(CacheEntry.Status.Success,
+                        store.get(RDFUtils.findGraphUri(NS + "committed")).getStatus());
+            } finally {
+                store.close();
+            }
+        } finally {
+            Ripple.getConfiguration().setString(LinkedDataSail.MEMO_STORE_FILE, "");
+            Ripple.getConfiguration().setInt(LinkedDataSail.COMMIT_BATCH_SIZE, 1);
+            Ripple.getConfiguration().setLong(LinkedDataSail.MAX_COMMIT_DELAY, 1000);
+            baseSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testCpuIntensiveDocumentsAreRdfizedInTheRdfizerPool() throws Exception {
+        final MediaType heavyType = new MediaType("application/x-heavy-ntriples");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                byte[] body = document(NS + exchange.getRequestURI().getPath().substring(1)).getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", heavyType.getName());
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        HostRateLimiter limiter = HTTPUtils.getRateLimiter();
+        long courtesyInterval = limiter.getCourtesyInterval();
+        limiter.setCourtesyInterval(0);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            cache.addDereferencer("http",
+                    new StubServerDereferencer("http://localhost:" + server.getAddress().getPort() + "/"));
+            HeavyRdfizer rdfizer = new HeavyRdfizer();
+            cache.addRdfizer(heavyType, rdfizer, 1.0);
+            cache.setRdfizerPool(Executors.newFixedThreadPool(2, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "test-rdfize");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }));
+
+            List<URI> uris = new LinkedList<URI>();
+            for (int i = 0; i < 20; i++) {
+                uris.add(new URIImpl(NS + "heavy" + i));
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                for (CacheEntry.Status status : cache.retrieveAll(uris, sc)) {
+                    assertEquals(CacheEntry.Status.Success, status);
+                }
+                for (URI uri : uris) {
+                    assertEquals(1, countStatements(sc, uri));
+                }
+
+                // documents are rdfized in the pool, or by the thread which stores them, but never by a fetch thread
+                assertEquals(uris.size(), rdfizer.threadNames.size());
+                for (String name : rdfizer.threadNames) {
+                    assertFalse(name.startsWith("linked-data-fetch-"));
+                }
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            limiter.setCourtesyInterval(courtesyInterval);
+            sail.shutDown();
+            server.stop(0);
+        }
+    }
+
+    private void retrieveDocuments(final String serverUrl,
+                                   final int n,
+                                   final boolean concurrently) throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        // all documents are on the same host; drop the crawler's courtesy delay between requests
+        HostRateLimiter limiter = HTTPUtils.getRateLimiter();
+        long courtesyInterval = limiter.getCourtesyInterval();
+        limiter.setCourtesyInterval(0);
+
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            // fetch directly from the stub server
+            cache.addDereferencer("http", new StubServerDereferencer(serverUrl));
+
+            List<URI> uris = new LinkedList<URI>();
+            for (int i = 0; i < n; i++) {
+                uris.add(new URIImpl(NS + "doc" + i));
+            }
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+
+                List<CacheEntry.Status> results;
+                if (concurrently) {
+                    results = cache.retrieveAll(uris, sc);
+                } else {
+                    results = new LinkedList<CacheEntry.Status>();
+                    for (URI uri : uris) {
+                        results.add(cache.retrieve(uri, sc));
+                    }
+                }
+
+                for (CacheEntry.Status status : results) {
+                    assertEquals(CacheEntry.Status.Success, status);
+                }
+                for (URI uri : uris) {
+                    assertEquals(1, countStatements(sc, uri));
+                }
+
+                sc.commit();
+            } finally {
+                sc.close();
+                cache.close();
+            }
+        } finally {
+            limiter.setCourtesyInterval(courtesyInterval);
+            sail.shutDown();
+        }
+    }
+
+    private static String document(final String uri) {
+        return "<" + uri + "> <" + RDF.TYPE + "> <" + NS + "Document> .\n";
+    }
+
+    // note: the caching metadata of a graph has the graph URI as its subject, so count rdf:type statements only
+    private int countStatements(final SailConnection sc,
+                                final URI subject) throws Exception {
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(subject, RDF.TYPE, null, false);
+        try {
+            int count = 0;
+            while (iter.hasNext()) {
+                iter.next();
+                count++;
+            }
+            return count;
+        } finally {
+            iter.close();
+        }
+    }
+
+    private int countStatements(final SailConnection sc,
+                                final URI predicate,
+                                final URI object) throws Exception {
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(null, predicate, object, false);
+        try {
+            int count = 0;
+            while (iter.hasNext()) {
+                iter.next();
+                count++;
+            }
+            return count;
+        } finally {
+            iter.close();
+        }
+    }
+
+    // counts the statements of a retrieved document, which are stored in the document's named graph
+    private int countDocumentStatements(final SailConnection sc,
+                                        final URI document) throws Exception {
+        URI graph = new URIImpl(RDFUtils.findGraphUri(document.toString()));
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(null, RDF.TYPE, new URIImpl(NS + "Document"), false, graph);
+        try {
+            int count = 0;
+            while (iter.hasNext()) {
+                iter.next();
+                count++;
+            }
+            return count;
+        } finally {
+            iter.close();
+        }
+    }
+
+    // an N-Triples rdfizer which claims to be CPU-intensive, and which records the threads on which it runs
+    private static class HeavyRdfizer implements SchedulableRdfizer {
+        private final Rdfizer parser = new VerbatimRdfizer(RDFFormat.NTRIPLES, RDFParser.DatatypeHandling.IGNORE);
+        private final List<String> threadNames = Collections.synchronizedList(new LinkedList<String>());
+
+        public CacheEntry.Status rdfize(final InputStream is,
+                                        final RDFHandler handler,
+                                        final String baseUri) {
+            threadNames.add(Thread.currentThread().getName());
+            return parser.rdfize(is, handler, baseUri);
+        }
+
+        public boolean isStreaming() {
+            return true;
+        }
+
+        public boolean isCpuIntensive() {
+            return true;
+        }
+    }
+
+    private class StubServerDereferencer implements Dereferencer {
+        private final String serverUrl;
+
+        public StubServerDereferencer(final String serverUrl) {
+            this.serverUrl = serverUrl;
+        }
+
+        public Representation dereference(final String uri) throws RippleException {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(serverUrl
+                        + uri.substring(NS.length())).openConnection();
+                return new InputRepresentation(conn.getInputStream(), new MediaType(conn.getContentType()));
+            } catch (IOException e) {
+                throw new RippleException(e);
+            }
+        }
+    }
 }
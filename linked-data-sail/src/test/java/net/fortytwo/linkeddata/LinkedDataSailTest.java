@@ -11,6 +11,12 @@ import org.openrdf.model.URI;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.QueryParserUtil;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.sail.SailRepository;
@@ -21,6 +27,10 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.memory.MemoryStore;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -107,6 +117,84 @@ public class LinkedDataSailTest extends TestCase {
         }
     }
 
+    public void testQueryDereferencesJoinedUris() throws Exception {
+        File dir = createChain("a", "b", "c");
+
+        assertEquals("c", evaluateSingle("SELECT ?n WHERE {"
+                + " <" + docUri(dir, "a") + "> <urn:org.example.test#next> ?x ."
+                + " ?x <urn:org.example.test#next> ?y ."
+                + " ?y <urn:org.example.test#name> ?n }"));
+    }
+
+    public void testQueryIsAnchoredAtConstantUris() throws Exception {
+        File dir = createChain("a", "b", "c");
+
+        // evaluated in the order written, the first pattern would find only what had been cached so far
+        assertEquals("c", evaluateSingle("SELECT ?n WHERE { ?y <urn:org.example.test#name> ?n ."
+                + " ?x <urn:org.example.test#next> ?y ."
+                + " <" + docUri(dir, "a") + "> <urn:org.example.test#next> ?x }"));
+    }
+
+    public void testSubqueryIsEvaluatedIndependently() throws Exception {
+        File dir = createChain("a", "b", "c");
+
+        // ?x is not projected by the subquery, so the subquery does not see the binding of ?x to b.
+        // Only the name of a, whose document is dereferenced as a constant, is in the cache
+        assertEquals("a", evaluateSingle("SELECT ?n WHERE {"
+                + " <" + docUri(dir, "a") + "> <urn:org.example.test#next> ?x ."
+                + " { SELECT ?n WHERE { ?x <urn:org.example.test#name> ?n } } }"));
+    }
+
+    // creates a chain of documents, each of which links to the next
+    private File createChain(final String... names) throws Exception {
+        File dir = File.createTempFile("linkedDataSailTest", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+
+        for (int i = 0; i < names.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("<").append(docUri(dir, names[i])).append("> <urn:org.example.test#name> \"")
+                    .append(names[i]).append("\" .\n");
+            if (i + 1 < names.length) {
+                sb.append("<").append(docUri(dir, names[i])).append("> <urn:org.example.test#next> <")
+                        .append(docUri(dir, names[i + 1])).append("> .\n");
+            }
+
+            OutputStream out = new FileOutputStream(new File(dir, names[i] + ".nt"));
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.close();
+        }
+
+        return dir;
+    }
+
+    // evaluates a query with a single result and a single binding
+    private String evaluateSingle(final String queryStr) throws Exception {
+        ParsedQuery query = QueryParserUtil.parseTupleQuery(QueryLanguage.SPARQL, queryStr, null);
+
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            CloseableIteration<? extends BindingSet, QueryEvaluationException> results
+                    = sc.evaluate(query.getTupleExpr(), null, new EmptyBindingSet(), false);
+            try {
+                assertTrue(results.hasNext());
+                BindingSet b = results.next();
+                assertFalse(results.hasNext());
+                return b.iterator().next().getValue().stringValue();
+            } finally {
+                results.close();
+            }
+        } finally {
+            sc.rollback();
+            sc.close();
+        }
+    }
+
+    private static String docUri(final File dir, final String name) {
+        return "file:" + new File(dir, name + ".nt").getAbsolutePath();
+    }
+
     private static long countStatements(final CloseableIteration<? extends Statement, SailException> iter)
             throws SailException {
         long count;
@@ -0,0 +1,18 @@
+package net.fortytwo.linkeddata;
+
+/**
+ * A clock which stands still until it is advanced by a test
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class ManualClock implements Clock {
+    private long time = 1000000000000L;
+
+    public synchronized long currentTimeMillis() {
+        return time;
+    }
+
+    public synchronized void advance(final long millis) {
+        time += millis;
+    }
+}
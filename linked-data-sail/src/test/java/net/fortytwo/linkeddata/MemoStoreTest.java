@@ -0,0 +1,291 @@
+package net.fortytwo.linkeddata;
+
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.ripple.Ripple;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+import org.restlet.data.MediaType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MemoStoreTest {
+
+    @Test
+    public void testMemosSurviveReopening() throws Exception {
+        File file = createTempFile();
+        String graphUri = RDFUtils.findGraphUri("http://example.org/foo");
+
+        CacheEntry memo = new CacheEntry(CacheEntry.Status.Success);
+        memo.setMediaType(MediaType.APPLICATION_RDF_XML);
+        memo.setDereferencer("net.fortytwo.linkeddata.dereferencers.HTTPURIDereferencer");
+        memo.setRdfizer("net.fortytwo.linkeddata.rdfizers.VerbatimRdfizer");
+        memo.setETag("\"a,b=c\"");
+        memo.setLastModified(new Date(1000000000000L));
+
+        MemoStore store = new MemoStore(file);
+        try {
+            assertNull(store.get(graphUri));
+            store.put(graphUri, memo);
+            // a URI which is not a hashed graph URI can also be stored
+            store.put("http://example.org/notAGraphUri", new CacheEntry(CacheEntry.Status.Failure));
+            assertEquals(2, store.size());
+        } finally {
+            store.close();
+        }
+
+        store = new MemoStore(file);
+        try {
+            assertEquals(2, store.size());
+            CacheEntry other = store.get(graphUri);
+            assertEquals(CacheEntry.Status.Success, other.getStatus());
+            assertEquals(memo.getTimestamp(), other.getTimestamp());
+            assertEquals(MediaType.APPLICATION_RDF_XML, other.getMediaType());
+            assertEquals(memo.getDereferencer(), other.getDereferencer());
+            assertEquals(memo.getRdfizer(), other.getRdfizer());
+            assertEquals("\"a,b=c\"", other.getETag());
+            assertEquals(memo.getLastModified(), other.getLastModified());
+            assertNull(other.getExpires());
+            assertEquals(CacheEntry.Status.Failure, store.get("http://example.org/notAGraphUri").getStatus());
+
+            store.clear();
+            assertEquals(0, store.size());
+            assertNull(store.get(graphUri));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRecentMemosAndCompaction() throws Exception {
+        File file = createTempFile();
+        int n = 20000;
+        List<String> graphUris = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            graphUris.add(Ripple.RANDOM_URN_PREFIX + UUID.randomUUID());
+        }
+
+        MemoStore store = new MemoStore(file);
+        try {
+            // write each memo several times, leaving mostly superseded records
+            for (CacheEntry.Status status : new CacheEntry.Status[]{
+                    CacheEntry.Status.Timeout, CacheEntry.Status.ServerError, CacheEntry.Status.Success}) {
+                for (String graphUri : graphUris) {
+                    store.put(graphUri, new CacheEntry(status));
+                }
+            }
+            // the first memo is now the most recently written
+            CacheEntry first = new CacheEntry(CacheEntry.Status.Success);
+            first.setETag("\"first\"");
+            store.put(graphUris.get(0), first);
+        } finally {
+            store.close();
+        }
+        long before = file.length();
+
+        store = new MemoStore(file);
+        try {
+            store.compact();
+            assertEquals(n, store.size());
+            for (String graphUri : graphUris) {
+                assertEquals(CacheEntry.Status.Success, store.get(graphUri).getStatus());
+            }
+
+            Map<String, CacheEntry> recent = store.getRecent(3);
+            List<String> keys = new ArrayList<String>(recent.keySet());
+            assertEquals(3, keys.size());
+            assertEquals(graphUris.get(n - 2), keys.get(0));
+            assertEquals(graphUris.get(n - 1), keys.get(1));
+            assertEquals(graphUris.get(0), keys.get(2));
+            assertEquals("\"first\"", recent.get(graphUris.get(0)).getETag());
+
+            // compacted records are appended to as before
+            String graphUri = Ripple.RANDOM_URN_PREFIX + UUID.randomUUID();
+            store.put(graphUri, new CacheEntry(CacheEntry.Status.ClientError));
+            assertEquals(n + 1, store.size());
+        } finally {
+            store.close();
+        }
+
+        store = new MemoStore(file);
+        try {
+            assertEquals(n + 1, store.size());
+            assertEquals("\"first\"", store.get(graphUris.get(0)).getETag());
+        } finally {
+            store.close();
+        }
+        assertTrue(file.length() <= before);
+    }
+
+    @Test
+    public void testRemovedMemosStayRemoved() throws Exception {
+        File file = createTempFile();
+        int n = 5000;
+        List<String> graphUris = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            graphUris.add(Ripple.RANDOM_URN_PREFIX + UUID.randomUUID());
+        }
+
+        MemoStore store = new MemoStore(file);
+        try {
+            for (String graphUri : graphUris) {
+                store.put(graphUri, new CacheEntry(CacheEntry.Status.Success));
+            }
+            store.put("http://example.org/notAGraphUri", new CacheEntry(CacheEntry.Status.Success));
+
+            // remove every other memo, and the memo with a hashed key
+            for (int i = 0; i < n; i += 2) {
+                store.remove(graphUris.get(i));
+            }
+            store.remove("http://example.org/notAGraphUri");
+            // removing a memo which is not there has no effect
+            store.remove(graphUris.get(0));
+            assertEquals(n / 2, store.size());
+            for (int i = 0; i < n; i++) {
+                assertEquals(0 == i % 2, null == store.get(graphUris.get(i)));
+            }
+        } finally {
+            store.close();
+        }
+
+        // removals are replayed when the store is reopened, and discarded when it is compacted
+        store = new MemoStore(file);
+        try {
+            assertEquals(n / 2, store.size());
+            assertNull(store.get("http://example.org/notAGraphUri"));
+            store.compact();
+            assertEquals(n / 2, store.size());
+            for (int i = 0; i < n; i++) {
+                assertEquals(0 == i % 2, null == store.get(graphUris.get(i)));
+            }
+
+            // a removed memo may be written again
+            store.put(graphUris.get(0), new CacheEntry(CacheEntry.Status.Timeout));
+        } finally {
+            store.close();
+        }
+
+        store = new MemoStore(file);
+        try {
+            assertEquals(n / 2 + 1, store.size());
+            assertEquals(CacheEntry.Status.Timeout, store.get(graphUris.get(0)).getStatus());
+            assertNull(store.get(graphUris.get(2)));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedCompactionLeavesTheStoreIntact() throws Exception {
+        File file = createTempFile();
+        String graphUri = RDFUtils.findGraphUri("http://example.org/foo");
+
+        MemoStore store = new MemoStore(file);
+        try {
+            store.put(graphUri, new CacheEntry(CacheEntry.Status.Timeout));
+            store.put(graphUri, new CacheEntry(CacheEntry.Status.Success));
+        } finally {
+            store.close();
+        }
+
+        // a crash during compaction leaves a partially written file beside the store
+        File compactionFile = MemoStore.compactionFileOf(file);
+        compactionFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(compactionFile);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        store = new MemoStore(file);
+        try {
+            assertFalse(compactionFile.exists());
+            assertEquals(CacheEntry.Status.Success, store.get(graphUri).getStatus());
+
+            store.compact();
+            assertFalse(compactionFile.exists());
+            assertEquals(1, store.size());
+            assertEquals(CacheEntry.Status.Success, store.get(graphUri).getStatus());
+        } finally {
+            store.close();
+        }
+
+        store = new MemoStore(file);
+        try {
+            assertEquals(CacheEntry.Status.Success, store.get(graphUri).getStatus());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testMemosAreMigratedFromTheTripleStore() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            ValueFactory vf = sail.getValueFactory();
+            String graphUri = RDFUtils.findGraphUri("http://example.org/foo");
+            CacheEntry memo = new CacheEntry(CacheEntry.Status.ParseError);
+
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                new CachingMetadata(100, vf).setMemo(graphUri, memo, sc);
+                sc.commit();
+
+                MemoStore store = new MemoStore(createTempFile());
+                CachingMetadata metadata = new CachingMetadata(100, vf, store);
+                try {
+                    sc.begin();
+                    assertEquals(1, metadata.migrateMemos(sc));
+                    sc.commit();
+
+                    assertEquals(CacheEntry.Status.ParseError, store.get(graphUri).getStatus());
+                    CloseableIteration<? extends Statement, SailException> iter = sc.getStatements(
+                            null, LinkedDataCache.CACHE_MEMO, null, false, LinkedDataCache.CACHE_GRAPH);
+                    try {
+                        assertFalse(iter.hasNext());
+                    } finally {
+                        iter.close();
+                    }
+
+                    assertEquals(1, metadata.warmUp());
+                    assertEquals(CacheEntry.Status.ParseError, metadata.getMemo(graphUri, sc).getStatus());
+                } finally {
+                    metadata.close();
+                }
+            } finally {
+                sc.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private File createTempFile() throws Exception {
+        File file = File.createTempFile("memos", ".bin");
+        file.deleteOnExit();
+        // the store creates the file itself
+        assertTrue(file.delete());
+        return file;
+    }
+}
@@ -0,0 +1,164 @@
+package net.fortytwo.linkeddata;
+
+import info.aduna.iteration.CloseableIteration;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RedirectManagerTest {
+    private static final String NS = "http://example.org/redirectManagerTest/";
+
+    @Test
+    public void testRedirectsAreIndexedAndWrittenLater() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                RedirectManager m = new RedirectManager(sc, 1000, 10);
+
+                assertFalse(m.existsRedirectTo(NS + "doc"));
+                m.persistRedirect(NS + "thing1", NS + "doc");
+                assertTrue(m.existsRedirectTo(NS + "doc"));
+                assertFalse(m.existsRedirectTo(NS + "otherDoc"));
+                // nothing is written until the manager is flushed
+                assertEquals(0, countRedirects(sc));
+
+                m.persistRedirect(NS + "thing2", NS + "doc");
+                // a later redirect of the same thing replaces the earlier one
+                m.persistRedirect(NS + "thing2", NS + "doc");
+                assertEquals(4, m.flush(sc));
+                assertEquals(2, countRedirects(sc));
+                assertEquals(0, m.flush(sc));
+                sc.commit();
+
+                // none of the lookups needed the triple store
+                assertEquals(3, m.getLookups());
+                assertEquals(0, m.getStoreLookups());
+
+                // a new manager loads the redirects from the triple store
+                sc.begin();
+                m = new RedirectManager(sc, 1000, 10);
+                assertTrue(m.existsRedirectTo(NS + "doc"));
+                assertEquals(1, m.getStoreLookups());
+                assertTrue(m.existsRedirectTo(NS + "doc"));
+                assertEquals(1, m.getStoreLookups());
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testRedirectsToADocumentAreRemovedTogether() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            SailConnection sc = sail.getConnection();
+            try {
+                sc.begin();
+                RedirectManager m = new RedirectManager(sc, 1000, 10);
+
+                m.persistRedirect(NS + "thing1", NS + "doc");
+                m.persistRedirect(NS + "thing2", NS + "doc");
+                m.flush(sc);
+                // a redirect which has not yet been written is removed as well
+                m.persistRedirect(NS + "thing3", NS + "doc");
+                m.persistRedirect(NS + "thing4", NS + "otherDoc");
+
+                Set<String> others = new HashSet<String>();
+                // only the two redirects which have been written are removed from the triple store
+                assertEquals(2, m.removeRedirectsVia(RDFUtils.hashedUri(NS + "thing1"), others, sc));
+                assertEquals(
+                        new HashSet<String>(Arrays.asList(
+                                RDFUtils.hashedUri(NS + "thing2"), RDFUtils.hashedUri(NS + "thing3"))),
+                        others);
+                assertFalse(m.existsRedirectTo(NS + "doc"));
+                assertTrue(m.existsRedirectTo(NS + "otherDoc"));
+
+                m.flush(sc);
+                assertEquals(1, countRedirects(sc));
+                others.clear();
+                assertEquals(0, m.removeRedirectsVia(RDFUtils.hashedUri(NS + "thing1"), others, sc));
+                assertEquals(Collections.<String>emptySet(), others);
+                sc.commit();
+            } finally {
+                sc.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testReloadingForgetsOnlyRedirectsWhichWereRolledBack() throws Exception {
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            SailConnection sc = sail.getConnection();
+            SailConnection other = sail.getConnection();
+            try {
+                sc.begin();
+                RedirectManager m = new RedirectManager(sc, 1000, 10);
+
+                m.persistRedirect(NS + "thing1", NS + "doc1");
+                m.flush(sc);
+                sc.commit();
+
+                // a redirect is written to another connection, which is then rolled back
+                other.begin();
+                m.persistRedirect(NS + "thing2", NS + "doc2");
+                m.flush(other);
+                other.rollback();
+                m.persistRedirect(NS + "thing3", NS + "doc3");
+
+                sc.begin();
+                m.reload();
+                assertTrue(m.existsRedirectTo(NS + "doc1"));
+                assertFalse(m.existsRedirectTo(NS + "doc2"));
+                assertFalse(m.existsRedirectTo(NS + "doc3"));
+                assertEquals(0, m.flush(sc));
+                sc.commit();
+            } finally {
+                other.close();
+                sc.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private int countRedirects(final SailConnection sc) throws Exception {
+        CloseableIteration<? extends Statement, SailException> iter
+                = sc.getStatements(null, LinkedDataCache.CACHE_REDIRECTSTO, null, false);
+        try {
+            int count = 0;
+            while (iter.hasNext()) {
+                iter.next();
+                count++;
+            }
+            return count;
+        } finally {
+            iter.close();
+        }
+    }
+}
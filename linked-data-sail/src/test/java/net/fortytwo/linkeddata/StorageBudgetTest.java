@@ -0,0 +1,98 @@
+package net.fortytwo.linkeddata;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StorageBudgetTest {
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void testLeastRecentlyUsedGraphsAreEvicted() throws Exception {
+        StorageBudget b = new StorageBudget(10, 100);
+        CacheEntry a = memo(), c = memo();
+
+        b.stored("a", a, 4);
+        b.stored("b", memo(), 4);
+        b.stored("c", c, 2);
+        assertEquals(10, b.getTotalStatements());
+        assertTrue(b.chooseEvictions(NONE).isEmpty());
+
+        // a lookup makes a graph the most recently used
+        b.used("a", a);
+        b.stored("d", memo(), 3);
+        assertEquals(Arrays.asList("b"), b.chooseEvictions(NONE));
+        assertEquals(9, b.getTotalStatements());
+
+        // a graph which is excluded, e.g. because it is being retrieved, is passed over
+        b.stored("c", c, 9);
+        assertEquals(Arrays.asList("a", "d"), b.chooseEvictions(Arrays.asList("c")));
+        assertEquals(9, b.getTotalStatements());
+        assertEquals(1, b.getGraphs());
+        assertEquals(3, b.getEvictions());
+        assertEquals(11, b.getEvictedStatements());
+    }
+
+    @Test
+    public void testUsedGraphsAreGivenASecondChance() throws Exception {
+        StorageBudget b = new StorageBudget(2, 100);
+        CacheEntry a = memo();
+
+        b.stored("a", a, 1);
+        b.stored("b", memo(), 1);
+        // a lookup through the index of known URIs only marks the memo
+        a.markUsed();
+        b.stored("c", memo(), 1);
+        assertEquals(Arrays.asList("b"), b.chooseEvictions(NONE));
+
+        // the mark is cleared once the graph has been spared
+        b.stored("d", memo(), 1);
+        assertEquals(Arrays.asList("c"), b.chooseEvictions(NONE));
+        b.stored("e", memo(), 1);
+        assertEquals(Arrays.asList("a"), b.chooseEvictions(NONE));
+    }
+
+    @Test
+    public void testRefetchesAreCounted() throws Exception {
+        StorageBudget b = new StorageBudget(1, 1);
+
+        b.stored("a", memo(), 1);
+        b.stored("b", memo(), 1);
+        assertEquals(Arrays.asList("a"), b.chooseEvictions(NONE));
+        b.stored("c", memo(), 1);
+        assertEquals(Arrays.asList("b"), b.chooseEvictions(NONE));
+
+        // only the most recently evicted graph is remembered
+        b.retrieving("a");
+        assertEquals(0, b.getRefetches());
+        b.retrieving("b");
+        b.retrieving("b");
+        assertEquals(1, b.getRefetches());
+
+        b.removed("c");
+        assertEquals(0, b.getTotalStatements());
+    }
+
+    @Test
+    public void testUnboundedBudgetEvictsNothing() throws Exception {
+        StorageBudget b = new StorageBudget(0, 100);
+        assertFalse(b.isBounded());
+
+        b.stored("a", memo(), 1000000);
+        assertTrue(b.chooseEvictions(NONE).isEmpty());
+        assertEquals(0, b.getEvictions());
+    }
+
+    private CacheEntry memo() {
+        return new CacheEntry(CacheEntry.Status.Success);
+    }
+}
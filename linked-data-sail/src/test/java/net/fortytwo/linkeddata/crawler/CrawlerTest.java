@@ -0,0 +1,139 @@
+package net.fortytwo.linkeddata.crawler;
+
+import net.fortytwo.linkeddata.CacheEntry;
+import net.fortytwo.linkeddata.LinkedDataCache;
+import org.junit.Test;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CrawlerTest {
+
+    @Test
+    public void testLinksAreFollowedToMaximumDepth() throws Exception {
+        File dir = createTempDirectory();
+        String[] docs = createChain(dir, "a", "b", "c", "d");
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            try {
+                Crawler crawler = new Crawler(cache);
+                crawler.setMaxDepth(2);
+                CrawlStats stats = crawler.crawl(Collections.singletonList(docs[0]));
+
+                assertEquals(3, stats.getDocuments());
+                assertEquals(3L, (long) stats.getStatusCounts().get(CacheEntry.Status.Success));
+                assertEquals(0, stats.getPending());
+                long bytes = 0;
+                for (int i = 0; i < 3; i++) {
+                    bytes += new File(docs[i].substring(5)).length();
+                }
+                assertEquals(bytes, stats.getBytes());
+
+                assertEquals(CacheEntry.Status.Success, cache.peek(new URIImpl(docs[2]), cache.getSailConnection()));
+                assertNull(cache.peek(new URIImpl(docs[3]), cache.getSailConnection()));
+
+                // each document describes only its own subject, so following subjects leads nowhere
+                crawler.setLinks(Crawler.Links.Subjects);
+                crawler.setMaxDepth(5);
+                stats = crawler.crawl(Collections.singletonList(docs[0]));
+                assertEquals(1, stats.getDocuments());
+            } finally {
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    @Test
+    public void testInterruptedCrawlIsResumed() throws Exception {
+        File dir = createTempDirectory();
+        String[] docs = createChain(dir, "a", "b", "c", "d");
+        File checkpointFile = new File(dir, "checkpoint.txt");
+
+        // a crawl which was killed after completing the first document and enqueuing the second and third
+        OutputStream out = new FileOutputStream(checkpointFile);
+        out.write(("+\t0\t" + docs[0] + "\n+\t1\t" + docs[1] + "\n-\t" + docs[0] + "\n+\t2\t" + docs[2]
+                + "\n-\t" + docs[1].substring(0, 10)).getBytes("UTF-8"));
+        out.close();
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            LinkedDataCache cache = LinkedDataCache.createDefault(sail);
+            try {
+                Crawler crawler = new Crawler(cache);
+                crawler.setMaxDepth(2);
+                crawler.setCheckpointFile(checkpointFile);
+
+                // the seed has already been crawled, so only the pending documents are retrieved
+                CrawlStats stats = crawler.crawl(Collections.singletonList(docs[0]));
+                assertEquals(2, stats.getDocuments());
+                assertNull(cache.peek(new URIImpl(docs[0]), cache.getSailConnection()));
+                assertEquals(CacheEntry.Status.Success, cache.peek(new URIImpl(docs[2]), cache.getSailConnection()));
+                assertNull(cache.peek(new URIImpl(docs[3]), cache.getSailConnection()));
+
+                Set<String> seen = new HashSet<String>();
+                assertEquals(0, new CrawlCheckpoint(checkpointFile).load(seen).size());
+                assertEquals(new HashSet<String>(Arrays.asList(docs[0], docs[1], docs[2])), seen);
+
+                // a finished crawl has nothing more to do
+                stats = crawler.crawl(Collections.singletonList(docs[0]));
+                assertEquals(0, stats.getDocuments());
+            } finally {
+                cache.close();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private File createTempDirectory() throws Exception {
+        File dir = File.createTempFile("crawl", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    // creates N-Triples documents, each of which links to the next
+    private String[] createChain(final File dir, final String... names) throws Exception {
+        String[] uris = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            uris[i] = "file:" + new File(dir, names[i] + ".nt").getAbsolutePath();
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("<").append(uris[i]).append("#it> <http://example.org/crawlerTest/name> \"")
+                    .append(names[i]).append("\" .\n");
+            if (i + 1 < names.length) {
+                sb.append("<").append(uris[i]).append("#it> <http://example.org/crawlerTest/next> <")
+                        .append(uris[i + 1]).append("#it> .\n");
+            }
+
+            OutputStream out = new FileOutputStream(new File(dir, names[i] + ".nt"));
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.close();
+        }
+
+        return uris;
+    }
+}
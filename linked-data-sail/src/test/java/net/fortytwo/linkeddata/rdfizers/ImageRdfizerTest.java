@@ -0,0 +1,124 @@
+package net.fortytwo.linkeddata.rdfizers;
+
+import net.fortytwo.linkeddata.CacheEntry;
+import org.junit.Test;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ImageRdfizerTest {
+    private static final String BASE_URI = "http://example.org/imageRdfizerTest/";
+
+    @Test
+    public void testOnlyJpegMetadataIsRead() throws Exception {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        // start of image
+        image.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        // a JFIF segment, which is skipped
+        segment(image, 0xE0, "JFIF\0".getBytes("US-ASCII"), 9);
+        // an EXIF segment with a single entry in its first directory
+        ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        exif.write("Exif\0\0".getBytes("US-ASCII"));
+        exif.write(new byte[]{'I', 'I', 42, 0, 8, 0, 0, 0, 1, 0});
+        exif.write(new byte[12 + 4]);
+        segment(image, 0xE1, exif.toByteArray(), 0);
+        // start of scan, followed by a large amount of image data
+        image.write(new byte[]{(byte) 0xFF, (byte) 0xDA});
+        int metadataLength = image.size();
+        image.write(new byte[1000000]);
+
+        CountingInputStream is = new CountingInputStream(new ByteArrayInputStream(image.toByteArray()));
+        StatementCollector c = new StatementCollector();
+        assertEquals(CacheEntry.Status.Success, new ImageRdfizer().rdfize(is, c, BASE_URI));
+        assertEquals(metadataLength, is.count);
+        assertTrue(c.getStatements().isEmpty());
+    }
+
+    @Test
+    public void testOnlyTiffHeaderIsRead() throws Exception {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        // a big-endian header, with a first directory of two entries
+        image.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8, 0, 2});
+        image.write(new byte[2 * 12 + 4]);
+        image.write(new byte[1000000]);
+
+        CountingInputStream is = new CountingInputStream(new ByteArrayInputStream(image.toByteArray()));
+        assertEquals(CacheEntry.Status.Success, new ImageRdfizer().rdfize(is, new StatementCollector(), BASE_URI));
+        assertTrue(is.count < 100000);
+    }
+
+    @Test
+    public void testMalformedImagesAreRejected() throws Exception {
+        ImageRdfizer r = new ImageRdfizer();
+
+        // not an image
+        assertEquals(CacheEntry.Status.RdfizerError, r.rdfize(
+                new ByteArrayInputStream("<html></html>".getBytes("US-ASCII")), new StatementCollector(), BASE_URI));
+
+        // a JPEG image which ends before its image data
+        assertEquals(CacheEntry.Status.RdfizerError, r.rdfize(
+                new ByteArrayInputStream(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16}),
+                new StatementCollector(), BASE_URI));
+
+        // a JPEG image whose EXIF metadata is truncated
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        image.write(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        segment(image, 0xE1, "Exif\0\0II".getBytes("US-ASCII"), 0);
+        image.write(new byte[]{(byte) 0xFF, (byte) 0xDA});
+        assertEquals(CacheEntry.Status.RdfizerError, r.rdfize(
+                new ByteArrayInputStream(image.toByteArray()), new StatementCollector(), BASE_URI));
+    }
+
+    private void segment(final ByteArrayOutputStream image,
+                         final int marker,
+                         final byte[] content,
+                         final int padding) throws IOException {
+        int length = 2 + content.length + padding;
+        image.write(new byte[]{(byte) 0xFF, (byte) marker, (byte) (length >> 8), (byte) length});
+        image.write(content);
+        image.write(new byte[padding]);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        public CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
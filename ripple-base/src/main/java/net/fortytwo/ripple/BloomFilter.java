@@ -0,0 +1,103 @@
+package net.fortytwo.ripple;
+
+/**
+ * A fixed-size Bloom filter over 64-bit hashes.
+ * A hash which has been added is always reported as present,
+ * while a hash which has not been added is reported as present with a small probability.
+ * That probability is at most the given false positive rate for up to the expected number of insertions,
+ * and grows beyond it as the filter fills up.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final long numberOfBits;
+    private final int numberOfHashFunctions;
+
+    /**
+     * @param expectedInsertions the number of distinct hashes the filter is sized for
+     * @param falsePositiveRate  the desired false positive rate at the expected number of insertions
+     */
+    public BloomFilter(final long expectedInsertions,
+                       final double falsePositiveRate) {
+        if (expectedInsertions < 1) {
+            throw new IllegalArgumentException("expected number of insertions must be positive");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        }
+
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        if (m / 64 >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter would be too large");
+        }
+
+        bits = new long[(int) ((m + 63) / 64)];
+        numberOfBits = bits.length * 64L;
+        numberOfHashFunctions = Math.max(1, (int) Math.round((double) numberOfBits / expectedInsertions * ln2));
+    }
+
+    /**
+     * @param hash a 64-bit hash
+     * @return whether the hash was not (definitely) already in the filter
+     */
+    public boolean add(final long hash) {
+        long h = finalizeHash(hash);
+        long h1 = h & 0xffffffffL;
+        long h2 = h >>> 32;
+
+        boolean changed = false;
+        for (int i = 0; i < numberOfHashFunctions; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            if (0 == (bits[word] & mask)) {
+                bits[word] |= mask;
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * @param hash a 64-bit hash
+     * @return whether the hash may have been added to the filter
+     */
+    public boolean mightContain(final long hash) {
+        long h = finalizeHash(hash);
+        long h1 = h & 0xffffffffL;
+        long h2 = h >>> 32;
+
+        for (int i = 0; i < numberOfHashFunctions; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % numberOfBits;
+            if (0 == (bits[(int) (index >>> 6)] & (1L << index))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public long getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    public int getNumberOfHashFunctions() {
+        return numberOfHashFunctions;
+    }
+
+    /**
+     * Spreads the bits of a hash which may not be well distributed (the 64-bit finalizer of MurmurHash3)
+     */
+    static long finalizeHash(final long hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,82 @@
+package net.fortytwo.ripple;
+
+/**
+ * A HyperLogLog sketch which estimates the number of distinct 64-bit hashes added to it, in fixed memory.
+ * With a precision of p, the sketch holds 2^p one-byte registers,
+ * and the relative standard error of the estimate is about 1.04 / sqrt(2^p).
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HyperLogLog {
+    public static final int MIN_PRECISION = 4, MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision the number of hash bits used to select a register, from 4 to 18
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @param hash a 64-bit hash
+     */
+    public void add(final long hash) {
+        long h = BloomFilter.finalizeHash(hash);
+        int index = (int) (h >>> (64 - precision));
+        // the position of the leftmost 1 bit among the remaining bits, which are padded with a 1 bit
+        int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct hashes which have been added
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (0 == r) {
+                zeros++;
+            }
+        }
+
+        double e = alpha(m) * m * m / sum;
+
+        // for small cardinalities, linear counting is more accurate
+        if (e <= 2.5 * m && zeros > 0) {
+            e = m * Math.log((double) m / zeros);
+        }
+
+        return Math.round(e);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    private static double alpha(final int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
@@ -24,6 +24,10 @@ public final class Ripple {
             RESULT_VIEW_MAX_PREDICATES = "net.fortytwo.ripple.cli.resultViewMaxPredicates",
             RESULT_VIEW_PRINT_ENTIRE_STACK = "net.fortytwo.ripple.cli.resultViewPrintEntireStack",
             MAX_WORKER_THREADS = "net.fortytwo.ripple.control.maxWorkerThreads",
+            MAX_QUEUED_TASKS = "net.fortytwo.ripple.control.maxQueuedTasks",
+            SCHEDULER_REJECTION_POLICY = "net.fortytwo.ripple.control.schedulerRejectionPolicy",
+            USE_VIRTUAL_THREADS = "net.fortytwo.ripple.control.useVirtualThreads",
+            MAX_VIRTUAL_THREADS = "net.fortytwo.ripple.control.maxVirtualThreads",
             ALLEGROSAIL_HOST = "net.fortytwo.ripple.demo.allegroSailHost",
             ALLEGROSAIL_PORT = "net.fortytwo.ripple.demo.allegroSailPort",
             ALLEGROSAIL_START = "net.fortytwo.ripple.demo.allegroSailStart",
@@ -41,8 +45,18 @@ public final class Ripple {
             PREFER_NEWEST_NAMESPACE_DEFINITIONS = "net.fortytwo.ripple.io.preferNewestNamespaceDefinitions",
             HTTPCONNECTION_COURTESY_INTERVAL = "net.fortytwo.ripple.io.httpConnectionCourtesyInterval",
             HTTPCONNECTION_TIMEOUT = "net.fortytwo.ripple.io.httpConnectionTimeout",
+            HTTPCONNECTION_BURST_SIZE = "net.fortytwo.ripple.io.httpConnectionBurstSize",
+            HTTPCONNECTION_MAX_HOSTS = "net.fortytwo.ripple.io.httpConnectionMaxHosts",
+            HTTPCONNECTION_RESPECT_CRAWL_DELAY = "net.fortytwo.ripple.io.httpConnectionRespectCrawlDelay",
             USE_BLANK_NODES = "net.fortytwo.ripple.model.useBlankNodes",
             MEMOIZE_LISTS_FROM_RDF = "net.fortytwo.ripple.model.memoizeListsFromRdf",
+            LIST_CACHE_CAPACITY = "net.fortytwo.ripple.model.listCacheCapacity",
+            LIST_CACHE_MAX_WEIGHT = "net.fortytwo.ripple.model.listCacheMaxWeight",
+            LIST_SET_MEMORY_CAPACITY = "net.fortytwo.ripple.model.listSetMemoryCapacity",
+            LIST_SET_SPILL_TO_DISK = "net.fortytwo.ripple.model.listSetSpillToDisk",
+            PATTERN_CACHE_CAPACITY = "net.fortytwo.ripple.model.patternCacheCapacity",
+            PATTERN_CACHE_MAX_WEIGHT = "net.fortytwo.ripple.model.patternCacheMaxWeight",
+            QUERY_BATCH_SIZE = "net.fortytwo.ripple.model.queryBatchSize",
             DEFAULT_NAMESPACE = "net.fortytwo.ripple.model.defaultNamespace",
             VERSION = "net.fortytwo.ripple.version",
     // TODO: .........
@@ -0,0 +1,66 @@
+package net.fortytwo.ripple;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BloomFilterTest extends TestCase {
+
+    public void testNoFalseNegatives() throws Exception {
+        BloomFilter f = new BloomFilter(10000, 0.01);
+
+        for (long i = 0; i < 10000; i++) {
+            f.add(i);
+        }
+
+        for (long i = 0; i < 10000; i++) {
+            assertTrue(f.mightContain(i));
+            assertFalse(f.add(i));
+        }
+    }
+
+    public void testFalsePositiveRate() throws Exception {
+        int n = 100000;
+        for (double rate : new double[]{0.1, 0.01, 0.001}) {
+            BloomFilter f = new BloomFilter(n, rate);
+            for (long i = 0; i < n; i++) {
+                f.add(i);
+            }
+
+            int falsePositives = 0;
+            for (long i = n; i < 2 * n; i++) {
+                if (f.mightContain(i)) {
+                    falsePositives++;
+                }
+            }
+
+            double observed = falsePositives / (double) n;
+            assertTrue("observed false positive rate " + observed + " for target " + rate,
+                    observed < rate * 1.5);
+        }
+    }
+
+    public void testSize() throws Exception {
+        // about 9.6 bits and 7 hash functions per element at a 1% false positive rate
+        BloomFilter f = new BloomFilter(1000000, 0.01);
+        assertTrue(f.getNumberOfBits() >= 9585059 && f.getNumberOfBits() < 9585059 + 64);
+        assertEquals(7, f.getNumberOfHashFunctions());
+    }
+
+    public void testIllegalArguments() throws Exception {
+        try {
+            new BloomFilter(0, 0.01);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // good
+        }
+
+        try {
+            new BloomFilter(1000, 1.0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // good
+        }
+    }
+}
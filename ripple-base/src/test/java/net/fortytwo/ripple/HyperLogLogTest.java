@@ -0,0 +1,52 @@
+package net.fortytwo.ripple;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HyperLogLogTest extends TestCase {
+
+    public void testEmpty() throws Exception {
+        assertEquals(0, new HyperLogLog(14).estimate());
+    }
+
+    public void testDuplicatesAreNotCounted() throws Exception {
+        HyperLogLog h = new HyperLogLog(14);
+        for (int j = 0; j < 10; j++) {
+            for (long i = 0; i < 1000; i++) {
+                h.add(i);
+            }
+        }
+
+        assertEquals(1000, h.estimate(), 1000 * 0.02);
+    }
+
+    public void testAccuracy() throws Exception {
+        for (int precision : new int[]{10, 14}) {
+            double stdError = 1.04 / Math.sqrt(1 << precision);
+
+            for (long n : new long[]{100, 10000, 1000000}) {
+                HyperLogLog h = new HyperLogLog(precision);
+                for (long i = 0; i < n; i++) {
+                    h.add(i * 31 + 7);
+                }
+
+                double error = Math.abs(h.estimate() - n) / (double) n;
+                assertTrue("relative error " + error + " for " + n + " elements at precision " + precision,
+                        error < 4 * stdError);
+            }
+        }
+    }
+
+    public void testIllegalPrecision() throws Exception {
+        for (int p : new int[]{HyperLogLog.MIN_PRECISION - 1, HyperLogLog.MAX_PRECISION + 1}) {
+            try {
+                new HyperLogLog(p);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // good
+            }
+        }
+    }
+}
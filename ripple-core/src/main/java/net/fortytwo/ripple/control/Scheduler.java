@@ -4,218 +4,444 @@ import net.fortytwo.flow.NullSink;
 import net.fortytwo.flow.Sink;
 import net.fortytwo.ripple.Ripple;
 import net.fortytwo.ripple.RippleException;
-
-import java.util.Iterator;
-import java.util.LinkedList;
+import net.fortytwo.ripple.RippleProperties;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * A global executor for Ripple tasks.
+ * Tasks are executed by a bounded pool of worker threads, fed by a bounded queue.
+ * When both the pool and the queue are full, new tasks are handled according to a configurable
+ * <code>RejectionPolicy</code>, which applies backpressure to the thread submitting the tasks.
+ * Blocking tasks (those which spend most of their time waiting on I/O) may optionally be executed on
+ * virtual threads instead, where the JVM supports them.
+ * Note: the queue was formerly unbounded, so that adding a task never blocked, and never executed the task
+ * in the adding thread.  The default <code>CALLER_RUNS</code> policy differs from this only once
+ * the queue is full (10000 tasks by default), at which point the adding thread executes the task itself.
+ * The executor and queue are those of <code>java.util.concurrent</code>, which use locks;
+ * the JDK offers no bounded, lock-free queue for the Java version these modules target.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public final class Scheduler {
     private static final Logger logger = Logger.getLogger(Scheduler.class.getName());
 
+    /**
+     * The behavior of the scheduler when a task is added while all worker threads are busy
+     * and the task queue is full
+     */
+    public enum RejectionPolicy {
+        /**
+         * The task is executed immediately in the thread which added it
+         */
+        CALLER_RUNS,
+        /**
+         * The thread which added the task blocks until there is room in the queue.
+         * A task added by one of the scheduler's own worker threads (that is, a nested task)
+         * is instead executed immediately in that thread, as under <code>CALLER_RUNS</code>,
+         * since a worker waiting for the queue to drain could otherwise wait forever.
+         */
+        BLOCK,
+        /**
+         * The task is not executed, and an exception is thrown
+         */
+        ABORT
+    }
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
     private static Scheduler singleInstance = null;
-    private static long workerThreadCount = 0;
 
-    private final LinkedList<TaskItem> taskQueue;
-    private final LinkedList<WorkerRunnable> allRunnables;
-    private final LinkedList<WorkerRunnable> waitingRunnables;
-    private final int maxThreads;
+    // the task being executed by the current thread, if any
+    private static final ThreadLocal<Task> currentTask = new ThreadLocal<Task>();
+
+    private final ThreadPoolExecutor executor;
+    private final RejectionPolicy rejectionPolicy;
+    private final Set<Task> runningTasks
+            = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+
+    // note: virtual threads require Java 21 or later, and are looked up reflectively
+    private final ExecutorService virtualThreadExecutor;
+    private final Semaphore virtualThreadPermits;
+    private volatile boolean useVirtualThreads;
+
+    private final AtomicLong
+            workerThreadCount = new AtomicLong(0),
+            queuedTaskCount = new AtomicLong(0),
+            runningTaskCount = new AtomicLong(0),
+            completedTaskCount = new AtomicLong(0),
+            rejectedTaskCount = new AtomicLong(0);
 
     public static void add(final Task task, final Sink<Task> completedTaskSink) throws RippleException {
+        getInstance().addPrivate(task, completedTaskSink);
+    }
+
+    public static void add(final Task task) throws RippleException {
+        add(task, new NullSink<Task>());
+    }
+
+    /**
+     * Adds a task which is expected to spend most of its time blocked on I/O.
+     * If virtual threads are enabled, the task is executed on a virtual thread of its own;
+     * otherwise, it is executed by the worker thread pool like any other task.
+     * Once the maximum number of virtual threads are in use, a task added by another task is executed
+     * immediately in the adding thread, while any other task waits for a virtual thread to become available.
+     *
+     * @param task              the task to execute
+     * @param completedTaskSink a handler for the task once it has finished executing
+     * @throws RippleException if the task cannot be scheduled
+     */
+    public static void addBlocking(final Task task, final Sink<Task> completedTaskSink) throws RippleException {
+        getInstance().addBlockingPrivate(task, completedTaskSink);
+    }
+
+    /**
+     * @return the global scheduler, which is created on demand
+     * @throws RippleException if the scheduler cannot be configured
+     */
+    public static synchronized Scheduler getInstance() throws RippleException {
         if (null == singleInstance) {
-            singleInstance = new Scheduler();
+            singleInstance = createFromConfiguration();
         }
 
-        singleInstance.addPrivate(task, completedTaskSink);
+        return singleInstance;
     }
 
-    public static void add(final Task task) throws RippleException {
-        add(task, new NullSink<Task>());
+    private static Scheduler createFromConfiguration() throws RippleException {
+        RippleProperties conf = Ripple.getConfiguration();
+        String policy = conf.getString(Ripple.SCHEDULER_REJECTION_POLICY, RejectionPolicy.CALLER_RUNS.name());
+
+        RejectionPolicy rejectionPolicy;
+        try {
+            rejectionPolicy = RejectionPolicy.valueOf(policy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RippleException("bad value for " + Ripple.SCHEDULER_REJECTION_POLICY + ": " + policy);
+        }
+
+        return new Scheduler(conf.getInt(Ripple.MAX_WORKER_THREADS),
+                conf.getInt(Ripple.MAX_QUEUED_TASKS, 10000),
+                rejectionPolicy,
+                conf.getInt(Ripple.MAX_VIRTUAL_THREADS, 10000),
+                conf.getBoolean(Ripple.USE_VIRTUAL_THREADS, false));
     }
 
-    private synchronized static long nextWorkerId() {
-        return ++workerThreadCount;
+    // note: apart from the global scheduler, schedulers are created only for testing
+    Scheduler(final int maxThreads,
+              final int maxQueuedTasks,
+              final RejectionPolicy rejectionPolicy,
+              final int maxVirtualThreads,
+              final boolean useVirtualThreads) throws RippleException {
+        this(maxThreads, maxQueuedTasks, rejectionPolicy, maxVirtualThreads, useVirtualThreads,
+                createVirtualThreadExecutor());
     }
 
-    private Scheduler() throws RippleException {
-        taskQueue = new LinkedList<TaskItem>();
-        allRunnables = new LinkedList<WorkerRunnable>();
-        waitingRunnables = new LinkedList<WorkerRunnable>();
+    // the virtual thread executor may be replaced with an ordinary one, so that its limits can be tested on any JVM
+    Scheduler(final int maxThreads,
+              final int maxQueuedTasks,
+              final RejectionPolicy rejectionPolicy,
+              final int maxVirtualThreads,
+              final boolean useVirtualThreads,
+              final ExecutorService virtualThreadExecutor) throws RippleException {
+        if (maxThreads < 1) {
+            throw new RippleException("bad value for " + Ripple.MAX_WORKER_THREADS + ": " + maxThreads);
+        }
+        if (maxQueuedTasks < 1) {
+            throw new RippleException("bad value for " + Ripple.MAX_QUEUED_TASKS + ": " + maxQueuedTasks);
+        }
+        if (maxVirtualThreads < 1) {
+            throw new RippleException("bad value for " + Ripple.MAX_VIRTUAL_THREADS + ": " + maxVirtualThreads);
+        }
+
+        this.rejectionPolicy = rejectionPolicy;
+
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(maxQueuedTasks);
 
-        maxThreads = Ripple.getConfiguration().getInt(Ripple.MAX_WORKER_THREADS);
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, new WorkerThreadFactory(), new RejectionHandler());
+        executor.allowCoreThreadTimeOut(true);
+
+        this.virtualThreadExecutor = virtualThreadExecutor;
+        virtualThreadPermits = new Semaphore(maxVirtualThreads);
+        setUseVirtualThreads(useVirtualThreads);
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "failed to create virtual thread executor", e);
+            return null;
+        }
     }
 
-    private void addPrivate(final Task task, final Sink<Task> completedTaskSink) {
+    void addPrivate(final Task task, final Sink<Task> completedTaskSink) throws RippleException {
         // Initialize the task immediately.  It may not begin executing for
         // some time.
         task.begin();
 
-//System.out.println( "[" + this + "]addPrivate( " + task + ", ... )" );
         // Add the new task as a child of the currently executing task.
-        Thread currentThread = Thread.currentThread();
-        if (currentThread instanceof WorkerThread) {
-            Task parent = ((WorkerThread) currentThread).getCurrentTask();
-//System.out.println( "    parent = " + parent );
+        Task parent = currentTask.get();
+        if (null != parent) {
             parent.addChild(task);
         }
 
-        TaskItem taskItem = new TaskItem(task, completedTaskSink);
+        queuedTaskCount.incrementAndGet();
 
-        synchronized (taskQueue) {
-            taskQueue.addLast(taskItem);
+        try {
+            executor.execute(new TaskItem(task, completedTaskSink));
+        } catch (RejectedExecutionException e) {
+            queuedTaskCount.decrementAndGet();
+            rejectedTaskCount.incrementAndGet();
+            throw new RippleException("task rejected by scheduler: " + task);
+        }
+    }
 
-            // When the queue goes from empty to nonempty, there may be a number
-            // of threads waiting for a task.  Notify the first in line that
-            // a task is available.
-            if (1 == taskQueue.size() && waitingRunnables.size() > 0) {
-//System.out.println( "    ( 1 == taskQueue.size() && waitingRunnables.size() > 0 )" );
-                WorkerRunnable r = waitingRunnables.removeFirst();
+    void addBlockingPrivate(final Task task, final Sink<Task> completedTaskSink) throws RippleException {
+        if (useVirtualThreads) {
+            addVirtual(task, completedTaskSink);
+        } else {
+            addPrivate(task, completedTaskSink);
+        }
+    }
 
-                // Remove a task from the queue immediately.
-                r.retrieveTask();
+    private void addVirtual(final Task task, final Sink<Task> completedTaskSink) throws RippleException {
+        task.begin();
 
-                // Alert the waiting runnable that it now has a task.
-                synchronized (r) {
-                    r.notify();
-                }
-            }
+        Task parent = currentTask.get();
+        if (null != parent) {
+            parent.addChild(task);
+        }
 
-            // If there are more tasks than threads, and we have not reached the
-            // maximum number of threads, then start a new one.
-            else if (allRunnables.size() < maxThreads) {
-//System.out.println( "    taskQueue.size() > allRunnables.size() && allRunnables.size() < maxThreads" );
-                WorkerRunnable r = new WorkerRunnable();
-                allRunnables.add(r);
-                Thread t = new WorkerThread(r);
-                t.start();
+        queuedTaskCount.incrementAndGet();
+
+        final TaskItem item = new TaskItem(task, completedTaskSink);
+
+        // Virtual threads are cheap, but the resources they wait on are not unlimited.
+        // Block the submitting thread once the maximum number of blocking tasks are in flight.
+        // A nested task could wait forever for permits held by its own ancestors,
+        // so it is instead executed immediately in the adding thread, as under the BLOCK policy.
+        if (null != parent) {
+            if (!virtualThreadPermits.tryAcquire()) {
+                item.run();
+                return;
+            }
+        } else {
+            try {
+                virtualThreadPermits.acquire();
+            } catch (InterruptedException e) {
+                queuedTaskCount.decrementAndGet();
+                throw new RippleException("interrupted while waiting to schedule task");
             }
-//else
-//System.out.println( "Could not start a new thread" );
         }
-//System.out.println( "    ### total number of worker runnables: " + allRunnables.size() );
-//System.out.println( "    waitingRunnables.size(): " + waitingRunnables.size() );
-//System.out.println( "    taskQueue.size(): " + taskQueue.size() );
-    }
 
-    // has not been tested
-    public void stopAll() {
-        synchronized (allRunnables) {
-            Iterator<WorkerRunnable> iter = allRunnables.iterator();
-            while (iter.hasNext()) {
-                WorkerRunnable r = iter.next();
-                Task task = r.getCurrentTask();
-                if (null != task) {
-                    task.stop();
+        try {
+            virtualThreadExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        item.run();
+                    } finally {
+                        virtualThreadPermits.release();
+                    }
                 }
-            }
+            });
+        } catch (RejectedExecutionException e) {
+            virtualThreadPermits.release();
+            queuedTaskCount.decrementAndGet();
+            rejectedTaskCount.incrementAndGet();
+            throw new RippleException("task rejected by scheduler: " + task);
         }
     }
 
-    private class TaskItem {
-        public Task task;
-        public Sink<Task> sink;
+    /**
+     * @return whether this JVM supports virtual threads
+     */
+    public boolean isVirtualThreadSupported() {
+        return null != virtualThreadExecutor;
+    }
 
-        public TaskItem(final Task task, final Sink<Task> sink) {
-            this.task = task;
-            this.sink = sink;
+    /**
+     * @return whether blocking tasks are currently executed on virtual threads
+     */
+    public boolean getUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Enables or disables the execution of blocking tasks on virtual threads.
+     * If virtual threads are not supported by this JVM, blocking tasks are executed by the worker thread pool.
+     *
+     * @param use whether to execute blocking tasks on virtual threads
+     */
+    public void setUseVirtualThreads(final boolean use) {
+        if (use && !isVirtualThreadSupported()) {
+            logger.warning("virtual threads are not supported by this JVM."
+                    + " Blocking tasks will be executed by worker threads.");
+            useVirtualThreads = false;
+        } else {
+            useVirtualThreads = use;
         }
     }
 
-    private class WorkerThread extends Thread {
-        private WorkerRunnable runnable;
-        private final long id;
+    /**
+     * Stops all tasks currently executing.
+     * Tasks which are still in the queue will be stopped as soon as they begin to execute.
+     */
+    public void stopAll() {
+        for (Task task : runningTasks) {
+            task.stop();
+        }
+    }
 
-        public WorkerThread(final WorkerRunnable r) {
-            super(r);
-            id = nextWorkerId();
-            this.setName("Ripple worker thread #" + id);
+    /**
+     * @return the policy applied to tasks which are added while the scheduler is saturated
+     */
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
 
-            runnable = r;
-        }
+    /**
+     * @return the number of tasks which have been added but which have not yet begun executing
+     */
+    public long getQueuedTaskCount() {
+        return queuedTaskCount.get();
+    }
 
-        public Task getCurrentTask() {
-            return runnable.getCurrentTask();
-        }
+    /**
+     * @return the number of tasks currently executing
+     */
+    public long getRunningTaskCount() {
+        return runningTaskCount.get();
     }
 
-    private class WorkerRunnable implements Runnable {
-        private TaskItem currentTaskItem = null;
+    /**
+     * @return the number of tasks which have finished executing, whether successfully or not
+     */
+    public long getCompletedTaskCount() {
+        return completedTaskCount.get();
+    }
 
-        public void run() {
-//System.out.println( "[" + this + "]run()" );
-            // Continue waiting for and executing tasks indefinitely.
-            while (true) {
-                if (null == currentTaskItem) {
-                    // Try to remove a task from the queue.
-                    synchronized (taskQueue) {
-//System.out.println( "    testing queue" );
-                        if (taskQueue.size() > 0) {
-                            currentTaskItem = taskQueue.removeFirst();
-                        }
-                    }
-                }
+    /**
+     * @return the number of tasks which were refused by the scheduler under the ABORT policy
+     */
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
 
-                // If a task was found in the queue, execute it.
-                if (null != currentTaskItem) {
-//System.out.println( "    found a task to execute" );
-                    try {
-//System.out.println( "    executing task: " + currentTaskItem.task );
-                        currentTaskItem.task.execute();
-                    }
+    /**
+     * @return the number of worker threads currently in the pool
+     */
+    public int getWorkerThreadCount() {
+        return executor.getPoolSize();
+    }
 
-                    // This is the end of the line for exceptions.
-                    catch (Throwable t) {
-                        logThrowable(t);
-                    }
+    private class TaskItem implements Runnable {
+        private final Task task;
+        private final Sink<Task> sink;
 
-                    // Even tasks which failed with a throwable are put into
-                    // the appropriate completed task sink.
-                    try {
-                        currentTaskItem.sink.put(currentTaskItem.task);
-                    } catch (Throwable t) {
-                        logThrowable(t);
-                    }
+        public TaskItem(final Task task, final Sink<Task> sink) {
+            this.task = task;
+            this.sink = sink;
+        }
 
-                    currentTaskItem = null;
-                }
+        public void run() {
+            queuedTaskCount.decrementAndGet();
+            runningTaskCount.incrementAndGet();
+            runningTasks.add(task);
 
-                // If there are no tasks in the queue, add this Runnable to a
-                // list and wait.
-                else {
-//System.out.println( "    adding self to waiting queue" );
-                    synchronized (taskQueue) {
-                        waitingRunnables.addLast(this);
-                    }
+            // Under the CALLER_RUNS policy, this may be a nested task in a thread which is already executing one.
+            Task previous = currentTask.get();
+            currentTask.set(task);
 
-                    synchronized (this) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) {
-                            logger.warning("worker runnable interrupted while waiting for new tasks");
-                        }
-                    }
-                }
+            try {
+                task.execute();
+            }
+
+            // This is the end of the line for exceptions.
+            catch (Throwable t) {
+                logThrowable(t);
+            } finally {
+                currentTask.set(previous);
+                runningTasks.remove(task);
+                runningTaskCount.decrementAndGet();
+                completedTaskCount.incrementAndGet();
+            }
+
+            // Even tasks which failed with a throwable are put into
+            // the appropriate completed task sink.
+            try {
+                sink.put(task);
+            } catch (Throwable t) {
+                logThrowable(t);
             }
         }
 
         private void logThrowable(final Throwable t) {
             if (t instanceof InterruptedException) {
-                logger.warning("task interrupted: " + currentTaskItem.task);
+                logger.warning("task interrupted: " + task);
             } else {
                 logger.log(Level.SEVERE, "exception in scheduler", t);
             }
         }
+    }
 
-        public void retrieveTask() {
-            currentTaskItem = taskQueue.removeFirst();
+    // a thread of the worker pool, distinguished from other threads which add tasks
+    private class WorkerThread extends Thread {
+        public WorkerThread(final Runnable r) {
+            super(r, "Ripple worker thread #" + workerThreadCount.incrementAndGet());
         }
+    }
 
-        public Task getCurrentTask() {
-            return currentTaskItem.task;
+    private class WorkerThreadFactory implements ThreadFactory {
+        public Thread newThread(final Runnable r) {
+            Thread t = new WorkerThread(r);
+            t.setDaemon(true);
+            return t;
         }
     }
-}
 
+    private class RejectionHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    r.run();
+                    break;
+                case BLOCK:
+                    // If every worker were to block here while adding a nested task,
+                    // none would remain to drain the queue.
+                    if (Thread.currentThread() instanceof WorkerThread) {
+                        r.run();
+                    } else {
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            throw new RejectedExecutionException("interrupted while waiting to queue task");
+                        }
+                    }
+                    break;
+                case ABORT:
+                default:
+                    throw new RejectedExecutionException("task queue is full");
+            }
+        }
+    }
+}
@@ -30,7 +30,7 @@ public abstract class Task {
         synchronized (this) {
             finished = true;
 
-            notify();
+            notifyAll();
         }
     }
 
@@ -95,7 +95,7 @@ public abstract class Task {
     public void waitUntilFinished() throws RippleException {
 //System.out.println( "[" + this + "].waitUntilFinished()" );
         synchronized (this) {
-            if (!finished) {
+            while (!finished) {
                 try {
                     wait();
                 } catch (InterruptedException e) {
@@ -3,31 +3,67 @@ package net.fortytwo.ripple.control;
 import net.fortytwo.flow.Sink;
 import net.fortytwo.ripple.RippleException;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A set of tasks which are executed concurrently.  Tasks are scheduled for
  * execution as soon as they are added to the set.
+ * A task set acts as a group: for example, each model connection keeps its own set of asynchronous query tasks,
+ * which can be waited on or stopped independently of the tasks of other connections.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class TaskSet {
-    private int count = 0;
+    private final Set<Task> pendingTasks
+            = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+    private final AtomicLong completedCount = new AtomicLong(0);
+
+    // incremented by stopWaiting(), so that waiting threads can tell that they have been released
+    private long waitGeneration = 0;
 
     private final Sink<Task> completedTaskSink = new Sink<Task>() {
-        public synchronized void put(final Task task) throws RippleException {
-            count--;
+        public void put(final Task task) throws RippleException {
+            pendingTasks.remove(task);
+            completedCount.incrementAndGet();
 
-            if (0 == count) {
-                notify();
+            if (pendingTasks.isEmpty()) {
+                synchronized (completedTaskSink) {
+                    completedTaskSink.notifyAll();
+                }
             }
         }
     };
 
     public void add(final Task task) throws RippleException {
-        synchronized (completedTaskSink) {
-            count++;
+        pendingTasks.add(task);
+
+        try {
+            Scheduler.add(task, completedTaskSink);
+        } catch (RippleException e) {
+            pendingTasks.remove(task);
+            throw e;
         }
+    }
+
+    /**
+     * Adds a task which is expected to spend most of its time blocked on I/O.
+     * See <code>Scheduler.addBlocking</code>.
+     *
+     * @param task the task to add
+     * @throws RippleException if the task cannot be scheduled
+     */
+    public void addBlocking(final Task task) throws RippleException {
+        pendingTasks.add(task);
 
-        Scheduler.add(task, completedTaskSink);
+        try {
+            Scheduler.addBlocking(task, completedTaskSink);
+        } catch (RippleException e) {
+            pendingTasks.remove(task);
+            throw e;
+        }
     }
 
     /**
@@ -37,7 +73,9 @@ public class TaskSet {
      */
     public void waitUntilEmpty() throws RippleException {
         synchronized (completedTaskSink) {
-            if (count > 0) {
+            long generation = waitGeneration;
+
+            while (!pendingTasks.isEmpty() && generation == waitGeneration) {
                 try {
                     completedTaskSink.wait();
                 } catch (java.lang.InterruptedException e) {
@@ -47,10 +85,36 @@ public class TaskSet {
         }
     }
 
+    /**
+     * Releases any threads currently waiting for this set to become empty
+     */
     public void stopWaiting() {
         synchronized (completedTaskSink) {
-            completedTaskSink.notify();
+            waitGeneration++;
+            completedTaskSink.notifyAll();
         }
     }
-}
 
+    /**
+     * Stops all tasks in this set which have not yet finished
+     */
+    public void stop() {
+        for (Task task : pendingTasks) {
+            task.stop();
+        }
+    }
+
+    /**
+     * @return the number of tasks in this set which have not yet finished executing
+     */
+    public int getPendingCount() {
+        return pendingTasks.size();
+    }
+
+    /**
+     * @return the number of tasks in this set which have finished executing
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+}
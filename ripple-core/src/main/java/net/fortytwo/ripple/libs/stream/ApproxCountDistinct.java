@@ -0,0 +1,81 @@
+package net.fortytwo.ripple.libs.stream;
+
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.HyperLogLog;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.PrimitiveStackMapping;
+import net.fortytwo.ripple.model.RippleComparator;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.query.LazyStackEvaluator;
+import net.fortytwo.ripple.query.StackEvaluator;
+
+/**
+ * An estimate of the number of distinct solutions of a mapping (its cardinality), using a HyperLogLog sketch
+ * of fixed size rather than collecting the solutions in memory.
+ * Unlike <code>count</code>, which counts every solution, repeated solutions are counted only once,
+ * as determined by list comparison.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ApproxCountDistinct extends PrimitiveStackMapping {
+    private static final String[] IDENTIFIERS = {
+            StreamLibrary.NS_2013_03 + "approxCountDistinct"};
+
+    public String[] getIdentifiers() {
+        return IDENTIFIERS;
+    }
+
+    public ApproxCountDistinct()
+            throws RippleException {
+        super();
+    }
+
+    public Parameter[] getParameters() {
+        return new Parameter[]{
+                new Parameter("mapping",
+                        "a mapping to apply before counting",
+                        false)
+        };
+    }
+
+    public String getComment() {
+        return "m -> m op, for which solutions are found and the number of distinct solutions is estimated,"
+                + " then the estimate replaces m on the stack";
+    }
+
+    public void apply(final RippleList arg,
+                      final Sink<RippleList> solutions,
+                      final ModelConnection mc) throws RippleException {
+        int precision = Ripple.getConfiguration().getInt(StreamLibrary.APPROX_COUNT_DISTINCT_PRECISION, 14);
+        final HyperLogLog sketch;
+        try {
+            sketch = new HyperLogLog(precision);
+        } catch (IllegalArgumentException e) {
+            throw new RippleException("bad value for "
+                    + StreamLibrary.APPROX_COUNT_DISTINCT_PRECISION + ": " + precision);
+        }
+        final RippleComparator comparator = mc.getComparator();
+
+        Sink<RippleList> s = new Sink<RippleList>() {
+            public void put(final RippleList stack) throws RippleException {
+                sketch.add(comparator.hash(stack));
+            }
+        };
+
+        // Answer queries synchronously, so that all solutions have been found before the estimate is taken.
+        boolean a = Ripple.asynchronousQueries();
+        Ripple.enableAsynchronousQueries(false);
+        try {
+            StackEvaluator e = new LazyStackEvaluator();
+            e.apply(arg.push(Operator.OP), s, mc);
+
+            solutions.put(
+                    arg.getRest().push(sketch.estimate()));
+        } finally {
+            Ripple.enableAsynchronousQueries(a);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.fortytwo.ripple.libs.stream;
+
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.BloomFilter;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.NullStackMapping;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.PrimitiveStackMapping;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.StackMapping;
+
+/**
+ * An approximate version of <code>distinct</code> which remembers stacks in a Bloom filter of fixed size,
+ * rather than holding each stack in memory.
+ * A stack is never transmitted more than once, but a stack which has not been seen before is dropped
+ * with a small probability, which grows once the filter holds more than its expected number of stacks.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ApproxDistinct extends PrimitiveStackMapping {
+    private static final String[] IDENTIFIERS = {
+            StreamLibrary.NS_2013_03 + "approxDistinct"};
+
+    public String[] getIdentifiers() {
+        return IDENTIFIERS;
+    }
+
+    public ApproxDistinct()
+            throws RippleException {
+        super();
+    }
+
+    public Parameter[] getParameters() {
+        return new Parameter[]{};
+    }
+
+    public String getComment() {
+        return "transmits stacks at most once, as determined by a Bloom filter, occasionally dropping a new stack";
+    }
+
+    public void apply(final RippleList arg,
+                      final Sink<RippleList> solutions,
+                      final ModelConnection mc) throws RippleException {
+
+        solutions.put(
+                arg.push(
+                        new Operator(
+                                new ApproxDistinctInner())));
+    }
+
+    protected class ApproxDistinctInner implements StackMapping {
+        private BloomFilter filter = null;
+
+        public int arity() {
+            return 1;
+        }
+
+        // Note: consecutive calls to applyTo should reference the same Model.
+        public void apply(final RippleList arg,
+                          final Sink<RippleList> solutions,
+                          final ModelConnection mc) throws RippleException {
+            // the hash is computed outside of the lock; stacks may be passed in by several threads at once
+            long hash = mc.getComparator().hash(arg);
+
+            boolean added;
+            synchronized (this) {
+                if (null == filter) {
+                    long capacity = Ripple.getConfiguration().getLong(
+                            StreamLibrary.APPROX_DISTINCT_CAPACITY, 1000000);
+                    double rate = Ripple.getConfiguration().getDouble(
+                            StreamLibrary.APPROX_DISTINCT_FALSE_POSITIVE_RATE, 0.01);
+                    try {
+                        filter = new BloomFilter(capacity, rate);
+                    } catch (IllegalArgumentException e) {
+                        throw new RippleException("bad value for " + StreamLibrary.APPROX_DISTINCT_CAPACITY
+                                + " or " + StreamLibrary.APPROX_DISTINCT_FALSE_POSITIVE_RATE + ": " + e.getMessage());
+                    }
+                }
+
+                added = filter.add(hash);
+            }
+
+            if (added) {
+                solutions.put(arg);
+            }
+        }
+
+        public boolean isTransparent() {
+            return true;
+        }
+
+        public StackMapping getInverse() throws RippleException {
+            return new NullStackMapping();
+        }
+    }
+}
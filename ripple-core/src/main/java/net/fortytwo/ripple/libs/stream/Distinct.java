@@ -1,13 +1,13 @@
 package net.fortytwo.ripple.libs.stream;
 
 import net.fortytwo.flow.Sink;
-import net.fortytwo.ripple.ListMemoizer;
 import net.fortytwo.ripple.RippleException;
 import net.fortytwo.ripple.model.ModelConnection;
 import net.fortytwo.ripple.model.NullStackMapping;
 import net.fortytwo.ripple.model.Operator;
 import net.fortytwo.ripple.model.PrimitiveStackMapping;
 import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.RippleListSet;
 import net.fortytwo.ripple.model.StackMapping;
 
 /**
@@ -18,8 +18,6 @@ import net.fortytwo.ripple.model.StackMapping;
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class Distinct extends PrimitiveStackMapping {
-    private static final String MEMO = "memo";
-
     private static final String[] IDENTIFIERS = {
             StreamLibrary.NS_2013_03 + "distinct",
             StreamLibrary.NS_2008_08 + "distinct",
@@ -55,7 +53,7 @@ public class Distinct extends PrimitiveStackMapping {
     }
 
     protected class DistinctInner implements StackMapping {
-        private ListMemoizer<Object, String> memoizer = null;
+        private RippleListSet stacks = null;
 
         public int arity() {
             return 1;
@@ -65,11 +63,19 @@ public class Distinct extends PrimitiveStackMapping {
         public void apply(final RippleList arg,
                           final Sink<RippleList> solutions,
                           final ModelConnection mc) throws RippleException {
-            if (null == memoizer) {
-                memoizer = new ListMemoizer<Object, String>(mc.getComparator());
+            // stacks may be passed in by several threads at once, e.g. by a parallel evaluator
+            boolean added;
+            synchronized (this) {
+                if (null == stacks) {
+                    stacks = new RippleListSet(mc);
+                    // a stream of stacks has no definite end, so the set is released along with the query
+                    mc.addQueryResource(stacks);
+                }
+
+                added = stacks.add(arg);
             }
 
-            if (memoizer.put(arg, MEMO)) {
+            if (added) {
                 solutions.put(arg);
             }
         }
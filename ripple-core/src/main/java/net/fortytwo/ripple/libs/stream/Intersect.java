@@ -1,13 +1,13 @@
 package net.fortytwo.ripple.libs.stream;
 
 import net.fortytwo.flow.Sink;
-import net.fortytwo.ripple.ListMemoizer;
 import net.fortytwo.ripple.RippleException;
 import net.fortytwo.ripple.model.ModelConnection;
 import net.fortytwo.ripple.model.NullStackMapping;
 import net.fortytwo.ripple.model.Operator;
 import net.fortytwo.ripple.model.PrimitiveStackMapping;
 import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.RippleListSet;
 import net.fortytwo.ripple.model.StackMapping;
 
 
@@ -19,8 +19,6 @@ import net.fortytwo.ripple.model.StackMapping;
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class Intersect extends PrimitiveStackMapping {
-    private static final String MEMO = "memo";
-
     private static final String[] IDENTIFIERS = {
             StreamLibrary.NS_2013_03 + "intersect",
             StreamLibrary.NS_2008_08 + "intersect"};
@@ -61,8 +59,8 @@ public class Intersect extends PrimitiveStackMapping {
     }
 
     protected class IntersectInner implements StackMapping {
-        private ListMemoizer<Object, String> trueMemoizer = null;
-        private ListMemoizer<Object, String> falseMemoizer = null;
+        private RippleListSet trueStacks = null;
+        private RippleListSet falseStacks = null;
 
         public int arity() {
             // Require that the remainder of the stack (below the marker) is
@@ -87,13 +85,21 @@ public class Intersect extends PrimitiveStackMapping {
                                final ModelConnection mc) throws RippleException {
             RippleList stack = arg.getRest();
 
-            if (null == trueMemoizer) {
-                trueMemoizer = new ListMemoizer<Object, String>(mc.getComparator());
-            }
+            // stacks may be passed in by several threads at once, e.g. by a parallel evaluator
+            boolean matched;
+            synchronized (this) {
+                if (null == trueStacks) {
+                    trueStacks = new RippleListSet(mc);
+                    // neither stream has a definite end, so the sets are released along with the query
+                    mc.addQueryResource(trueStacks);
+                }
 
-            trueMemoizer.put(stack, MEMO);
+                trueStacks.add(stack);
+
+                matched = null != falseStacks && falseStacks.contains(stack);
+            }
 
-            if (null != falseMemoizer && null != falseMemoizer.get(stack)) {
+            if (matched) {
                 sink.put(stack);
             }
         }
@@ -103,13 +109,19 @@ public class Intersect extends PrimitiveStackMapping {
                                 final ModelConnection mc) throws RippleException {
             RippleList stack = arg.getRest();
 
-            if (null == falseMemoizer) {
-                falseMemoizer = new ListMemoizer<Object, String>(mc.getComparator());
-            }
+            boolean matched;
+            synchronized (this) {
+                if (null == falseStacks) {
+                    falseStacks = new RippleListSet(mc);
+                    mc.addQueryResource(falseStacks);
+                }
+
+                falseStacks.add(stack);
 
-            falseMemoizer.put(stack, MEMO);
+                matched = null != trueStacks && trueStacks.contains(stack);
+            }
 
-            if (null != trueMemoizer && null != trueMemoizer.get(stack)) {
+            if (matched) {
                 sink.put(stack);
             }
         }
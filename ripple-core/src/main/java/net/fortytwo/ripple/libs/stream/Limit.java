@@ -71,8 +71,16 @@ public class Limit extends PrimitiveStackMapping {
         public void apply(final RippleList arg,
                           final Sink<RippleList> solutions,
                           final ModelConnection mc) throws RippleException {
-            if (count < limit) {
-                count++;
+            // stacks may be passed in by several threads at once, e.g. by a parallel evaluator
+            boolean accept;
+            synchronized (this) {
+                accept = count < limit;
+                if (accept) {
+                    count++;
+                }
+            }
+
+            if (accept) {
                 solutions.put(arg);
             }
         }
@@ -18,10 +18,17 @@ public class StreamLibrary extends Library {
             NS_2007_08 = "http://fortytwo.net/2007/08/ripple/stream#",
             NS_2007_05 = "http://fortytwo.net/2007/05/ripple/stream#";
 
+    // configuration properties of the approximate primitives
+    public static final String
+            APPROX_DISTINCT_CAPACITY = "net.fortytwo.ripple.libs.stream.approxDistinctCapacity",
+            APPROX_DISTINCT_FALSE_POSITIVE_RATE = "net.fortytwo.ripple.libs.stream.approxDistinctFalsePositiveRate",
+            APPROX_COUNT_DISTINCT_PRECISION = "net.fortytwo.ripple.libs.stream.approxCountDistinctPrecision";
+
     public void load(final LibraryLoader.Context context)
             throws RippleException {
 
         registerPrimitives(context,
+                ApproxDistinct.class,
                 Both.class,
                 Distinct.class,
                 Each.class,
@@ -31,6 +38,7 @@ public class StreamLibrary extends Library {
 
                 // Closed world primitives
                 Amp.class,
+                ApproxCountDistinct.class,
                 Count.class,
                 Order.class,
                 Rank.class);
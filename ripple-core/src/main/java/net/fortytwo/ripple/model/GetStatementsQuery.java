@@ -135,6 +135,10 @@ public class GetStatementsQuery {
         //       the one below closes, which currently causes Sesame to
         //       deadlock.  Even using a separate RepositoryConnection for
         //       each RepositoryResult doesn't seem to help.
+        //       Streaming results into the sink while the iteration is open is
+        //       only safe if the sink neither writes to the Sail nor waits on a
+        //       thread which does, which cannot be known here; and a separate
+        //       read connection would not see uncommitted changes.
         Buffer<Statement> buffer = new Buffer<Statement>(results);
         CloseableIteration<? extends Statement, SailException> stmtIter;
 
@@ -13,6 +13,7 @@ import org.openrdf.model.Value;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 
+import java.io.Closeable;
 import java.math.BigDecimal;
 import java.util.Comparator;
 import java.util.Date;
@@ -277,4 +278,18 @@ public interface ModelConnection {
      * Complete any still-executing tasks.
      */
     void finish() throws RippleException;
+
+    /**
+     * Registers a resource, such as a temporary file, which is needed only until the end of the current query.
+     * The resource is closed by <code>releaseQueryResources</code>, or when this connection is closed.
+     *
+     * @param resource the resource to register
+     */
+    void addQueryResource(Closeable resource);
+
+    /**
+     * Closes all resources registered with <code>addQueryResource</code>.
+     * This is to be called once a query has finished.
+     */
+    void releaseQueryResources();
 }
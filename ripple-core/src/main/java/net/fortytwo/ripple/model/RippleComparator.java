@@ -9,9 +9,11 @@ import org.openrdf.model.Literal;
 import org.openrdf.model.Resource;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +26,8 @@ import java.util.logging.Logger;
 public class RippleComparator implements Comparator<Object> {
     private static final Logger logger = Logger.getLogger(RippleComparator.class.getName());
 
+    private static final long NIL_HASH = 0x2545f4914f6cdd1dL;
+
     private final ModelConnection modelConnection;
     private final Comparator<RippleList> listComparator;
 
@@ -36,14 +40,158 @@ public class RippleComparator implements Comparator<Object> {
         return listComparator;
     }
 
+    /**
+     * Finds a 64-bit hash of a value which is consistent with this comparator:
+     * values which compare as equal have equal hashes.
+     * A URI or blank node which heads an RDF list is hashed as the equivalent native list.
+     * The hashes of native lists are cached, so that hashing a list which shares its tail
+     * with a previously hashed list takes constant time,
+     * and so that the hash of a list reflects the model as it was when the list was first hashed.
+     *
+     * @param o a value
+     * @return a hash of the value
+     */
+    public long hash(final Object o) {
+        if (o instanceof RippleList) {
+            return hashList((RippleList) o);
+        } else if (RDF.NIL.equals(o)) {
+            return NIL_HASH;
+        }
+
+        try {
+            RippleType t = modelConnection.getModel().getTypeOf(o);
+            RippleType.Category cat = null == t ? findCategoryWithoutLookup(o) : t.getCategory();
+            long h = cat.ordinal() + 1;
+
+            switch (cat) {
+                case NUMERIC_TYPED_LITERAL:
+                    if (t instanceof NumericType) {
+                        // adding zero normalizes negative zero
+                        double d = ((NumericType) t).findNumber(o).doubleValue() + 0.0;
+                        return mix(h, Double.doubleToLongBits(d));
+                    } else {
+                        return mix(h, hash(((Literal) o).getLabel()));
+                    }
+                case PLAIN_LITERAL_WITH_LANGUAGE_TAG:
+                    Literal l = (Literal) modelConnection.toRDF(o);
+                    return mix(mix(h, hash(l.getLanguage())), hash(l.getLabel()));
+                case OTHER_TYPED_LITERAL:
+                    Literal tl = (Literal) modelConnection.toRDF(o);
+                    return mix(mix(h, hash(tl.getDatatype().stringValue())), hash(tl.getLabel()));
+                case OTHER_RESOURCE:
+                    // see compare, in which URIs and blank nodes representing lists are compared as lists
+                    if (ModelConnectionHelper.isRDFList(o, modelConnection)) {
+                        return hashRDFList(o);
+                    }
+                    Value resource = modelConnection.toRDF(o);
+                    return null == resource ? h : mix(h, hash(resource.stringValue()));
+                case PLAIN_LITERAL_WITHOUT_LANGUAGE_TAG:
+                case STRING_TYPED_LITERAL:
+                    Value v = modelConnection.toRDF(o);
+                    return null == v ? h : mix(h, hash(v.stringValue()));
+                case OPERATOR:
+                    // see the comparison methods of the operator types
+                    if (o instanceof Operator) {
+                        return mix(h, ((Operator) o).getMapping().hashCode());
+                    } else if (o instanceof PrimitiveStackMapping) {
+                        Value r = ((PrimitiveStackMapping) o).getRDFEquivalent();
+                        return null == r ? h : mix(h, hash(r.stringValue()));
+                    } else if (o instanceof Op) {
+                        return h;
+                    } else {
+                        return mix(h, o.hashCode());
+                    }
+                default:
+                    // lists which are not native lists, and key-value objects, are distinguished only by type
+                    return null == t ? h : mix(h, hash(t.getClass().getName()));
+            }
+        } catch (RippleException e) {
+            logger.log(Level.WARNING, "failed to hash " + o, e);
+            return 0;
+        }
+    }
+
+    private long hashList(final RippleList list) {
+        if (0 != list.comparisonHash) {
+            return list.comparisonHash;
+        }
+
+        // find the cells which have not yet been hashed, without recursion on the list itself
+        LinkedList<RippleList> unhashed = new LinkedList<RippleList>();
+        RippleList cur = list;
+        while (!cur.isNil() && 0 == cur.comparisonHash) {
+            unhashed.addFirst(cur);
+            cur = cur.getRest();
+        }
+
+        long h = cur.isNil() ? NIL_HASH : cur.comparisonHash;
+        for (RippleList cell : unhashed) {
+            h = mix(h, hash(cell.getFirst()));
+            if (0 == h) {
+                h = 1;
+            }
+            cell.comparisonHash = h;
+        }
+
+        return h;
+    }
+
+    private long hashRDFList(final Object head) throws RippleException {
+        Collector<RippleList> lists = new Collector<RippleList>();
+        modelConnection.toList(head, lists);
+        if (1 == lists.size()) {
+            return hashList(lists.iterator().next());
+        }
+
+        // a branching RDF list is equal only to another with the same branches, in any order
+        long sum = 0;
+        for (RippleList l : lists) {
+            sum += hashList(l);
+        }
+        return mix(lists.size(), sum);
+    }
+
+    private RippleType.Category findCategoryWithoutLookup(final Object value) {
+        if (value instanceof Literal) {
+            Literal l = (Literal) value;
+            if (null == l.getDatatype()) {
+                return null == l.getLanguage()
+                        ? RippleType.Category.PLAIN_LITERAL_WITHOUT_LANGUAGE_TAG
+                        : RippleType.Category.PLAIN_LITERAL_WITH_LANGUAGE_TAG;
+            } else {
+                return NumericType.isNumericLiteral(l)
+                        ? RippleType.Category.NUMERIC_TYPED_LITERAL
+                        : RippleType.Category.OTHER_TYPED_LITERAL;
+            }
+        } else {
+            return RippleType.Category.OTHER_RESOURCE;
+        }
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(final String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(final long h, final long value) {
+        long x = (h * 31 + value) * 0x9e3779b97f4a7c15L;
+        return x ^ (x >>> 29);
+    }
+
     public int compare(final Object o1,
                        final Object o2) {
         try {
             RippleType o1Type = modelConnection.getModel().getTypeOf(o1);
             RippleType o2Type = modelConnection.getModel().getTypeOf(o2);
 
-            // if the objects have the same type, use the type's internal comparison
-            if (o1Type == o2Type) {
+            // if the objects have the same type, use the type's internal comparison,
+            // unless they are URIs or blank nodes which may represent lists
+            if (o1Type == o2Type && RippleType.Category.OTHER_RESOURCE != o1Type.getCategory()) {
                 return o1Type.compare(o1, o2, modelConnection);
             }
 
@@ -319,11 +467,11 @@ public class RippleComparator implements Comparator<Object> {
 
             int i = 0;
             for (RippleList l : l1) {
-                a1[i] = l;
+                a1[i++] = l;
             }
             i = 0;
             for (RippleList secondList : l2) {
-                a2[i] = secondList;
+                a2[i++] = secondList;
             }
 
             Arrays.sort(a1, listComparator);
@@ -18,6 +18,11 @@ public abstract class RippleList<T> extends ListNode<T> {
     protected T first;
     protected final RippleList<T> rest;
 
+    // a hash which is consistent with RippleComparator, computed on demand (0 if not yet computed).
+    // As lists are immutable and share their tails, each cell needs to be hashed only once.
+    // Volatile, as lists are shared between threads; a cell hashed concurrently gets the same value twice.
+    volatile long comparisonHash = 0;
+
     protected RippleList(final T first,
                          final RippleList<T> rest) {
         this.first = first;
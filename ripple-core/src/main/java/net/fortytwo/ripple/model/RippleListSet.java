@@ -0,0 +1,267 @@
+package net.fortytwo.ripple.model;
+
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A set of lists, as determined by list comparison.
+ * Lists are located by their <code>RippleComparator</code> hashes,
+ * and compared only when hashes collide.
+ * At most a fixed number of lists are held in memory.
+ * Beyond that, the hashes of further lists are optionally spilled to a temporary file,
+ * in which case those lists are recognized by their 64-bit hashes alone.
+ * Otherwise, further lists are not remembered, and may be added more than once.
+ * As resources are hashed as themselves, a list containing the head of an RDF list
+ * is distinct in the set from a list containing the equivalent native list.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RippleListSet implements Closeable {
+    private static final Logger logger = Logger.getLogger(RippleListSet.class.getName());
+
+    private final RippleComparator comparator;
+    private final int memoryCapacity;
+    private final boolean spillToDisk;
+
+    // each hash maps either to a single list or, in case of collisions, to a list of lists
+    private final Map<Long, Object> lists = new HashMap<Long, Object>();
+    private int listsInMemory = 0;
+    private long size = 0;
+
+    private SpillTable spilled = null;
+    private boolean warned = false;
+
+    public RippleListSet(final ModelConnection mc) throws RippleException {
+        this(mc.getComparator(),
+                Ripple.getConfiguration().getInt(Ripple.LIST_SET_MEMORY_CAPACITY, 1000000),
+                Ripple.getConfiguration().getBoolean(Ripple.LIST_SET_SPILL_TO_DISK, false));
+    }
+
+    /**
+     * @param comparator     the comparator which determines list equality
+     * @param memoryCapacity the maximum number of lists to hold in memory
+     * @param spillToDisk    whether to remember the hashes of further lists in a temporary file
+     */
+    public RippleListSet(final RippleComparator comparator,
+                         final int memoryCapacity,
+                         final boolean spillToDisk) {
+        if (memoryCapacity < 1) {
+            throw new IllegalArgumentException("memory capacity must be positive");
+        }
+
+        this.comparator = comparator;
+        this.memoryCapacity = memoryCapacity;
+        this.spillToDisk = spillToDisk;
+    }
+
+    /**
+     * @param list a list to add
+     * @return whether the list was not already in the set
+     * @throws RippleException if the temporary file cannot be written
+     */
+    public boolean add(final RippleList list) throws RippleException {
+        long h = comparator.hash(list);
+
+        if (findInMemory(h, list) || (null != spilled && spilled.contains(h))) {
+            return false;
+        }
+
+        if (listsInMemory >= memoryCapacity) {
+            if (spillToDisk) {
+                spill();
+            } else {
+                if (!warned) {
+                    logger.warning("list set is full (" + memoryCapacity + " lists)."
+                            + " Further lists may be repeated.");
+                    warned = true;
+                }
+
+                return true;
+            }
+        }
+
+        Object existing = lists.get(h);
+        if (null == existing) {
+            lists.put(h, list);
+        } else if (existing instanceof RippleList) {
+            List<RippleList> collisions = new LinkedList<RippleList>();
+            collisions.add((RippleList) existing);
+            collisions.add(list);
+            lists.put(h, collisions);
+        } else {
+            ((List<RippleList>) existing).add(list);
+        }
+
+        listsInMemory++;
+        size++;
+        return true;
+    }
+
+    public boolean contains(final RippleList list) throws RippleException {
+        long h = comparator.hash(list);
+
+        return findInMemory(h, list) || (null != spilled && spilled.contains(h));
+    }
+
+    /**
+     * @return the number of distinct lists which have been added to the set
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Releases the temporary file of this set, if any.
+     * The set must be closed once it is no longer needed, as the file is otherwise only deleted on exit.
+     * Hashes which have been spilled to the file are forgotten.
+     */
+    public void close() {
+        if (null != spilled) {
+            spilled.close();
+            spilled = null;
+        }
+    }
+
+    private boolean findInMemory(final long h, final RippleList list) {
+        Object existing = lists.get(h);
+        if (null == existing) {
+            return false;
+        } else if (existing instanceof RippleList) {
+            return 0 == comparator.compare(existing, list);
+        } else {
+            for (RippleList l : (List<RippleList>) existing) {
+                if (0 == comparator.compare(l, list)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private void spill() throws RippleException {
+        try {
+            if (null == spilled) {
+                spilled = new SpillTable();
+            }
+
+            for (Long h : lists.keySet()) {
+                spilled.add(h);
+            }
+        } catch (IOException e) {
+            throw new RippleException(e);
+        }
+
+        lists.clear();
+        listsInMemory = 0;
+    }
+
+    // an open-addressing hash table of non-zero longs in a memory-mapped temporary file
+    private static class SpillTable {
+        private static final int INITIAL_CAPACITY = 1 << 20;
+
+        private File file;
+        private RandomAccessFile raf;
+        private LongBuffer slots;
+        private int capacity;
+        private int count = 0;
+
+        public SpillTable() throws IOException {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        public boolean contains(final long h) {
+            int i = slot(h);
+            while (true) {
+                long x = slots.get(i);
+                if (0 == x) {
+                    return false;
+                } else if (h == x) {
+                    return true;
+                }
+                i = (i + 1) & (capacity - 1);
+            }
+        }
+
+        public void add(final long h) throws IOException {
+            // keep the table at most half full
+            if (2 * (count + 1) > capacity) {
+                grow();
+            }
+
+            int i = slot(h);
+            while (true) {
+                long x = slots.get(i);
+                if (0 == x) {
+                    slots.put(i, h);
+                    count++;
+                    return;
+                } else if (h == x) {
+                    return;
+                }
+                i = (i + 1) & (capacity - 1);
+            }
+        }
+
+        public void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warning("failed to close temporary file " + file + ": " + e.getMessage());
+            }
+
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        private int slot(final long h) {
+            return (int) (h ^ (h >>> 32)) & (capacity - 1);
+        }
+
+        private void grow() throws IOException {
+            if (capacity >= 1 << 27) {
+                throw new IOException("too many lists to spill");
+            }
+
+            SpillTable bigger = new SpillTable(2 * capacity);
+            for (int i = 0; i < capacity; i++) {
+                long x = slots.get(i);
+                if (0 != x) {
+                    bigger.add(x);
+                }
+            }
+
+            close();
+            file = bigger.file;
+            raf = bigger.raf;
+            slots = bigger.slots;
+            capacity = bigger.capacity;
+        }
+
+        private SpillTable(final int capacity) throws IOException {
+            allocate(capacity);
+        }
+
+        private void allocate(final int capacity) throws IOException {
+            this.capacity = capacity;
+            file = File.createTempFile("ripple-list-set-", ".tmp");
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(8L * capacity);
+            slots = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8L * capacity).asLongBuffer();
+        }
+    }
+}
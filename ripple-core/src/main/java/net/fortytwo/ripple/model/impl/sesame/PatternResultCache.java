@@ -0,0 +1,304 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.ripple.model.GetStatementsQuery;
+import net.fortytwo.ripple.sail.RippleSesameValue;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, thread-safe cache of the results of statement pattern queries.
+ * Entries are evicted in least-recently-used order when either the number of entries or their total weight
+ * (the number of result values they contain) exceeds a maximum.
+ * An entry is invalidated when any statement which matches its pattern is added or removed,
+ * regardless of context.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PatternResultCache {
+    // a rough estimate of the memory used by a cache entry, apart from its values
+    private static final int ENTRY_OVERHEAD = 128;
+    // a rough estimate of the memory used by a value, apart from its string representation
+    private static final int VALUE_OVERHEAD = 48;
+
+    private static final ValueFactory VALUE_FACTORY = new ValueFactoryImpl();
+
+    private final int maxEntries;
+    private final long maxWeight;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    // maps each pattern, without contexts, to the cached keys which share that pattern
+    private final Map<Key, Set<Key>> keysByPattern = new HashMap<Key, Set<Key>>();
+
+    private long totalWeight = 0, totalSize = 0;
+    // incremented whenever entries are invalidated, so that queries which began earlier are not cached
+    private long version = 0;
+
+    private long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+
+    /**
+     * @param maxEntries the maximum number of query results to cache
+     * @param maxWeight  the maximum total number of result values to cache
+     */
+    public PatternResultCache(final int maxEntries, final long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @param query a statement pattern query
+     * @return the values previously found for the query, or null if they are not in the cache
+     */
+    public synchronized List<Value> get(final GetStatementsQuery query) {
+        Entry e = entries.get(new Key(query));
+        if (null == e) {
+            misses++;
+            return null;
+        } else {
+            hits++;
+            return e.values;
+        }
+    }
+
+    /**
+     * @return a token to be passed to <code>put</code> once a query is complete.
+     * If the cache is invalidated in the meantime, the results of the query will not be cached.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the maximum number of values which a single entry may contain
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void put(final GetStatementsQuery query,
+                                 final List<Value> values,
+                                 final long versionBefore) {
+        Key key = new Key(query);
+        if (versionBefore != version || values.size() > maxWeight || entries.containsKey(key)) {
+            return;
+        }
+
+        long size = ENTRY_OVERHEAD;
+        for (Value v : values) {
+            size += VALUE_OVERHEAD + 2 * v.stringValue().length();
+        }
+
+        entries.put(key, new Entry(values, size));
+        totalWeight += values.size();
+        totalSize += size;
+
+        Key pattern = key.withoutContexts();
+        Set<Key> keys = keysByPattern.get(pattern);
+        if (null == keys) {
+            keys = new HashSet<Key>();
+            keysByPattern.put(pattern, keys);
+        }
+        keys.add(key);
+
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && iter.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iter.next();
+            iter.remove();
+            removeIndex(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes the results of all queries which a statement would match
+     *
+     * @param st an added or removed statement
+     */
+    public synchronized void invalidate(final Statement st) {
+        version++;
+
+        if (null == st.getSubject() || null == st.getPredicate() || null == st.getObject()) {
+            clear();
+            return;
+        }
+
+        invalidatePattern(new Key(GetStatementsQuery.Type.SP_O, st.getSubject(), st.getPredicate(), null));
+        invalidatePattern(new Key(GetStatementsQuery.Type.PO_S, null, st.getPredicate(), st.getObject()));
+        invalidatePattern(new Key(GetStatementsQuery.Type.SO_P, st.getSubject(), null, st.getObject()));
+    }
+
+    public synchronized void clear() {
+        version++;
+        invalidations += entries.size();
+        entries.clear();
+        keysByPattern.clear();
+        totalWeight = 0;
+        totalSize = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of values in the cache
+     */
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return a rough estimate, in bytes, of the memory used by the cache
+     */
+    public synchronized long getEstimatedMemory() {
+        return totalSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups which have found their results in the cache
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return 0 == total ? 0 : hits / (double) total;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private void invalidatePattern(final Key pattern) {
+        Set<Key> keys = keysByPattern.remove(pattern);
+        if (null != keys) {
+            for (Key key : keys) {
+                Entry e = entries.remove(key);
+                if (null != e) {
+                    totalWeight -= e.values.size();
+                    totalSize -= e.size;
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    private void removeIndex(final Key key, final Entry e) {
+        totalWeight -= e.values.size();
+        totalSize -= e.size;
+
+        Key pattern = key.withoutContexts();
+        Set<Key> keys = keysByPattern.get(pattern);
+        if (null != keys) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByPattern.remove(pattern);
+            }
+        }
+    }
+
+    // plain literals and string-typed literals are equivalent in queries (see GetStatementsQuery)
+    private static Value normalize(Value v) {
+        if (v instanceof RippleSesameValue) {
+            v = ((RippleSesameValue) v).getNativeValue();
+        }
+
+        if (v instanceof Literal && XMLSchema.STRING.equals(((Literal) v).getDatatype())) {
+            return VALUE_FACTORY.createLiteral(((Literal) v).getLabel());
+        }
+
+        return v;
+    }
+
+    private static class Key {
+        private final GetStatementsQuery.Type type;
+        private final Resource subject;
+        private final URI predicate;
+        private final Value object;
+        private final Resource[] contexts;
+        private final int hashCode;
+
+        public Key(final GetStatementsQuery query) {
+            this(query.type, query.subject, query.predicate, query.object, query.contexts);
+        }
+
+        public Key(final GetStatementsQuery.Type type,
+                   final Resource subject,
+                   final URI predicate,
+                   final Value object,
+                   final Resource... contexts) {
+            this.type = type;
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = null == object ? null : normalize(object);
+            this.contexts = contexts;
+
+            int h = type.hashCode();
+            h = 31 * h + (null == subject ? 0 : subject.hashCode());
+            h = 31 * h + (null == predicate ? 0 : predicate.hashCode());
+            h = 31 * h + (null == this.object ? 0 : this.object.hashCode());
+            hashCode = 31 * h + Arrays.hashCode(contexts);
+        }
+
+        public Key withoutContexts() {
+            return 0 == contexts.length ? this : new Key(type, subject, predicate, object);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) other;
+            return type == k.type
+                    && (null == subject ? null == k.subject : subject.equals(k.subject))
+                    && (null == predicate ? null == k.predicate : predicate.equals(k.predicate))
+                    && (null == object ? null == k.object : object.equals(k.object))
+                    && Arrays.equals(contexts, k.contexts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private class Entry {
+        private final List<Value> values;
+        private final long size;
+
+        public Entry(final List<Value> values,
+                     final long size) {
+            this.values = values;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.flow.rdf.diff.RDFDiffSink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.RippleList;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, thread-safe cache of native lists converted from RDF lists.
+ * Entries are evicted in least-recently-used order when either the number of entries or their total weight
+ * (the number of list cells they contain) exceeds a maximum.
+ * An entry is invalidated when an <code>rdf:first</code> or <code>rdf:rest</code> statement of any of its
+ * list cells is added or removed, as reported by <code>getInvalidator()</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RDFListCache {
+    private final int maxEntries;
+    private final long maxWeight;
+
+    private final Map<Value, Entry> entries;
+    // maps each RDF list cell to the heads of the cached lists which contain it
+    private final Map<Value, Set<Value>> dependents = new HashMap<Value, Set<Value>>();
+    private final RDFDiffSink invalidator;
+
+    private long totalWeight = 0;
+    // incremented whenever entries are invalidated, so that conversions which began earlier are not cached
+    private long version = 0;
+
+    private long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+
+    /**
+     * @param maxEntries the maximum number of lists to cache
+     * @param maxWeight  the maximum total number of list cells to cache
+     */
+    public RDFListCache(final int maxEntries, final long maxWeight) {
+        if (maxEntries < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("cache bounds must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+
+        entries = new LinkedHashMap<Value, Entry>(16, 0.75f, true);
+
+        final Sink<Statement> stSink = new Sink<Statement>() {
+            public void put(final Statement st) throws RippleException {
+                URI pred = st.getPredicate();
+                if (null == pred || pred.equals(RDF.FIRST) || pred.equals(RDF.REST)) {
+                    invalidate(st.getSubject());
+                }
+            }
+        };
+
+        invalidator = new StatementChangeSink(stSink);
+    }
+
+    /**
+     * @return a sink which invalidates cached lists in response to added and removed statements
+     */
+    public RDFDiffSink getInvalidator() {
+        return invalidator;
+    }
+
+    /**
+     * @param head the head of an RDF list
+     * @return the native lists previously converted from the given RDF list, or null if there are none in the cache
+     */
+    public synchronized Collector<RippleList> get(final Value head) {
+        Entry e = entries.get(head);
+        if (null == e) {
+            misses++;
+            return null;
+        } else {
+            hits++;
+            return e.lists;
+        }
+    }
+
+    /**
+     * @return a token to be passed to <code>put</code> once a conversion is complete.
+     * If the cache is invalidated in the meantime, the result of the conversion will not be cached.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized void put(final Value head,
+                                 final Collector<RippleList> lists,
+                                 final long versionBefore) {
+        if (versionBefore != version || entries.containsKey(head)) {
+            return;
+        }
+
+        // Find all list cells on which these lists depend.
+        Set<Value> cells = new HashSet<Value>();
+        cells.add(head);
+        long weight = 0;
+        for (RippleList l : lists) {
+            RippleList cur = l;
+            while (!cur.isNil()) {
+                weight++;
+                if (cur instanceof SesameList) {
+                    Value id = ((SesameList) cur).getStoredRDFEquivalent();
+                    if (null != id) {
+                        cells.add(id);
+                    }
+                }
+                cur = cur.getRest();
+            }
+        }
+
+        // Lists heavier than the cache itself are simply not cached.
+        if (weight > maxWeight) {
+            return;
+        }
+
+        entries.put(head, new Entry(lists, cells, weight));
+        totalWeight += weight;
+        for (Value cell : cells) {
+            Set<Value> heads = dependents.get(cell);
+            if (null == heads) {
+                heads = new HashSet<Value>();
+                dependents.put(cell, heads);
+            }
+            heads.add(head);
+        }
+
+        Iterator<Map.Entry<Value, Entry>> iter = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalWeight > maxWeight) && iter.hasNext()) {
+            Map.Entry<Value, Entry> eldest = iter.next();
+            iter.remove();
+            removeDependencies(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all cached lists which contain the given RDF list cell
+     *
+     * @param cell an RDF list cell, or null to invalidate the entire cache
+     */
+    public synchronized void invalidate(final Value cell) {
+        version++;
+
+        if (null == cell) {
+            clear();
+            return;
+        }
+
+        Set<Value> heads = dependents.get(cell);
+        if (null != heads) {
+            for (Value head : heads.toArray(new Value[heads.size()])) {
+                Entry e = entries.remove(head);
+                if (null != e) {
+                    removeDependencies(head, e);
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        version++;
+        invalidations += entries.size();
+        entries.clear();
+        dependents.clear();
+        totalWeight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    private void removeDependencies(final Value head, final Entry e) {
+        totalWeight -= e.weight;
+
+        for (Value cell : e.cells) {
+            Set<Value> heads = dependents.get(cell);
+            if (null != heads) {
+                heads.remove(head);
+                if (heads.isEmpty()) {
+                    dependents.remove(cell);
+                }
+            }
+        }
+    }
+
+    private class Entry {
+        private final Collector<RippleList> lists;
+        private final Set<Value> cells;
+        private final long weight;
+
+        public Entry(final Collector<RippleList> lists,
+                     final Set<Value> cells,
+                     final long weight) {
+            this.lists = lists;
+            this.cells = cells;
+            this.weight = weight;
+        }
+    }
+}
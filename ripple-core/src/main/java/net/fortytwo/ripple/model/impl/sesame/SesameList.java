@@ -14,9 +14,6 @@ import net.fortytwo.ripple.util.ModelConnectionHelper;
 import org.openrdf.model.Value;
 import org.openrdf.model.vocabulary.RDF;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -24,7 +21,6 @@ public class SesameList<T> extends RippleList<T> {
 
     private static final RippleList NIL = new SesameList();
 
-    private static Map<Value, Source<RippleList>> nativeLists = new HashMap<Value, Source<RippleList>>();
     private static Boolean memoize;
 
     private Value rdfEquivalent;
@@ -106,16 +102,18 @@ public class SesameList<T> extends RippleList<T> {
 
         // If the argument is an RDF value, try to convert it to a native list.
         else if (v instanceof Value) {
-            if (memoize) {
+            if (memoize && mc.getModel() instanceof SesameModel) {
+                RDFListCache cache = ((SesameModel) mc.getModel()).listCache;
                 Value rdfVal = (Value) v;
-                Source<RippleList> source = nativeLists.get(rdfVal);
+                Source<RippleList> source = cache.get(rdfVal);
                 if (null == source) {
+                    long version = cache.getVersion();
                     Collector<RippleList> coll = new Collector<RippleList>();
 
                     listsFromRdf(v, coll, mc);
 
                     source = coll;
-                    nativeLists.put(rdfVal, source);
+                    cache.put(rdfVal, coll, version);
                 }
 
                 source.writeTo(sink);
@@ -217,4 +215,9 @@ public class SesameList<T> extends RippleList<T> {
     public void setRDFEquivalent(final Value id) {
         rdfEquivalent = id;
     }
+
+    // returns the RDF identity of this list, if any, without minting a new one
+    Value getStoredRDFEquivalent() {
+        return rdfEquivalent;
+    }
 }
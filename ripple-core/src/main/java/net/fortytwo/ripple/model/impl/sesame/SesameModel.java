@@ -1,6 +1,8 @@
 package net.fortytwo.ripple.model.impl.sesame;
 
+import net.fortytwo.flow.Sink;
 import net.fortytwo.flow.rdf.diff.RDFDiffSink;
+import net.fortytwo.ripple.Ripple;
 import net.fortytwo.ripple.RippleException;
 import net.fortytwo.ripple.model.LibraryLoader;
 import net.fortytwo.ripple.model.Model;
@@ -25,16 +27,18 @@ import net.fortytwo.ripple.model.types.StackMappingWrapperType;
 import net.fortytwo.ripple.model.types.StringLiteralType;
 import net.fortytwo.ripple.model.types.StringType;
 import net.fortytwo.ripple.model.types.URIType;
+import org.openrdf.model.Statement;
 import org.openrdf.sail.Sail;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
 /**
@@ -48,13 +52,36 @@ public class SesameModel implements Model {
     private final Map<Class, List<RippleType>> registeredTypes;
     private final Set<Class> unmappedTypes;
 
+    // A copy-on-write dispatch table from instance classes to candidate types, read without locking.
+    // Classes with no mapped type are present with an empty array of candidates.
+    private volatile Map<Class, Dispatch> dispatchTable = new IdentityHashMap<Class, Dispatch>();
+    // incremented whenever a type is registered, invalidating all existing dispatch entries
+    private volatile int dispatchGeneration = 0;
+    // a one-element inline cache for the common case of many consecutive instances of the same class
+    private volatile Dispatch lastDispatch;
+    private static final RippleType[] NO_TYPES = new RippleType[0];
+
     final Sail sail;
     final Set<ModelConnection> openConnections = new LinkedHashSet<ModelConnection>();
+    final RDFListCache listCache;
+    // the statement pattern caches of open connections, all of which are invalidated by changes through any connection
+    final Set<PatternResultCache> patternCaches = new CopyOnWriteArraySet<PatternResultCache>();
+    final RDFDiffSink patternCacheInvalidator = new StatementChangeSink(new Sink<Statement>() {
+        public void put(final Statement st) throws RippleException {
+            for (PatternResultCache c : patternCaches) {
+                c.invalidate(st);
+            }
+        }
+    });
     SpecialValueMap specialValues;
 
     public SesameModel(final Sail sail) throws RippleException {
         this.sail = sail;
 
+        listCache = new RDFListCache(
+                Ripple.getConfiguration().getInt(Ripple.LIST_CACHE_CAPACITY, 10000),
+                Ripple.getConfiguration().getLong(Ripple.LIST_CACHE_MAX_WEIGHT, 1000000));
+
         logger.fine("instantiating SesameModel");
 
         unmappedTypes = new HashSet<Class>();
@@ -149,12 +176,26 @@ public class SesameModel implements Model {
         return sail;
     }
 
+    /**
+     * @return the cache of native lists converted from RDF lists in this model
+     */
+    // Note: this method is not in the Model API
+    public RDFListCache getListCache() {
+        return listCache;
+    }
+
     @Override
-    public void register(final RippleType type) {
+    public synchronized void register(final RippleType type) {
         if (null == type || null == type.getInstanceClasses() || 0 == type.getInstanceClasses().size()) {
             throw new IllegalArgumentException();
         }
 
+        // any class may now dispatch differently, including classes previously found to have no type
+        unmappedTypes.clear();
+        dispatchGeneration++;
+        dispatchTable = new IdentityHashMap<Class, Dispatch>();
+        lastDispatch = null;
+
         for (Class c : (Iterable<Class>) type.getInstanceClasses()) {
             List<RippleType> types = registeredTypes.get(c);
             if (null == types) {
@@ -172,23 +213,18 @@ public class SesameModel implements Model {
         }
 
         Class c = instance.getClass();
-        List<RippleType> types = registeredTypes.get(c);
 
-        if (null == types) {
-            // quickly check whether this class has been marked as non mapped...
-            if (unmappedTypes.contains(c)) {
-                return null;
-            }
-
-            // ...before attempting to discover a mapped superclass or inherited interface
-            types = findTypes(c, new Stack<Class>());
-            if (null == types) {
-                return null;
+        Dispatch d = lastDispatch;
+        if (null == d || d.instanceClass != c || d.generation != dispatchGeneration) {
+            d = dispatchTable.get(c);
+            if (null == d) {
+                d = resolve(c);
             }
+            lastDispatch = d;
         }
 
         // tie goes to the first matching type in order of registration
-        for (RippleType type : types) {
+        for (RippleType type : d.types) {
             if (type.isInstance(instance)) {
                 return type;
             }
@@ -197,28 +233,48 @@ public class SesameModel implements Model {
         return null;
     }
 
-    private List<RippleType> findTypes(final Class c,
-                                       final Stack<Class> hierarchy) {
+    private synchronized Dispatch resolve(final Class c) {
+        Dispatch d = dispatchTable.get(c);
+        if (null != d) {
+            return d;
+        }
+
+        List<RippleType> types = registeredTypes.get(c);
+
+        if (null == types) {
+            // quickly check whether this class has been marked as non mapped...
+            if (!unmappedTypes.contains(c)) {
+                // ...before attempting to discover a mapped superclass or inherited interface
+                types = findTypes(c);
+            }
+        }
+
+        d = new Dispatch(c,
+                null == types ? NO_TYPES : types.toArray(new RippleType[types.size()]),
+                dispatchGeneration);
+
+        Map<Class, Dispatch> newTable = new IdentityHashMap<Class, Dispatch>(dispatchTable);
+        newTable.put(c, d);
+        dispatchTable = newTable;
+
+        return d;
+    }
+
+    // note: the types found for a subclass are remembered only in the dispatch table,
+    // so that they are found again when a type is registered
+    private List<RippleType> findTypes(final Class c) {
         if (unmappedTypes.contains(c)) {
             return null;
         }
 
-        hierarchy.push(c);
-
         List<RippleType> types = registeredTypes.get(c);
         if (null != types) {
-            for (Class d : hierarchy) {
-                List<RippleType> newTypes = new LinkedList<RippleType>();
-                newTypes.addAll(types);
-                registeredTypes.put(d, newTypes);
-            }
-
             return types;
         }
 
         Class sc = c.getSuperclass();
         if (null != sc) {
-            types = findTypes(sc, hierarchy);
+            types = findTypes(sc);
             if (null != types) {
                 return types;
             } else {
@@ -227,7 +283,7 @@ public class SesameModel implements Model {
         }
 
         for (Class ic : c.getInterfaces()) {
-            types = findTypes(ic, hierarchy);
+            types = findTypes(ic);
             if (null != types) {
                 return types;
             } else {
@@ -235,8 +291,21 @@ public class SesameModel implements Model {
             }
         }
 
-        hierarchy.pop();
         unmappedTypes.add(c);
         return null;
     }
+
+    private static class Dispatch {
+        private final Class instanceClass;
+        private final RippleType[] types;
+        private final int generation;
+
+        public Dispatch(final Class instanceClass,
+                        final RippleType[] types,
+                        final int generation) {
+            this.instanceClass = instanceClass;
+            this.types = types;
+            this.generation = generation;
+        }
+    }
 }
@@ -8,6 +8,8 @@ import net.fortytwo.flow.Sink;
 import net.fortytwo.flow.Source;
 import net.fortytwo.flow.rdf.CloseableIterationSource;
 import net.fortytwo.flow.rdf.diff.RDFDiffSink;
+import net.fortytwo.flow.rdf.diff.RDFDiffTee;
+import net.fortytwo.ripple.Ripple;
 import net.fortytwo.ripple.RippleException;
 import net.fortytwo.ripple.control.Task;
 import net.fortytwo.ripple.control.TaskSet;
@@ -34,6 +36,7 @@ import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.impl.MapBindingSet;
 import org.openrdf.query.parser.ParsedQuery;
 import org.openrdf.query.parser.sparql.SPARQLParser;
@@ -46,9 +49,14 @@ import org.openrdf.sail.SailReadOnlyException;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -69,6 +77,18 @@ public class SesameModelConnection implements ModelConnection {
     private final TaskSet taskSet = new TaskSet();
     private final RippleComparator comparator;
 
+    // collects asynchronous SP_O and PO_S queries into batches, if enabled
+    private final StatementPatternBatcher batcher;
+
+    // caches the results of statement pattern queries, if enabled
+    private final PatternResultCache patternCache;
+
+    // resources to be closed at the end of the current query
+    private final List<Closeable> queryResources = new LinkedList<Closeable>();
+
+    // whether there are changes which have not been committed
+    private volatile boolean uncommittedChanges = false;
+
     private boolean closed = false;
 
     protected SesameModelConnection(final SesameModel model, final RDFDiffSink listenerSink)
@@ -82,6 +102,22 @@ public class SesameModelConnection implements ModelConnection {
             throw new RippleException(t);
         }
 
+        int batchSize = Ripple.getConfiguration().getInt(Ripple.QUERY_BATCH_SIZE, 1);
+        if (batchSize > 1) {
+            batcher = new StatementPatternBatcher(this, batchSize);
+        } else {
+            batcher = null;
+        }
+
+        int patternCacheCapacity = Ripple.getConfiguration().getInt(Ripple.PATTERN_CACHE_CAPACITY, 0);
+        if (patternCacheCapacity > 0) {
+            patternCache = new PatternResultCache(patternCacheCapacity,
+                    Ripple.getConfiguration().getLong(Ripple.PATTERN_CACHE_MAX_WEIGHT, 100000));
+            model.patternCaches.add(patternCache);
+        } else {
+            patternCache = null;
+        }
+
         openSailConnection();
 
         synchronized (model.openConnections) {
@@ -110,15 +146,47 @@ public class SesameModelConnection implements ModelConnection {
 
     public void finish() throws RippleException {
         taskSet.waitUntilEmpty();
+
+        // results of batched queries may lead to further queries, and so on
+        while (null != batcher && batcher.flush()) {
+            taskSet.waitUntilEmpty();
+        }
+    }
+
+    public void addQueryResource(final Closeable resource) {
+        synchronized (queryResources) {
+            queryResources.add(resource);
+        }
+    }
+
+    public void releaseQueryResources() {
+        List<Closeable> resources;
+        synchronized (queryResources) {
+            resources = new ArrayList<Closeable>(queryResources);
+            queryResources.clear();
+        }
+
+        for (Closeable r : resources) {
+            try {
+                r.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "failed to release query resource", e);
+            }
+        }
     }
 
     public void close() throws RippleException {
         closed = true;
 
         finish();
+        releaseQueryResources();
 
         closeSailConnection(true);
 
+        if (null != patternCache) {
+            model.patternCaches.remove(patternCache);
+        }
+
         synchronized (model.openConnections) {
             model.openConnections.remove(this);
         }
@@ -135,8 +203,17 @@ public class SesameModelConnection implements ModelConnection {
 
     public void commit() throws RippleException {
         try {
+            boolean changed = hasUncommittedChanges();
             sailConnection.commit();
+            uncommittedChanges = false;
             sailConnection.begin();
+
+            // Changes are reported to listeners before they are committed, so other connections may have cached
+            // the previously committed results of queries, or previously committed lists, in the meantime.
+            // Read-only commits, such as the one at the end of each query, leave the caches alone.
+            if (changed) {
+                invalidateCaches();
+            }
         } catch (SailReadOnlyException e) {
             handleSailReadOnlyException(e);
         } catch (Throwable t) {
@@ -209,11 +286,27 @@ public class SesameModelConnection implements ModelConnection {
 // FIXME: this doesn't give the LexiconUpdater any information about namespaces
 // FIXME: removed because SailConnectionListener is no longer supported by arbitrary Sails... you would need to wrap
 //        the Sail in a notifying Sail... but this still wouldn't give you namespace updates.
-            if (null != listenerSink && sailConnection instanceof NotifyingSailConnection) {
+            if (sailConnection instanceof NotifyingSailConnection) {
+                // Memoized lists and query results are invalidated as their statements change.
+                RDFDiffSink sink = new RDFDiffTee(model.listCache.getInvalidator(), model.patternCacheInvalidator);
+                if (null != listenerSink) {
+                    sink = new RDFDiffTee(listenerSink, sink);
+                }
                 SailConnectionListener listener
-                        = new SailConnectionListenerAdapter(listenerSink);
+                        = new SailConnectionListenerAdapter(sink);
 
                 ((NotifyingSailConnection) sailConnection).addConnectionListener(listener);
+
+                // this also catches changes made directly through the Sail connection
+                ((NotifyingSailConnection) sailConnection).addConnectionListener(new SailConnectionListener() {
+                    public void statementAdded(final Statement st) {
+                        uncommittedChanges = true;
+                    }
+
+                    public void statementRemoved(final Statement st) {
+                        uncommittedChanges = true;
+                    }
+                });
             }
         } catch (Throwable t) {
             throw new RippleException(t);
@@ -225,7 +318,14 @@ public class SesameModelConnection implements ModelConnection {
         try {
             if (sailConnection.isOpen()) {
                 if (rollback) {
+                    boolean changed = hasUncommittedChanges();
                     sailConnection.rollback();
+                    uncommittedChanges = false;
+
+                    // rolled-back changes are not reported to listeners
+                    if (changed) {
+                        invalidateCaches();
+                    }
                 }
 
                 sailConnection.close();
@@ -301,6 +401,8 @@ public class SesameModelConnection implements ModelConnection {
     public void add(final Object subj, final Object pred, final Object obj, Object... contexts)
             throws RippleException {
         ensureOpen();
+        uncommittedChanges = true;
+        invalidateCachesIfNotNotifying();
 
         Value subjValue = toRDF(subj);
         Value predValue = toRDF(pred);
@@ -352,6 +454,8 @@ public class SesameModelConnection implements ModelConnection {
                        final Object... contexts) throws RippleException {
 
         ensureOpen();
+        uncommittedChanges = true;
+        invalidateCachesIfNotNotifying();
 
         Value subjValue, predValue, objValue;
 
@@ -559,8 +663,10 @@ public class SesameModelConnection implements ModelConnection {
         ensureOpen();
 
         if (asynchronous) {
-            QueryTask task = new QueryTask(query, sink);
-            taskSet.add(task);
+            if (null == batcher || !batcher.add(query, sink)) {
+                QueryTask task = new QueryTask(query, sink);
+                taskSet.addBlocking(task);
+            }
         } else {
             GetStatementsQuery sesameQuery;
 
@@ -578,16 +684,89 @@ public class SesameModelConnection implements ModelConnection {
                 }
             };
 
-            try {
-                sesameQuery.getValues(sailConnection, valueSink);
-            } catch (RippleException e) {
-                reset(true);
-                throw e;
-            }
+            readValues(sesameQuery, valueSink);
             //getStatements( query.subject, query.predicate, query.object, stSink, query.includeInferred );
         }
     }
 
+    void readValues(final GetStatementsQuery query,
+                    final Sink<Value> sink) throws RippleException {
+        if (!readCachedValues(query, sink)) {
+            readUncachedValues(query, sink);
+        }
+    }
+
+    /**
+     * @return whether the results of the query were found in the pattern cache, and passed to the sink
+     */
+    boolean readCachedValues(final GetStatementsQuery query,
+                             final Sink<Value> sink) throws RippleException {
+        List<Value> cached = null == patternCache ? null : patternCache.get(query);
+        if (null == cached) {
+            return false;
+        }
+
+        for (Value v : cached) {
+            sink.put(v);
+        }
+        return true;
+    }
+
+    // reads the results of a query from the store, caching them if there is a pattern cache
+    void readUncachedValues(final GetStatementsQuery query,
+                            final Sink<Value> sink) throws RippleException {
+        Sink<Value> results = sink;
+        final List<Value> values;
+        long version = 0;
+        if (null != patternCache) {
+            version = patternCache.getVersion();
+            values = new ArrayList<Value>();
+            results = new Sink<Value>() {
+                public void put(final Value v) throws RippleException {
+                    // stop collecting values once there are too many to cache
+                    if (values.size() <= patternCache.getMaxWeight()) {
+                        values.add(v);
+                    }
+                    sink.put(v);
+                }
+            };
+        } else {
+            values = null;
+        }
+
+        try {
+            query.getValues(sailConnection, results);
+        } catch (RippleException e) {
+            reset(true);
+            throw e;
+        }
+
+        if (null != values) {
+            patternCache.put(query, values, version);
+        }
+    }
+
+    /**
+     * @return the cache of statement pattern query results of this connection, or null if there is none
+     */
+    // Note: this method is not in the ModelConnection API
+    public PatternResultCache getPatternCache() {
+        return patternCache;
+    }
+
+    CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(final TupleExpr expr)
+            throws RippleException {
+        try {
+            return sailConnection.evaluate(expr, null, new MapBindingSet(), false);
+        } catch (SailException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    void addTask(final Task task) throws RippleException {
+        taskSet.addBlocking(task);
+    }
+
     public Source<Namespace> getNamespaces() throws RippleException {
         ensureOpen();
 
@@ -626,6 +805,7 @@ public class SesameModelConnection implements ModelConnection {
             //       the one below closes, which currently causes Sesame to
             //       deadlock.  Even using a separate RepositoryConnection for
             //       each RepositoryResult doesn't seem to help.
+            //       See GetStatementsQuery for why results are not streamed instead.
             Buffer<Statement> buffer = new Buffer<Statement>(sink);
             CloseableIteration<? extends Statement, SailException> stmtIter = null;
 
@@ -759,6 +939,25 @@ public class SesameModelConnection implements ModelConnection {
         return true;
     }
 
+    // Without a connection listener, there is no telling which memoized lists are affected by a change
+    private void invalidateCachesIfNotNotifying() {
+        if (!(sailConnection instanceof NotifyingSailConnection)) {
+            invalidateCaches();
+        }
+    }
+
+    // Without a connection listener, changes made directly through the Sail connection go unnoticed
+    private boolean hasUncommittedChanges() {
+        return uncommittedChanges || !(sailConnection instanceof NotifyingSailConnection);
+    }
+
+    private void invalidateCaches() {
+        model.listCache.clear();
+        for (PatternResultCache c : model.patternCaches) {
+            c.clear();
+        }
+    }
+
     // if the connection is closed, and a thread tries to access it, bail out ASAP before something confusing happens
     // use this method with methods which read from or write to the Sail
     private void ensureOpen() {
@@ -0,0 +1,70 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.flow.Sink;
+import net.fortytwo.flow.diff.DiffSink;
+import net.fortytwo.flow.diff.NullDiffSink;
+import net.fortytwo.flow.rdf.RDFNullSink;
+import net.fortytwo.flow.rdf.RDFSink;
+import net.fortytwo.flow.rdf.diff.RDFDiffSink;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Statement;
+
+/**
+ * An <code>RDFDiffSink</code> which passes both added and removed statements to a single handler,
+ * ignoring namespaces and comments.
+ * It is used to invalidate caches whenever the statements on which they depend may have changed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class StatementChangeSink implements RDFDiffSink {
+    private final RDFSink rdfSink;
+    private final DiffSink<Statement> diffSink;
+
+    public StatementChangeSink(final Sink<Statement> changedStatements) {
+        rdfSink = new RDFSink() {
+            private final RDFSink nullSink = new RDFNullSink();
+
+            public Sink<Statement> statementSink() {
+                return changedStatements;
+            }
+
+            public Sink<Namespace> namespaceSink() {
+                return nullSink.namespaceSink();
+            }
+
+            public Sink<String> commentSink() {
+                return nullSink.commentSink();
+            }
+        };
+
+        diffSink = new DiffSink<Statement>() {
+            public Sink<Statement> getPlus() {
+                return changedStatements;
+            }
+
+            public Sink<Statement> getMinus() {
+                return changedStatements;
+            }
+        };
+    }
+
+    public RDFSink adderSink() {
+        return rdfSink;
+    }
+
+    public RDFSink subtractorSink() {
+        return rdfSink;
+    }
+
+    public DiffSink<Statement> statementSink() {
+        return diffSink;
+    }
+
+    public DiffSink<Namespace> namespaceSink() {
+        return new NullDiffSink<Namespace>();
+    }
+
+    public DiffSink<String> commentSink() {
+        return new NullDiffSink<String>();
+    }
+}
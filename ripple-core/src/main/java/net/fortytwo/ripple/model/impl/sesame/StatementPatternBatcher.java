@@ -0,0 +1,405 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.control.Task;
+import net.fortytwo.ripple.model.GetStatementsQuery;
+import net.fortytwo.ripple.model.StatementPatternQuery;
+import net.fortytwo.ripple.sail.RippleSesameValue;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects asynchronous SP_O and PO_S queries which share a predicate
+ * (for example, the queries issued by an <code>RDFPredicateMapping</code> for each of a stream of stacks),
+ * and answers each batch with a single query with a VALUES block, fanning the results back out
+ * to the sink of each query.
+ * Queries with contexts are not batched.
+ * If the connection has a pattern cache, queries whose results are cached are answered immediately,
+ * and the results of each batch are cached for each of its keys.
+ * A batch is executed once it is full, or when the connection is asked to finish.
+ * If the batched query fails before producing any results, each key of the batch is looked up in a task of its own.
+ * Note that the results of a query in an incomplete batch are not produced until <code>finish</code> is called,
+ * so a caller which waits for the results of an individual asynchronous query, rather than calling
+ * <code>finish</code>, will wait indefinitely.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class StatementPatternBatcher {
+    private static final Logger logger = Logger.getLogger(StatementPatternBatcher.class.getName());
+
+    private static final String
+            KEY = "key",
+            VALUE = "value";
+
+    private static final ValueFactory VALUE_FACTORY = new ValueFactoryImpl();
+
+    private final SesameModelConnection connection;
+    private final int batchSize;
+
+    private final Map<BatchKey, Batch> pending = new HashMap<BatchKey, Batch>();
+
+    public StatementPatternBatcher(final SesameModelConnection connection,
+                                   final int batchSize) {
+        this.connection = connection;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param query a statement pattern query
+     * @param sink  a handler for the results of the query
+     * @return whether the query has been accepted for batching.
+     * If not, the caller is expected to execute the query by other means.
+     * @throws RippleException if a full batch cannot be scheduled
+     */
+    public boolean add(final StatementPatternQuery query,
+                       final Sink<Object> sink) throws RippleException {
+        StatementPatternQuery.Pattern p = query.getPattern();
+        if (StatementPatternQuery.Pattern.SP_O != p && StatementPatternQuery.Pattern.PO_S != p) {
+            return false;
+        }
+
+        GetStatementsQuery sesameQuery;
+        try {
+            sesameQuery = new GetStatementsQuery(query, connection);
+        } catch (GetStatementsQuery.InvalidQueryException e) {
+            logger.fine("invalid query: " + e.getMessage());
+            return true;
+        }
+
+        Value key = GetStatementsQuery.Type.SP_O == sesameQuery.type ? sesameQuery.subject : sesameQuery.object;
+        // the contexts of a query are not expressed in the batched query
+        if (null == key || null == sesameQuery.predicate || 0 < sesameQuery.contexts.length) {
+            return false;
+        }
+
+        // a query whose results are cached is answered at once, rather than waiting for its batch
+        if (connection.readCachedValues(sesameQuery, new CanonicalSink(sink))) {
+            return true;
+        }
+
+        Batch full = null;
+        BatchKey batchKey = new BatchKey(sesameQuery);
+        synchronized (pending) {
+            Batch b = pending.get(batchKey);
+            if (null == b) {
+                b = new Batch(sesameQuery.type, sesameQuery.predicate);
+                pending.put(batchKey, b);
+            }
+
+            b.add(key, sesameQuery, sink);
+
+            if (b.size >= batchSize) {
+                pending.remove(batchKey);
+                full = b;
+            }
+        }
+
+        if (null != full) {
+            connection.addTask(new BatchTask(full));
+        }
+
+        return true;
+    }
+
+    /**
+     * Schedules all incomplete batches
+     *
+     * @return whether any batches were scheduled
+     * @throws RippleException if a batch cannot be scheduled
+     */
+    public boolean flush() throws RippleException {
+        List<Batch> batches;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return false;
+            }
+
+            batches = new LinkedList<Batch>(pending.values());
+            pending.clear();
+        }
+
+        for (Batch b : batches) {
+            connection.addTask(new BatchTask(b));
+        }
+
+        return true;
+    }
+
+    private static class BatchKey {
+        private final GetStatementsQuery.Type type;
+        private final URI predicate;
+
+        public BatchKey(final GetStatementsQuery query) {
+            this.type = query.type;
+            this.predicate = query.predicate;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof BatchKey)) {
+                return false;
+            }
+
+            BatchKey k = (BatchKey) other;
+            return type == k.type && predicate.equals(k.predicate);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() + 31 * predicate.hashCode();
+        }
+    }
+
+    private static class Batch {
+        private final GetStatementsQuery.Type type;
+        private final URI predicate;
+
+        // the sinks waiting on each distinct key, along with a query for that key
+        private final Map<Value, List<Sink<Object>>> sinksByKey = new LinkedHashMap<Value, List<Sink<Object>>>();
+        private final Map<Value, GetStatementsQuery> queriesByKey = new HashMap<Value, GetStatementsQuery>();
+        private int size = 0;
+
+        public Batch(final GetStatementsQuery.Type type,
+                     final URI predicate) {
+            this.type = type;
+            this.predicate = predicate;
+        }
+
+        public void add(final Value key,
+                        final GetStatementsQuery query,
+                        final Sink<Object> sink) {
+            List<Sink<Object>> sinks = sinksByKey.get(key);
+            if (null == sinks) {
+                sinks = new LinkedList<Sink<Object>>();
+                sinksByKey.put(key, sinks);
+                queriesByKey.put(key, query);
+            }
+
+            sinks.add(sink);
+            size++;
+        }
+
+        // splits this batch into batches of one key each
+        public List<Batch> split() {
+            List<Batch> batches = new LinkedList<Batch>();
+            for (Map.Entry<Value, List<Sink<Object>>> e : sinksByKey.entrySet()) {
+                Batch b = new Batch(type, predicate);
+                b.sinksByKey.put(e.getKey(), e.getValue());
+                b.queriesByKey.put(e.getKey(), queriesByKey.get(e.getKey()));
+                b.size = e.getValue().size();
+                batches.add(b);
+            }
+
+            return batches;
+        }
+    }
+
+    private class CanonicalSink implements Sink<Value> {
+        private final Sink<Object> sink;
+
+        public CanonicalSink(final Sink<Object> sink) {
+            this.sink = sink;
+        }
+
+        public void put(final Value v) throws RippleException {
+            sink.put(connection.canonicalValue(v));
+        }
+    }
+
+    private class BatchTask extends Task {
+        private final Batch batch;
+        private volatile boolean stopped = false;
+        // whether any results have been passed along
+        private volatile boolean produced = false;
+
+        public BatchTask(final Batch batch) {
+            this.batch = batch;
+        }
+
+        protected void executeProtected() throws RippleException {
+            if (1 == batch.sinksByKey.size()) {
+                Map.Entry<Value, List<Sink<Object>>> e = batch.sinksByKey.entrySet().iterator().next();
+                connection.readUncachedValues(batch.queriesByKey.get(e.getKey()), new FanOutSink(e.getValue()));
+                return;
+            }
+
+            try {
+                evaluateWithValues();
+            } catch (RippleException e) {
+                // Individual lookups would repeat any results already produced
+                if (produced) {
+                    throw e;
+                }
+
+                logger.log(Level.WARNING, "batched query failed; falling back to individual lookups", e);
+
+                // the lookups are executed concurrently, as they would have been without batching
+                for (Batch b : batch.split()) {
+                    if (stopped) {
+                        return;
+                    }
+
+                    connection.addTask(new BatchTask(b));
+                }
+            }
+        }
+
+        protected void stopProtected() {
+            stopped = true;
+        }
+
+        private void evaluateWithValues() throws RippleException {
+            PatternResultCache cache = connection.getPatternCache();
+            long version = null == cache ? 0 : cache.getVersion();
+            // the results for each key of the batch, to be cached once the query is complete
+            Map<Value, List<Value>> valuesByKey = new HashMap<Value, List<Value>>();
+
+            // map keys, as they will be found in the results, to the sinks which await them
+            Map<Value, List<Sink<Object>>> sinksByNativeKey = new HashMap<Value, List<Sink<Object>>>();
+            // ...and to the keys of the batch which they answer
+            Map<Value, List<Value>> keysByNativeKey = new HashMap<Value, List<Value>>();
+            List<BindingSet> keyBindings = new LinkedList<BindingSet>();
+            for (Map.Entry<Value, List<Sink<Object>>> e : batch.sinksByKey.entrySet()) {
+                valuesByKey.put(e.getKey(), new ArrayList<Value>());
+
+                for (Value key : equivalentKeys(e.getKey())) {
+                    List<Sink<Object>> sinks = sinksByNativeKey.get(key);
+                    if (null == sinks) {
+                        MapBindingSet b = new MapBindingSet();
+                        b.addBinding(KEY, key);
+                        keyBindings.add(b);
+
+                        sinksByNativeKey.put(key, e.getValue());
+                        keysByNativeKey.put(key, new LinkedList<Value>());
+                    } else {
+                        // several keys of the batch (e.g. a plain literal and the equivalent string-typed literal)
+                        // may share a native key, and all of their sinks await its results
+                        List<Sink<Object>> merged = new LinkedList<Sink<Object>>(sinks);
+                        merged.addAll(e.getValue());
+                        sinksByNativeKey.put(key, merged);
+                    }
+                    keysByNativeKey.get(key).add(e.getKey());
+                }
+            }
+
+            // note: the binding names of the assignment are those of its binding sets
+            BindingSetAssignment values = new BindingSetAssignment();
+            values.setBindingSets(keyBindings);
+
+            Var keyVar = new Var(KEY);
+            Var valueVar = new Var(VALUE);
+            Var predVar = new Var("-const-predicate", batch.predicate);
+            predVar.setAnonymous(true);
+            StatementPattern pattern = GetStatementsQuery.Type.SP_O == batch.type
+                    ? new StatementPattern(keyVar, predVar, valueVar)
+                    : new StatementPattern(valueVar, predVar, keyVar);
+
+            CloseableIteration<? extends BindingSet, QueryEvaluationException> iter
+                    = connection.evaluate(new Join(values, pattern));
+            try {
+                try {
+                    while (iter.hasNext()) {
+                        if (stopped) {
+                            return;
+                        }
+
+                        BindingSet b = iter.next();
+                        List<Sink<Object>> sinks = sinksByNativeKey.get(b.getValue(KEY));
+                        if (null != sinks) {
+                            Value value = b.getValue(VALUE);
+                            new FanOutSink(sinks).put(value);
+
+                            if (null != cache) {
+                                for (Value key : keysByNativeKey.get(b.getValue(KEY))) {
+                                    List<Value> keyValues = valuesByKey.get(key);
+                                    // stop collecting values once there are too many to cache
+                                    if (keyValues.size() <= cache.getMaxWeight()) {
+                                        keyValues.add(value);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    iter.close();
+                }
+            } catch (QueryEvaluationException e) {
+                throw new RippleException(e);
+            }
+
+            if (null != cache) {
+                for (Map.Entry<Value, List<Value>> e : valuesByKey.entrySet()) {
+                    cache.put(batch.queriesByKey.get(e.getKey()), e.getValue(), version);
+                }
+            }
+        }
+
+        // mirrors GetStatementsQuery, in which plain literals and string-typed literals are equivalent
+        private Collection<Value> equivalentKeys(Value key) {
+            if (key instanceof RippleSesameValue) {
+                key = ((RippleSesameValue) key).getNativeValue();
+            }
+
+            if (GetStatementsQuery.Type.PO_S == batch.type && key instanceof Literal) {
+                Literal l = (Literal) key;
+                if (null == l.getDatatype()) {
+                    return Arrays.asList(key, VALUE_FACTORY.createLiteral(l.getLabel(), XMLSchema.STRING));
+                } else if (XMLSchema.STRING.equals(l.getDatatype())) {
+                    return Arrays.asList(key, VALUE_FACTORY.createLiteral(l.getLabel()));
+                }
+            }
+
+            return Collections.singletonList(key);
+        }
+
+        private class FanOutSink implements Sink<Value> {
+            private final List<Sink<Object>> sinks;
+
+            public FanOutSink(final List<Sink<Object>> sinks) {
+                this.sinks = sinks;
+            }
+
+            public void put(final Value v) throws RippleException {
+                if (stopped) {
+                    return;
+                }
+
+                produced = true;
+                Object o = connection.canonicalValue(v);
+                for (Sink<Object> s : sinks) {
+                    try {
+                        s.put(o);
+                    } catch (RippleException e) {
+                        // Soft fail
+                        logger.log(Level.WARNING, "failed to put batched query result", e);
+                    }
+                }
+            }
+        }
+    }
+}
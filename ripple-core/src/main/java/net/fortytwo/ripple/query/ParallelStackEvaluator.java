@@ -0,0 +1,474 @@
+package net.fortytwo.ripple.query;
+
+import net.fortytwo.flow.Sink;
+import net.fortytwo.flow.SynchronizedSink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.Closure;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.StackMapping;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A program evaluator which uses Ripple's lazy evaluation strategy, but which distributes the reduction of
+ * independent intermediate stacks over a pool of worker threads.
+ * Each worker owns a double-ended queue of pending stacks;
+ * it pushes and pops its own work at the head of the queue (depth-first, which keeps the number of
+ * in-flight stacks small), and steals from the tail of other workers' queues when its own queue is empty.
+ * Solutions are passed into the caller's sink one at a time, from whichever thread found them.
+ * As in <code>LazyStackEvaluator</code>, stacks which reduce to nil are dropped.
+ *
+ * Model connections are not thread-safe, so the caller's connection is not used for reduction.
+ * Instead, each worker opens its own connection to the same model, the first time it reduces a stack
+ * of a given evaluation, and uses it for every mapping it applies; calls into the model,
+ * including synchronous queries, therefore run in parallel.
+ * When the evaluation is complete, the worker connections are committed (or rolled back, if the evaluation failed)
+ * and closed.
+ * As each worker has its own transaction, uncommitted changes made through the caller's connection
+ * are not visible to the mappings; callers which modify the model should commit before evaluating.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ParallelStackEvaluator extends StackEvaluator {
+    private static final Logger logger = Logger.getLogger(ParallelStackEvaluator.class.getName());
+
+    private static final AtomicInteger poolCount = new AtomicInteger(0);
+
+    private final Worker[] workers;
+    private final AtomicInteger queuedItems = new AtomicInteger(0);
+    private final AtomicInteger idleWorkers = new AtomicInteger(0);
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+    private final Object idleMonitor = new Object();
+    private final Set<Evaluation> activeEvaluations
+            = Collections.newSetFromMap(new ConcurrentHashMap<Evaluation, Boolean>());
+
+    private volatile boolean shutDown = false;
+
+    /**
+     * Creates a new evaluator with one worker thread per available processor
+     */
+    public ParallelStackEvaluator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism the number of worker threads to use
+     */
+    public ParallelStackEvaluator(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        int poolId = poolCount.incrementAndGet();
+
+        workers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            workers[i] = new Worker(i);
+        }
+
+        for (Worker w : workers) {
+            w.thread = new Thread(w, "Ripple evaluator #" + poolId + " worker thread #" + (w.index + 1));
+            w.thread.setDaemon(true);
+            w.thread.start();
+        }
+    }
+
+    public void apply(final RippleList arg,
+                      final Sink<RippleList> solutions,
+                      final ModelConnection mc) throws RippleException {
+        if (shutDown) {
+            throw new IllegalStateException("evaluator has been shut down");
+        }
+
+        if (arg.isNil()) {
+            return;
+        }
+
+        Evaluation evaluation = new Evaluation(solutions, mc);
+        activeEvaluations.add(evaluation);
+
+        try {
+            evaluation.submit(arg, null);
+
+            while (true) {
+                evaluation.waitUntilIdle();
+                if (evaluation.isStopped()) {
+                    break;
+                }
+
+                // Asynchronous queries may still be delivering results into this evaluation.
+                // Wait for them, then check again for new work.
+                // If no stack was submitted in the meantime, no worker can have issued a query since its connection
+                // was finished, and the evaluation is complete.
+                long submitted = evaluation.getSubmitted();
+                evaluation.finishConnections();
+
+                if (evaluation.isStopped() || submitted == evaluation.getSubmitted()) {
+                    break;
+                }
+            }
+        } finally {
+            activeEvaluations.remove(evaluation);
+            evaluation.closeConnections();
+        }
+
+        evaluation.throwErrorIfAny();
+    }
+
+    /**
+     * Stops all evaluations currently in progress.
+     * Pending intermediate stacks are discarded, and no further solutions are produced.
+     */
+    public void stop() {
+        for (Evaluation e : activeEvaluations) {
+            e.stop();
+        }
+    }
+
+    /**
+     * Stops all evaluations and releases this evaluator's worker threads.
+     * The evaluator may not be used after it has been shut down.
+     */
+    @Override
+    public void shutDown() {
+        stop();
+        shutDown = true;
+
+        synchronized (idleMonitor) {
+            idleMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of intermediate stacks waiting to be reduced, over all evaluations
+     */
+    public int getQueuedItems() {
+        return queuedItems.get();
+    }
+
+    private void enqueue(final WorkItem item, final Worker submitter) {
+        queuedItems.incrementAndGet();
+
+        if (null == submitter) {
+            int i = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+            workers[i].deque.addLast(item);
+        } else {
+            // Favor depth-first evaluation within a worker.
+            submitter.deque.addFirst(item);
+        }
+
+        if (idleWorkers.get() > 0) {
+            synchronized (idleMonitor) {
+                idleMonitor.notifyAll();
+            }
+        }
+    }
+
+    private WorkItem take(final Worker self) {
+        WorkItem item = self.deque.pollFirst();
+
+        // Try to steal from the tail of another worker's queue.
+        if (null == item) {
+            for (int i = 1; i < workers.length; i++) {
+                item = workers[(self.index + i) % workers.length].deque.pollLast();
+                if (null != item) {
+                    break;
+                }
+            }
+        }
+
+        if (null != item) {
+            queuedItems.decrementAndGet();
+        }
+
+        return item;
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final LinkedBlockingDeque<WorkItem> deque = new LinkedBlockingDeque<WorkItem>();
+        private Thread thread;
+
+        public Worker(final int index) {
+            this.index = index;
+        }
+
+        public void run() {
+            while (true) {
+                WorkItem item = take(this);
+
+                if (null == item) {
+                    // Items which remain after shutdown belong to stopped evaluations, and are discarded
+                    // by reduce(); the queues are drained so that those evaluations can complete.
+                    if (shutDown) {
+                        break;
+                    }
+
+                    synchronized (idleMonitor) {
+                        idleWorkers.incrementAndGet();
+                        try {
+                            if (0 == queuedItems.get() && !shutDown) {
+                                idleMonitor.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            logger.warning("evaluator worker interrupted while waiting for work");
+                        } finally {
+                            idleWorkers.decrementAndGet();
+                        }
+                    }
+                } else {
+                    item.evaluation.reduce(item.stack, this);
+                }
+            }
+        }
+    }
+
+    private class WorkItem {
+        private final RippleList stack;
+        private final Evaluation evaluation;
+
+        public WorkItem(final RippleList stack, final Evaluation evaluation) {
+            this.stack = stack;
+            this.evaluation = evaluation;
+        }
+    }
+
+    private class Evaluation {
+        private final Sink<RippleList> solutions;
+        private final ModelConnection mc;
+        private final Sink<RippleList> solutionSink;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private final AtomicLong submitted = new AtomicLong(0);
+
+        // the connection of each worker, indexed by worker, or null if the worker has not yet taken part
+        private final AtomicReferenceArray<ModelConnection> connections
+                = new AtomicReferenceArray<ModelConnection>(workers.length);
+
+        private volatile boolean stopped = false;
+        private RippleException error = null;
+
+        public Evaluation(final Sink<RippleList> solutions,
+                          final ModelConnection mc) {
+            this.solutions = new SynchronizedSink<RippleList>(solutions);
+            this.mc = mc;
+
+            // Drop any solutions which are found after the evaluation has been stopped.
+            solutionSink = new Sink<RippleList>() {
+                public void put(final RippleList s) throws RippleException {
+                    if (!stopped) {
+                        Evaluation.this.solutions.put(s);
+                    }
+                }
+            };
+        }
+
+        public void submit(final RippleList stack, final Worker submitter) {
+            if (stopped) {
+                return;
+            }
+
+            pending.incrementAndGet();
+            submitted.incrementAndGet();
+            enqueue(new WorkItem(stack, this), submitter);
+        }
+
+        public long getSubmitted() {
+            return submitted.get();
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        public boolean isIdle() {
+            return 0 == pending.get();
+        }
+
+        public void stop() {
+            stopped = true;
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        public synchronized void waitUntilIdle() throws RippleException {
+            while (!stopped && pending.get() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RippleException("interrupted while waiting for evaluation to complete");
+                }
+            }
+        }
+
+        // Waits for any reductions still in progress, even if the evaluation has been stopped.
+        private synchronized void waitUntilDone() throws RippleException {
+            while (pending.get() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RippleException("interrupted while waiting for evaluation to complete");
+                }
+            }
+        }
+
+        private ModelConnection connectionFor(final Worker worker) throws RippleException {
+            // only the worker itself sets its own connection
+            ModelConnection c = connections.get(worker.index);
+            if (null == c) {
+                c = mc.getModel().createConnection();
+                connections.set(worker.index, c);
+            }
+
+            return c;
+        }
+
+        public void finishConnections() throws RippleException {
+            for (int i = 0; i < connections.length(); i++) {
+                ModelConnection c = connections.get(i);
+                if (null != c) {
+                    c.finish();
+                }
+            }
+        }
+
+        public void closeConnections() throws RippleException {
+            waitUntilDone();
+
+            RippleException closeError = null;
+            for (int i = 0; i < connections.length(); i++) {
+                ModelConnection c = connections.get(i);
+                if (null != c) {
+                    try {
+                        try {
+                            if (!hasFailed()) {
+                                c.commit();
+                            }
+                        } finally {
+                            // closing a connection rolls back any uncommitted changes
+                            c.close();
+                        }
+                    } catch (RippleException e) {
+                        if (null == closeError) {
+                            closeError = e;
+                        }
+                    }
+                }
+            }
+
+            if (null != closeError) {
+                throw closeError;
+            }
+        }
+
+        private synchronized boolean hasFailed() {
+            return null != error;
+        }
+
+        public synchronized void throwErrorIfAny() throws RippleException {
+            if (null != error) {
+                throw error;
+            }
+        }
+
+        private synchronized void fail(final RippleException e) {
+            if (null == error) {
+                error = e;
+            }
+
+            stop();
+        }
+
+        private void finished() {
+            if (0 == pending.decrementAndGet()) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        // Reduces a stack to head-normal form, or to the point at which a nullary mapping is applied.
+        // The results of any such mapping become new intermediate stacks, which are distributed to the workers.
+        public void reduce(final RippleList stack, final Worker worker) {
+            try {
+                if (!stopped) {
+                    reducePrivate(stack, worker, connectionFor(worker));
+                }
+            } catch (RippleException e) {
+                fail(e);
+            } catch (StackOverflowError e) {
+                fail(new RippleException(e));
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "unexpected error in evaluator", e);
+                fail(new RippleException(e));
+            } finally {
+                finished();
+            }
+        }
+
+        private void reducePrivate(final RippleList stack,
+                                   final Worker worker,
+                                   final ModelConnection mc) throws RippleException {
+            RippleList left = stack;
+            RippleList right = mc.list();
+
+            while (true) {
+                // Nil stacks are not solutions, and nor are stacks which can't be reduced to
+                // something with a passive item on top.
+                if (left.isNil()) {
+                    return;
+                }
+
+                Object first = left.getFirst();
+                final StackMapping f = mc.toMapping(first);
+
+                if (null == f) {
+                    if (right.isNil()) {
+                        solutionSink.put(left);
+                        return;
+                    } else {
+                        Closure c = new Closure(mc.toMapping(right.getFirst()), first);
+                        right = right.getRest();
+                        left = left.getRest().push(new Operator(c));
+                    }
+                } else {
+                    if (0 == f.arity()) {
+                        final RippleList suspended = right;
+                        Sink<RippleList> intermediates = new Sink<RippleList>() {
+                            public void put(final RippleList s) throws RippleException {
+                                RippleList i = s;
+                                RippleList cur = suspended;
+                                while (!cur.isNil()) {
+                                    i = i.push(cur.getFirst());
+                                    cur = cur.getRest();
+                                }
+
+                                // Results produced in worker threads go to the head of the worker's own queue.
+                                // Results delivered by other threads (e.g. asynchronous queries)
+                                // are spread over all workers.
+                                submit(i, Thread.currentThread() == worker.thread ? worker : null);
+                            }
+                        };
+
+                        f.apply(left.getRest(), intermediates, mc);
+                        return;
+                    } else {
+                        right = right.push(first);
+                        left = left.getRest();
+                    }
+                }
+            }
+        }
+    }
+}
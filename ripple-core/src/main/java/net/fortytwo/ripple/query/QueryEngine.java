@@ -90,8 +90,17 @@ public class QueryEngine {
         cmd.execute(this, connection);
     }
 
+    /**
+     * Closes the connection of this query engine and shuts down its evaluator
+     *
+     * @throws RippleException if the connection cannot be closed
+     */
     public void shutDown() throws RippleException {
-        connection.close();
+        try {
+            connection.close();
+        } finally {
+            evaluator.shutDown();
+        }
     }
 
     private void initializeLexicon() throws RippleException {
@@ -104,6 +104,7 @@ public class QueryPipe implements Sink<String> {
         }
 
         connection.finish();
+        connection.releaseQueryResources();
         resultBuffer.flush();
     }
 
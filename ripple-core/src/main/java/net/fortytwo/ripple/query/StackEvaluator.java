@@ -20,4 +20,11 @@ public abstract class StackEvaluator extends Evaluator<RippleList, RippleList, M
     public StackMapping getInverse() throws RippleException {
         return new NullStackMapping();
     }
+
+    /**
+     * Releases any resources, such as worker threads, held by this evaluator.
+     * The evaluator may not be used after it has been shut down.
+     */
+    public void shutDown() {
+    }
 }
@@ -0,0 +1,74 @@
+package net.fortytwo.ripple.sail;
+
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.StackMapping;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.sail.SailException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cost model for the join optimizer which distinguishes stored triples from computed ones.
+ * A triple pattern whose predicate maps to a primitive function (or, for a <code>urn:string:</code> predicate,
+ * to a key lookup) is computed by applying the function to its subject or, in reverse, to its object.
+ * Such a pattern is cheap once either end is bound, but cannot be answered while both ends are unbound,
+ * so it is given a very high cost until a preceding pattern binds one of its ends.
+ * Patterns with any other predicate are matched against the stored triples, and are costed as usual.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RippleEvaluationStatistics extends EvaluationStatistics {
+    private static final Logger logger = Logger.getLogger(RippleEvaluationStatistics.class.getName());
+
+    // the factor by which a computed pattern with neither end bound multiplies the cost of the pattern
+    private static final double UNBOUND_MAPPING_COST = 1e6;
+
+    private final ModelConnection modelConnection;
+    private final RippleValueFactory valueFactory;
+
+    public RippleEvaluationStatistics(final ModelConnection modelConnection,
+                                      final RippleValueFactory valueFactory) {
+        this.modelConnection = modelConnection;
+        this.valueFactory = valueFactory;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator() {
+        return new RippleCardinalityCalculator();
+    }
+
+    private class RippleCardinalityCalculator extends CardinalityCalculator {
+        @Override
+        protected double getCardinality(final StatementPattern sp) {
+            double cardinality = super.getCardinality(sp);
+
+            if (isComputed(sp.getPredicateVar())
+                    && !sp.getSubjectVar().hasValue() && !sp.getObjectVar().hasValue()) {
+                cardinality *= UNBOUND_MAPPING_COST;
+            }
+
+            return cardinality;
+        }
+
+        private boolean isComputed(final Var predicate) {
+            if (!predicate.hasValue()) {
+                return false;
+            }
+
+            Value v;
+            try {
+                v = valueFactory.nativize(predicate.getValue());
+            } catch (SailException e) {
+                logger.log(Level.WARNING, "failed to nativize predicate", e);
+                return false;
+            }
+
+            return !(v instanceof URI) || modelConnection.canonicalValue(v) instanceof StackMapping;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.fortytwo.ripple.sail;
 
 import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.rdf.QueryOptimizerChain;
 import net.fortytwo.ripple.RippleException;
 import net.fortytwo.ripple.libs.control.ControlLibrary;
 import net.fortytwo.ripple.model.ModelConnection;
@@ -44,7 +45,11 @@ public class RippleSailConnection extends SailConnectionWrapper {
         try {
             TripleSource tripleSource = new SailConnectionTripleSource(this, valueFactory, includeInferred);
             EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(tripleSource, dataset);
-            return strategy.evaluate(query, bindings);
+
+            TupleExpr expr = QueryOptimizerChain.optimize(query, dataset, bindings, strategy,
+                    new RippleEvaluationStatistics(modelConnection, valueFactory));
+
+            return strategy.evaluate(expr, bindings);
         } catch (QueryEvaluationException e) {
             throw new SailException(e);
         }
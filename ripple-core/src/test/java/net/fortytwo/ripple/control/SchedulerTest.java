@@ -0,0 +1,229 @@
+package net.fortytwo.ripple.control;
+
+import net.fortytwo.flow.NullSink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.test.RippleTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SchedulerTest extends RippleTestCase {
+    public void testNestedTasksUnderBlockPolicy() throws Exception {
+        getTestModel();
+
+        // two workers and a queue of one task are saturated by the outer tasks alone
+        final Scheduler scheduler = new Scheduler(2, 1, Scheduler.RejectionPolicy.BLOCK, 1, false);
+        final CountDownLatch finished = new CountDownLatch(20);
+        final AtomicInteger nestedInWorker = new AtomicInteger(0);
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.addPrivate(new Task() {
+                protected void executeProtected() throws RippleException {
+                    final Thread worker = Thread.currentThread();
+
+                    for (int j = 0; j < 4; j++) {
+                        scheduler.addPrivate(new Task() {
+                            protected void executeProtected() throws RippleException {
+                                if (Thread.currentThread() == worker) {
+                                    nestedInWorker.incrementAndGet();
+                                }
+                                sleep(10);
+                                finished.countDown();
+                            }
+
+                            protected void stopProtected() {
+                            }
+                        }, new NullSink<Task>());
+                    }
+
+                    sleep(10);
+                    finished.countDown();
+                }
+
+                protected void stopProtected() {
+                }
+            }, new NullSink<Task>());
+        }
+
+        // with workers waiting on the full queue, the nested tasks would never complete
+        assertTrue(finished.await(20, TimeUnit.SECONDS));
+        assertTrue(nestedInWorker.get() > 0);
+        assertEquals(0, scheduler.getRejectedTaskCount());
+    }
+
+    public void testAbortPolicy() throws Exception {
+        getTestModel();
+
+        Scheduler scheduler = new Scheduler(1, 1, Scheduler.RejectionPolicy.ABORT, 1, false);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Task blocker = new Task() {
+            protected void executeProtected() throws RippleException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RippleException(e);
+                }
+            }
+
+            protected void stopProtected() {
+            }
+        };
+
+        try {
+            // one task for the worker, one for the queue, and one too many
+            scheduler.addPrivate(blocker, new NullSink<Task>());
+            scheduler.addPrivate(new NoopTask(), new NullSink<Task>());
+            try {
+                scheduler.addPrivate(new NoopTask(), new NullSink<Task>());
+                fail("task should have been rejected");
+            } catch (RippleException e) {
+                // expected
+            }
+            assertEquals(1, scheduler.getRejectedTaskCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testBlockingTasksWithoutVirtualThreads() throws Exception {
+        getTestModel();
+
+        // there is no virtual thread executor, as on a JVM which does not support virtual threads
+        Scheduler scheduler = new Scheduler(2, 10, Scheduler.RejectionPolicy.CALLER_RUNS, 1, true, null);
+        assertFalse(scheduler.isVirtualThreadSupported());
+        assertFalse(scheduler.getUseVirtualThreads());
+
+        final CountDownLatch finished = new CountDownLatch(10);
+        final AtomicInteger inWorker = new AtomicInteger(0);
+        for (int i = 0; i < 10; i++) {
+            scheduler.addBlockingPrivate(new Task() {
+                protected void executeProtected() throws RippleException {
+                    if (Thread.currentThread().getName().startsWith("Ripple worker thread")) {
+                        inWorker.incrementAndGet();
+                    }
+                    finished.countDown();
+                }
+
+                protected void stopProtected() {
+                }
+            }, new NullSink<Task>());
+        }
+
+        assertTrue(finished.await(20, TimeUnit.SECONDS));
+        assertEquals(10, inWorker.get());
+    }
+
+    public void testVirtualThreadLimit() throws Exception {
+        getTestModel();
+
+        // an ordinary thread pool stands in for virtual threads
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Scheduler scheduler = new Scheduler(1, 10, Scheduler.RejectionPolicy.CALLER_RUNS, 3, true, executor);
+            assertTrue(scheduler.getUseVirtualThreads());
+
+            final CountDownLatch finished = new CountDownLatch(20);
+            final AtomicInteger inFlight = new AtomicInteger(0);
+            final AtomicInteger maxInFlight = new AtomicInteger(0);
+            for (int i = 0; i < 20; i++) {
+                scheduler.addBlockingPrivate(new Task() {
+                    protected void executeProtected() throws RippleException {
+                        int current = inFlight.incrementAndGet();
+                        while (true) {
+                            int max = maxInFlight.get();
+                            if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                                break;
+                            }
+                        }
+
+                        sleep(10);
+                        inFlight.decrementAndGet();
+                        finished.countDown();
+                    }
+
+                    protected void stopProtected() {
+                    }
+                }, new NullSink<Task>());
+            }
+
+            assertTrue(finished.await(20, TimeUnit.SECONDS));
+            assertTrue(maxInFlight.get() <= 3);
+            assertTrue(maxInFlight.get() >= 1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testNestedTasksUnderVirtualThreadLimit() throws Exception {
+        getTestModel();
+
+        // an ordinary thread pool stands in for virtual threads
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final Scheduler scheduler = new Scheduler(1, 10, Scheduler.RejectionPolicy.CALLER_RUNS, 1, true, executor);
+            final CountDownLatch nestedFinished = new CountDownLatch(3);
+            final CountDownLatch finished = new CountDownLatch(1);
+            final AtomicInteger nestedInParent = new AtomicInteger(0);
+
+            // the outer task holds the only permit while it waits for its nested tasks
+            scheduler.addBlockingPrivate(new Task() {
+                protected void executeProtected() throws RippleException {
+                    final Thread parent = Thread.currentThread();
+
+                    for (int i = 0; i < 3; i++) {
+                        scheduler.addBlockingPrivate(new Task() {
+                            protected void executeProtected() throws RippleException {
+                                if (Thread.currentThread() == parent) {
+                                    nestedInParent.incrementAndGet();
+                                }
+                                nestedFinished.countDown();
+                            }
+
+                            protected void stopProtected() {
+                            }
+                        }, new NullSink<Task>());
+                    }
+
+                    try {
+                        if (nestedFinished.await(20, TimeUnit.SECONDS)) {
+                            finished.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RippleException(e);
+                    }
+                }
+
+                protected void stopProtected() {
+                }
+            }, new NullSink<Task>());
+
+            assertTrue(finished.await(20, TimeUnit.SECONDS));
+            assertEquals(3, nestedInParent.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void sleep(final long millis) throws RippleException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RippleException(e);
+        }
+    }
+
+    private static class NoopTask extends Task {
+        protected void executeProtected() throws RippleException {
+        }
+
+        protected void stopProtected() {
+        }
+    }
+}
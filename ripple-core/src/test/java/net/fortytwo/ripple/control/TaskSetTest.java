@@ -0,0 +1,71 @@
+package net.fortytwo.ripple.control;
+
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.test.RippleTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TaskSetTest extends RippleTestCase {
+    public void testWaitUntilEmpty() throws Exception {
+        getTestModel();
+
+        final AtomicInteger executed = new AtomicInteger(0);
+        long completedBefore = Scheduler.getInstance().getCompletedTaskCount();
+
+        TaskSet set = new TaskSet();
+        for (int i = 0; i < 500; i++) {
+            set.add(new Task() {
+                protected void executeProtected() throws RippleException {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new RippleException(e);
+                    }
+                    executed.incrementAndGet();
+                }
+
+                protected void stopProtected() {
+                }
+            });
+        }
+
+        set.waitUntilEmpty();
+
+        assertEquals(500, executed.get());
+        assertEquals(0, set.getPendingCount());
+        assertEquals(500, set.getCompletedCount());
+        assertTrue(Scheduler.getInstance().getCompletedTaskCount() - completedBefore >= 500);
+    }
+
+    public void testStop() throws Exception {
+        getTestModel();
+
+        final AtomicInteger executed = new AtomicInteger(0);
+
+        TaskSet set = new TaskSet();
+        for (int i = 0; i < 100; i++) {
+            set.add(new Task() {
+                private volatile boolean stopped = false;
+
+                protected void executeProtected() throws RippleException {
+                    while (!stopped) {
+                        Thread.yield();
+                    }
+                    executed.incrementAndGet();
+                }
+
+                protected void stopProtected() {
+                    stopped = true;
+                }
+            });
+        }
+
+        set.stop();
+        set.waitUntilEmpty();
+
+        assertEquals(0, set.getPendingCount());
+    }
+}
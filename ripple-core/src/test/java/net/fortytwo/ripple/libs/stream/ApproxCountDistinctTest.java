@@ -0,0 +1,84 @@
+package net.fortytwo.ripple.libs.stream;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.NullStackMapping;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.PrimitiveStackMapping;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.StackMapping;
+import net.fortytwo.ripple.test.RippleTestCase;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ApproxCountDistinctTest extends RippleTestCase {
+    public void testSimple() throws Exception {
+        assertReducesTo("1000 2000 both approxCountDistinct.", "1000 2000 2");
+        assertReducesTo("1000 1000 both approxCountDistinct.", "1000 1000 1");
+        assertReducesTo("\"One, two, three stacks. Ah ah ah!\" (\",\" split. each.) approxCountDistinct.",
+                "\"One, two, three stacks. Ah ah ah!\" 3");
+    }
+
+    public void testInsufficientArguments() throws Exception {
+        assertReducesTo("approxCountDistinct.");
+    }
+
+    public void testIneffectualMapping() throws Exception {
+        assertReducesTo("1 2 approxCountDistinct.", "1 0");
+    }
+
+    public void testRepeatedSolutionsAreCountedOnce() throws Exception {
+        ModelConnection mc = modelConnection;
+        int n = 100000;
+        // a mapping with n distinct solutions, each produced twice
+        RippleList arg = mc.list().push(mc.list().push(new Operator(new Range(n))));
+
+        // count counts every solution...
+        assertEquals(2 * n, countOf(new Count(), arg));
+
+        // ...while the estimate is of the number of distinct solutions.
+        // The default precision of 14 gives a standard error of about 0.8%
+        assertEquals(n, countOf(new ApproxCountDistinct(), arg), n * 0.04);
+    }
+
+    private long countOf(final PrimitiveStackMapping primitive,
+                         final RippleList arg) throws Exception {
+        Collector<RippleList> results = new Collector<RippleList>();
+        primitive.apply(arg, results, modelConnection);
+        assertEquals(1, results.size());
+        return modelConnection.toNumber(results.iterator().next().getFirst()).longValue();
+    }
+
+    private class Range implements StackMapping {
+        private final int n;
+
+        public Range(final int n) {
+            this.n = n;
+        }
+
+        public int arity() {
+            return 0;
+        }
+
+        public void apply(final RippleList arg,
+                          final Sink<RippleList> solutions,
+                          final ModelConnection mc) throws RippleException {
+            for (int j = 0; j < 2; j++) {
+                for (int i = 0; i < n; i++) {
+                    solutions.put(arg.push(i));
+                }
+            }
+        }
+
+        public boolean isTransparent() {
+            return true;
+        }
+
+        public StackMapping getInverse() throws RippleException {
+            return new NullStackMapping();
+        }
+    }
+}
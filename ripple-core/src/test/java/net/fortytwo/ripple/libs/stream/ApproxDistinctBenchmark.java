@@ -0,0 +1,88 @@
+package net.fortytwo.ripple.libs.stream;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.PrimitiveStackMapping;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.StackMapping;
+import net.fortytwo.ripple.model.impl.sesame.SesameModel;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Compares the time taken by <code>distinct</code> and <code>approxDistinct</code>
+ * to deduplicate a stream in which every stack appears twice.
+ * This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ApproxDistinctBenchmark {
+    private static final int DISTINCT = 100000;
+
+    public static void main(final String[] args) throws Exception {
+        Ripple.initialize();
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+            try {
+                ModelConnection mc = model.createConnection();
+                try {
+                    run(mc);
+                } finally {
+                    mc.close();
+                }
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private static void run(final ModelConnection mc) throws RippleException {
+        RippleList[] stacks = new RippleList[2 * DISTINCT];
+        for (int i = 0; i < DISTINCT; i++) {
+            stacks[i] = stacks[DISTINCT + i] = mc.list().push(i).push("stack");
+        }
+
+        long before = System.currentTimeMillis();
+        int exact = countSolutions(new Distinct(), stacks, mc);
+        long exactTime = System.currentTimeMillis() - before;
+
+        before = System.currentTimeMillis();
+        int approx = countSolutions(new ApproxDistinct(), stacks, mc);
+        long approxTime = System.currentTimeMillis() - before;
+
+        System.out.println("deduplicated " + stacks.length + " stacks: distinct in " + exactTime
+                + "ms (" + exact + " transmitted), approxDistinct in " + approxTime
+                + "ms (" + approx + " of " + DISTINCT + " transmitted)");
+    }
+
+    private static int countSolutions(final PrimitiveStackMapping primitive,
+                                      final RippleList[] stacks,
+                                      final ModelConnection mc) throws RippleException {
+        Collector<RippleList> ops = new Collector<RippleList>();
+        primitive.apply(mc.list(), ops, mc);
+        StackMapping mapping = ((Operator) ops.iterator().next().getFirst()).getMapping();
+
+        final int[] count = {0};
+        Sink<RippleList> sink = new Sink<RippleList>() {
+            public void put(final RippleList stack) throws RippleException {
+                count[0]++;
+            }
+        };
+
+        for (RippleList s : stacks) {
+            mapping.apply(s, sink, mc);
+        }
+
+        return count[0];
+    }
+}
@@ -0,0 +1,64 @@
+package net.fortytwo.ripple.libs.stream;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.PrimitiveStackMapping;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.StackMapping;
+import net.fortytwo.ripple.test.RippleTestCase;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ApproxDistinctTest extends RippleTestCase {
+    public void testSimple() throws Exception {
+        assertReducesTo("(2 3) each. approxDistinct.", "2", "3");
+        assertReducesTo("(2 3 2) each. approxDistinct.", "2", "3");
+        assertReducesTo("(2 2) each. approxDistinct.", "2");
+
+        assertReducesTo("((1 2) (2 1) (1 2)) each. approxDistinct.", "(1 2)", "(2 1)");
+        assertReducesTo("(() rdf:nil) each. approxDistinct.", "()");
+    }
+
+    public void testAccuracy() throws Exception {
+        ModelConnection mc = modelConnection;
+        int distinct = 100000;
+
+        // every stack appears twice
+        RippleList[] stacks = new RippleList[2 * distinct];
+        for (int i = 0; i < distinct; i++) {
+            stacks[i] = stacks[distinct + i] = mc.list().push(i).push("stack");
+        }
+
+        assertEquals(distinct, countSolutions(new Distinct(), stacks, mc));
+
+        // no stack is transmitted twice, and at most about 1% of new stacks are dropped
+        int approx = countSolutions(new ApproxDistinct(), stacks, mc);
+        assertTrue(approx <= distinct);
+        assertTrue("" + approx, approx > distinct * 0.98);
+    }
+
+    private int countSolutions(final PrimitiveStackMapping primitive,
+                               final RippleList[] stacks,
+                               final ModelConnection mc) throws RippleException {
+        Collector<RippleList> ops = new Collector<RippleList>();
+        primitive.apply(mc.list(), ops, mc);
+        StackMapping mapping = ((Operator) ops.iterator().next().getFirst()).getMapping();
+
+        final int[] count = {0};
+        Sink<RippleList> sink = new Sink<RippleList>() {
+            public void put(final RippleList stack) throws RippleException {
+                count[0]++;
+            }
+        };
+
+        for (RippleList s : stacks) {
+            mapping.apply(s, sink, mc);
+        }
+
+        return count[0];
+    }
+}
@@ -1,7 +1,12 @@
 package net.fortytwo.ripple.libs.stream;
 
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleProperties;
 import net.fortytwo.ripple.test.RippleTestCase;
 
+import java.io.File;
+import java.io.FilenameFilter;
+
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -35,4 +40,40 @@ public class DistinctTest extends RippleTestCase {
         // Lists are currently not transparent to 'distinct'
         assertReducesTo("(2 2) (2 dup.) both. distinct.", "(2 2)", "(2 dup.)");
     }
+
+    public void testSpillFileIsReleasedWithQuery() throws Exception {
+        getTestModel();
+        RippleProperties conf = Ripple.getConfiguration();
+        String oldCapacity = conf.getProperty(Ripple.LIST_SET_MEMORY_CAPACITY);
+        String oldSpill = conf.getProperty(Ripple.LIST_SET_SPILL_TO_DISK);
+        conf.setProperty(Ripple.LIST_SET_MEMORY_CAPACITY, "2");
+        conf.setProperty(Ripple.LIST_SET_SPILL_TO_DISK, "true");
+
+        try {
+            int before = countSpillFiles();
+            assertReducesTo("(1 2 3 1 4 5 6 2) each. distinct.", "1", "2", "3", "4", "5", "6");
+            assertEquals(before, countSpillFiles());
+        } finally {
+            restore(conf, Ripple.LIST_SET_MEMORY_CAPACITY, oldCapacity);
+            restore(conf, Ripple.LIST_SET_SPILL_TO_DISK, oldSpill);
+        }
+    }
+
+    private int countSpillFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith("ripple-list-set-");
+            }
+        });
+
+        return null == names ? 0 : names.length;
+    }
+
+    private void restore(final RippleProperties conf, final String key, final String value) {
+        if (null == value) {
+            conf.remove(key);
+        } else {
+            conf.setProperty(key, value);
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package net.fortytwo.ripple.model;
+
+import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.BNode;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RippleListSetTest extends RippleTestCase {
+    public void testAddAndContains() throws Exception {
+        ModelConnection mc = modelConnection;
+        RippleListSet set = new RippleListSet(mc.getComparator(), 100, false);
+
+        RippleList a = mc.list().push(1).push(2);
+        RippleList b = mc.list().push(2).push(1);
+        RippleList nested = mc.list().push(mc.list().push(1).push(2));
+
+        assertTrue(set.add(a));
+        assertFalse(set.add(mc.list().push(1).push(2)));
+        assertTrue(set.add(b));
+        assertTrue(set.add(nested));
+        assertFalse(set.add(mc.list().push(mc.list().push(1).push(2))));
+        assertTrue(set.contains(b));
+        assertFalse(set.contains(mc.list().push(3)));
+        assertEquals(3, set.size());
+
+        // values of different classes which compare as equal are also equal in the set
+        RippleList s1 = mc.list().push("foo");
+        // note: StringLiteralType compares datatypes by identity, so the literal uses the XMLSchema constant
+        RippleList s2 = mc.list().push(new LiteralImpl("foo", XMLSchema.STRING));
+        assertEquals(0, mc.getComparator().compare(s1, s2));
+        assertTrue(set.add(s1));
+        assertFalse(set.add(s2));
+
+        // the nil list is equal to rdf:nil
+        assertTrue(set.add(mc.list().push(mc.list())));
+        assertFalse(set.add(mc.list().push(RDF.NIL)));
+    }
+
+    public void testListHeadsAreHashedAsLists() throws Exception {
+        ModelConnection mc = modelConnection;
+        RippleComparator comparator = mc.getComparator();
+
+        // two equal RDF lists under different blank nodes
+        BNode head1 = new BNodeImpl("rippleListSetTest1"), head2 = new BNodeImpl("rippleListSetTest2");
+        for (BNode head : new BNode[]{head1, head2}) {
+            mc.add(head, RDF.FIRST, 42);
+            mc.add(head, RDF.REST, RDF.NIL);
+        }
+        mc.commit();
+
+        assertEquals(0, comparator.compare(head1, head2));
+        assertEquals(comparator.hash(head1), comparator.hash(head2));
+        RippleList stack1 = mc.list().push(head1), stack2 = mc.list().push(head2);
+        assertEquals(0, comparator.compare(stack1, stack2));
+        assertEquals(comparator.hash(stack1), comparator.hash(stack2));
+
+        // an RDF list is also equal to the equivalent native list
+        RippleList nativeList = mc.list().push(42);
+        assertEquals(0, comparator.compare(head1, nativeList));
+        assertEquals(comparator.hash(nativeList), comparator.hash(head1));
+
+        RippleListSet set = new RippleListSet(comparator, 100, false);
+        assertTrue(set.add(stack1));
+        assertFalse(set.add(stack2));
+        assertFalse(set.add(mc.list().push(nativeList)));
+
+        // a resource which does not head a list is still hashed as itself
+        URI other = createURI("http://example.org/rippleListSetTest/notAList", mc);
+        assertTrue(set.add(mc.list().push(other)));
+        assertEquals(2, set.size());
+    }
+
+    public void testSpillToDisk() throws Exception {
+        ModelConnection mc = modelConnection;
+        RippleListSet set = new RippleListSet(mc.getComparator(), 100, true);
+
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(set.add(mc.list().push(i).push("x")));
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertFalse(set.add(mc.list().push(i).push("x")));
+            }
+            assertEquals(1000, set.size());
+        } finally {
+            set.close();
+        }
+    }
+
+    public void testBoundedWithoutSpilling() throws Exception {
+        ModelConnection mc = modelConnection;
+        RippleListSet set = new RippleListSet(mc.getComparator(), 10, false);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(set.add(mc.list().push(i)));
+        }
+
+        // the first lists are remembered, but later ones are not
+        assertFalse(set.add(mc.list().push(0)));
+        assertTrue(set.add(mc.list().push(19)));
+        assertEquals(10, set.size());
+    }
+
+    public void testSortedInput() throws Exception {
+        ModelConnection mc = modelConnection;
+        int n = 5000;
+        RippleListSet set = new RippleListSet(mc.getComparator(), n, false);
+        for (int i = 0; i < n; i++) {
+            assertTrue(set.add(mc.list().push(i).push("stack")));
+        }
+        for (int i = 0; i < n; i++) {
+            assertFalse(set.add(mc.list().push(i).push("stack")));
+        }
+
+        assertEquals(n, set.size());
+    }
+}
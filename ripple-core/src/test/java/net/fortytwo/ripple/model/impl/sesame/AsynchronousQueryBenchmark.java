@@ -0,0 +1,205 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.control.Scheduler;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.model.StatementPatternQuery;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares asynchronous statement queries on worker threads and on virtual threads,
+ * using a Sail which makes a blocking HTTP request to a local stub server before each lookup.
+ * This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class AsynchronousQueryBenchmark {
+    private static final int SERVER_LATENCY_MS = 10;
+    private static final String NS = "http://example.org/asynchronousQueryTest/";
+
+    private HttpServer server;
+    private String serverUrl;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+    public static void main(final String[] args) throws Exception {
+        Ripple.initialize();
+
+        AsynchronousQueryBenchmark benchmark = new AsynchronousQueryBenchmark();
+        benchmark.startServer();
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.server.stop(0);
+        }
+    }
+
+    private void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 10000);
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+
+                try {
+                    Thread.sleep(SERVER_LATENCY_MS);
+                    byte[] body = "ok".getBytes();
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        serverUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    private void run() throws Exception {
+        Scheduler scheduler = Scheduler.getInstance();
+
+        Sail sail = new DereferencingSail(new MemoryStore());
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+
+            try {
+                for (int n : new int[]{1000, 10000}) {
+                    scheduler.setUseVirtualThreads(false);
+                    runLookups(model, n, "worker threads");
+
+                    if (scheduler.isVirtualThreadSupported()) {
+                        scheduler.setUseVirtualThreads(true);
+                        runLookups(model, n, "virtual threads");
+                    }
+                }
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private void runLookups(final SesameModel model,
+                            final int n,
+                            final String mode) throws Exception {
+        ModelConnection mc = model.createConnection();
+        try {
+            ValueFactory vf = ((SesameModelConnection) mc).getValueFactory();
+            for (int i = 0; i < n; i++) {
+                mc.add(vf.createURI(NS + i), RDF.TYPE, RDFS.RESOURCE);
+            }
+            mc.commit();
+
+            maxInFlight.set(0);
+            final AtomicInteger results = new AtomicInteger(0);
+            final AtomicLong totalLatency = new AtomicLong(0);
+
+            long before = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                final long submitted = System.currentTimeMillis();
+                Sink<Object> sink = new Sink<Object>() {
+                    public void put(final Object o) throws RippleException {
+                        totalLatency.addAndGet(System.currentTimeMillis() - submitted);
+                        results.incrementAndGet();
+                    }
+                };
+
+                mc.query(new StatementPatternQuery(vf.createURI(NS + i), RDF.TYPE, null), sink, true);
+            }
+            mc.finish();
+            long after = System.currentTimeMillis();
+
+            if (n != results.get()) {
+                throw new IllegalStateException("expected " + n + " results, found " + results.get());
+            }
+
+            System.out.println(n + " pending lookups on " + mode + ": "
+                    + (after - before) + "ms total, "
+                    + (totalLatency.get() / n) + "ms mean latency, "
+                    + maxInFlight.get() + " max concurrent requests");
+        } finally {
+            mc.close();
+        }
+    }
+
+    private void dereference(final Resource subject) throws SailException {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(serverUrl
+                    + subject.stringValue().substring(NS.length())).openConnection();
+            InputStream in = conn.getInputStream();
+            try {
+                while (-1 != in.read()) {
+                    // discard the response
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+    }
+
+    private class DereferencingSail extends SailWrapper {
+        public DereferencingSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(super.getConnection()) {
+                @Override
+                public CloseableIteration<? extends Statement, SailException> getStatements(
+                        final Resource subj, final URI pred, final Value obj,
+                        final boolean includeInferred, final Resource... contexts) throws SailException {
+                    if (null != subj && subj.stringValue().startsWith(NS)) {
+                        dereference(subj);
+                    }
+
+                    return super.getStatements(subj, pred, obj, includeInferred, contexts);
+                }
+            };
+        }
+    }
+}
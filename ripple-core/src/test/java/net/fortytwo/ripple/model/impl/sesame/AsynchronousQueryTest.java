@@ -0,0 +1,132 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.Sink;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.control.Scheduler;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.StatementPatternQuery;
+import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that asynchronous statement queries produce the same results whether or not virtual threads are used,
+ * and that they fall back to worker threads where virtual threads are not supported.
+ * See also <code>AsynchronousQueryBenchmark</code>.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class AsynchronousQueryTest extends RippleTestCase {
+    private static final String NS = "http://example.org/asynchronousQueryTest/";
+    private static final int LOOKUPS = 200;
+
+    // the names of the threads in which lookups were made
+    private final Set<String> lookupThreads
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public void testLookupsWithAndWithoutVirtualThreads() throws Exception {
+        getTestModel();
+        Scheduler scheduler = Scheduler.getInstance();
+        boolean useVirtual = scheduler.getUseVirtualThreads();
+
+        Sail sail = new ThreadRecordingSail(new MemoryStore());
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+
+            try {
+                scheduler.setUseVirtualThreads(false);
+                assertFalse(scheduler.getUseVirtualThreads());
+                assertEquals(LOOKUPS, runLookups(model));
+                assertLookupsInWorkerThreads(true);
+
+                // where virtual threads are not supported, blocking tasks fall back to worker threads
+                scheduler.setUseVirtualThreads(true);
+                assertEquals(scheduler.isVirtualThreadSupported(), scheduler.getUseVirtualThreads());
+                assertEquals(LOOKUPS, runLookups(model));
+                assertLookupsInWorkerThreads(!scheduler.isVirtualThreadSupported());
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            scheduler.setUseVirtualThreads(useVirtual);
+            sail.shutDown();
+        }
+    }
+
+    private void assertLookupsInWorkerThreads(final boolean expected) {
+        assertFalse(lookupThreads.isEmpty());
+        for (String name : lookupThreads) {
+            assertEquals(expected, name.startsWith("Ripple worker thread"));
+        }
+    }
+
+    private int runLookups(final SesameModel model) throws Exception {
+        lookupThreads.clear();
+
+        ModelConnection mc = model.createConnection();
+        try {
+            ValueFactory vf = ((SesameModelConnection) mc).getValueFactory();
+            for (int i = 0; i < LOOKUPS; i++) {
+                mc.add(vf.createURI(NS + i), RDF.TYPE, RDFS.RESOURCE);
+            }
+            mc.commit();
+
+            final AtomicInteger results = new AtomicInteger(0);
+            Sink<Object> sink = new Sink<Object>() {
+                public void put(final Object o) throws RippleException {
+                    results.incrementAndGet();
+                }
+            };
+
+            for (int i = 0; i < LOOKUPS; i++) {
+                mc.query(new StatementPatternQuery(vf.createURI(NS + i), RDF.TYPE, null), sink, true);
+            }
+            mc.finish();
+
+            return results.get();
+        } finally {
+            mc.close();
+        }
+    }
+
+    private class ThreadRecordingSail extends SailWrapper {
+        public ThreadRecordingSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(super.getConnection()) {
+                @Override
+                public CloseableIteration<? extends Statement, SailException> getStatements(
+                        final Resource subj, final URI pred, final Value obj,
+                        final boolean includeInferred, final Resource... contexts) throws SailException {
+                    if (null != subj && subj.stringValue().startsWith(NS)) {
+                        lookupThreads.add(Thread.currentThread().getName());
+                    }
+
+                    return super.getStatements(subj, pred, obj, includeInferred, contexts);
+                }
+            };
+        }
+    }
+}
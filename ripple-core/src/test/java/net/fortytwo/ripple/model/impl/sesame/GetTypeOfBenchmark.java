@@ -0,0 +1,73 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.net.URI;
+
+/**
+ * Measures the throughput of type lookups in a <code>SesameModel</code>,
+ * for instances of a single class and for instances of several classes in turn.
+ * This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class GetTypeOfBenchmark {
+    private static final int LOOKUPS = 1000000;
+    private static final String FOO = "http://example.org/ns#foo";
+
+    public static void main(final String[] args) throws Exception {
+        Ripple.initialize();
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+            try {
+                ModelConnection mc = model.createConnection();
+                try {
+                    Object[] monomorphic = new Object[]{mc.valueOf(URI.create(FOO))};
+                    Object[] polymorphic = new Object[]{
+                            mc.valueOf(URI.create(FOO)),
+                            mc.valueOf("foo", XMLSchema.STRING),
+                            mc.list().push(42),
+                            new Operator(mc.list())};
+
+                    for (Object[] instances : new Object[][]{monomorphic, polymorphic}) {
+                        run(model, instances);
+                    }
+                } finally {
+                    mc.close();
+                }
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private static void run(final SesameModel model,
+                            final Object[] instances) {
+        // warm up
+        for (int i = 0; i < LOOKUPS; i++) {
+            model.getTypeOf(instances[i % instances.length]);
+        }
+
+        long before = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (null == model.getTypeOf(instances[i % instances.length])) {
+                throw new IllegalStateException("no type for " + instances[i % instances.length]);
+            }
+        }
+        long after = System.nanoTime();
+
+        System.out.println("getTypeOf on " + instances.length + " classes: "
+                + (LOOKUPS * 1000L / Math.max(1, (after - before) / 1000000)) + " lookups/s");
+    }
+}
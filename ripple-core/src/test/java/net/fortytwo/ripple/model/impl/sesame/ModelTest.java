@@ -1,6 +1,22 @@
 package net.fortytwo.ripple.model.impl.sesame;
 
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.io.RipplePrintStream;
+import net.fortytwo.ripple.model.Model;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.StackMapping;
+import net.fortytwo.ripple.model.types.OperatorType;
+import net.fortytwo.ripple.model.types.SesameListType;
+import net.fortytwo.ripple.model.types.SimpleType;
+import net.fortytwo.ripple.model.types.StringLiteralType;
+import net.fortytwo.ripple.model.types.URIType;
 import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.memory.MemoryStore;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -9,5 +25,143 @@ public class ModelTest extends RippleTestCase {
     public void testModelConstructor() throws Exception {
         getTestModel();
     }
-}
 
+    public void testGetTypeOf() throws Exception {
+        Model model = getTestModel();
+        ModelConnection mc = modelConnection;
+
+        Object uri = createURI("http://example.org/ns#foo", mc);
+        // note: StringLiteralType compares datatypes by identity, so the literal uses the XMLSchema constant
+        Object literal = new LiteralImpl("foo", XMLSchema.STRING);
+        Object list = mc.list().push(42);
+        Object operator = Operator.OP;
+
+        // repeated lookups, and lookups which alternate between classes, agree with each other
+        for (int i = 0; i < 3; i++) {
+            assertTrue(model.getTypeOf(uri) instanceof URIType);
+            assertTrue(model.getTypeOf(uri) instanceof URIType);
+            assertTrue(model.getTypeOf(literal) instanceof StringLiteralType);
+            assertTrue(model.getTypeOf(list) instanceof SesameListType);
+            assertNotNull(model.getTypeOf(operator));
+            assertTrue(model.getTypeOf(new Operator(mc.list())) instanceof OperatorType);
+        }
+
+        // classes with no registered type are remembered as such
+        assertNull(model.getTypeOf(new Object()));
+        assertNull(model.getTypeOf(new Object()));
+    }
+
+    public void testRegisterInvalidatesLookups() throws Exception {
+        getTestModel();
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            SesameModel model = new SesameModel(sail);
+            try {
+                // classes without a type are remembered as such...
+                assertNull(model.getTypeOf(new Widget()));
+                assertNull(model.getTypeOf(new SubWidget()));
+
+                // ...until a type is registered for them or for a superclass
+                TestType widgetType = new TestType(Widget.class, true);
+                model.register(widgetType);
+                assertSame(widgetType, model.getTypeOf(new Widget()));
+                assertSame(widgetType, model.getTypeOf(new SubWidget()));
+
+                // a type registered for a subclass takes precedence over a type of its superclass
+                TestType subWidgetType = new TestType(SubWidget.class, true);
+                model.register(subWidgetType);
+                assertSame(subWidgetType, model.getTypeOf(new SubWidget()));
+                assertSame(widgetType, model.getTypeOf(new Widget()));
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    public void testSuperclassLookup() throws Exception {
+        getTestModel();
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            SesameModel model = new SesameModel(sail);
+            try {
+                // types are found through superclasses and interfaces, at any distance
+                TestType gadgetType = new TestType(Gadget.class, true);
+                model.register(gadgetType);
+                assertSame(gadgetType, model.getTypeOf(new SubSubWidget()));
+
+                // a type which rejects an instance is passed over in favor of the next candidate,
+                // including a candidate registered after the subclass was first looked up
+                TestType rejectingType = new TestType(Widget.class, false);
+                model.register(rejectingType);
+                assertNull(model.getTypeOf(new SubSubWidget()));
+                TestType widgetType = new TestType(Widget.class, true);
+                model.register(widgetType);
+                assertSame(widgetType, model.getTypeOf(new SubSubWidget()));
+
+                // superclasses are searched before interfaces
+                assertSame(widgetType, model.getTypeOf(new SubWidget()));
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private interface Gadget {
+    }
+
+    private static class Widget {
+    }
+
+    private static class SubWidget extends Widget implements Gadget {
+    }
+
+    private static class SubSubWidget extends SubWidget {
+    }
+
+    private static class TestType extends SimpleType<Object> {
+        private final boolean accepting;
+
+        public TestType(final Class c,
+                        final boolean accepting) {
+            super(c);
+            this.accepting = accepting;
+        }
+
+        @Override
+        public boolean isInstance(final Object instance) {
+            return accepting;
+        }
+
+        @Override
+        public Value toRDF(final Object instance, final ModelConnection mc) throws RippleException {
+            return null;
+        }
+
+        @Override
+        public StackMapping getMapping(final Object instance) {
+            return null;
+        }
+
+        @Override
+        public void print(final Object instance, final RipplePrintStream p, final ModelConnection mc)
+                throws RippleException {
+            p.print(instance.toString());
+        }
+
+        @Override
+        public Category getCategory() {
+            return Category.OTHER_RESOURCE;
+        }
+
+        @Override
+        public int compare(final Object o1, final Object o2, final ModelConnection mc) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleProperties;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.StatementPatternQuery;
+import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PatternResultCacheTest extends RippleTestCase {
+    private static final String NS = "http://example.org/patternResultCacheTest/";
+
+    private RippleProperties conf;
+    private String oldCapacity;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        conf = Ripple.getConfiguration();
+        oldCapacity = conf.getProperty(Ripple.PATTERN_CACHE_CAPACITY);
+        conf.setProperty(Ripple.PATTERN_CACHE_CAPACITY, "100");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (null == oldCapacity) {
+            conf.remove(Ripple.PATTERN_CACHE_CAPACITY);
+        } else {
+            conf.setProperty(Ripple.PATTERN_CACHE_CAPACITY, oldCapacity);
+        }
+
+        super.tearDown();
+    }
+
+    public void testHitsAndInvalidation() throws Exception {
+        for (boolean asynchronous : new boolean[]{false, true}) {
+            SesameModelConnection mc = (SesameModelConnection) getTestModel().createConnection();
+            SesameModelConnection other = (SesameModelConnection) getTestModel().createConnection();
+            try {
+                PatternResultCache cache = mc.getPatternCache();
+                assertNotNull(cache);
+
+                ValueFactory vf = mc.getValueFactory();
+                URI subject = vf.createURI(NS + "subject" + asynchronous);
+                URI type1 = vf.createURI(NS + "Type1"), type2 = vf.createURI(NS + "Type2");
+                mc.add(subject, RDF.TYPE, type1);
+                mc.commit();
+
+                StatementPatternQuery query = new StatementPatternQuery(subject, RDF.TYPE, null);
+                assertEquals(1, countResults(mc, query, asynchronous));
+                long hits = cache.getHits();
+                assertEquals(1, countResults(mc, query, asynchronous));
+                assertEquals(hits + 1, cache.getHits());
+                assertTrue(cache.getHitRatio() > 0);
+                assertEquals(1, cache.getWeight());
+                assertTrue(cache.getEstimatedMemory() > 0);
+
+                // changes through this connection invalidate the cached results...
+                mc.add(subject, RDF.TYPE, type2);
+                mc.commit();
+                assertEquals(2, countResults(mc, query, asynchronous));
+
+                // ...as do changes through other connections
+                other.remove(subject, RDF.TYPE, type1);
+                other.commit();
+                assertEquals(1, countResults(mc, query, asynchronous));
+
+                // changes to unrelated statements do not, until they are committed
+                long invalidations = cache.getInvalidations();
+                other.add(subject, RDFS.LABEL, vf.createLiteral("unrelated"));
+                assertEquals(invalidations, cache.getInvalidations());
+                other.commit();
+                assertEquals(invalidations + 1, cache.getInvalidations());
+            } finally {
+                other.close();
+                mc.close();
+            }
+        }
+    }
+
+    public void testCommitsAndRollbacksInvalidateCachedResults() throws Exception {
+        SesameModelConnection mc = (SesameModelConnection) getTestModel().createConnection();
+        SesameModelConnection other = (SesameModelConnection) getTestModel().createConnection();
+        try {
+            ValueFactory vf = mc.getValueFactory();
+            URI subject = vf.createURI(NS + "committedSubject");
+            URI type1 = vf.createURI(NS + "Type1"), type2 = vf.createURI(NS + "Type2"),
+                    type3 = vf.createURI(NS + "Type3");
+            other.add(subject, RDF.TYPE, type1);
+            other.commit();
+
+            StatementPatternQuery query = new StatementPatternQuery(subject, RDF.TYPE, null);
+            assertEquals(1, countResults(mc, query, false));
+
+            // the uncommitted change invalidates the cached results,
+            // but the previously committed results are then read and cached again...
+            other.add(subject, RDF.TYPE, type2);
+            assertEquals(1, countResults(mc, query, false));
+            assertEquals(1, countResults(mc, query, false));
+
+            // ...until the change is committed
+            other.commit();
+            assertEquals(2, countResults(mc, query, false));
+            assertEquals(2, countResults(mc, query, false));
+
+            // uncommitted changes seen by this connection are forgotten when they are rolled back
+            mc.add(subject, RDF.TYPE, type3);
+            assertEquals(3, countResults(mc, query, false));
+            assertEquals(3, countResults(mc, query, false));
+            mc.reset(true);
+            assertEquals(2, countResults(mc, query, false));
+        } finally {
+            other.close();
+            mc.close();
+        }
+    }
+
+    public void testCommitsWithoutChangesKeepCachedResults() throws Exception {
+        SesameModelConnection mc = (SesameModelConnection) getTestModel().createConnection();
+        try {
+            PatternResultCache cache = mc.getPatternCache();
+            ValueFactory vf = mc.getValueFactory();
+            URI subject = vf.createURI(NS + "readOnlySubject");
+            mc.add(subject, RDF.TYPE, vf.createURI(NS + "Type1"));
+            mc.commit();
+
+            StatementPatternQuery query = new StatementPatternQuery(subject, RDF.TYPE, null);
+            assertEquals(1, countResults(mc, query, false));
+            int size = cache.size();
+            long invalidations = cache.getInvalidations();
+
+            // a read-only unit of work is committed and rolled back without affecting any cache
+            mc.commit();
+            mc.reset(true);
+            assertEquals(size, cache.size());
+            assertEquals(invalidations, cache.getInvalidations());
+            long hits = cache.getHits();
+            assertEquals(1, countResults(mc, query, false));
+            assertEquals(hits + 1, cache.getHits());
+        } finally {
+            mc.close();
+        }
+    }
+
+    public void testBounds() throws Exception {
+        SesameModelConnection mc = (SesameModelConnection) getTestModel().createConnection();
+        try {
+            PatternResultCache cache = mc.getPatternCache();
+            ValueFactory vf = mc.getValueFactory();
+            URI type = vf.createURI(NS + "Type");
+            for (int i = 0; i < 150; i++) {
+                mc.add(vf.createURI(NS + i), RDF.TYPE, type);
+            }
+            mc.commit();
+
+            for (int i = 0; i < 150; i++) {
+                assertEquals(1, countResults(mc,
+                        new StatementPatternQuery(vf.createURI(NS + i), RDF.TYPE, null), false));
+            }
+
+            assertEquals(100, cache.size());
+            assertEquals(50, cache.getEvictions());
+        } finally {
+            mc.close();
+        }
+    }
+
+    private int countResults(final ModelConnection mc,
+                             final StatementPatternQuery query,
+                             final boolean asynchronous) throws Exception {
+        Collector<Object> results = new Collector<Object>();
+        mc.query(query, results, asynchronous);
+        mc.finish();
+        return results.size();
+    }
+}
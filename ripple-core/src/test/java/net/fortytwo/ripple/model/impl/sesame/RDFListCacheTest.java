@@ -0,0 +1,159 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RDFListCacheTest extends RippleTestCase {
+    private static final String NS = "urn:test.RDFListCacheTest#";
+
+    public void testInvalidation() throws Exception {
+        ModelConnection mc = getTestModel().createConnection();
+        RDFListCache cache = ((SesameModel) getTestModel()).getListCache();
+
+        try {
+            URI head = createURI(NS + "head", mc);
+            URI second = createURI(NS + "second", mc);
+            Value a = mc.valueOf("a", XMLSchema.STRING);
+            Value b = mc.valueOf("b", XMLSchema.STRING);
+            Value c = mc.valueOf("c", XMLSchema.STRING);
+
+            mc.add(head, RDF.FIRST, a);
+            mc.add(head, RDF.REST, second);
+            mc.add(second, RDF.FIRST, b);
+            mc.add(second, RDF.REST, RDF.NIL);
+            mc.commit();
+
+            Collector<RippleList> results = new Collector<RippleList>();
+            mc.toList(head, results);
+            assertEquals(1, results.size());
+            assertRippleEquals(mc.list().push(b).push(a), results.iterator().next());
+
+            long hits = cache.getHits();
+            results.clear();
+            mc.toList(head, results);
+            assertEquals(1, results.size());
+            assertEquals(hits + 1, cache.getHits());
+
+            // changing an inner cell of the list invalidates the memoized list
+            long invalidations = cache.getInvalidations();
+            mc.remove(second, RDF.FIRST, b);
+            mc.add(second, RDF.FIRST, c);
+            mc.commit();
+            assertTrue(cache.getInvalidations() > invalidations);
+
+            results.clear();
+            mc.toList(head, results);
+            assertEquals(1, results.size());
+            assertRippleEquals(mc.list().push(c).push(a), results.iterator().next());
+        } finally {
+            mc.close();
+        }
+    }
+
+    public void testInvalidationOnCommitAndRollback() throws Exception {
+        ModelConnection writer = getTestModel().createConnection();
+        ModelConnection reader = getTestModel().createConnection();
+        RDFListCache cache = ((SesameModel) getTestModel()).getListCache();
+
+        try {
+            URI head = createURI(NS + "committed", writer);
+            Value a = writer.valueOf("a", XMLSchema.STRING);
+            Value b = writer.valueOf("b", XMLSchema.STRING);
+            Value c = writer.valueOf("c", XMLSchema.STRING);
+
+            writer.add(head, RDF.FIRST, a);
+            writer.add(head, RDF.REST, RDF.NIL);
+            writer.commit();
+
+            // a commit without changes, such as the one at the end of each query, keeps memoized lists
+            reader.commit();
+            assertRippleEquals(reader.list().push(a), toSingleList(head, reader));
+            assertNotNull(cache.get(head));
+            reader.commit();
+            assertNotNull(cache.get(head));
+
+            // the listener invalidates the list before the change is committed...
+            writer.remove(head, RDF.FIRST, a);
+            writer.add(head, RDF.FIRST, b);
+            assertNull(cache.get(head));
+
+            // ...so that another connection may cache the previously committed list in the meantime
+            Collector<RippleList> stale = new Collector<RippleList>();
+            stale.put(reader.list().push(a));
+            cache.put(head, stale, cache.getVersion());
+            assertNotNull(cache.get(head));
+
+            writer.commit();
+            assertNull(cache.get(head));
+
+            reader.commit();
+            assertRippleEquals(reader.list().push(b), toSingleList(head, reader));
+
+            // the writer may cache its own uncommitted list, which a rollback discards
+            writer.remove(head, RDF.FIRST, b);
+            writer.add(head, RDF.FIRST, c);
+            assertRippleEquals(writer.list().push(c), toSingleList(head, writer));
+            assertNotNull(cache.get(head));
+            writer.reset(true);
+            assertNull(cache.get(head));
+
+            reader.commit();
+            assertRippleEquals(reader.list().push(b), toSingleList(head, reader));
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    public void testEviction() throws Exception {
+        RDFListCache cache = new RDFListCache(2, 5);
+        ModelConnection mc = getTestModel().createConnection();
+
+        try {
+            Value[] heads = new Value[3];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = createURI(NS + "list" + i, mc);
+                Collector<RippleList> lists = new Collector<RippleList>();
+                lists.put(mc.list().push(i).push(i));
+                cache.put(heads[i], lists, cache.getVersion());
+            }
+
+            // three lists of two cells each exceed both bounds
+            assertEquals(2, cache.size());
+            assertEquals(4, cache.getWeight());
+            assertEquals(1, cache.getEvictions());
+            assertNull(cache.get(heads[0]));
+            assertNotNull(cache.get(heads[2]));
+
+            // a list heavier than the cache is never cached
+            Collector<RippleList> heavy = new Collector<RippleList>();
+            heavy.put(mc.list().push(1).push(2).push(3).push(4).push(5).push(6));
+            cache.put(createURI(NS + "heavy", mc), heavy, cache.getVersion());
+            assertEquals(2, cache.size());
+
+            // conversions which straddle an invalidation are not cached
+            long version = cache.getVersion();
+            cache.invalidate(createURI(NS + "unrelated", mc));
+            cache.put(heads[0], heavy, version);
+            assertNull(cache.get(heads[0]));
+        } finally {
+            mc.close();
+        }
+    }
+
+    private RippleList toSingleList(final Value head, final ModelConnection mc) throws Exception {
+        Collector<RippleList> results = new Collector<RippleList>();
+        mc.toList(head, results);
+        assertEquals(1, results.size());
+        return results.iterator().next();
+    }
+}
@@ -0,0 +1,231 @@
+package net.fortytwo.ripple.model.impl.sesame;
+
+import info.aduna.iteration.CloseableIteration;
+import net.fortytwo.flow.Collector;
+import net.fortytwo.flow.SynchronizedSink;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleProperties;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.StatementPatternQuery;
+import net.fortytwo.ripple.test.RippleTestCase;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+import org.openrdf.sail.memory.MemoryStore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StatementPatternBatcherTest extends RippleTestCase {
+    private static final String NS = "http://example.org/statementPatternBatcherTest/";
+    private static final int SUBJECTS = 100, BATCH_SIZE = 16;
+
+    // the number of calls made to the store
+    private final AtomicInteger storeCalls = new AtomicInteger(0);
+
+    public void testBatchedQueries() throws Exception {
+        getTestModel();
+        RippleProperties conf = Ripple.getConfiguration();
+        String oldSize = conf.getProperty(Ripple.QUERY_BATCH_SIZE);
+        conf.setProperty(Ripple.QUERY_BATCH_SIZE, "" + BATCH_SIZE);
+
+        Sail sail = new CallCountingSail(new MemoryStore());
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+            ModelConnection mc = model.createConnection();
+            try {
+                ValueFactory vf = ((SesameModelConnection) mc).getValueFactory();
+                URI type = vf.createURI(NS + "Type");
+                for (int i = 0; i < SUBJECTS; i++) {
+                    mc.add(vf.createURI(NS + i), RDF.TYPE, type);
+                    // every other subject has a second type
+                    if (0 == i % 2) {
+                        mc.add(vf.createURI(NS + i), RDF.TYPE, RDFS.RESOURCE);
+                    }
+                }
+                mc.add(vf.createURI(NS + 0), RDFS.LABEL, vf.createLiteral("zero"));
+                mc.commit();
+
+                // forward queries, with each subject queried twice so that results must be fanned out.
+                // Results arrive from several tasks at once
+                Collector<Object> types = new Collector<Object>();
+                SynchronizedSink<Object> typeSink = new SynchronizedSink<Object>(types);
+                storeCalls.set(0);
+                for (int j = 0; j < 2; j++) {
+                    for (int i = 0; i < SUBJECTS; i++) {
+                        mc.query(new StatementPatternQuery(vf.createURI(NS + i), RDF.TYPE, null), typeSink, true);
+                    }
+                }
+                mc.finish();
+                assertEquals(2 * (SUBJECTS + SUBJECTS / 2), types.size());
+                // one query per batch, rather than one per key
+                assertTrue(storeCalls.get() <= 1 + (2 * SUBJECTS) / BATCH_SIZE);
+
+                // a query which does not fill a batch is still answered when the connection finishes
+                Collector<Object> labels = new Collector<Object>();
+                mc.query(new StatementPatternQuery(vf.createURI(NS + 0), RDFS.LABEL, null),
+                        new SynchronizedSink<Object>(labels), true);
+                mc.finish();
+                assertEquals(1, labels.size());
+
+                // backward queries
+                Collector<Object> subjects = new Collector<Object>();
+                SynchronizedSink<Object> subjectSink = new SynchronizedSink<Object>(subjects);
+                mc.query(new StatementPatternQuery(null, RDF.TYPE, type), subjectSink, true);
+                mc.query(new StatementPatternQuery(null, RDF.TYPE, RDFS.RESOURCE), subjectSink, true);
+                mc.finish();
+                assertEquals(SUBJECTS + SUBJECTS / 2, subjects.size());
+            } finally {
+                mc.close();
+                model.shutDown();
+            }
+        } finally {
+            restore(conf, Ripple.QUERY_BATCH_SIZE, oldSize);
+            sail.shutDown();
+        }
+    }
+
+    public void testEquivalentLiteralKeys() throws Exception {
+        getTestModel();
+        RippleProperties conf = Ripple.getConfiguration();
+        String oldSize = conf.getProperty(Ripple.QUERY_BATCH_SIZE);
+        conf.setProperty(Ripple.QUERY_BATCH_SIZE, "" + BATCH_SIZE);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+            ModelConnection mc = model.createConnection();
+            try {
+                ValueFactory vf = ((SesameModelConnection) mc).getValueFactory();
+                mc.add(vf.createURI(NS + "a"), RDFS.LABEL, vf.createLiteral("foo"));
+                mc.commit();
+
+                // a plain literal and a string-typed literal with the same label are answered by the same batch
+                Collector<Object> plainResults = new Collector<Object>();
+                Collector<Object> typedResults = new Collector<Object>();
+                mc.query(new StatementPatternQuery(null, RDFS.LABEL, vf.createLiteral("foo")),
+                        new SynchronizedSink<Object>(plainResults), true);
+                mc.query(new StatementPatternQuery(null, RDFS.LABEL, vf.createLiteral("foo", XMLSchema.STRING)),
+                        new SynchronizedSink<Object>(typedResults), true);
+                mc.finish();
+
+                assertEquals(1, plainResults.size());
+                assertEquals(1, typedResults.size());
+            } finally {
+                mc.close();
+                model.shutDown();
+            }
+        } finally {
+            restore(conf, Ripple.QUERY_BATCH_SIZE, oldSize);
+            sail.shutDown();
+        }
+    }
+
+    public void testBatchedResultsAreCached() throws Exception {
+        getTestModel();
+        RippleProperties conf = Ripple.getConfiguration();
+        String oldSize = conf.getProperty(Ripple.QUERY_BATCH_SIZE);
+        String oldCapacity = conf.getProperty(Ripple.PATTERN_CACHE_CAPACITY);
+        conf.setProperty(Ripple.QUERY_BATCH_SIZE, "" + BATCH_SIZE);
+        conf.setProperty(Ripple.PATTERN_CACHE_CAPACITY, "" + (2 * SUBJECTS));
+
+        Sail sail = new CallCountingSail(new MemoryStore());
+        sail.initialize();
+
+        try {
+            SesameModel model = new SesameModel(sail);
+            SesameModelConnection mc = (SesameModelConnection) model.createConnection();
+            try {
+                ValueFactory vf = mc.getValueFactory();
+                URI type = vf.createURI(NS + "Type");
+                // only every other subject has a type
+                for (int i = 0; i < SUBJECTS; i += 2) {
+                    mc.add(vf.createURI(NS + i), RDF.TYPE, type);
+                }
+                mc.commit();
+
+                for (int j = 0; j < 2; j++) {
+                    Collector<Object> types = new Collector<Object>();
+                    SynchronizedSink<Object> typeSink = new SynchronizedSink<Object>(types);
+                    storeCalls.set(0);
+                    for (int i = 0; i < SUBJECTS; i++) {
+                        mc.query(new StatementPatternQuery(vf.createURI(NS + i), RDF.TYPE, null), typeSink, true);
+                    }
+                    mc.finish();
+                    assertEquals(SUBJECTS / 2, types.size());
+
+                    if (0 == j) {
+                        assertTrue(storeCalls.get() > 0);
+                        // each key of each batch has been cached, including the keys without results
+                        assertEquals(SUBJECTS, mc.getPatternCache().size());
+                    } else {
+                        // the second time around, every query is answered from the cache
+                        assertEquals(0, storeCalls.get());
+                    }
+                }
+            } finally {
+                mc.close();
+                model.shutDown();
+            }
+        } finally {
+            restore(conf, Ripple.QUERY_BATCH_SIZE, oldSize);
+            restore(conf, Ripple.PATTERN_CACHE_CAPACITY, oldCapacity);
+            sail.shutDown();
+        }
+    }
+
+    private void restore(final RippleProperties conf, final String key, final String value) {
+        if (null == value) {
+            conf.remove(key);
+        } else {
+            conf.setProperty(key, value);
+        }
+    }
+
+    private class CallCountingSail extends SailWrapper {
+        public CallCountingSail(final Sail baseSail) {
+            super(baseSail);
+        }
+
+        @Override
+        public SailConnection getConnection() throws SailException {
+            return new SailConnectionWrapper(super.getConnection()) {
+                @Override
+                public CloseableIteration<? extends Statement, SailException> getStatements(
+                        final Resource subj, final URI pred, final Value obj,
+                        final boolean includeInferred, final Resource... contexts) throws SailException {
+                    storeCalls.incrementAndGet();
+                    return super.getStatements(subj, pred, obj, includeInferred, contexts);
+                }
+
+                @Override
+                public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(
+                        final TupleExpr tupleExpr, final Dataset dataset,
+                        final BindingSet bindings, final boolean includeInferred) throws SailException {
+                    storeCalls.incrementAndGet();
+                    return super.evaluate(tupleExpr, dataset, bindings, includeInferred);
+                }
+            };
+        }
+    }
+}
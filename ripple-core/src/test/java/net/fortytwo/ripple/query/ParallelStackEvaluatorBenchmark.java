@@ -0,0 +1,105 @@
+package net.fortytwo.ripple.query;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.model.Model;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.model.impl.sesame.SesameModel;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Compares the throughput of ParallelStackEvaluator with that of LazyStackEvaluator
+ * on a program which fans out over a multi-valued predicate, so that each intermediate stack requires a query.
+ * This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ParallelStackEvaluatorBenchmark {
+    private static final String NS = "http://example.org/parallelStackEvaluatorBenchmark/";
+
+    private static final int NODES = 1000, LINKS = 40, RUNS = 5;
+
+    private static final String PROGRAM = "@prefix ex: <" + NS + ">\n"
+            + "ex:node0 ex:link. ex:link. ex:link. ex:value. 2 mul.\n";
+
+    public static void main(final String[] args) throws Exception {
+        int parallelism = args.length > 0
+                ? Integer.valueOf(args[0])
+                : Runtime.getRuntime().availableProcessors();
+
+        Ripple.initialize();
+        Ripple.enableAsynchronousQueries(false);
+
+        Sail sail = new MemoryStore();
+        sail.initialize();
+        try {
+            createDataset(sail);
+
+            Model model = new SesameModel(sail);
+            try {
+                // warm up
+                evaluate(model, new LazyStackEvaluator());
+                evaluate(model, new ParallelStackEvaluator(parallelism));
+
+                long before = System.currentTimeMillis();
+                long count = 0;
+                for (int i = 0; i < RUNS; i++) {
+                    count = evaluate(model, new LazyStackEvaluator());
+                }
+                System.out.println("lazy: " + count + " results in "
+                        + (System.currentTimeMillis() - before) / (double) RUNS + "ms");
+
+                before = System.currentTimeMillis();
+                for (int i = 0; i < RUNS; i++) {
+                    count = evaluate(model, new ParallelStackEvaluator(parallelism));
+                }
+                System.out.println("parallel (" + parallelism + " workers): " + count + " results in "
+                        + (System.currentTimeMillis() - before) / (double) RUNS + "ms");
+            } finally {
+                model.shutDown();
+            }
+        } finally {
+            sail.shutDown();
+        }
+    }
+
+    private static void createDataset(final Sail sail) throws Exception {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            ValueFactory vf = sail.getValueFactory();
+            URI link = vf.createURI(NS + "link");
+            URI value = vf.createURI(NS + "value");
+            for (int i = 0; i < NODES; i++) {
+                URI node = vf.createURI(NS + "node" + i);
+                sc.addStatement(node, value, vf.createLiteral(i));
+                for (int j = 1; j <= LINKS; j++) {
+                    sc.addStatement(node, link, vf.createURI(NS + "node" + ((i * 31 + j * 17) % NODES)));
+                }
+            }
+            sc.commit();
+        } finally {
+            sc.close();
+        }
+    }
+
+    // the query engine shuts down its evaluator along with it
+    private static long evaluate(final Model model,
+                                 final StackEvaluator evaluator) throws Exception {
+        Collector<RippleList> results = new Collector<RippleList>();
+        QueryEngine qe = new QueryEngine(model, evaluator, System.out, System.err);
+        try {
+            QueryPipe qp = new QueryPipe(qe, results);
+            qp.put(PROGRAM);
+            qp.close();
+        } finally {
+            qe.shutDown();
+        }
+
+        return results.size();
+    }
+}
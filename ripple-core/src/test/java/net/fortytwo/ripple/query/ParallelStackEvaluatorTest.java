@@ -0,0 +1,220 @@
+package net.fortytwo.ripple.query;
+
+import net.fortytwo.flow.Collector;
+import net.fortytwo.ripple.RippleException;
+import net.fortytwo.ripple.libs.math.Abs;
+import net.fortytwo.ripple.libs.math.Sqrt;
+import net.fortytwo.ripple.libs.stack.Dup;
+import net.fortytwo.ripple.libs.stack.Pop;
+import net.fortytwo.ripple.model.ModelConnection;
+import net.fortytwo.ripple.model.Operator;
+import net.fortytwo.ripple.model.RippleList;
+import net.fortytwo.ripple.test.RippleTestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ParallelStackEvaluatorTest extends RippleTestCase {
+    // a program with a fan-out of 10^4 stacks, each of which is further reduced
+    private static final String FAN_OUT_PROGRAM
+            = "(1 2 3 4 5 6 7 8 9 10) each. (1 2 3 4 5 6 7 8 9 10) each. mul."
+            + " (1 2 3 4 5 6 7 8 9 10) each. mul. (1 2 3 4 5 6 7 8 9 10) each. add. dup. mul. 1 add.\n";
+
+    public void testSimple() throws Exception {
+        ModelConnection mc = getTestModel().createConnection();
+        ParallelStackEvaluator eval = new ParallelStackEvaluator(4);
+        Collector<RippleList> expected = new Collector<RippleList>();
+        final Collector<RippleList> actual = new Collector<RippleList>();
+        RippleList input;
+
+        Object op = Operator.OP;
+        Object
+                dup = new Dup(),
+                pop = new Pop(),
+                sqrt = new Sqrt(),
+                abs = new Abs();
+        Number
+                minusone = -1.0,
+                one = 1,
+                two = 2;
+
+        try {
+            // passive stack passes through unchanged
+            input = createStack(mc, one, two);
+            expected.clear();
+            expected.put(createStack(mc, one, two));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // evaluation is recursive
+            input = createStack(mc, one, dup, op, dup, op);
+            expected.clear();
+            expected.put(createStack(mc, one, one, one));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // evaluator drops anything which can't be reduced to head-normal form
+            input = createStack(mc, dup, op);
+            expected.clear();
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // nil stacks are dropped, as by the lazy evaluator
+            input = createStack(mc, one, pop, op);
+            expected.clear();
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+            actual.clear();
+            new LazyStackEvaluator().apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // distributive reduction
+            input = createStack(mc, one, sqrt, op, dup, op);
+            expected.clear();
+            expected.put(createStack(mc, one, one));
+            expected.put(createStack(mc, minusone, minusone));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // no eager reduction
+            input = createStack(mc, two, dup, op, one);
+            expected.clear();
+            expected.put(createStack(mc, two, dup, op, one));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // list dequotation
+            input = createStack(mc, two, createQueue(mc, one, dup, op), op);
+            expected.clear();
+            expected.put(createStack(mc, two, one, one));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+
+            // results are not necessarily a set
+            input = createStack(mc, one, sqrt, op, abs, op);
+            expected.clear();
+            expected.put(createStack(mc, one));
+            expected.put(createStack(mc, one));
+            actual.clear();
+            eval.apply(input, actual, mc);
+            assertCollectorsEqual(expected, actual);
+        } finally {
+            eval.shutDown();
+            mc.close();
+        }
+    }
+
+    public void testStop() throws Exception {
+        ModelConnection mc = getTestModel().createConnection();
+        final ParallelStackEvaluator eval = new ParallelStackEvaluator(4);
+        final int[] count = {0};
+
+        Collector<RippleList> c = new Collector<RippleList>() {
+            @Override
+            public void put(final RippleList l) throws RippleException {
+                super.put(l);
+                if (++count[0] == 10) {
+                    eval.stop();
+                }
+            }
+        };
+
+        try {
+            RippleList input = createStack(mc, 1, new Dup(), Operator.OP);
+            for (int i = 0; i < 12; i++) {
+                input = input.push(new Sqrt()).push(Operator.OP).push(new Abs()).push(Operator.OP);
+            }
+
+            eval.apply(input, c, mc);
+            assertTrue(c.size() < 4096);
+        } finally {
+            eval.shutDown();
+            mc.close();
+        }
+    }
+
+    public void testCompareWithLazyEvaluator() throws Exception {
+        // several workers reduce stacks concurrently, each with its own model connection
+        ParallelStackEvaluator parallel = new ParallelStackEvaluator(4);
+
+        Collector<RippleList> lazyResults = new Collector<RippleList>();
+        Collector<RippleList> parallelResults = new Collector<RippleList>();
+
+        evaluate(new LazyStackEvaluator(), FAN_OUT_PROGRAM, lazyResults);
+        evaluate(parallel, FAN_OUT_PROGRAM, parallelResults);
+
+        assertEquals(10000, lazyResults.size());
+        assertCollectorsEqual(lazyResults, parallelResults);
+        assertEquals(0, parallel.getQueuedItems());
+    }
+
+    public void testStatefulMappings() throws Exception {
+        // the workers pass stacks into the same limit. and distinct. mappings at the same time
+        String stacks = "(1 2 3 4 5 6 7 8 9 10) each. (1 2 3 4 5 6 7 8 9 10) each."
+                + " (1 2 3 4 5 6 7 8 9 10) each. add. add.";
+
+        QueryEngine qe = new QueryEngine(getTestModel(), new ParallelStackEvaluator(4), System.out, System.err);
+        try {
+            for (int i = 0; i < 20; i++) {
+                Collector<RippleList> results = new Collector<RippleList>();
+                evaluate(qe, stacks + " 37 limit.\n", results);
+                assertEquals(37, results.size());
+
+                results = new Collector<RippleList>();
+                evaluate(qe, stacks + " distinct.\n", results);
+                assertEquals(28, results.size());
+                Set<Integer> sums = new HashSet<Integer>();
+                for (RippleList l : results) {
+                    assertTrue(sums.add(qe.getConnection().toNumber(l.getFirst()).intValue()));
+                }
+                for (int sum = 3; sum <= 30; sum++) {
+                    assertTrue(sums.contains(sum));
+                }
+            }
+        } finally {
+            qe.shutDown();
+        }
+    }
+
+    public void testShutDownWithQueryEngine() throws Exception {
+        ParallelStackEvaluator eval = new ParallelStackEvaluator(2);
+        QueryEngine qe = new QueryEngine(getTestModel(), eval, System.out, System.err);
+        qe.shutDown();
+
+        try {
+            eval.apply(createStack(modelConnection, 1), new Collector<RippleList>(), modelConnection);
+            fail("evaluator should have been shut down along with the query engine");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void evaluate(final StackEvaluator eval,
+                          final String program,
+                          final Collector<RippleList> results) throws Exception {
+        QueryEngine qe = new QueryEngine(getTestModel(), eval, System.out, System.err);
+        try {
+            evaluate(qe, program, results);
+        } finally {
+            qe.shutDown();
+        }
+    }
+
+    private void evaluate(final QueryEngine qe,
+                          final String program,
+                          final Collector<RippleList> results) throws Exception {
+        QueryPipe qp = new QueryPipe(qe, results);
+        qp.put(program);
+        qp.close();
+    }
+}
@@ -0,0 +1,128 @@
+package net.fortytwo.ripple.sail;
+
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.memory.MemoryStore;
+
+/**
+ * Compares the latency of a badly-ordered SPARQL query against a RippleSail with and without join optimization,
+ * on a fixed, generated dataset.  This is not run as part of the test suite.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RippleSailBenchmark {
+    private static final String NS = "http://example.org/rippleSailBenchmark/";
+
+    private static final int ITEMS = 2000, RUNS = 10;
+
+    private static final String QUERY = "PREFIX ex: <" + NS + ">\n" +
+            "PREFIX math: <http://fortytwo.net/2013/03/ripple/math#>\n" +
+            "SELECT ?r WHERE {\n" +
+            "    ?x ex:value ?v .\n" +
+            "    ?v math:sqrt ?r .\n" +
+            "    ?x ex:label \"special\" .\n" +
+            "}";
+
+    public static void main(final String[] args) throws Exception {
+        Sail baseSail = new MemoryStore();
+        baseSail.initialize();
+        try {
+            createDataset(baseSail);
+
+            Sail sail = new RippleSail(baseSail);
+            sail.initialize();
+            try {
+                ParsedQuery query = new SPARQLParser().parseQuery(QUERY, NS);
+
+                SailConnection sc = sail.getConnection();
+                try {
+                    sc.begin();
+
+                    // warm up
+                    countOptimized(sc, query.getTupleExpr());
+                    countUnoptimized(sc, sail.getValueFactory(), query.getTupleExpr());
+
+                    long before = System.currentTimeMillis();
+                    long count = 0;
+                    for (int i = 0; i < RUNS; i++) {
+                        count = countOptimized(sc, query.getTupleExpr());
+                    }
+                    System.out.println("optimized: " + count + " results in "
+                            + (System.currentTimeMillis() - before) / (double) RUNS + "ms");
+
+                    before = System.currentTimeMillis();
+                    for (int i = 0; i < RUNS; i++) {
+                        count = countUnoptimized(sc, sail.getValueFactory(), query.getTupleExpr());
+                    }
+                    System.out.println("unoptimized: " + count + " results in "
+                            + (System.currentTimeMillis() - before) / (double) RUNS + "ms");
+                } finally {
+                    sc.rollback();
+                    sc.close();
+                }
+            } finally {
+                sail.shutDown();
+            }
+        } finally {
+            baseSail.shutDown();
+        }
+    }
+
+    private static void createDataset(final Sail sail) throws Exception {
+        SailConnection sc = sail.getConnection();
+        try {
+            sc.begin();
+            ValueFactory vf = sail.getValueFactory();
+            URI value = vf.createURI(NS + "value");
+            URI label = vf.createURI(NS + "label");
+            for (int i = 0; i < ITEMS; i++) {
+                URI item = vf.createURI(NS + "item" + i);
+                sc.addStatement(item, value, vf.createLiteral(i));
+                if (ITEMS / 2 == i) {
+                    sc.addStatement(item, label, vf.createLiteral("special"));
+                }
+            }
+            sc.commit();
+        } finally {
+            sc.close();
+        }
+    }
+
+    private static long countOptimized(final SailConnection sc,
+                                       final TupleExpr query) throws Exception {
+        return count(sc.evaluate(query, null, new EmptyBindingSet(), false));
+    }
+
+    // evaluates the query in the order in which it is written, as RippleSail did before optimization
+    private static long countUnoptimized(final SailConnection sc,
+                                         final ValueFactory valueFactory,
+                                         final TupleExpr query) throws Exception {
+        EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(
+                new SailConnectionTripleSource(sc, valueFactory, false), null);
+        return count(strategy.evaluate(query, new EmptyBindingSet()));
+    }
+
+    private static long count(final CloseableIteration<? extends BindingSet, QueryEvaluationException> results)
+            throws QueryEvaluationException {
+        long count = 0;
+        try {
+            while (results.hasNext()) {
+                results.next();
+                count++;
+            }
+        } finally {
+            results.close();
+        }
+        return count;
+    }
+}
@@ -218,6 +218,21 @@ public class RippleSailTest extends TestCase {
         assertEquals(1, results.size());
     }
 
+    public void testJoinOrderIsOptimized() throws Exception {
+        Collection<BindingSet> results;
+
+        // a computed pattern cannot be answered until one of its ends is bound,
+        // so it is evaluated after the pattern which binds it, regardless of the order of the query
+        results = evaluate("PREFIX : <http://example.org/>\n" +
+                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
+                "PREFIX math: <http://fortytwo.net/2013/03/ripple/math#>\n" +
+                "SELECT ?n2 WHERE {\n" +
+                "    ?n1 math:sqrt ?n2.\n" +
+                "    :foo rdf:first ?n1 ." +
+                "}");
+        assertEquals(2, results.size());
+    }
+
     public void testEquality() throws Exception {
         Collection<BindingSet> results;
 
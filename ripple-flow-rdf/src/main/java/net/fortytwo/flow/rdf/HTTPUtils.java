@@ -11,9 +11,6 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.openrdf.rio.RDFFormat;
 
-import java.util.HashMap;
-import java.util.Map;
-
 //To consider at some point: caching, authorization
 
 /**
@@ -27,19 +24,23 @@ public class HTTPUtils {
             SPARQL_QUERY = "application/sparql-query",
             USER_AGENT = "User-Agent";
 
-    private static final Map<String, Long> lastRequestByHost = new HashMap<String, Long>();
-
-    private static final long COURTESY_INTERVAL;
+    private static final HostRateLimiter RATE_LIMITER;
     private static final long CONNECTION_TIMEOUT;
 
     static {
         try {
-            COURTESY_INTERVAL = Ripple.getConfiguration().getLong(
-                    Ripple.HTTPCONNECTION_COURTESY_INTERVAL);
+            RATE_LIMITER = new HostRateLimiter(
+                    Ripple.getConfiguration().getLong(Ripple.HTTPCONNECTION_COURTESY_INTERVAL),
+                    Ripple.getConfiguration().getInt(Ripple.HTTPCONNECTION_BURST_SIZE, 1),
+                    Ripple.getConfiguration().getInt(Ripple.HTTPCONNECTION_MAX_HOSTS, 10000));
+            RATE_LIMITER.setRespectCrawlDelay(
+                    Ripple.getConfiguration().getBoolean(Ripple.HTTPCONNECTION_RESPECT_CRAWL_DELAY, false));
             CONNECTION_TIMEOUT = Ripple.getConfiguration().getLong(
                     Ripple.HTTPCONNECTION_TIMEOUT);
         } catch (RippleException e) {
             throw new ExceptionInInitializerError(e);
+        } catch (IllegalArgumentException e) {
+            throw new ExceptionInInitializerError(e);
         }
     }
 
@@ -158,62 +159,20 @@ public class HTTPUtils {
      * Enforces crawler etiquette with respect to timing of HTTP requests.
      * That is, it avoids the Ripple client making a nuisance of itself by
      * making too many requests, too quickly, of the same host.
-     * TODO: request and respect robots.txt, if present.
+     * Only requests to the same host are delayed; see <code>getRateLimiter</code>.
      *
      * @return the amount of time, in milliseconds, that is spent idling for the sake of crawler etiquette
      */
     public static long throttleHttpRequest(final HttpRequest method) throws RippleException {
-        String uri = method.getRequestLine().getUri();
-
-        // Some connections (e.g. file system operations) have no host.  Don't
-        // bother regulating them.
-        if (null == uri || 0 == uri.length() || !(uri.startsWith("http://") || uri.startsWith("https://"))) {
-            return 0;
-        }
-
-        String host = uri.substring(uri.indexOf("//") + 2);
-        int i = host.indexOf("/");
-        if (i > 0) {
-            host = host.substring(0, i);
-        }
-        i = host.indexOf("#");
-        if (i > 0) {
-            host = host.substring(0, i);
-        }
-
-        long now = System.currentTimeMillis();
-
-        Long lastRequest;
-        long w = 0;
-
-        synchronized (lastRequestByHost) {
-            lastRequest = lastRequestByHost.get(host);
-
-            // We've already made a request of this host.
-            if (null != lastRequest) {
-                // If it hasn't been long enough since the last request from the same
-                // host, wait a bit before issuing a new request.
-                if (now - lastRequest < COURTESY_INTERVAL) {
-                    w = lastRequest + COURTESY_INTERVAL - now;
-                }
-            }
-
-            // Record the projected start time of the request beforehand, to
-            // avoid any other requests being scheduled without knowledge of
-            // this one.
-            lastRequestByHost.put(host, w + now);
-        }
-
-        // Wait if necessary.
-        if (w > 0) {
-            try {
-                Thread.sleep(w);
-            } catch (InterruptedException e) {
-                throw new RippleException(e);
-            }
-        }
+        return RATE_LIMITER.acquire(method.getRequestLine().getUri());
+    }
 
-        return System.currentTimeMillis() - now;
+    /**
+     * @return the shared per-host rate limiter which regulates HTTP requests made by Ripple.
+     * Requests may be queued with it, rather than waiting for <code>throttleHttpRequest</code>.
+     */
+    public static HostRateLimiter getRateLimiter() {
+        return RATE_LIMITER;
     }
 
     private static void setAgent(final HttpRequest method) {
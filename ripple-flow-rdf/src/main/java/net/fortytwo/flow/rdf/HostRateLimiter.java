@@ -0,0 +1,619 @@
+package net.fortytwo.flow.rdf;
+
+import net.fortytwo.ripple.Ripple;
+import net.fortytwo.ripple.RippleException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces crawler etiquette with a token bucket for each host.
+ * A host's bucket refills at one token per courtesy interval (or per <code>Crawl-delay</code>,
+ * if the host's robots.txt asks for a longer delay) and holds at most a fixed number of tokens,
+ * so that short bursts of requests are allowed while the long-term rate is bounded.
+ * <p/>
+ * Requests may either wait for a token on the calling thread (<code>acquire</code>),
+ * which delays only requests to the same host, or be queued per host (<code>submit</code>),
+ * in which case they are passed to an executor as soon as their host has a token,
+ * and no thread waits on their behalf.
+ * The state of idle hosts is evicted in least-recently-used order once a maximum number of hosts is tracked.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HostRateLimiter {
+    private static final Logger logger = Logger.getLogger(HostRateLimiter.class.getName());
+
+    private static final int MAX_ROBOTS_TXT_LENGTH = 500000;
+
+    private final int burstSize;
+    private final int maxHosts;
+    private volatile long courtesyInterval;
+    private volatile boolean respectCrawlDelay;
+
+    // hosts in least-recently-used order
+    private final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true);
+
+    private final Object dispatcherLock = new Object();
+    private ScheduledExecutorService dispatcher = null;
+
+    // the host, if any, for which a token has already been taken on behalf of the current thread
+    private final ThreadLocal<String> grantedHost = new ThreadLocal<String>();
+
+    /**
+     * @param courtesyInterval the minimum average interval between requests to the same host, in milliseconds
+     * @param burstSize        the number of requests to a host which may be made without waiting, after the host
+     *                         has been idle.  A burst size of 1 spaces all requests by the courtesy interval.
+     * @param maxHosts         the number of hosts whose state is kept, beyond which idle hosts are forgotten
+     */
+    public HostRateLimiter(final long courtesyInterval,
+                           final int burstSize,
+                           final int maxHosts) {
+        if (courtesyInterval < 0) {
+            throw new IllegalArgumentException("courtesy interval must be non-negative");
+        }
+        if (burstSize < 1 || maxHosts < 1) {
+            throw new IllegalArgumentException("burst size and maximum number of hosts must be positive");
+        }
+
+        this.courtesyInterval = courtesyInterval;
+        this.burstSize = burstSize;
+        this.maxHosts = maxHosts;
+    }
+
+    public long getCourtesyInterval() {
+        return courtesyInterval;
+    }
+
+    /**
+     * @param courtesyInterval the minimum average interval between requests to the same host, in milliseconds.
+     *                         Applies to tokens which have not yet been taken.
+     */
+    public void setCourtesyInterval(final long courtesyInterval) {
+        if (courtesyInterval < 0) {
+            throw new IllegalArgumentException("courtesy interval must be non-negative");
+        }
+
+        this.courtesyInterval = courtesyInterval;
+    }
+
+    /**
+     * @param flag whether to fetch the robots.txt of each host and honor its <code>Crawl-delay</code>, if any
+     */
+    public void setRespectCrawlDelay(final boolean flag) {
+        this.respectCrawlDelay = flag;
+    }
+
+    /**
+     * Waits, if necessary, until a request may be made of the host of the given URI.
+     * Only the calling thread waits; requests to other hosts are not delayed.
+     *
+     * @param uri the URI of the request.  URIs which do not have an HTTP(S) host are not regulated.
+     * @return the amount of time, in milliseconds, which was spent idling for the sake of crawler etiquette
+     * @throws RippleException if interrupted while waiting
+     */
+    public long acquire(final String uri) throws RippleException {
+        String hostName = hostOf(uri);
+        if (null == hostName) {
+            return 0;
+        }
+
+        // a request dispatched by submit() has already been given a token
+        if (hostName.equals(grantedHost.get())) {
+            grantedHost.remove();
+            return 0;
+        }
+
+        Host host = getHost(hostName, uri);
+        if (respectCrawlDelay) {
+            host.loadCrawlDelay();
+        }
+
+        long wait;
+        synchronized (host) {
+            wait = host.reserve(now());
+            host.recordRequest(wait);
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new RippleException(e);
+            }
+        }
+
+        return wait;
+    }
+
+    /**
+     * Queues a request of the host of the given URI, to be passed to the given executor as soon as
+     * the host has a token.  No thread waits on behalf of a queued request.
+     * If the task calls <code>acquire</code> for the same host on the executor's thread, it does not wait again.
+     *
+     * @param uri      the URI of the request
+     * @param task     the task which makes the request
+     * @param executor the executor which runs the task
+     */
+    public void submit(final String uri,
+                       final Runnable task,
+                       final Executor executor) {
+        String hostName = hostOf(uri);
+        if (null == hostName) {
+            executor.execute(task);
+            return;
+        }
+
+        Host host = getHost(hostName, uri);
+        synchronized (host) {
+            host.queue.add(new Pending(task, executor, now()));
+            if (!host.dispatchScheduled) {
+                host.dispatchScheduled = true;
+                scheduleDispatch(host, 0);
+            }
+        }
+    }
+
+    /**
+     * @param uri a URI
+     * @return statistics for the host of the given URI, or null if the host is not currently tracked
+     */
+    public synchronized HostStats getStats(final String uri) {
+        String hostName = hostOf(uri);
+        Host host = null == hostName ? null : hosts.get(hostName);
+        return null == host ? null : host.getStats();
+    }
+
+    /**
+     * @return statistics for all currently tracked hosts
+     */
+    public List<HostStats> getAllStats() {
+        List<Host> all;
+        synchronized (this) {
+            all = new LinkedList<Host>(hosts.values());
+        }
+
+        List<HostStats> stats = new LinkedList<HostStats>();
+        for (Host h : all) {
+            stats.add(h.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return the number of hosts whose state is currently kept
+     */
+    public synchronized int getNumberOfHosts() {
+        return hosts.size();
+    }
+
+    /**
+     * @param uri a URI
+     * @return the host (and port, if any) of an HTTP or HTTPS URI, or null if the URI has no such host
+     */
+    public static String hostOf(final String uri) {
+        // Some connections (e.g. file system operations) have no host.  Don't bother regulating them.
+        if (null == uri || !(uri.startsWith("http://") || uri.startsWith("https://"))) {
+            return null;
+        }
+
+        String host = uri.substring(uri.indexOf("//") + 2);
+        for (char c : new char[]{'/', '?', '#'}) {
+            int i = host.indexOf(c);
+            if (i >= 0) {
+                host = host.substring(0, i);
+            }
+        }
+
+        return 0 == host.length() ? null : host.toLowerCase();
+    }
+
+    /**
+     * Finds the crawl delay which a robots.txt document asks of a given user agent
+     *
+     * @param robotsTxt the contents of a robots.txt document
+     * @param userAgent the name of the user agent
+     * @return the crawl delay in milliseconds, or null if none applies
+     */
+    public static Long parseCrawlDelay(final String robotsTxt,
+                                       final String userAgent) {
+        String agent = userAgent.toLowerCase();
+        Long specific = null, general = null;
+        boolean matchesAgent = false, matchesAny = false, inAgentLines = false;
+
+        for (String line : robotsTxt.split("\r?\n|\r")) {
+            int hash = line.indexOf('#');
+            String l = (hash >= 0 ? line.substring(0, hash) : line).trim();
+            int colon = l.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+
+            String field = l.substring(0, colon).trim().toLowerCase();
+            String value = l.substring(colon + 1).trim();
+
+            if (field.equals("user-agent")) {
+                // consecutive user-agent lines form a single group
+                if (!inAgentLines) {
+                    matchesAgent = false;
+                    matchesAny = false;
+                }
+                inAgentLines = true;
+
+                String v = value.toLowerCase();
+                if (v.equals("*")) {
+                    matchesAny = true;
+                } else if (v.length() > 0 && agent.contains(v)) {
+                    matchesAgent = true;
+                }
+            } else {
+                inAgentLines = false;
+
+                if (field.equals("crawl-delay") && (matchesAgent || matchesAny)) {
+                    try {
+                        long delay = (long) (Double.valueOf(value) * 1000);
+                        if (matchesAgent) {
+                            specific = delay;
+                        } else {
+                            general = delay;
+                        }
+                    } catch (NumberFormatException e) {
+                        logger.fine("bad Crawl-delay value in robots.txt: " + value);
+                    }
+                }
+            }
+        }
+
+        return null != specific ? specific : general;
+    }
+
+    /**
+     * Fetches the robots.txt document of a host
+     *
+     * @param robotsTxtUri the URI of the document
+     * @return the contents of the document, or null if there is none
+     * @throws RippleException if the document cannot be fetched
+     */
+    protected String fetchRobotsTxt(final String robotsTxtUri) throws RippleException {
+        HttpClient client = HTTPUtils.createClient(true);
+        HttpGet method = HTTPUtils.createGetMethod(robotsTxtUri);
+
+        try {
+            HttpResponse response = client.execute(method);
+            if (2 != response.getStatusLine().getStatusCode() / 100 || null == response.getEntity()) {
+                method.abort();
+                return null;
+            }
+
+            String s = EntityUtils.toString(response.getEntity(), "UTF-8");
+            return s.length() > MAX_ROBOTS_TXT_LENGTH ? s.substring(0, MAX_ROBOTS_TXT_LENGTH) : s;
+        } catch (Exception e) {
+            method.abort();
+            throw new RippleException(e);
+        }
+    }
+
+    private synchronized Host getHost(final String name,
+                                      final String uri) {
+        Host host = hosts.get(name);
+        if (null == host) {
+            host = new Host(name, uri.startsWith("https://") ? "https://" : "http://");
+            hosts.put(name, host);
+
+            if (hosts.size() > maxHosts) {
+                evictIdleHosts();
+            }
+        }
+
+        return host;
+    }
+
+    // Note: call only while synchronized on the limiter
+    private void evictIdleHosts() {
+        long now = now();
+        Iterator<Map.Entry<String, Host>> iter = hosts.entrySet().iterator();
+        while (hosts.size() > maxHosts && iter.hasNext()) {
+            Host h = iter.next().getValue();
+            synchronized (h) {
+                // a host which is idle and has a full bucket has no state worth keeping (other than its crawl delay)
+                if (h.queue.isEmpty() && !h.dispatchScheduled && h.isFull(now)) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    // Note: this may be called while synchronized on a host, so it must not lock the limiter itself
+    private void scheduleDispatch(final Host host,
+                                  final long delay) {
+        ScheduledExecutorService d;
+        synchronized (dispatcherLock) {
+            if (null == dispatcher) {
+                dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "host-rate-limiter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            d = dispatcher;
+        }
+
+        d.schedule(new Runnable() {
+            public void run() {
+                dispatch(host);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Passes queued requests of a host to their executors while the host has tokens,
+    // then schedules itself for the time at which the next token becomes available.
+    private void dispatch(final Host host) {
+        while (true) {
+            final Pending p;
+            synchronized (host) {
+                p = host.queue.peek();
+                if (null == p) {
+                    host.dispatchScheduled = false;
+                    return;
+                }
+
+                if (respectCrawlDelay && Host.ROBOTS_UNKNOWN == host.robotsState) {
+                    // find the crawl delay on the request's executor, rather than on the dispatching thread
+                    host.robotsState = Host.ROBOTS_LOADING;
+                    try {
+                        p.executor.execute(new Runnable() {
+                            public void run() {
+                                host.fetchCrawlDelay();
+                                scheduleDispatch(host, 0);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        host.robotsState = Host.ROBOTS_KNOWN;
+                        continue;
+                    }
+                    return;
+                } else if (Host.ROBOTS_LOADING == host.robotsState) {
+                    // dispatching resumes once the crawl delay is known
+                    return;
+                }
+
+                long now = now();
+                long wait = host.delayUntilToken(now);
+                if (wait > 0) {
+                    scheduleDispatch(host, wait);
+                    return;
+                }
+
+                host.queue.remove();
+                host.reserve(now);
+                host.recordRequest(now - p.enqueued);
+            }
+
+            try {
+                p.executor.execute(new Runnable() {
+                    public void run() {
+                        grantedHost.set(host.name);
+                        try {
+                            p.task.run();
+                        } finally {
+                            grantedHost.remove();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.log(Level.WARNING, "request to host " + host.name + " was rejected by its executor", e);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * A snapshot of the state of a host
+     */
+    public static class HostStats {
+        private final String host;
+        private final int queueDepth;
+        private final long requests;
+        private final long totalWait;
+        private final long maxWait;
+        private final Long crawlDelay;
+
+        public HostStats(final String host,
+                         final int queueDepth,
+                         final long requests,
+                         final long totalWait,
+                         final long maxWait,
+                         final Long crawlDelay) {
+            this.host = host;
+            this.queueDepth = queueDepth;
+            this.requests = requests;
+            this.totalWait = totalWait;
+            this.maxWait = maxWait;
+            this.crawlDelay = crawlDelay;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return the number of submitted requests which are waiting for a token
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return the number of requests which have been given a token
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return the total time, in milliseconds, which requests have waited for a token
+         */
+        public long getTotalWait() {
+            return totalWait;
+        }
+
+        public long getMaxWait() {
+            return maxWait;
+        }
+
+        public double getMeanWait() {
+            return 0 == requests ? 0 : totalWait / (double) requests;
+        }
+
+        /**
+         * @return the crawl delay requested by the host's robots.txt, in milliseconds, or null if there is none
+         */
+        public Long getCrawlDelay() {
+            return crawlDelay;
+        }
+
+        @Override
+        public String toString() {
+            return host + ": " + requests + " requests, " + queueDepth + " queued, mean wait "
+                    + (long) getMeanWait() + "ms, max wait " + maxWait + "ms";
+        }
+    }
+
+    private class Host {
+        private static final int ROBOTS_UNKNOWN = 0, ROBOTS_LOADING = 1, ROBOTS_KNOWN = 2;
+
+        private final String name;
+        private final String scheme;
+        private final LinkedList<Pending> queue = new LinkedList<Pending>();
+        private boolean dispatchScheduled = false;
+
+        private double tokens = burstSize;
+        private long lastRefill = now();
+
+        private int robotsState = ROBOTS_UNKNOWN;
+        private Long crawlDelay = null;
+
+        private long requests = 0, totalWait = 0, maxWait = 0;
+
+        public Host(final String name,
+                    final String scheme) {
+            this.name = name;
+            this.scheme = scheme;
+        }
+
+        private long interval() {
+            return null == crawlDelay ? courtesyInterval : Math.max(courtesyInterval, crawlDelay);
+        }
+
+        private void refill(final long now) {
+            long interval = interval();
+            if (interval <= 0) {
+                tokens = burstSize;
+            } else if (now > lastRefill) {
+                tokens = Math.min(burstSize, tokens + (now - lastRefill) / (double) interval);
+            }
+            lastRefill = now;
+        }
+
+        public boolean isFull(final long now) {
+            refill(now);
+            return tokens >= burstSize;
+        }
+
+        // Takes a token, possibly going into debt.  Returns the time to wait before using it.
+        public long reserve(final long now) {
+            refill(now);
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * interval());
+        }
+
+        public long delayUntilToken(final long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * interval());
+        }
+
+        public void recordRequest(final long wait) {
+            requests++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+
+        public synchronized HostStats getStats() {
+            return new HostStats(name, queue.size(), requests, totalWait, maxWait, crawlDelay);
+        }
+
+        // Fetches robots.txt at most once per tracked host; other threads wait for the result.
+        public void loadCrawlDelay() {
+            synchronized (this) {
+                while (ROBOTS_LOADING == robotsState) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (ROBOTS_KNOWN == robotsState) {
+                    return;
+                }
+                robotsState = ROBOTS_LOADING;
+            }
+
+            fetchCrawlDelay();
+        }
+
+        // Note: call only after having set the robots state to "loading"
+        public void fetchCrawlDelay() {
+            Long delay = null;
+            try {
+                String robotsTxt = fetchRobotsTxt(scheme + name + "/robots.txt");
+                if (null != robotsTxt) {
+                    delay = parseCrawlDelay(robotsTxt, Ripple.getName());
+                }
+            } catch (RippleException e) {
+                logger.log(Level.FINE, "could not fetch robots.txt of host " + name, e);
+            }
+
+            synchronized (this) {
+                if (null != delay && delay > 0) {
+                    logger.info("using crawl delay of " + delay + "ms for host " + name);
+                    crawlDelay = delay;
+                }
+                robotsState = ROBOTS_KNOWN;
+                notifyAll();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final Runnable task;
+        private final Executor executor;
+        private final long enqueued;
+
+        public Pending(final Runnable task,
+                       final Executor executor,
+                       final long enqueued) {
+            this.task = task;
+            this.executor = executor;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.fortytwo.flow.rdf;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.QueryRoot;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
+import org.openrdf.query.algebra.evaluation.impl.CompareOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
+import org.openrdf.query.algebra.evaluation.impl.ConstantOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.DisjunctiveConstraintOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.evaluation.impl.FilterOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.IterativeEvaluationOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.OrderLimitOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.QueryJoinOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.QueryModelNormalizer;
+import org.openrdf.query.algebra.evaluation.impl.SameTermFilterOptimizer;
+
+/**
+ * The sequence of Sesame query optimizers which Sail connections apply to a query before evaluating it,
+ * with join order determined by statistics supplied by the connection
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryOptimizerChain {
+    private QueryOptimizerChain() {
+    }
+
+    /**
+     * @param query      a query, which is not modified
+     * @param dataset    the dataset of the query, or null
+     * @param bindings   any bindings to be applied to the query
+     * @param strategy   the strategy with which the query will be evaluated
+     * @param statistics cardinality estimates used to order joins
+     * @return an optimized copy of the query
+     */
+    public static TupleExpr optimize(final TupleExpr query,
+                                     final Dataset dataset,
+                                     final BindingSet bindings,
+                                     final EvaluationStrategy strategy,
+                                     final EvaluationStatistics statistics) {
+        TupleExpr expr = query.clone();
+        if (!(expr instanceof QueryRoot)) {
+            // Add a dummy root node to the tuple expressions to allow the optimizers to modify the actual root node
+            expr = new QueryRoot(expr);
+        }
+
+        new BindingAssigner().optimize(expr, dataset, bindings);
+        new ConstantOptimizer(strategy).optimize(expr, dataset, bindings);
+        new CompareOptimizer().optimize(expr, dataset, bindings);
+        new ConjunctiveConstraintSplitter().optimize(expr, dataset, bindings);
+        new DisjunctiveConstraintOptimizer().optimize(expr, dataset, bindings);
+        new SameTermFilterOptimizer().optimize(expr, dataset, bindings);
+        new QueryModelNormalizer().optimize(expr, dataset, bindings);
+        new QueryJoinOptimizer(statistics).optimize(expr, dataset, bindings);
+        new IterativeEvaluationOptimizer().optimize(expr, dataset, bindings);
+        new FilterOptimizer().optimize(expr, dataset, bindings);
+        new OrderLimitOptimizer().optimize(expr, dataset, bindings);
+
+        return expr;
+    }
+}
@@ -0,0 +1,179 @@
+package net.fortytwo.flow.rdf;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HostRateLimiterTest extends TestCase {
+
+    public void testHostOf() throws Exception {
+        assertEquals("example.org", HostRateLimiter.hostOf("http://example.org/foo#bar"));
+        assertEquals("example.org:8080", HostRateLimiter.hostOf("https://Example.org:8080?q=1"));
+        assertEquals("example.org", HostRateLimiter.hostOf("http://example.org"));
+        assertNull(HostRateLimiter.hostOf("file:/tmp/foo.txt"));
+        assertNull(HostRateLimiter.hostOf("jar:file:/tmp/foo.jar!/bar.ttl"));
+        assertNull(HostRateLimiter.hostOf("http:///foo"));
+    }
+
+    public void testParseCrawlDelay() throws Exception {
+        String robotsTxt = "# comment\n"
+                + "User-agent: googlebot\n"
+                + "Crawl-delay: 30\n"
+                + "\n"
+                + "User-agent: *\n"
+                + "Disallow: /private\n"
+                + "Crawl-delay: 2.5  # seconds\n"
+                + "\n"
+                + "User-agent: otherbot\n"
+                + "User-agent: Ripple\n"
+                + "Crawl-delay: 10\n";
+
+        assertEquals(10000L, (long) HostRateLimiter.parseCrawlDelay(robotsTxt, "Ripple"));
+        assertEquals(2500L, (long) HostRateLimiter.parseCrawlDelay(robotsTxt, "somebot"));
+        assertNull(HostRateLimiter.parseCrawlDelay("User-agent: *\nDisallow: /\n", "Ripple"));
+        assertNull(HostRateLimiter.parseCrawlDelay("User-agent: *\nCrawl-delay: soon\n", "Ripple"));
+    }
+
+    public void testRequestsToSameHostAreSpaced() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(100, 1, 100);
+
+        assertEquals(0, limiter.acquire("http://example.org/a"));
+        long before = System.currentTimeMillis();
+        limiter.acquire("http://example.org/b");
+        limiter.acquire("http://example.org/c");
+        long elapsed = System.currentTimeMillis() - before;
+        assertTrue("elapsed: " + elapsed, elapsed >= 190);
+
+        // other hosts, and URIs without a host, are not delayed
+        assertEquals(0, limiter.acquire("http://example.com/a"));
+        assertEquals(0, limiter.acquire("file:/tmp/a"));
+
+        HostRateLimiter.HostStats stats = limiter.getStats("http://example.org/");
+        assertEquals(3, stats.getRequests());
+        assertTrue(stats.getTotalWait() >= 190);
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    public void testBurst() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(1000, 3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("http://example.org/" + i));
+        }
+        assertTrue(limiter.acquire("http://example.org/3") > 0);
+    }
+
+    public void testSubmitDoesNotBlock() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(100, 1, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<String> completed = Collections.synchronizedList(new LinkedList<String>());
+        final CountDownLatch latch = new CountDownLatch(6);
+
+        try {
+            long before = System.currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                final String uri = "http://example.org/" + i;
+                limiter.submit(uri, new Runnable() {
+                    public void run() {
+                        completed.add(uri);
+                        latch.countDown();
+                    }
+                }, executor);
+            }
+            final String other = "http://example.com/";
+            limiter.submit(other, new Runnable() {
+                public void run() {
+                    completed.add(other);
+                    latch.countDown();
+                }
+            }, executor);
+
+            // submitting returns immediately, and the other host is not held up by the queue
+            assertTrue(System.currentTimeMillis() - before < 100);
+            Thread.sleep(50);
+            assertTrue(completed.contains(other));
+            assertTrue(limiter.getStats("http://example.org/").getQueueDepth() > 0);
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            long elapsed = System.currentTimeMillis() - before;
+            assertTrue("elapsed: " + elapsed, elapsed >= 390);
+
+            // requests to the same host are dispatched in the order submitted
+            completed.remove(other);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("http://example.org/" + i, completed.get(i));
+            }
+            assertEquals(0, limiter.getStats("http://example.org/").getQueueDepth());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testSubmittedTaskIsNotThrottledAgain() throws Exception {
+        final HostRateLimiter limiter = new HostRateLimiter(1000, 1, 100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final long[] waited = {-1};
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        try {
+            limiter.acquire("http://example.org/a");
+            limiter.submit("http://example.org/b", new Runnable() {
+                public void run() {
+                    try {
+                        waited[0] = limiter.acquire("http://example.org/b");
+                    } catch (Exception e) {
+                        fail(e.getMessage());
+                    }
+                    latch.countDown();
+                }
+            }, executor);
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(0, waited[0]);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testCrawlDelay() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(0, 1, 100) {
+            @Override
+            protected String fetchRobotsTxt(final String robotsTxtUri) {
+                assertEquals("http://example.org/robots.txt", robotsTxtUri);
+                return "User-agent: *\nCrawl-delay: 0.2\n";
+            }
+        };
+        limiter.setRespectCrawlDelay(true);
+
+        limiter.acquire("http://example.org/a");
+        long wait = limiter.acquire("http://example.org/b");
+        assertTrue("wait: " + wait, wait >= 150);
+        assertEquals(200L, (long) limiter.getStats("http://example.org/").getCrawlDelay());
+    }
+
+    public void testIdleHostsAreEvicted() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(20, 1, 10);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire("http://host" + i + ".example.org/");
+        }
+        assertEquals(10, limiter.getNumberOfHosts());
+
+        Thread.sleep(50);
+        for (int i = 10; i < 20; i++) {
+            limiter.acquire("http://host" + i + ".example.org/");
+        }
+        assertEquals(10, limiter.getNumberOfHosts());
+        assertNull(limiter.getStats("http://host0.example.org/"));
+        assertNotNull(limiter.getStats("http://host19.example.org/"));
+    }
+}